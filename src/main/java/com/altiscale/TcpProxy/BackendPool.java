@@ -0,0 +1,259 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import com.altiscale.TcpProxy.HttpTunnel.BackendConnection;
+import com.altiscale.Util.HostPort;
+
+/**
+ * BackendPool keeps idle keep-alive HTTP connections to servers, so any client connection can
+ * send its next request on a connection another client connection opened.
+ *
+ * We hand out the most recently used idle connection of a server first, so connections we
+ * don't need age out. A connection is closed once it was idle for backendIdleTimeoutSeconds,
+ * once it carried backendMaxRequests requests, when its server has more than
+ * backendMaxIdlePerServer idle connections, or when its ssh tunnel isn't running. Before
+ * reusing a connection that was idle for a while we check that the server didn't close it.
+ *
+ * Redirects name datanodes we have no configured server for, so we keep a Server with its
+ * stats for each of the last MAX_REDIRECT_SERVERS of them, and close idle connections of ones
+ * we forget.
+ */
+public class BackendPool {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // Connections idle for longer than this are checked before we reuse them.
+  private static final long VALIDATE_AFTER_MILLIS = 1000;
+
+  // How often the evictor thread looks for connections idle for too long.
+  private static final long EVICT_INTERVAL_MILLIS = 1000;
+
+  // Number of redirect targets we keep servers for. A Server keeps tens of KB of histograms.
+  static final int MAX_REDIRECT_SERVERS = 128;
+
+  private ProxyConfiguration config;
+
+  // Idle connections of each server, most recently used last.
+  private HashMap<Server, LinkedList<BackendConnection>> idle;
+
+  // Servers for redirect targets by host:port, least recently used first.
+  private LinkedHashMap<String, Server> redirectServers;
+
+  private boolean closed;
+
+  public BackendPool(ProxyConfiguration config) {
+    this.config = config;
+    this.idle = new HashMap<Server, LinkedList<BackendConnection>>();
+    this.redirectServers = new LinkedHashMap<String, Server>(16, 0.75f, true);
+  }
+
+  /*
+   *  Starts thread that closes connections idle for too long. Without it, we close them only
+   *  when we look at connections of their server.
+   */
+  public void start() {
+    Thread evictor = new Thread(new Runnable() {
+      public void run() {
+        while (!isClosed()) {
+          try {
+            Thread.sleep(EVICT_INTERVAL_MILLIS);
+          } catch (InterruptedException e) {
+            return;
+          }
+          evictIdle();
+        }
+      }
+    }, "BackendPool evictor");
+    evictor.setDaemon(true);
+    evictor.start();
+  }
+
+  private synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /*
+   *  @return  Idle connection to server we checked we can send the next request on, or null.
+   */
+  public BackendConnection take(Server server) {
+    while (true) {
+      BackendConnection backend = null;
+      synchronized (this) {
+        LinkedList<BackendConnection> connections = idle.get(server);
+        if (null == connections || connections.isEmpty()) {
+          return null;
+        }
+        backend = connections.removeLast();
+      }
+      long idleMillis = System.currentTimeMillis() - backend.idleSince;
+      if (!server.isHealthy() || idleMillis > config.backendIdleTimeoutSeconds * 1000) {
+        backend.close();
+      } else if (idleMillis > VALIDATE_AFTER_MILLIS && !isOpen(backend)) {
+        LOG.debug("Server " + server.hostPort + " closed idle connection.");
+        backend.close();
+      } else {
+        server.httpReusedCnt.increment();
+        return backend;
+      }
+    }
+  }
+
+  /*
+   *  @return  True if server didn't close connection and didn't send anything on it.
+   */
+  private static boolean isOpen(BackendConnection backend) {
+    try {
+      backend.socket.setSoTimeout(1);
+      try {
+        // Server closed connection, or sent something we didn't ask for.
+        backend.input.read();
+        return false;
+      } finally {
+        backend.socket.setSoTimeout(0);
+      }
+    } catch (SocketTimeoutException e) {
+      // Nothing to read, as it should be.
+      return true;
+    } catch (IOException ioe) {
+      return false;
+    }
+  }
+
+  /*
+   *  Keeps connection for the next request to its server, or closes it.
+   */
+  public void put(BackendConnection backend) {
+    if (backend.requestCnt >= config.backendMaxRequests) {
+      backend.close();
+      return;
+    }
+    backend.idleSince = System.currentTimeMillis();
+    BackendConnection excess = null;
+    synchronized (this) {
+      if (closed) {
+        excess = backend;
+      } else {
+        LinkedList<BackendConnection> connections = idle.get(backend.server);
+        if (null == connections) {
+          connections = new LinkedList<BackendConnection>();
+          idle.put(backend.server, connections);
+        }
+        connections.addLast(backend);
+        if (connections.size() > config.backendMaxIdlePerServer) {
+          excess = connections.removeFirst();
+        }
+      }
+    }
+    if (null != excess) {
+      excess.close();
+    }
+  }
+
+  /*
+   *  Closes connections idle for too long.
+   */
+  void evictIdle() {
+    long oldest = System.currentTimeMillis() - config.backendIdleTimeoutSeconds * 1000;
+    ArrayList<BackendConnection> evicted = new ArrayList<BackendConnection>();
+    synchronized (this) {
+      Iterator<LinkedList<BackendConnection>> servers = idle.values().iterator();
+      while (servers.hasNext()) {
+        LinkedList<BackendConnection> connections = servers.next();
+        Iterator<BackendConnection> it = connections.iterator();
+        while (it.hasNext()) {
+          BackendConnection backend = it.next();
+          if (backend.idleSince < oldest || !backend.server.isHealthy()) {
+            it.remove();
+            evicted.add(backend);
+          }
+        }
+        if (connections.isEmpty()) {
+          // Don't keep servers we forgot, like redirect targets, alive.
+          servers.remove();
+        }
+      }
+    }
+    for (BackendConnection backend : evicted) {
+      backend.close();
+    }
+  }
+
+  /*
+   *  @return  Server we use for connections to redirect target host:port.
+   */
+  public Server getRedirectServer(String host, int port) {
+    String key = host + ":" + port;
+    Server server = null;
+    LinkedList<BackendConnection> forgotten = null;
+    synchronized (this) {
+      server = redirectServers.get(key);
+      if (null == server) {
+        server = new Server(new HostPort(host, port));
+        redirectServers.put(key, server);
+        if (redirectServers.size() > MAX_REDIRECT_SERVERS) {
+          Iterator<Map.Entry<String, Server>> eldest = redirectServers.entrySet().iterator();
+          forgotten = idle.remove(eldest.next().getValue());
+          eldest.remove();
+        }
+      }
+    }
+    if (null != forgotten) {
+      for (BackendConnection backend : forgotten) {
+        backend.close();
+      }
+    }
+    return server;
+  }
+
+  synchronized int getRedirectServerCnt() {
+    return redirectServers.size();
+  }
+
+  public synchronized int getIdleCnt(Server server) {
+    LinkedList<BackendConnection> connections = idle.get(server);
+    return null == connections ? 0 : connections.size();
+  }
+
+  /*
+   *  Closes all idle connections, and connections put back later.
+   */
+  public void close() {
+    ArrayList<BackendConnection> connections = new ArrayList<BackendConnection>();
+    synchronized (this) {
+      closed = true;
+      for (LinkedList<BackendConnection> serverConnections : idle.values()) {
+        connections.addAll(serverConnections);
+      }
+      idle.clear();
+    }
+    for (BackendConnection backend : connections) {
+      backend.close();
+    }
+  }
+}
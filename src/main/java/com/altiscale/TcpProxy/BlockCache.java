@@ -0,0 +1,223 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import com.altiscale.Util.HttpMessage;
+import com.altiscale.Util.SecondMinuteHourCounter;
+
+/**
+ * BlockCache keeps blocks of files read through WebHDFS OPEN in files on local disk, so
+ * repeated reads of the same file don't cross the tunnels.
+ *
+ * A file is identified by its path, modification time and length, so a file that changed
+ * gets new blocks and its old blocks age out. Blocks also belong to the user and credentials
+ * of the request that fetched them: a user that may get the status of a file may still not be
+ * allowed to read it, so one user's blocks are never served to another. Each block is a fixed-size piece of the file
+ * (the last one may be shorter) stored in its own file and memory-mapped once we wrote it.
+ * Least recently used blocks are evicted to stay within the disk bound. Blocks left over from
+ * a previous run are deleted at startup.
+ */
+public class BlockCache {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  private static final String FILE_PREFIX = "block-";
+
+  /*
+   *  Cached block of a file.
+   */
+  private static class Block {
+    File file;
+    MappedByteBuffer data;
+  }
+
+  private File directory;
+  private long maxBytes;
+  private int blockBytes;
+
+  // Blocks from least to most recently used, by file key and block index.
+  private LinkedHashMap<String, Block> blocks;
+  private long bytes;
+
+  // Bytes we sent to clients from cache, which didn't cross the tunnels.
+  SecondMinuteHourCounter hitByteCnt;
+  // Bytes of blocks we fetched through the tunnels.
+  SecondMinuteHourCounter missByteCnt;
+  SecondMinuteHourCounter evictionCnt;
+
+  /*
+   *  @param directory   Where we keep blocks.
+   *  @param maxBytes    Disk bound for cached blocks.
+   *  @param blockBytes  Size of blocks.
+   */
+  public BlockCache(File directory, long maxBytes, int blockBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.blockBytes = blockBytes;
+    this.blocks = new LinkedHashMap<String, Block>(16, 0.75f, true);
+    this.bytes = 0;
+    hitByteCnt = new SecondMinuteHourCounter("blockCacheHitByteCnt");
+    missByteCnt = new SecondMinuteHourCounter("blockCacheMissByteCnt");
+    evictionCnt = new SecondMinuteHourCounter("blockCacheEvictionCnt");
+    File[] leftovers = directory.listFiles();
+    if (null != leftovers) {
+      for (File file : leftovers) {
+        if (file.getName().startsWith(FILE_PREFIX) && !file.delete()) {
+          LOG.warn("Can't delete old cached block " + file);
+        }
+      }
+    }
+  }
+
+  public int getBlockBytes() {
+    return blockBytes;
+  }
+
+  /*
+   *  @return  User and credentials of a request: user.name, doas and delegation parameters,
+   *           and Authorization and Cookie headers.
+   */
+  static String getCredentials(HttpMessage request) {
+    StringBuilder credentials = new StringBuilder();
+    for (String parameter : new String[] {"user.name", "doas", "delegation"}) {
+      String value = request.getQueryParameter(parameter);
+      credentials.append(null == value ? "" : value).append('\n');
+    }
+    String authorization = request.getHeader("Authorization");
+    String cookie = request.getHeader("Cookie");
+    credentials.append(null == authorization ? "" : authorization).append('\n');
+    credentials.append(null == cookie ? "" : cookie);
+    return credentials.toString();
+  }
+
+  /*
+   *  @param credentials  What getCredentials returns for the request.
+   *  @return             Key that identifies this version of a file, as read by one user.
+   */
+  static String getFileKey(String path, long modificationTime, long length,
+                           String credentials) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest((path + "\n" + modificationTime + "\n" + length + "\n" +
+                                   credentials).getBytes("UTF-8"));
+      StringBuilder key = new StringBuilder();
+      for (byte b : hash) {
+        key.append(String.format("%02x", b & 0xff));
+      }
+      return key.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /*
+   *  @return  Data of block, or null if we don't have it.
+   */
+  public synchronized ByteBuffer get(String fileKey, long index) {
+    Block block = blocks.get(fileKey + "-" + index);
+    return null == block ? null : block.data.duplicate();
+  }
+
+  /*
+   *  Stores block we fetched.
+   *
+   *  @return  Data of block, mapped from disk if we could store it.
+   */
+  public ByteBuffer put(String fileKey, long index, byte[] data) {
+    missByteCnt.incrementBy(data.length);
+    String name = fileKey + "-" + index;
+    File temp = null;
+    try {
+      temp = File.createTempFile(FILE_PREFIX + "tmp", null, directory);
+      FileOutputStream output = new FileOutputStream(temp);
+      try {
+        output.write(data);
+      } finally {
+        output.close();
+      }
+      synchronized (this) {
+        Block block = blocks.get(name);
+        if (null != block) {
+          // Someone else fetched it meanwhile.
+          temp.delete();
+          return block.data.duplicate();
+        }
+        block = new Block();
+        block.file = new File(directory, FILE_PREFIX + name);
+        if (!temp.renameTo(block.file)) {
+          throw new IOException("Can't rename " + temp + " to " + block.file + ".");
+        }
+        temp = null;
+        RandomAccessFile file = new RandomAccessFile(block.file, "r");
+        try {
+          block.data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, data.length);
+        } finally {
+          file.close();
+        }
+        blocks.put(name, block);
+        bytes += data.length;
+        evict();
+        return block.data.duplicate();
+      }
+    } catch (IOException ioe) {
+      LOG.error("Can't cache block " + name + ": " + ioe.getMessage());
+      if (null != temp) {
+        temp.delete();
+      }
+      return ByteBuffer.wrap(data);
+    }
+  }
+
+  private void evict() {
+    Iterator<Block> it = blocks.values().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      Block block = it.next();
+      bytes -= block.data.capacity();
+      it.remove();
+      // Mapping stays valid for readers that still have it.
+      if (!block.file.delete()) {
+        LOG.warn("Can't delete cached block " + block.file);
+      }
+      evictionCnt.increment();
+    }
+  }
+
+  public synchronized int getBlockCnt() {
+    return blocks.size();
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+}
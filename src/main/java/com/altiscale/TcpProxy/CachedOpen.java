@@ -0,0 +1,255 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+
+import com.altiscale.Util.HttpMessage;
+
+/**
+ * CachedOpen serves a WebHDFS OPEN request from blocks in a BlockCache, fetching blocks it
+ * doesn't find with OPEN requests for whole blocks.
+ *
+ * We first ask for the file status with GETFILESTATUS (from the metadata cache if we have
+ * one), so blocks of a file that changed since we cached them aren't used. Only blocks the
+ * same user fetched with the same credentials are used.
+ *
+ * If the read is big enough for RangedOpen, worker threads fetch missing blocks in parallel
+ * the same way, at most rangedOpenReorderBytes of blocks ahead of the block we are writing.
+ */
+public class CachedOpen {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  private HttpTunnel tunnel;
+
+  private HttpMessage request;
+
+  private BlockCache cache;
+
+  private ProxyConfiguration config;
+
+  private String fileKey;
+  private long fileLength;
+
+  // Range of the file we serve.
+  private long offset;
+  private long end;
+
+  // Blocks workers got that we didn't write to client yet, by block index. Null for blocks
+  // they couldn't get.
+  private HashMap<Long, ByteBuffer> fetched;
+
+  // Index of next block a worker will get, and of next block we write to client.
+  private long nextFetchIndex;
+  private long nextWriteIndex;
+  private long endIndex;
+
+  // Max number of blocks we get ahead of nextWriteIndex, 1 if we don't use workers.
+  private int window;
+
+  private boolean aborted;
+
+  public CachedOpen(HttpTunnel tunnel, HttpMessage request, BlockCache cache,
+                    ProxyConfiguration config) {
+    this.tunnel = tunnel;
+    this.request = request;
+    this.cache = cache;
+    this.config = config;
+    this.fetched = new HashMap<Long, ByteBuffer>();
+  }
+
+  /*
+   *  Sends response to client.
+   *
+   *  @return  True if we served the request, false if caller should send it as it is. Throws
+   *           if we failed after we started the response.
+   */
+  public boolean serve(OutputStream client, boolean clientKeepAlive) throws IOException {
+    long length = 0;
+    HttpTunnel.FileStatus status = null;
+    try {
+      offset = RangedOpen.parseLong(request.getQueryParameter("offset"), 0);
+      long requested = RangedOpen.parseLong(request.getQueryParameter("length"), -1);
+      status = tunnel.getFileStatus(request);
+      if (null == status || status.modificationTime < 0 || offset >= status.length) {
+        return false;
+      }
+      length = status.length - offset;
+      if (requested >= 0) {
+        length = Math.min(length, requested);
+      }
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    if (0 == length) {
+      // No block to read, server answers that as well as we would.
+      return false;
+    }
+    fileKey = BlockCache.getFileKey(MetadataCache.getNormalizedPath(request.getPath()),
+                                    status.modificationTime, status.length,
+                                    BlockCache.getCredentials(request));
+    fileLength = status.length;
+    long blockBytes = cache.getBlockBytes();
+    end = offset + length;
+    nextFetchIndex = offset / blockBytes;
+    nextWriteIndex = nextFetchIndex;
+    endIndex = (end + blockBytes - 1) / blockBytes;
+    window = 1;
+    if (config.rangedOpenMinBytes > 0 && length >= config.rangedOpenMinBytes) {
+      window = (int) Math.max(1, Math.min(endIndex - nextFetchIndex,
+                                          config.rangedOpenReorderBytes / blockBytes));
+    }
+    if (window > 1) {
+      for (int i = 0; i < window; i++) {
+        Thread worker = new Thread(new Runnable() {
+          public void run() {
+            getBlocks();
+          }
+        }, "CachedOpen " + request.getPath());
+        worker.setDaemon(true);
+        worker.start();
+      }
+    }
+
+    try {
+      WritableByteChannel channel = Channels.newChannel(client);
+      for (long index = offset / blockBytes; index < endIndex; index++) {
+        long blockStart = index * blockBytes;
+        ByteBuffer block = window > 1 ? waitForBlock(index) : getBlock(index);
+        if (null == block) {
+          if (blockStart <= offset) {
+            // Nothing sent to client yet, so the request can still go through as it is.
+            return false;
+          }
+          throw new IOException("No server could serve block at " + blockStart + ".");
+        }
+        if (blockStart <= offset) {
+          HttpMessage response = HttpMessage.newResponse(200, "OK");
+          response.setHeader("Content-Type", "application/octet-stream");
+          response.setHeader("Content-Length", Long.toString(length));
+          response.setHeader("Connection", clientKeepAlive ? "keep-alive" : "close");
+          response.writeHead(client);
+          tunnel.openResponseStarted(null);
+        }
+        block.position((int) Math.max(0, offset - blockStart));
+        block.limit((int) Math.min(block.limit(), end - blockStart));
+        while (block.hasRemaining()) {
+          channel.write(block);
+        }
+      }
+      client.flush();
+      return true;
+    } finally {
+      abort();
+    }
+  }
+
+  /*
+   *  @return  Block from cache, or fetched and cached, or null if we couldn't fetch it.
+   */
+  private ByteBuffer getBlock(long index) throws IOException {
+    long blockBytes = cache.getBlockBytes();
+    long blockStart = index * blockBytes;
+    ByteBuffer block = cache.get(fileKey, index);
+    if (null == block) {
+      return fetchBlock(index, Math.min(blockBytes, fileLength - blockStart));
+    }
+    cache.hitByteCnt.incrementBy(Math.min(end, blockStart + block.limit()) -
+                                 Math.max(offset, blockStart));
+    return block;
+  }
+
+  private void getBlocks() {
+    while (true) {
+      long index = 0;
+      synchronized (this) {
+        while (!aborted && nextFetchIndex < endIndex &&
+               nextFetchIndex >= nextWriteIndex + window) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (aborted || nextFetchIndex >= endIndex) {
+          return;
+        }
+        index = nextFetchIndex++;
+      }
+      ByteBuffer block = null;
+      try {
+        block = getBlock(index);
+      } catch (IOException ioe) {
+        LOG.debug("IO exception while fetching block " + index + " of " + request.getPath() +
+                  ": " + ioe.getMessage());
+      }
+      synchronized (this) {
+        fetched.put(index, block);
+        notifyAll();
+      }
+    }
+  }
+
+  /*
+   *  @return  Block a worker got, or null if it couldn't.
+   */
+  private synchronized ByteBuffer waitForBlock(long index) throws IOException {
+    while (!fetched.containsKey(index)) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while waiting for block.");
+      }
+    }
+    nextWriteIndex = index + 1;
+    notifyAll();
+    return fetched.remove(index);
+  }
+
+  private synchronized void abort() {
+    aborted = true;
+    fetched.clear();
+    notifyAll();
+  }
+
+  /*
+   *  @return  Block we fetched and cached, or null if we couldn't fetch it.
+   */
+  private ByteBuffer fetchBlock(long index, long blockLength) throws IOException {
+    long blockStart = index * cache.getBlockBytes();
+    HttpMessage blockRequest = request.copy();
+    blockRequest.setQueryParameter("offset", Long.toString(blockStart));
+    blockRequest.setQueryParameter("length", Long.toString(blockLength));
+    ByteArrayOutputStream body = new ByteArrayOutputStream((int) blockLength);
+    HttpMessage response = tunnel.fetch(blockRequest, body, blockLength);
+    if (null == response || response.getStatusCode() != 200 || body.size() != blockLength) {
+      LOG.debug("Can't fetch block at " + blockStart + " of " + request.getPath() + ": " +
+                (null == response ? "no server" : "status " + response.getStatusCode()));
+      return null;
+    }
+    return cache.put(fileKey, index, body.toByteArray());
+  }
+}
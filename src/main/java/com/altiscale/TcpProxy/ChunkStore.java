@@ -0,0 +1,162 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+
+/**
+ * ChunkStore keeps chunks received from a peer in numbered slots, so the peer can send a slot
+ * number instead of a chunk we already have. Which chunk goes to which slot is decided by the
+ * peer's DedupIndex.
+ *
+ * Without a disk file, all slots are kept in memory. With a disk file, every slot has a fixed
+ * place in a memory-mapped file big enough for the longest chunk, and memory keeps only the
+ * most recently used chunks, so we can offer many more slots than fit in memory.
+ */
+public class ChunkStore {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // We map the disk file in segments, since one mapping can't exceed 2GB.
+  private static final long SEGMENT_BYTES = 1L << 30;
+
+  private int slotCount;
+
+  private int maxChunkBytes;
+
+  // Recently used chunks by slot, in access order.
+  private LinkedHashMap<Integer, byte[]> memory;
+
+  private int memorySlots;
+
+  private File diskFile;
+
+  private MappedByteBuffer[] segments;
+
+  // Bytes of one slot on disk: chunk length (int) and chunk data.
+  private int recordBytes;
+
+  private int slotsPerSegment;
+
+  /*
+   *  @param memoryBytes    Memory we may use for chunks.
+   *  @param maxChunkBytes  Longest chunk we need to store.
+   *  @param diskFile       Memory-mapped file for all slots, null to keep all slots in memory.
+   *  @param diskBytes      Max size of disk file.
+   */
+  public ChunkStore(long memoryBytes, int maxChunkBytes, File diskFile, long diskBytes)
+      throws IOException {
+    this.maxChunkBytes = maxChunkBytes;
+    this.memorySlots = (int) Math.min(Integer.MAX_VALUE,
+                                      Math.max(1, memoryBytes / maxChunkBytes));
+    this.slotCount = memorySlots;
+    this.memory = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+    this.diskFile = diskFile;
+    if (null != diskFile) {
+      recordBytes = 4 + maxChunkBytes;
+      slotsPerSegment = (int) (SEGMENT_BYTES / recordBytes);
+      slotCount = (int) Math.min(Integer.MAX_VALUE, diskBytes / recordBytes);
+      int segmentCnt = (slotCount + slotsPerSegment - 1) / slotsPerSegment;
+      segments = new MappedByteBuffer[segmentCnt];
+      RandomAccessFile file = new RandomAccessFile(diskFile, "rw");
+      try {
+        FileChannel channel = file.getChannel();
+        for (int i = 0; i < segmentCnt; i++) {
+          long slots = Math.min(slotsPerSegment, slotCount - (long) i * slotsPerSegment);
+          segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                    (long) i * slotsPerSegment * recordBytes,
+                                    slots * recordBytes);
+        }
+      } finally {
+        // Mappings stay valid after we close the file.
+        file.close();
+      }
+      LOG.info("Mapped " + slotCount + " chunk slots in " + diskFile);
+    }
+  }
+
+  public int getSlotCount() {
+    return slotCount;
+  }
+
+  public synchronized void put(int slot, byte[] data, int offset, int length)
+      throws IOException {
+    if (slot < 0 || slot >= slotCount || length > maxChunkBytes) {
+      throw new IOException("Bad chunk slot " + slot + " or length " + length + ".");
+    }
+    byte[] chunk = new byte[length];
+    System.arraycopy(data, offset, chunk, 0, length);
+    if (null != segments) {
+      MappedByteBuffer segment = segments[slot / slotsPerSegment];
+      int position = (slot % slotsPerSegment) * recordBytes;
+      ByteBuffer record = segment.duplicate();
+      record.position(position);
+      record.putInt(length);
+      record.put(chunk);
+    }
+    cache(slot, chunk);
+  }
+
+  /*
+   *  @return  Chunk in slot.
+   */
+  public synchronized byte[] get(int slot) throws IOException {
+    byte[] chunk = memory.get(slot);
+    if (null != chunk) {
+      return chunk;
+    }
+    if (null == segments || slot < 0 || slot >= slotCount) {
+      throw new IOException("Peer referenced empty chunk slot " + slot + ".");
+    }
+    MappedByteBuffer segment = segments[slot / slotsPerSegment];
+    int position = (slot % slotsPerSegment) * recordBytes;
+    int length = segment.getInt(position);
+    if (length <= 0 || length > maxChunkBytes) {
+      throw new IOException("Peer referenced empty chunk slot " + slot + ".");
+    }
+    chunk = new byte[length];
+    ByteBuffer record = segment.duplicate();
+    record.position(position + 4);
+    record.get(chunk);
+    cache(slot, chunk);
+    return chunk;
+  }
+
+  private void cache(int slot, byte[] chunk) {
+    memory.put(slot, chunk);
+    if (memory.size() > memorySlots) {
+      Integer eldest = memory.keySet().iterator().next();
+      memory.remove(eldest);
+    }
+  }
+
+  public synchronized void close() {
+    memory.clear();
+    segments = null;
+    if (null != diskFile && !diskFile.delete()) {
+      LOG.debug("Could not delete chunk store file " + diskFile);
+    }
+  }
+}
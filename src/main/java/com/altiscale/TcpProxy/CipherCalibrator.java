@@ -0,0 +1,394 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import com.altiscale.Util.ExecLoop;
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.JumpHost;
+
+/**
+ * CipherCalibrator picks ssh cipher and compression settings for each jumphost by measuring
+ * them. For every candidate cipher/compression combination it brings up a short-lived ssh
+ * tunnel on the calibration port, pushes a sample payload through it, reads whatever the
+ * server sends back until it closes the connection, and keeps the combination with the
+ * highest throughput. The payload is a request the server really answers, usually a raw http
+ * request for a file of known size, and a measurement fails if the server answers it with an
+ * http error, so we don't measure how fast the server rejects it.
+ *
+ * Calibration runs once before we start our tunnels and optionally periodically after that,
+ * in which case tunnels are restarted if calibration picked different settings. We switch
+ * only to settings at least SWITCH_MARGIN_PERCENT faster than the ones we have, so noise in
+ * measurements doesn't flip settings back and forth, and restart tunnels of a jumphost one at
+ * a time, so transfers can move to the others while one restarts.
+ */
+public class CipherCalibrator implements Runnable {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // How long we wait for calibration tunnel to start accepting connections and for
+  // the transfer to finish.
+  private static final long TIMEOUT_MILLISECONDS = 30000;
+
+  // Cap for the size of payload read from a file.
+  private static final int MAX_PAYLOAD_BYTES = 64 * 1024 * 1024;
+
+  // Bytes of reply we keep to check its http status line.
+  private static final int STATUS_LINE_BYTES = 256;
+
+  // How much faster other settings must be before we switch to them.
+  static final int SWITCH_MARGIN_PERCENT = 10;
+
+  /*
+   *  Result of one calibration measurement.
+   */
+  public static class CalibrationResult {
+    String jumphostName;
+    String ciphers;
+    boolean compression;
+    long bytes;
+    long milliseconds;
+    // Null if measurement succeeded.
+    String error;
+    // True if we picked this result for the jumphost.
+    boolean chosen;
+
+    public CalibrationResult(String jumphostName, String ciphers, boolean compression) {
+      this.jumphostName = jumphostName;
+      this.ciphers = ciphers;
+      this.compression = compression;
+      this.bytes = 0;
+      this.milliseconds = 0;
+      this.error = null;
+      this.chosen = false;
+    }
+
+    public long getBytesPerSecond() {
+      if (null != error) return 0;
+      return bytes * 1000 / Math.max(1, milliseconds);
+    }
+
+    @Override
+    public String toString() {
+      return "jumphost " + jumphostName + " ciphers " + ciphers + " compression " +
+             compression + ": " + (null == error ? getBytesPerSecond() + " B/s" : error);
+    }
+  }
+
+  private ArrayList<JumpHostGroup> groups;
+
+  private String[] candidateCiphers;
+
+  private byte[] payload;
+
+  private int calibrationPort;
+
+  private long intervalSeconds;
+
+  // Results of the last calibration run.
+  private ArrayList<CalibrationResult> results;
+
+  private long lastCalibrationMillis;
+
+  private Thread thread;
+
+  /*
+   *  @param groups           Jumphosts to calibrate together with servers using them.
+   *  @param candidateCiphers Cipher specs to try. Each one is tried with and without
+   *                          compression.
+   *  @param payload          Sample payload we push through each calibration tunnel, usually
+   *                          a raw http request the server answers with a known-size file.
+   *  @param calibrationPort  Local port for calibration tunnels.
+   *  @param intervalSeconds  If positive, re-run calibration with this period.
+   */
+  public CipherCalibrator(ArrayList<JumpHostGroup> groups, String[] candidateCiphers,
+                          byte[] payload, int calibrationPort, long intervalSeconds) {
+    this.groups = groups;
+    this.candidateCiphers = candidateCiphers;
+    this.payload = payload;
+    this.calibrationPort = calibrationPort;
+    this.intervalSeconds = intervalSeconds;
+    this.results = new ArrayList<CalibrationResult>();
+    this.lastCalibrationMillis = 0;
+    this.thread = null;
+  }
+
+  public static byte[] readPayload(String filename) throws IOException {
+    InputStream input = new FileInputStream(filename);
+    try {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024 * 8];
+      int cnt = 0;
+      while (payload.size() < MAX_PAYLOAD_BYTES && (cnt = input.read(buffer)) >= 0) {
+        payload.write(buffer, 0, cnt);
+      }
+      return payload.toByteArray();
+    } finally {
+      input.close();
+    }
+  }
+
+  /*
+   *  Calibrates all jumphosts and sets fastest cipher/compression on each of them, unless
+   *  the ones they have are within SWITCH_MARGIN_PERCENT of it. Servers that already run ssh
+   *  tunnels are not restarted here.
+   */
+  public void calibrate() {
+    ArrayList<CalibrationResult> newResults = new ArrayList<CalibrationResult>();
+    for (JumpHostGroup group : groups) {
+      JumpHost jumphost = group.jumphost;
+      String currentCiphers = null;
+      boolean currentCompression = false;
+      synchronized (jumphost) {
+        currentCiphers = jumphost.ciphers;
+        currentCompression = jumphost.compression;
+      }
+      CalibrationResult best = null;
+      CalibrationResult current = null;
+      for (String ciphers : candidateCiphers) {
+        for (int i = 0; i < 2; i++) {
+          CalibrationResult result = measure(jumphost, ciphers, i == 1);
+          LOG.info("Calibration result for " + result);
+          newResults.add(result);
+          if (null != result.error) {
+            continue;
+          }
+          if (null == best || result.getBytesPerSecond() > best.getBytesPerSecond()) {
+            best = result;
+          }
+          if (ciphers.equals(currentCiphers) && result.compression == currentCompression) {
+            current = result;
+          }
+        }
+      }
+      if (null == best) {
+        LOG.error("All calibration attempts failed for jumphost " + group.getName() +
+                  ", keeping ciphers " + currentCiphers + " and compression " +
+                  currentCompression);
+        continue;
+      }
+      if (null != current && !isFasterEnough(best, current)) {
+        current.chosen = true;
+        LOG.info("Calibration keeps " + current + ", " + best + " isn't faster enough");
+        continue;
+      }
+      best.chosen = true;
+      LOG.info("Calibration picked " + best);
+      synchronized (jumphost) {
+        jumphost.ciphers = best.ciphers;
+        jumphost.compression = best.compression;
+      }
+    }
+    synchronized (this) {
+      results = newResults;
+      lastCalibrationMillis = System.currentTimeMillis();
+    }
+  }
+
+  /*
+   *  @return  True if faster result is at least SWITCH_MARGIN_PERCENT faster than current.
+   */
+  static boolean isFasterEnough(CalibrationResult faster, CalibrationResult current) {
+    return faster.getBytesPerSecond() * 100 >=
+           current.getBytesPerSecond() * (100 + SWITCH_MARGIN_PERCENT);
+  }
+
+  /*
+   *  Brings up a short-lived ssh tunnel with given settings and measures throughput of
+   *  our sample payload through it.
+   */
+  CalibrationResult measure(JumpHost jumphost, String ciphers, boolean compression) {
+    CalibrationResult result = new CalibrationResult(jumphost.sshd.toString(), ciphers,
+                                                     compression);
+    JumpHost candidate = new JumpHost(jumphost.sshd, jumphost.server,
+                                      jumphost.user, jumphost.credentials,
+                                      compression, ciphers,
+                                      jumphost.sshBinary,
+                                      false);
+    Server server = new Server(new HostPort("localhost", calibrationPort), candidate);
+    ExecLoop sshProcess = new ExecLoop(server.sshJumphostCommand(), true, LOG);
+    Thread sshThread = sshProcess.start();
+    Socket socket = null;
+    try {
+      long deadline = System.currentTimeMillis() + TIMEOUT_MILLISECONDS;
+      socket = connect("localhost", calibrationPort, deadline);
+      socket.setSoTimeout((int) TIMEOUT_MILLISECONDS);
+
+      long startNanos = System.nanoTime();
+      OutputStream output = socket.getOutputStream();
+      output.write(payload);
+      output.flush();
+      socket.shutdownOutput();
+
+      // Drain whatever server sends back until it closes the connection, keeping the start
+      // of it to check the http status.
+      InputStream input = socket.getInputStream();
+      long bytesRead = 0;
+      int cnt = 0;
+      byte[] buffer = new byte[1024 * 8];
+      ByteArrayOutputStream head = new ByteArrayOutputStream();
+      while ((cnt = input.read(buffer)) >= 0) {
+        if (head.size() < STATUS_LINE_BYTES) {
+          head.write(buffer, 0, Math.min(cnt, STATUS_LINE_BYTES - head.size()));
+        }
+        bytesRead += cnt;
+      }
+      result.milliseconds = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+      result.bytes = payload.length + bytesRead;
+      String error = checkReply(head.toString("ISO-8859-1"));
+      if (null != error) {
+        result.error = error;
+      }
+    } catch (IOException ioe) {
+      result.error = "calibration failed: " + ioe.getMessage();
+    } finally {
+      try {
+        if (null != socket) socket.close();
+      } catch (IOException ioe) {
+        LOG.debug("IO exception while closing calibration socket: " + ioe.getMessage());
+      }
+      sshProcess.setShouldRestart(false);
+      sshProcess.stop();
+      try {
+        // Make sure calibration port is free before we try next candidate.
+        sshThread.join(TIMEOUT_MILLISECONDS);
+      } catch (InterruptedException ie) {
+        LOG.error("Interrupted while stopping calibration tunnel: " + ie.getMessage());
+      }
+    }
+    return result;
+  }
+
+  /*
+   *  @param head  Start of what server sent back.
+   *  @return      Why the reply doesn't measure throughput, or null if it does.
+   */
+  static String checkReply(String head) {
+    if (head.isEmpty()) {
+      return "server sent nothing back";
+    }
+    if (head.startsWith("HTTP/")) {
+      int lineEnd = head.indexOf('\r');
+      String statusLine = lineEnd < 0 ? head : head.substring(0, lineEnd);
+      String[] fields = statusLine.split(" ");
+      if (fields.length < 2 || !fields[1].startsWith("2")) {
+        return "server answered " + statusLine;
+      }
+    }
+    return null;
+  }
+
+  private static Socket connect(String host, int port, long deadline) throws IOException {
+    while (true) {
+      try {
+        return new Socket(host, port);
+      } catch (IOException ioe) {
+        if (System.currentTimeMillis() > deadline) {
+          throw ioe;
+        }
+      }
+      try {
+        TimeUnit.MILLISECONDS.sleep(100);
+      } catch (InterruptedException ie) {
+        throw new IOException("Interrupted while waiting for calibration tunnel.");
+      }
+    }
+  }
+
+  /*
+   *  Starts thread which periodically re-runs calibration.
+   */
+  public Thread start() {
+    assert null == thread;  // we should never call this method twice.
+    thread = new Thread(this, "CipherCalibrator");
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        TimeUnit.SECONDS.sleep(intervalSeconds);
+      } catch (InterruptedException ie) {
+        LOG.error("Interrupted calibration thread: " + ie.getMessage());
+        return;
+      }
+      calibrate();
+      for (JumpHostGroup group : groups) {
+        for (Server server : group.getServers()) {
+          if (server.restartJumphostThreadIfChanged()) {
+            waitForTunnel(server);
+          }
+        }
+      }
+    }
+  }
+
+  /*
+   *  Waits until restarted ssh tunnel of server accepts connections again, or until
+   *  TIMEOUT_MILLISECONDS pass.
+   */
+  private void waitForTunnel(Server server) {
+    try {
+      TimeUnit.MILLISECONDS.sleep(100);
+      Socket socket = connect(server.hostPort.host, server.hostPort.port,
+                              System.currentTimeMillis() + TIMEOUT_MILLISECONDS);
+      socket.close();
+    } catch (IOException ioe) {
+      LOG.error("Ssh tunnel for " + server.hostPort + " didn't come back after restart: " +
+                ioe.getMessage());
+    } catch (InterruptedException ie) {
+      LOG.error("Interrupted while waiting for ssh tunnel for " + server.hostPort);
+    }
+  }
+
+  public synchronized ArrayList<CalibrationResult> getResults() {
+    return new ArrayList<CalibrationResult>(results);
+  }
+
+  public String getResultsHtml() {
+    ArrayList<CalibrationResult> currentResults = getResults();
+    long calibrationMillis = 0;
+    synchronized (this) {
+      calibrationMillis = lastCalibrationMillis;
+    }
+    String html = "<tr><td>calibration at " + new Date(calibrationMillis) + "</td><td><table>";
+    for (CalibrationResult result : currentResults) {
+      html += "<tr><td>" + (result.chosen ? "<b>" + result.jumphostName + "</b>"
+                                          : result.jumphostName) + "</td>" +
+              "<td>" + result.ciphers + "</td>" +
+              "<td>" + (result.compression ? "-C" : "") + "</td>" +
+              "<td>" + (null == result.error ? result.getBytesPerSecond() + " B/s"
+                                             : result.error) + "</td></tr>";
+    }
+    html += "</table></td></tr>\r\n";
+    return html;
+  }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.altiscale.TcpProxy.PeerProtocol.Frame;
+
+/**
+ * CompressionPipeline sits between the thread cutting one outgoing stream into frames and the
+ * queue frames are sent from. It hands data frames to FrameCompressor workers and passes them
+ * on in their original order, with up to depth frames being compressed at the same time.
+ *
+ * Streams of already compressed data would waste worker time on every frame, so after a frame
+ * doesn't compress we send the next frames as they are, doubling the number of skipped frames
+ * each time compression fails again.
+ */
+public class CompressionPipeline {
+  // Max number of frames we skip after frames which didn't compress.
+  static final int MAX_SKIP_FRAMES = 64;
+
+  /*
+   *  Receives frames in their original order.
+   */
+  public interface Sink {
+    /*
+     *  @param frame         Frame to send, maybe compressed.
+     *  @param logicalBytes  Payload length before compression.
+     */
+    void put(Frame frame, int logicalBytes) throws IOException, InterruptedException;
+  }
+
+  // Frame waiting for compression, or for frames in front of it.
+  private class PendingFrame {
+    Frame frame;
+    Future<Frame> future;
+
+    PendingFrame(Frame frame, Future<Frame> future) {
+      this.frame = frame;
+      this.future = future;
+    }
+
+    boolean isDone() {
+      return null == future || future.isDone();
+    }
+
+    Frame get() throws IOException, InterruptedException {
+      if (null == future) {
+        return frame;
+      }
+      try {
+        Frame result = future.get();
+        compressed(result.type == PeerProtocol.FRAME_COMPRESSED);
+        return result;
+      } catch (ExecutionException e) {
+        throw new IOException("Frame compression failed: " + e.getCause());
+      }
+    }
+  }
+
+  private FrameCompressor compressor;
+
+  private Sink sink;
+
+  private int depth;
+
+  private LinkedList<PendingFrame> pending;
+
+  // Number of next frames we send without trying to compress them.
+  private int skipFrames;
+
+  // Number of frames we skip next time compression fails.
+  private int backoffFrames;
+
+  /*
+   *  @param compressor  Compresses frames, null if we only pass frames to sink.
+   *  @param sink        Receives frames in their original order.
+   *  @param depth       Max number of frames compressed at the same time.
+   */
+  public CompressionPipeline(FrameCompressor compressor, Sink sink, int depth) {
+    this.compressor = compressor;
+    this.sink = sink;
+    this.depth = Math.max(1, depth);
+    this.pending = new LinkedList<PendingFrame>();
+    this.skipFrames = 0;
+    this.backoffFrames = 1;
+  }
+
+  /*
+   *  Adds next frame of the stream. Blocks while depth frames are being compressed.
+   */
+  public void add(Frame frame) throws IOException, InterruptedException {
+    Future<Frame> future = null;
+    if (null != compressor && frame.type == PeerProtocol.FRAME_DATA &&
+        frame.length >= FrameCompressor.MIN_FRAME_BYTES && !skip()) {
+      future = compressor.submit(frame);
+    }
+    pending.add(new PendingFrame(frame, future));
+    while (!pending.isEmpty() && (pending.getFirst().isDone() || pending.size() > depth)) {
+      send(pending.removeFirst());
+    }
+  }
+
+  /*
+   *  Passes all added frames to sink. Callers flush before they block waiting for more data,
+   *  so frames don't wait in the pipeline.
+   */
+  public void flush() throws IOException, InterruptedException {
+    while (!pending.isEmpty()) {
+      send(pending.removeFirst());
+    }
+  }
+
+  private void send(PendingFrame pendingFrame) throws IOException, InterruptedException {
+    Frame frame = pendingFrame.get();
+    sink.put(frame, pendingFrame.frame.length);
+  }
+
+  private boolean skip() {
+    if (skipFrames > 0) {
+      skipFrames--;
+      return true;
+    }
+    return false;
+  }
+
+  private void compressed(boolean success) {
+    if (success) {
+      backoffFrames = 1;
+    } else {
+      skipFrames = backoffFrames;
+      backoffFrames = Math.min(2 * backoffFrames, MAX_SKIP_FRAMES);
+    }
+  }
+}
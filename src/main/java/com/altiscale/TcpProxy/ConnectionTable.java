@@ -0,0 +1,347 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.altiscale.Util.EventLog;
+import com.altiscale.Util.HeavyHitters;
+import com.altiscale.Util.StatsSnapshot;
+
+/**
+ * ConnectionTable keeps live TcpTunnels, so the status page can tell which clients use which
+ * servers and how fast.
+ *
+ * Tunnels add and remove themselves in a ConcurrentHashMap, and count their bytes in fields
+ * only their own threads write, so tunnel threads never wait on each other or on readers.
+ * A sampler thread turns byte counts into rates once every SAMPLE_INTERVAL_MILLIS, and adds
+ * time tunnels were blocked reading and writing to counters of their servers. Listing
+ * the top connections keeps only the ones we return in a bounded heap, so it stays cheap
+ * with tens of thousands of connections.
+ *
+ * The same sampler also hands bytes each connection tunneled since its last sample to
+ * HeavyHitters sketches per client address, which find clients with the most bytes and
+ * connections over the last minute and hour in fixed memory, however many clients we see.
+ *
+ * Client connections of http, striped and multiplexed tunnels are ClientConnections: they
+ * count bytes in an atomic counter and are counted for top clients and live connections the
+ * same way, but aren't listed with TcpTunnels, which know their server and rates.
+ */
+public class ConnectionTable {
+  static final long SAMPLE_INTERVAL_MILLIS = 1000;
+
+  // Client addresses each top clients sketch can tell apart.
+  static final int CLIENT_COUNTERS = 100;
+
+  /*
+   *  Client connection of a tunnel other than TcpTunnel. Far-side peers see the near-side
+   *  peer as their client.
+   */
+  static class ClientConnection {
+    private long id;
+    private String clientHost;
+    // Bytes both ways, added by tunnel threads.
+    private AtomicLong bytes;
+    // Bytes we already counted for top clients.
+    private long reportedBytes;
+
+    ClientConnection(String clientHost) {
+      this.clientHost = clientHost;
+      this.bytes = new AtomicLong(0);
+      this.reportedBytes = 0;
+    }
+
+    void addBytes(long count) {
+      bytes.addAndGet(count);
+    }
+
+    synchronized long takeUnreportedBytes() {
+      long total = bytes.get();
+      long unreported = total - reportedBytes;
+      reportedBytes = total;
+      return unreported;
+    }
+  }
+
+  private ConcurrentHashMap<Long, TcpTunnel> tunnels;
+
+  private ConcurrentHashMap<Long, ClientConnection> clients;
+
+  private AtomicLong nextId;
+
+  // Where we log opened and closed connections, or null.
+  private volatile EventLog eventLog;
+
+  // Top clients by bytes and by connections over the last minute and hour.
+  private HeavyHitters minuteBytes;
+  private HeavyHitters hourBytes;
+  private HeavyHitters minuteConnections;
+  private HeavyHitters hourConnections;
+
+  public ConnectionTable() {
+    tunnels = new ConcurrentHashMap<Long, TcpTunnel>();
+    clients = new ConcurrentHashMap<Long, ClientConnection>();
+    nextId = new AtomicLong(0);
+    minuteBytes = new HeavyHitters("bytes", CLIENT_COUNTERS, 60 * 1000);
+    hourBytes = new HeavyHitters("bytes", CLIENT_COUNTERS, 60 * 60 * 1000);
+    minuteConnections = new HeavyHitters("connections", CLIENT_COUNTERS, 60 * 1000);
+    hourConnections = new HeavyHitters("connections", CLIENT_COUNTERS, 60 * 60 * 1000);
+  }
+
+  /*
+   *  Starts thread that updates rates of connections.
+   */
+  public void start() {
+    Thread sampler = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          try {
+            Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+          } catch (InterruptedException e) {
+            return;
+          }
+          sampleRates();
+        }
+      }
+    }, "ConnectionTable sampler");
+    sampler.setDaemon(true);
+    sampler.start();
+  }
+
+  void sampleRates() {
+    long now = System.currentTimeMillis();
+    for (TcpTunnel tunnel : tunnels.values()) {
+      tunnel.sampleRates(now);
+      tunnel.reportBlocked();
+      addClientBytes(tunnel.getClientHost(), tunnel.takeUnreportedBytes());
+    }
+    for (ClientConnection client : clients.values()) {
+      addClientBytes(client.clientHost, client.takeUnreportedBytes());
+    }
+  }
+
+  private void addClientBytes(String clientHost, long bytes) {
+    if (bytes > 0) {
+      minuteBytes.add(clientHost, bytes);
+      hourBytes.add(clientHost, bytes);
+    }
+  }
+
+  public void setEventLog(EventLog eventLog) {
+    this.eventLog = eventLog;
+  }
+
+  /*
+   *  @return  Id of added tunnel.
+   */
+  long add(TcpTunnel tunnel) {
+    long id = nextId.incrementAndGet();
+    tunnels.put(id, tunnel);
+    addClientConnection(tunnel.getClientHost());
+    EventLog log = eventLog;
+    if (null != log) {
+      log.log(EventLog.OPEN, id, tunnel.getClientInetAddress(), tunnel.getClientPort(),
+              tunnel.getServer().hostPort, 0, 0, 0);
+    }
+    return id;
+  }
+
+  private void addClientConnection(String clientHost) {
+    minuteConnections.add(clientHost, 1);
+    hourConnections.add(clientHost, 1);
+  }
+
+  /*
+   *  Adds client connection of a tunnel other than TcpTunnel.
+   *
+   *  @param clientSocket    Connection to client, or to near-side peer on far side.
+   *  @param newConnection   False if another tunnel already counted the connection, for
+   *                         example an http upload handed off to a striped session.
+   *  @return                Connection to count bytes with and to remove once it's closed.
+   */
+  ClientConnection addClient(Socket clientSocket, boolean newConnection) {
+    ClientConnection client =
+        new ClientConnection(clientSocket.getInetAddress().getHostAddress());
+    client.id = nextId.incrementAndGet();
+    clients.put(client.id, client);
+    if (newConnection) {
+      addClientConnection(client.clientHost);
+    }
+    return client;
+  }
+
+  /*
+   *  Removes closed client connection, counting bytes it carried since it was last sampled.
+   */
+  void removeClient(ClientConnection client) {
+    clients.remove(client.id);
+    addClientBytes(client.clientHost, client.takeUnreportedBytes());
+  }
+
+  /*
+   *  Removes finished tunnel, counting bytes it tunneled since it was last sampled.
+   */
+  void remove(TcpTunnel tunnel) {
+    tunnels.remove(tunnel.getId());
+    addClientBytes(tunnel.getClientHost(), tunnel.takeUnreportedBytes());
+    EventLog log = eventLog;
+    if (null != log) {
+      log.log(EventLog.CLOSE, tunnel.getId(), tunnel.getClientInetAddress(),
+              tunnel.getClientPort(), tunnel.getServer().hostPort, tunnel.getClientBytes(),
+              tunnel.getServerBytes(), System.currentTimeMillis() - tunnel.getStartTime());
+    }
+  }
+
+  /*
+   *  @return  Number of live client connections of all tunnels.
+   */
+  public int size() {
+    return tunnels.size() + clients.size();
+  }
+
+  /*
+   *  Values of a connection read once, so they don't change while we sort.
+   */
+  static class Row {
+    TcpTunnel tunnel;
+    long startTime;
+    long clientBytes;
+    long serverBytes;
+    long clientRate;
+    long serverRate;
+    // What we sort by, highest first.
+    long key;
+
+    Row(TcpTunnel tunnel, String sortBy) {
+      this.tunnel = tunnel;
+      startTime = tunnel.getStartTime();
+      clientBytes = tunnel.getClientBytes();
+      serverBytes = tunnel.getServerBytes();
+      clientRate = tunnel.getClientRate();
+      serverRate = tunnel.getServerRate();
+      if ("bytes".equals(sortBy)) {
+        key = clientBytes + serverBytes;
+      } else if ("age".equals(sortBy)) {
+        key = -startTime;
+      } else {
+        key = clientRate + serverRate;
+      }
+    }
+  }
+
+  private static final Comparator<Row> BY_KEY = new Comparator<Row>() {
+    public int compare(Row a, Row b) {
+      return a.key < b.key ? -1 : (a.key == b.key ? 0 : 1);
+    }
+  };
+
+  /*
+   *  @param sortBy  "rate" (bytes per second both ways), "bytes" or "age" (oldest first).
+   *  @return        At most limit connections, highest by sortBy first.
+   */
+  ArrayList<Row> getTop(String sortBy, int limit) {
+    // Smallest of the ones we keep is on top, so it's the one we drop.
+    PriorityQueue<Row> top = new PriorityQueue<Row>(Math.max(1, limit), BY_KEY);
+    for (TcpTunnel tunnel : tunnels.values()) {
+      Row row = new Row(tunnel, sortBy);
+      if (top.size() < limit) {
+        top.add(row);
+      } else if (limit > 0 && BY_KEY.compare(row, top.peek()) > 0) {
+        top.poll();
+        top.add(row);
+      }
+    }
+    ArrayList<Row> sorted = new ArrayList<Row>(top);
+    Collections.sort(sorted, Collections.reverseOrder(BY_KEY));
+    return sorted;
+  }
+
+  /*
+   *  @return  JSON with number of connections and top connections by sortBy.
+   */
+  public String getJson(String sortBy, int limit) {
+    long now = System.currentTimeMillis();
+    StringBuilder json = new StringBuilder();
+    json.append("{\"connectionCnt\":").append(size()).append(",\"connections\":[");
+    boolean first = true;
+    for (Row row : getTop(sortBy, limit)) {
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+      json.append("{\"id\":").append(row.tunnel.getId()).append(",\"client\":");
+      StatsSnapshot.appendJsonString(json, row.tunnel.getClientAddress());
+      json.append(",\"server\":");
+      StatsSnapshot.appendJsonString(json, row.tunnel.getServer().hostPort.toString());
+      json.append(",\"ageMillis\":").append(now - row.startTime)
+          .append(",\"bytesFromClient\":").append(row.clientBytes)
+          .append(",\"bytesToClient\":").append(row.serverBytes)
+          .append(",\"rateFromClient\":").append(row.clientRate)
+          .append(",\"rateToClient\":").append(row.serverRate)
+          .append(",\"limitedBy\":\"").append(row.tunnel.getLimitedBy()).append("\"}");
+    }
+    return json.append("]}").toString();
+  }
+
+  /*
+   *  @return  JSON with at most limit top clients by bytes (both ways) and by connections, over
+   *           the last minute and the last hour. Real values are up to error lower.
+   */
+  public String getTopClientsJson(int limit) {
+    StringBuilder json = new StringBuilder();
+    json.append("{\"lastMinute\":{");
+    appendTopClients(json, minuteBytes, limit);
+    json.append(',');
+    appendTopClients(json, minuteConnections, limit);
+    json.append("},\"lastHour\":{");
+    appendTopClients(json, hourBytes, limit);
+    json.append(',');
+    appendTopClients(json, hourConnections, limit);
+    return json.append("}}").toString();
+  }
+
+  private static void appendTopClients(StringBuilder json, HeavyHitters clients, int limit) {
+    StatsSnapshot.appendJsonString(json, clients.getName());
+    json.append(":[");
+    boolean first = true;
+    for (HeavyHitters.Entry entry : clients.getTop(limit)) {
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+      json.append("{\"client\":");
+      StatsSnapshot.appendJsonString(json, entry.key);
+      json.append(",\"count\":").append(entry.count)
+          .append(",\"error\":").append(entry.error)
+          .append('}');
+    }
+    json.append(']');
+  }
+
+  /*
+   *  @return  At most limit clients with the most bytes over the last minute, highest first.
+   */
+  ArrayList<HeavyHitters.Entry> getTopClientsByBytes(int limit) {
+    return minuteBytes.getTop(limit);
+  }
+}
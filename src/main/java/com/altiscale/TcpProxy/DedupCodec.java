@@ -0,0 +1,306 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+import com.altiscale.TcpProxy.PeerProtocol.Frame;
+import com.altiscale.Util.ContentChunker;
+
+/**
+ * DedupCodec replaces chunks the peer already has with references to slots of its ChunkStore.
+ *
+ * Splitting data into chunks, fingerprinting and compressing them is the expensive part, so
+ * we do it in stream threads with a StreamSplitter. Whether a chunk goes as a reference or as
+ * data depends on what the peer received before, so encode() runs on the link writer thread in
+ * the order frames are sent, and decode() on the link reader thread in the same order.
+ *
+ * Payload of a DEDUP frame is a list of records, each of them:
+ *
+ *   LITERAL    | slot (int) | length (int) | data
+ *   COMPRESSED | slot (int) | length (int) | compressed payload as in COMPRESSED frames
+ *   REF        | slot (int)
+ *
+ * Receiver stores data of LITERAL and COMPRESSED records in the slot.
+ */
+public class DedupCodec {
+  static final byte RECORD_LITERAL = 1;
+  static final byte RECORD_COMPRESSED = 2;
+  static final byte RECORD_REF = 3;
+
+  /*
+   *  One chunk of a data frame.
+   */
+  static class Chunk {
+    int offset;
+    int length;
+    ByteBuffer fingerprint;
+    // Compressed chunk or null if we don't compress it.
+    Frame compressed;
+
+    Chunk(int offset, int length, ByteBuffer fingerprint, Frame compressed) {
+      this.offset = offset;
+      this.length = length;
+      this.fingerprint = fingerprint;
+      this.compressed = compressed;
+    }
+  }
+
+  private ContentChunker chunker;
+
+  // Compresses chunks we send as data, null if we don't compress.
+  private FrameCompressor compressor;
+
+  public DedupCodec(ContentChunker chunker, FrameCompressor compressor) {
+    this.chunker = chunker;
+    this.compressor = compressor;
+  }
+
+  public int getMaxChunkBytes() {
+    return chunker.getMaxChunkBytes();
+  }
+
+  /*
+   *  Splits data into content-defined chunks, with fingerprints and compressed data.
+   */
+  public ArrayList<Chunk> split(byte[] data, int length) {
+    ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+    MessageDigest digest = newDigest();
+    int offset = 0;
+    while (offset < length) {
+      int chunkLength = chunker.nextChunkLength(data, offset, length - offset);
+      chunks.add(newChunk(digest, data, offset, chunkLength));
+      offset += chunkLength;
+    }
+    return chunks;
+  }
+
+  /*
+   *  Data of whole chunks for one DEDUP frame.
+   */
+  static class Split {
+    byte[] data;
+    ArrayList<Chunk> chunks;
+
+    Split(byte[] data, ArrayList<Chunk> chunks) {
+      this.data = data;
+      this.chunks = chunks;
+    }
+  }
+
+  /*
+   *  Splits data of one stream we read in pieces. Keeps the unfinished last chunk and rolling
+   *  hash between reads, so chunks end where content says and not where a read happened to
+   *  end, and the same data read in different pieces gives the same chunks.
+   */
+  class StreamSplitter {
+    private ContentChunker.State state;
+    private byte[] pending;
+    private int pendingLength;
+
+    StreamSplitter() {
+      state = new ContentChunker.State();
+      pending = new byte[chunker.getMaxChunkBytes()];
+      pendingLength = 0;
+    }
+
+    boolean hasPending() {
+      return pendingLength > 0;
+    }
+
+    /*
+     *  @return  Chunks data finished, or null if it only continued the unfinished chunk.
+     */
+    Split add(byte[] data, int length) {
+      ArrayList<Integer> ends = new ArrayList<Integer>();
+      int offset = 0;
+      while (offset < length) {
+        int chunkEnd = chunker.findChunkEnd(state, data, offset, length - offset);
+        if (chunkEnd < 0) {
+          break;
+        }
+        offset += chunkEnd;
+        ends.add(offset);
+      }
+      if (ends.isEmpty()) {
+        // No chunk ends before max chunk length, so it fits.
+        System.arraycopy(data, 0, pending, pendingLength, length);
+        pendingLength += length;
+        return null;
+      }
+      int lastEnd = ends.get(ends.size() - 1);
+      byte[] frameData = new byte[pendingLength + lastEnd];
+      System.arraycopy(pending, 0, frameData, 0, pendingLength);
+      System.arraycopy(data, 0, frameData, pendingLength, lastEnd);
+      ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+      MessageDigest digest = newDigest();
+      int chunkStart = 0;
+      for (int chunkEnd : ends) {
+        chunkEnd += pendingLength;
+        chunks.add(newChunk(digest, frameData, chunkStart, chunkEnd - chunkStart));
+        chunkStart = chunkEnd;
+      }
+      pendingLength = length - lastEnd;
+      System.arraycopy(data, lastEnd, pending, 0, pendingLength);
+      return new Split(frameData, chunks);
+    }
+
+    /*
+     *  Ends the unfinished chunk, when stream ends or we can't wait for more of it.
+     *
+     *  @return  The chunk, or null if there is none.
+     */
+    Split flush() {
+      if (0 == pendingLength) {
+        return null;
+      }
+      byte[] frameData = new byte[pendingLength];
+      System.arraycopy(pending, 0, frameData, 0, pendingLength);
+      ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+      chunks.add(newChunk(newDigest(), frameData, 0, pendingLength));
+      pendingLength = 0;
+      state = new ContentChunker.State();
+      return new Split(frameData, chunks);
+    }
+  }
+
+  StreamSplitter newStreamSplitter() {
+    return new StreamSplitter();
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA-1 not available: " + e.getMessage());
+    }
+  }
+
+  private Chunk newChunk(MessageDigest digest, byte[] data, int offset, int chunkLength) {
+    digest.update(data, offset, chunkLength);
+    Frame compressed = null;
+    if (null != compressor && chunkLength >= FrameCompressor.MIN_FRAME_BYTES) {
+      byte[] chunkData = new byte[chunkLength];
+      System.arraycopy(data, offset, chunkData, 0, chunkLength);
+      Frame frame = compressor.compress(
+          new Frame(PeerProtocol.FRAME_DATA, 0, chunkData, chunkLength));
+      if (frame.type == PeerProtocol.FRAME_COMPRESSED) {
+        compressed = frame;
+      }
+    }
+    return new Chunk(offset, chunkLength, ByteBuffer.wrap(digest.digest()), compressed);
+  }
+
+  /*
+   *  Encodes data frame as DEDUP frame, updating index with chunks peer will store.
+   *
+   *  @param server  Server for dedup stats or null.
+   */
+  public static Frame encode(Frame frame, ArrayList<Chunk> chunks, DedupIndex index,
+                             Server server) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(frame.length + 64);
+    DataOutputStream output = new DataOutputStream(bytes);
+    long hitCnt = 0;
+    long savedBytes = 0;
+    for (Chunk chunk : chunks) {
+      int slot = index.lookup(chunk.fingerprint);
+      if (slot >= 0) {
+        output.writeByte(RECORD_REF);
+        output.writeInt(slot);
+        hitCnt++;
+        savedBytes += chunk.length;
+        continue;
+      }
+      slot = index.insert(chunk.fingerprint);
+      if (null != chunk.compressed) {
+        output.writeByte(RECORD_COMPRESSED);
+        output.writeInt(slot);
+        output.writeInt(chunk.compressed.length);
+        output.write(chunk.compressed.data, 0, chunk.compressed.length);
+      } else {
+        output.writeByte(RECORD_LITERAL);
+        output.writeInt(slot);
+        output.writeInt(chunk.length);
+        output.write(frame.data, chunk.offset, chunk.length);
+      }
+    }
+    output.flush();
+    if (null != server) {
+      server.dedupChunkCnt.incrementBy(chunks.size());
+      server.dedupHitCnt.incrementBy(hitCnt);
+      server.dedupSavedByteCnt.incrementBy(savedBytes);
+    }
+    return new Frame(PeerProtocol.FRAME_DEDUP, frame.seq, bytes.toByteArray(), bytes.size());
+  }
+
+  /*
+   *  Decodes DEDUP frame into data frame, storing chunks peer sent as data.
+   *
+   *  @param server  Server for dedup stats or null.
+   */
+  public static Frame decode(Frame frame, ChunkStore store, Server server) throws IOException {
+    DataInputStream input = new DataInputStream(
+        new ByteArrayInputStream(frame.data, 0, frame.length));
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    long chunkCnt = 0;
+    long hitCnt = 0;
+    long savedBytes = 0;
+    while (input.available() > 0) {
+      byte type = input.readByte();
+      int slot = input.readInt();
+      byte[] chunk = null;
+      if (type == RECORD_REF) {
+        chunk = store.get(slot);
+        hitCnt++;
+        savedBytes += chunk.length;
+      } else if (type == RECORD_LITERAL || type == RECORD_COMPRESSED) {
+        int length = input.readInt();
+        if (length < 0 || length > frame.length) {
+          throw new IOException("Bad dedup record length " + length + ".");
+        }
+        chunk = new byte[length];
+        input.readFully(chunk);
+        if (type == RECORD_COMPRESSED) {
+          chunk = FrameCompressor.decompress(
+              new Frame(PeerProtocol.FRAME_COMPRESSED, 0, chunk, length)).data;
+        }
+        store.put(slot, chunk, 0, chunk.length);
+      } else {
+        throw new IOException("Unknown dedup record type " + type + ".");
+      }
+      chunkCnt++;
+      output.write(chunk);
+      if (output.size() > PeerProtocol.MAX_FRAME_BYTES) {
+        throw new IOException("Dedup frame too long.");
+      }
+    }
+    if (null != server) {
+      server.dedupChunkCnt.incrementBy(chunkCnt);
+      server.dedupHitCnt.incrementBy(hitCnt);
+      server.dedupSavedByteCnt.incrementBy(savedBytes);
+    }
+    return new Frame(PeerProtocol.FRAME_DATA, frame.seq, output.toByteArray(), output.size());
+  }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DedupIndex is the sender's view of the receiver's ChunkStore: which chunk fingerprint is in
+ * which slot. It keeps only fingerprints, not chunk data. When all slots are used, the least
+ * recently used chunk gives its slot to the new one. Receiver simply stores chunks in the slots
+ * we tell it to, so both sides agree on the content of every slot as long as frames are
+ * processed in the order they are sent.
+ */
+public class DedupIndex {
+  // Fingerprint to slot, in access order.
+  private LinkedHashMap<ByteBuffer, Integer> slots;
+
+  private int slotCount;
+
+  private int nextSlot;
+
+  /*
+   *  @param slotCount  Number of slots in receiver's chunk store.
+   */
+  public DedupIndex(int slotCount) {
+    this.slots = new LinkedHashMap<ByteBuffer, Integer>(16, 0.75f, true);
+    this.slotCount = slotCount;
+    this.nextSlot = 0;
+  }
+
+  /*
+   *  @return  Slot with chunk of this fingerprint or -1 if receiver doesn't have it.
+   */
+  public int lookup(ByteBuffer fingerprint) {
+    Integer slot = slots.get(fingerprint);
+    return null == slot ? -1 : slot;
+  }
+
+  /*
+   *  Assigns slot to a new chunk, evicting least recently used chunk if needed.
+   *
+   *  @return  Slot receiver should store the chunk in.
+   */
+  public int insert(ByteBuffer fingerprint) {
+    int slot = 0;
+    if (nextSlot < slotCount) {
+      slot = nextSlot++;
+    } else {
+      Iterator<Map.Entry<ByteBuffer, Integer>> eldest = slots.entrySet().iterator();
+      slot = eldest.next().getValue();
+      eldest.remove();
+    }
+    slots.put(fingerprint, slot);
+    return slot;
+  }
+
+  public int size() {
+    return slots.size();
+  }
+
+  public int getSlotCount() {
+    return slotCount;
+  }
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import com.altiscale.TcpProxy.PeerProtocol.Frame;
+
+/**
+ * FrameCompressor compresses data frames sent between TransferAccelerator peers on a shared
+ * pool of worker threads, so compression doesn't slow down threads reading client sockets or
+ * writing peer links.
+ *
+ * Before compressing a whole frame we compress a sample of it, and send frames which don't
+ * compress well as they are. Receiver decompresses any codec we know regardless of the codec
+ * it uses itself, so each side picks codec for its own direction.
+ */
+public class FrameCompressor {
+  // Codec ids sent in compressed frames.
+  static final byte CODEC_LZ4 = 1;
+  static final byte CODEC_DEFLATE = 2;
+
+  // Frames smaller than this are sent as they are, we wouldn't save much.
+  static final int MIN_FRAME_BYTES = 512;
+
+  // Size of sample we compress before compressing a bigger frame.
+  static final int SAMPLE_BYTES = 4 * 1024;
+
+  // Codec id and original length in front of compressed data.
+  private static final int COMPRESSED_HEADER_BYTES = 5;
+
+  /*
+   *  Compression algorithm. Implementations must be thread-safe.
+   */
+  interface Codec {
+    byte getId();
+
+    String getName();
+
+    int maxCompressedLength(int length);
+
+    /*
+     *  @return  Length of compressed data written to dst.
+     */
+    int compress(byte[] src, int srcOff, int length, byte[] dst, int dstOff);
+
+    void decompress(byte[] src, int srcOff, int srcLength, byte[] dst, int dstLength)
+        throws IOException;
+  }
+
+  static class Lz4Codec implements Codec {
+    private LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+    private LZ4SafeDecompressor decompressor = LZ4Factory.fastestInstance().safeDecompressor();
+
+    public byte getId() {
+      return CODEC_LZ4;
+    }
+
+    public String getName() {
+      return "lz4";
+    }
+
+    public int maxCompressedLength(int length) {
+      return compressor.maxCompressedLength(length);
+    }
+
+    public int compress(byte[] src, int srcOff, int length, byte[] dst, int dstOff) {
+      return compressor.compress(src, srcOff, length, dst, dstOff, dst.length - dstOff);
+    }
+
+    public void decompress(byte[] src, int srcOff, int srcLength, byte[] dst, int dstLength)
+        throws IOException {
+      try {
+        int length = decompressor.decompress(src, srcOff, srcLength, dst, 0, dstLength);
+        if (length != dstLength) {
+          throw new IOException("Compressed frame has " + length + " instead of " +
+                                dstLength + " bytes.");
+        }
+      } catch (LZ4Exception e) {
+        throw new IOException("Corrupted lz4 frame: " + e.getMessage());
+      }
+    }
+  }
+
+  static class DeflateCodec implements Codec {
+    // Deflater and Inflater hold native memory, so we keep one per thread instead of
+    // creating them for every frame.
+    private ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+      @Override
+      protected Deflater initialValue() {
+        return new Deflater(Deflater.BEST_SPEED);
+      }
+    };
+
+    private ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+      @Override
+      protected Inflater initialValue() {
+        return new Inflater();
+      }
+    };
+
+    public byte getId() {
+      return CODEC_DEFLATE;
+    }
+
+    public String getName() {
+      return "deflate";
+    }
+
+    public int maxCompressedLength(int length) {
+      return length + (length >> 12) + (length >> 14) + (length >> 25) + 64;
+    }
+
+    public int compress(byte[] src, int srcOff, int length, byte[] dst, int dstOff) {
+      Deflater compressor = deflater.get();
+      compressor.reset();
+      compressor.setInput(src, srcOff, length);
+      compressor.finish();
+      int compressedLength = 0;
+      while (!compressor.finished() && dstOff + compressedLength < dst.length) {
+        compressedLength += compressor.deflate(dst, dstOff + compressedLength,
+                                               dst.length - dstOff - compressedLength);
+      }
+      return compressedLength;
+    }
+
+    public void decompress(byte[] src, int srcOff, int srcLength, byte[] dst, int dstLength)
+        throws IOException {
+      Inflater decompressor = inflater.get();
+      decompressor.reset();
+      decompressor.setInput(src, srcOff, srcLength);
+      try {
+        int length = 0;
+        while (length < dstLength && !decompressor.finished()) {
+          int cnt = decompressor.inflate(dst, length, dstLength - length);
+          if (cnt == 0 && (decompressor.needsInput() || decompressor.needsDictionary())) {
+            break;
+          }
+          length += cnt;
+        }
+        if (length != dstLength || !decompressor.finished()) {
+          throw new IOException("Compressed frame does not have " + dstLength + " bytes.");
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupted deflate frame: " + e.getMessage());
+      }
+    }
+  }
+
+  private static final Codec[] CODECS = {new Lz4Codec(), new DeflateCodec()};
+
+  /*
+   *  @return  Codec with given name or null if we don't know it.
+   */
+  static Codec getCodec(String name) {
+    for (Codec codec : CODECS) {
+      if (codec.getName().equals(name)) {
+        return codec;
+      }
+    }
+    return null;
+  }
+
+  static Codec getCodec(byte id) throws IOException {
+    for (Codec codec : CODECS) {
+      if (codec.getId() == id) {
+        return codec;
+      }
+    }
+    throw new IOException("Unknown compression codec " + id + ".");
+  }
+
+  private Codec codec;
+
+  // Frames need to save at least this fraction of their size to be sent compressed.
+  private double minSavings;
+
+  private ExecutorService workers;
+
+  /*
+   *  @param codecName   Name of codec we compress with, "lz4" or "deflate".
+   *  @param minSavings  Fraction of frame size compression needs to save, for example 0.1.
+   *  @param threads     Number of worker threads.
+   */
+  public FrameCompressor(String codecName, double minSavings, int threads) {
+    this.codec = getCodec(codecName);
+    if (null == codec) {
+      throw new IllegalArgumentException("Unknown compression codec " + codecName);
+    }
+    this.minSavings = minSavings;
+    this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private int cnt = 0;
+
+      public synchronized Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "frameCompressor" + cnt++);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public String getCodecName() {
+    return codec.getName();
+  }
+
+  /*
+   *  Compresses frame on a worker thread.
+   */
+  public Future<Frame> submit(final Frame frame) {
+    return workers.submit(new Callable<Frame>() {
+      public Frame call() {
+        return compress(frame);
+      }
+    });
+  }
+
+  /*
+   *  @return  Compressed frame, or the same frame if it doesn't compress well.
+   */
+  Frame compress(Frame frame) {
+    if (frame.type != PeerProtocol.FRAME_DATA || frame.length < MIN_FRAME_BYTES) {
+      return frame;
+    }
+
+    // Try a sample from the middle of the frame first, so we don't spend time compressing
+    // big frames of already compressed data.
+    if (frame.length > 2 * SAMPLE_BYTES) {
+      byte[] sample = new byte[codec.maxCompressedLength(SAMPLE_BYTES)];
+      int sampleLength = codec.compress(frame.data, (frame.length - SAMPLE_BYTES) / 2,
+                                        SAMPLE_BYTES, sample, 0);
+      if (!savesEnough(SAMPLE_BYTES, sampleLength)) {
+        return frame;
+      }
+    }
+
+    byte[] compressed = new byte[COMPRESSED_HEADER_BYTES + codec.maxCompressedLength(frame.length)];
+    int length = codec.compress(frame.data, 0, frame.length, compressed,
+                                COMPRESSED_HEADER_BYTES);
+    if (!savesEnough(frame.length, length)) {
+      return frame;
+    }
+    ByteBuffer.wrap(compressed).put(codec.getId()).putInt(frame.length);
+    return new Frame(PeerProtocol.FRAME_COMPRESSED, frame.seq, compressed,
+                     COMPRESSED_HEADER_BYTES + length);
+  }
+
+  private boolean savesEnough(int length, int compressedLength) {
+    return compressedLength + COMPRESSED_HEADER_BYTES <= length * (1.0 - minSavings);
+  }
+
+  /*
+   *  @return  DATA frame with original payload of a compressed frame, or the same frame if it
+   *           is not compressed.
+   */
+  static Frame decompress(Frame frame) throws IOException {
+    if (frame.type != PeerProtocol.FRAME_COMPRESSED) {
+      return frame;
+    }
+    int length = getLogicalLength(frame);
+    byte[] data = new byte[length];
+    getCodec(frame.data[0]).decompress(frame.data, COMPRESSED_HEADER_BYTES,
+                                       frame.length - COMPRESSED_HEADER_BYTES, data, length);
+    return new Frame(PeerProtocol.FRAME_DATA, frame.seq, data, length);
+  }
+
+  /*
+   *  @return  Payload length of frame before compression.
+   */
+  static int getLogicalLength(Frame frame) throws IOException {
+    if (frame.type != PeerProtocol.FRAME_COMPRESSED) {
+      return frame.length;
+    }
+    if (frame.length < COMPRESSED_HEADER_BYTES) {
+      throw new IOException("Compressed frame too short.");
+    }
+    int length = ByteBuffer.wrap(frame.data, 1, 4).getInt();
+    if (length < 0 || length > PeerProtocol.MAX_FRAME_BYTES) {
+      throw new IOException("Bad compressed frame length " + length + ".");
+    }
+    return length;
+  }
+
+  public void shutdown() {
+    workers.shutdown();
+  }
+}
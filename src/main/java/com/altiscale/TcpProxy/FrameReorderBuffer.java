@@ -0,0 +1,105 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.util.TreeMap;
+
+import com.altiscale.TcpProxy.PeerProtocol.Frame;
+
+/**
+ * FrameReorderBuffer puts frames received over multiple subflows back in sequence order.
+ *
+ * Memory used by out-of-order frames is capped. Threads putting frames that don't fit block
+ * until the consumer frees some memory, which pushes back on their subflows through TCP flow
+ * control. The next frame we are waiting for is always admitted, so a full buffer can't
+ * deadlock: each subflow delivers its frames in increasing order, so the missing frame is
+ * never stuck behind a blocked frame on its own subflow.
+ */
+public class FrameReorderBuffer {
+  private TreeMap<Long, Frame> frames;
+
+  // Sequence number of the next frame we hand to the consumer.
+  private long nextSeq;
+
+  private long bufferedBytes;
+  private long maxBufferedBytes;
+  private long capacityBytes;
+
+  private boolean closed;
+
+  /*
+   *  @param capacityBytes  Max payload bytes we keep in out-of-order frames.
+   */
+  public FrameReorderBuffer(long capacityBytes) {
+    this.frames = new TreeMap<Long, Frame>();
+    this.nextSeq = 0;
+    this.bufferedBytes = 0;
+    this.maxBufferedBytes = 0;
+    this.capacityBytes = capacityBytes;
+    this.closed = false;
+  }
+
+  /*
+   *  Adds a frame, blocking while it doesn't fit in the buffer.
+   */
+  public synchronized void put(Frame frame) throws IOException, InterruptedException {
+    while (!closed && frame.seq != nextSeq && bufferedBytes + frame.length > capacityBytes) {
+      wait();
+    }
+    if (closed) {
+      throw new IOException("Reorder buffer closed.");
+    }
+    if (frame.seq < nextSeq || frames.containsKey(frame.seq)) {
+      throw new IOException("Duplicate peer frame " + frame.seq + ".");
+    }
+    frames.put(frame.seq, frame);
+    bufferedBytes += frame.length;
+    maxBufferedBytes = Math.max(maxBufferedBytes, bufferedBytes);
+    notifyAll();
+  }
+
+  /*
+   *  Returns next frame in sequence order, blocking until it arrives.
+   */
+  public synchronized Frame take() throws IOException, InterruptedException {
+    while (!closed && !frames.containsKey(nextSeq)) {
+      wait();
+    }
+    if (!frames.containsKey(nextSeq)) {
+      throw new IOException("Reorder buffer closed.");
+    }
+    Frame frame = frames.remove(nextSeq);
+    nextSeq++;
+    bufferedBytes -= frame.length;
+    notifyAll();
+    return frame;
+  }
+
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  public synchronized long getBufferedBytes() {
+    return bufferedBytes;
+  }
+
+  public synchronized long getMaxBufferedBytes() {
+    return maxBufferedBytes;
+  }
+}
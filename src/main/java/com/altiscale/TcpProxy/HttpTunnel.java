@@ -0,0 +1,1121 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.altiscale.Util.HttpMessage;
+
+/**
+ * HttpTunnel serves one HTTP/1.x client connection and sends each request on it to a server
+ * picked by the load balancer, instead of tying the whole connection to one server like
+ * TcpTunnel does. Clients that keep one connection open for many requests (WebHDFS clients
+ * for example) get spread across all servers.
+ *
+ * Requests on a client connection are served one at a time. Connections to servers are kept
+ * open between requests in a BackendPool and reused for the next request that goes to the
+ * same server. TcpProxyServer shares one pool between all client connections, otherwise each
+ * client connection has its own.
+ *
+ * With stripe peer mode, servers are tunnels to a far-side peer. Connections to servers then
+ * start with a plain link header, and the far side passes them on to its servers as they are.
+ * WebHDFS CREATE and APPEND requests with a body are instead handed to an UploadStriper
+ * together with the rest of the client connection, so uploads use all tunnels.
+ *
+ * With followRedirects, a redirect of GET or HEAD request (WebHDFS OPEN gets one to a
+ * datanode) is followed here, on a kept-alive connection to the redirect target, and client
+ * gets the final response. Client then doesn't pay a round trip through the tunnels for the
+ * redirect. Requests with a body aren't followed, as client sends the body to redirect target.
+ *
+ * With a MetadataCache, WebHDFS metadata requests are answered from the cache when they can
+ * be, and other WebHDFS requests invalidate cached responses for their paths before they go
+ * to a server and again once their response arrives. With a BlockCache, WebHDFS OPEN requests
+ * are served from cached blocks of the file. With prefetchMaxBytes, OPEN requests for
+ * consecutive ranges of a file make a ReadAhead fetch the next range before client asks.
+ *
+ * With downloadResumeMax, when the server of a WebHDFS OPEN response fails in the middle of
+ * its body (its ssh tunnel restarted for example), we ask another server for the rest of the
+ * range and splice it into the response client is reading.
+ */
+public class HttpTunnel implements Runnable {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  static final int RETRY_MAX = 3;
+
+  // Most redirects we follow for one request.
+  static final int REDIRECT_MAX = 3;
+
+  private static final int BUFFER_BYTES = 64 * 1024;
+
+  // Longest GETFILESTATUS response we read.
+  private static final int MAX_STATUS_BYTES = 64 * 1024;
+
+  private static final Pattern LENGTH_PATTERN = Pattern.compile("\"length\"\\s*:\\s*(\\d+)");
+
+  private static final Pattern MODIFICATION_TIME_PATTERN =
+      Pattern.compile("\"modificationTime\"\\s*:\\s*(\\d+)");
+
+  private static final Pattern TYPE_PATTERN = Pattern.compile("\"type\"\\s*:\\s*\"FILE\"");
+
+  /*
+   *  What we need to know about a file from its WebHDFS GETFILESTATUS.
+   */
+  static class FileStatus {
+    long length;
+    long modificationTime;
+  }
+
+  /*
+   *  Carries rest of a client connection to a far-side peer, striped across all servers.
+   */
+  interface UploadStriper {
+    /*
+     *  @param initialData  Data we already read from client socket.
+     *  @param finished     Runs once the striped session is closed.
+     */
+    void stripe(Socket clientSocket, byte[] initialData, Runnable finished);
+  }
+
+  /*
+   *  Keep-alive connection to one server.
+   */
+  static class BackendConnection {
+    Server server;
+    Socket socket;
+    InputStream input;
+    OutputStream output;
+    long requestCnt;
+    // When we connected, and when we last put it in a BackendPool.
+    long openedSince;
+    long idleSince;
+    // Response head we last read, when someone else reads its body.
+    HttpMessage response;
+
+    /*
+     *  @param peerLink  True if server is a tunnel to a far-side peer.
+     */
+    BackendConnection(Server server, boolean peerLink) throws IOException {
+      this.server = server;
+      openedSince = System.currentTimeMillis();
+      socket = server.connect();
+      socket.setTcpNoDelay(true);
+      input = new BufferedInputStream(socket.getInputStream(), BUFFER_BYTES);
+      output = new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES);
+      requestCnt = 0;
+      server.incrementOpenedConn();
+      if (peerLink) {
+        try {
+          PeerProtocol.writeLinkHeader(new DataOutputStream(output),
+              new PeerProtocol.LinkHeader(PeerProtocol.LINK_PLAIN, 0, 0, 1));
+        } catch (IOException ioe) {
+          close();
+          throw ioe;
+        }
+      }
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException ioe) {
+        LOG.debug("IO exception while closing server connection: " + ioe.getMessage());
+      }
+      server.incrementClosedConn();
+      server.lifetimeMillis.record(System.currentTimeMillis() - openedSince);
+    }
+  }
+
+  /*
+   *  Counts bytes going through to server's byte rate.
+   */
+  static class CountingOutputStream extends FilterOutputStream {
+    private Server server;
+
+    CountingOutputStream(OutputStream output, Server server) {
+      super(output);
+      this.server = server;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      server.incrementByteRateBy(1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+      out.write(data, offset, length);
+      server.incrementByteRateBy(length);
+    }
+  }
+
+  /*
+   *  Counts bytes client sends us for top clients.
+   */
+  static class ClientCountingInputStream extends FilterInputStream {
+    private ConnectionTable.ClientConnection client;
+
+    ClientCountingInputStream(InputStream input, ConnectionTable.ClientConnection client) {
+      super(input);
+      this.client = client;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        client.addBytes(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+      int cnt = in.read(data, offset, length);
+      if (cnt > 0) {
+        client.addBytes(cnt);
+      }
+      return cnt;
+    }
+  }
+
+  /*
+   *  Counts bytes we send client for top clients.
+   */
+  static class ClientCountingOutputStream extends FilterOutputStream {
+    private ConnectionTable.ClientConnection client;
+
+    ClientCountingOutputStream(OutputStream output, ConnectionTable.ClientConnection client) {
+      super(output);
+      this.client = client;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      client.addBytes(1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+      out.write(data, offset, length);
+      client.addBytes(length);
+    }
+  }
+
+  private Socket clientSocket;
+  private InputStream clientInput;
+  private OutputStream clientOutput;
+
+  // Live connections and top clients, or null if we don't count them.
+  private ConnectionTable connectionTable;
+  // Our client connection in connectionTable, null if we don't count it.
+  private ConnectionTable.ClientConnection client;
+
+  TcpProxyServer.LoadBalancer loadBalancer;
+
+  private ProxyConfiguration config;
+
+  // Idle server connections we can send requests on.
+  private BackendPool backendPool;
+
+  // True if backendPool is only ours, so we close it when client connection is done.
+  private boolean ownsBackendPool;
+
+  // Stripes uploads to a far-side peer, null if we send them like other requests.
+  private UploadStriper uploadStriper;
+
+  // True once we handed client connection to uploadStriper.
+  private boolean handedOff;
+
+  // Cache of metadata responses shared by all client connections, or null.
+  private MetadataCache metadataCache;
+
+  // Cache of file blocks shared by all client connections, or null.
+  private BlockCache blockCache;
+
+  // Reads ahead ranges of files client reads sequentially, or null.
+  private ReadAhead readAhead;
+
+  // When we read the request we are serving, for time to first byte of its response.
+  private long requestTime;
+
+  public HttpTunnel(Socket clientSocket, TcpProxyServer.LoadBalancer loadBalancer,
+                    ProxyConfiguration config) {
+    this.clientSocket = clientSocket;
+    this.loadBalancer = loadBalancer;
+    this.config = config;
+    this.backendPool = new BackendPool(config);
+    this.ownsBackendPool = true;
+    if (config.prefetchMaxBytes > 0) {
+      this.readAhead = new ReadAhead(this, config);
+    }
+  }
+
+  public void setUploadStriper(UploadStriper uploadStriper) {
+    this.uploadStriper = uploadStriper;
+  }
+
+  public void setBackendPool(BackendPool backendPool) {
+    this.backendPool = backendPool;
+    this.ownsBackendPool = false;
+  }
+
+  public void setMetadataCache(MetadataCache metadataCache) {
+    this.metadataCache = metadataCache;
+  }
+
+  public void setBlockCache(BlockCache blockCache) {
+    this.blockCache = blockCache;
+  }
+
+  public void setConnectionTable(ConnectionTable connectionTable) {
+    this.connectionTable = connectionTable;
+  }
+
+  /*
+   *  @return  New connection to server.
+   */
+  BackendConnection connect(Server server) throws IOException {
+    // On far side of peer mode, servers are the real servers.
+    return new BackendConnection(server, "stripe".equals(config.peerMode));
+  }
+
+  /*
+   *  @return  True if request is a WebHDFS CREATE or APPEND with a body.
+   */
+  static boolean isUploadRequest(HttpMessage request) {
+    try {
+      String op = request.getQueryParameter("op");
+      return request.getPath().startsWith("/webhdfs/v1/") && !request.hasNoBody(null) &&
+             (("PUT".equals(request.getMethod()) && "CREATE".equalsIgnoreCase(op)) ||
+              ("POST".equals(request.getMethod()) && "APPEND".equalsIgnoreCase(op)));
+    } catch (IOException ioe) {
+      return false;
+    }
+  }
+
+  /*
+   *  Lets read ahead fetch the range after the one a server started answering.
+   *
+   *  @param server  Server answering, or null if ranges come from several servers.
+   */
+  void openResponseStarted(Server server) {
+    if (null != readAhead) {
+      readAhead.responseStarted(server);
+    }
+  }
+
+  /*
+   *  @return  Open connection to server we can send the next request on, or null.
+   */
+  BackendConnection takeBackend(Server server) {
+    return backendPool.take(server);
+  }
+
+  /*
+   *  Keeps connection open for next request to its server.
+   */
+  void keepBackend(BackendConnection backend) {
+    backendPool.put(backend);
+  }
+
+  /*
+   *  Sends request without body to server and reads response head, skipping 1xx responses.
+   */
+  static HttpMessage sendRequest(BackendConnection backend, HttpMessage request)
+      throws IOException {
+    Server server = backend.server;
+    server.requestCnt.increment();
+    backend.requestCnt++;
+    request.writeHead(new CountingOutputStream(backend.output, server));
+    backend.output.flush();
+    long startTime = System.currentTimeMillis();
+    HttpMessage response = HttpMessage.readResponse(backend.input);
+    while (response.getStatusCode() / 100 == 1) {
+      response = HttpMessage.readResponse(backend.input);
+    }
+    countResponse(server, response, startTime);
+    return response;
+  }
+
+  /*
+   *  Asks for status of file of a WebHDFS request, from metadata cache if we have it.
+   *
+   *  @return  File status, or null if it isn't a file or we can't tell.
+   */
+  FileStatus getFileStatus(HttpMessage request) throws IOException {
+    return getFileStatus(request, true);
+  }
+
+  /*
+   *  @param cached  False to ask a server even if metadata cache has the status.
+   */
+  private FileStatus getFileStatus(HttpMessage request, boolean cached) throws IOException {
+    HttpMessage statusRequest = request.copy();
+    statusRequest.setQueryParameter("op", "GETFILESTATUS");
+    statusRequest.removeQueryParameter("offset");
+    statusRequest.removeQueryParameter("length");
+    statusRequest.removeQueryParameter("buffersize");
+    byte[] body = null;
+    String cacheKey = null == metadataCache || !cached ? null
+                                                       : MetadataCache.getKey(statusRequest);
+    MetadataCache.Entry entry = null == cacheKey ? null : metadataCache.get(cacheKey);
+    if (null != entry) {
+      body = entry.body;
+    } else {
+      long cacheGeneration = null == cacheKey ? 0 : metadataCache.getGeneration();
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      HttpMessage response = fetch(statusRequest, output, MAX_STATUS_BYTES);
+      if (null == response || response.getStatusCode() != 200) {
+        return null;
+      }
+      body = output.toByteArray();
+      if (null != cacheKey && !response.isChunked()) {
+        metadataCache.put(statusRequest, cacheKey, cacheGeneration, response, body);
+      }
+    }
+    String json = new String(body, "UTF-8");
+    Matcher length = LENGTH_PATTERN.matcher(json);
+    Matcher modificationTime = MODIFICATION_TIME_PATTERN.matcher(json);
+    if (!TYPE_PATTERN.matcher(json).find() || !length.find()) {
+      return null;
+    }
+    FileStatus status = new FileStatus();
+    status.length = Long.parseLong(length.group(1));
+    status.modificationTime = modificationTime.find() ? Long.parseLong(modificationTime.group(1))
+                                                      : -1;
+    return status;
+  }
+
+  /*
+   *  Sends request without body to a server picked by load balancer and reads the response
+   *  body, retrying on another server if we can't get the response. Follows redirects if we
+   *  do that.
+   *
+   *  @return  Response or null if all tries failed. Body isn't read if it is longer than
+   *           maxBytes.
+   */
+  HttpMessage fetch(HttpMessage subRequest, ByteArrayOutputStream body, long maxBytes) {
+    for (int i = 0; i < RETRY_MAX; i++) {
+      HttpMessage response = fetchFrom(loadBalancer.getServer(), subRequest, body, maxBytes);
+      if (null != response) {
+        return response;
+      }
+    }
+    return null;
+  }
+
+  /*
+   *  Same as fetch, with one try on server.
+   */
+  HttpMessage fetchFrom(Server server, HttpMessage subRequest, ByteArrayOutputStream body,
+                        long maxBytes) {
+    String method = subRequest.getMethod();
+    server.incrementActiveHttp();
+    try {
+      BackendConnection backend = open(server, subRequest);
+      if (null == backend) {
+        return null;
+      }
+      HttpMessage response = backend.response;
+      try {
+        long contentLength = response.getContentLength();
+        if (!response.isDelimited(method) || contentLength > maxBytes) {
+          backend.close();
+          return response;
+        }
+        body.reset();
+        response.copyBody(backend.input, new CountingOutputStream(body, backend.server), method);
+        if (body.size() > maxBytes) {
+          throw new IOException("Response body too long.");
+        }
+      } catch (IOException ioe) {
+        backend.close();
+        LOG.debug("Error while reading response from server " + backend.server.hostPort + ": " +
+                  ioe.getMessage());
+        return null;
+      }
+      if (response.isKeepAlive()) {
+        keepBackend(backend);
+      } else {
+        backend.close();
+      }
+      return response;
+    } finally {
+      server.decrementActiveHttp();
+    }
+  }
+
+  /*
+   *  Sends request without body to server, following redirects if we do that.
+   *
+   *  @return  Connection with the final response head read into its response, or null if we
+   *           couldn't get it. Caller reads the response body and keeps or closes the
+   *           connection.
+   */
+  private BackendConnection open(Server server, HttpMessage subRequest) {
+    String method = subRequest.getMethod();
+    BackendConnection backend = takeBackend(server);
+    boolean reused = null != backend;
+    try {
+      if (null == backend) {
+        backend = connect(server);
+      }
+      HttpMessage response = sendRequest(backend, subRequest);
+      if (response.isDelimited(method) && isFollowedRedirect(subRequest, response)) {
+        response.copyBody(backend.input, new ByteArrayOutputStream(), method);
+        BackendConnection target = followRedirect(subRequest, response);
+        if (null != target) {
+          server.httpRedirectCnt.increment();
+          if (response.isKeepAlive()) {
+            keepBackend(backend);
+          } else {
+            backend.close();
+          }
+          return target;
+        }
+      }
+      backend.response = response;
+      return backend;
+    } catch (IOException ioe) {
+      if (null != backend) {
+        backend.close();
+      }
+      if (!reused) {
+        LOG.error("Error while sending request to server " + server.hostPort + ": " +
+                  ioe.getMessage());
+        server.incrementFailedConn();
+      }
+      return null;
+    }
+  }
+
+  /*
+   *  @return  True if we should follow response to request ourselves.
+   */
+  boolean isFollowedRedirect(HttpMessage request, HttpMessage response) {
+    int status = response.getStatusCode();
+    String method = request.getMethod();
+    return config.followRedirects &&
+           (status == 301 || status == 302 || status == 303 || status == 307) &&
+           ("GET".equals(method) || "HEAD".equals(method)) &&
+           null != response.getHeader("Location");
+  }
+
+  /*
+   *  Sends request to where response redirects it, following further redirects.
+   *
+   *  @return  Connection with the final response head read from it, or null if we couldn't
+   *           get it. Caller reads the response body and keeps or closes the connection.
+   */
+  private BackendConnection followRedirect(HttpMessage request, HttpMessage response) {
+    HttpMessage redirected = request;
+    for (int i = 0; i < REDIRECT_MAX; i++) {
+      Server server = null;
+      try {
+        URI location = new URI(response.getHeader("Location"));
+        if (!"http".equalsIgnoreCase(location.getScheme()) || null == location.getHost()) {
+          return null;
+        }
+        int port = location.getPort() == -1 ? 80 : location.getPort();
+        server = backendPool.getRedirectServer(location.getHost(), port);
+        redirected = redirected.copy();
+        redirected.setUri(location.getRawPath() +
+                          (null == location.getRawQuery() ? "" : "?" + location.getRawQuery()));
+        redirected.setHeader("Host", location.getHost() + ":" + port);
+      } catch (URISyntaxException e) {
+        LOG.debug("Not following redirect to bad location: " + e.getMessage());
+        return null;
+      }
+      BackendConnection backend = sendRedirected(server, redirected);
+      if (null == backend) {
+        return null;
+      }
+      response = backend.response;
+      try {
+        if (!isFollowedRedirect(redirected, response) ||
+            !response.isDelimited(redirected.getMethod())) {
+          return backend;
+        }
+        response.copyBody(backend.input, new ByteArrayOutputStream(), redirected.getMethod());
+      } catch (IOException ioe) {
+        backend.close();
+        return null;
+      }
+      server.httpRedirectCnt.increment();
+      if (response.isKeepAlive()) {
+        keepBackend(backend);
+      } else {
+        backend.close();
+      }
+    }
+    LOG.debug("Not following more than " + REDIRECT_MAX + " redirects of " + request.getUri());
+    return null;
+  }
+
+  /*
+   *  Sends redirected request on a kept-alive connection to server, or on a new one if that
+   *  fails.
+   *
+   *  @return  Connection with response head read into its response, or null.
+   */
+  private BackendConnection sendRedirected(Server server, HttpMessage request) {
+    while (true) {
+      BackendConnection backend = takeBackend(server);
+      boolean reused = null != backend;
+      try {
+        if (null == backend) {
+          // Redirect targets are real servers, never tunnels to a far-side peer.
+          backend = new BackendConnection(server, false);
+        }
+        backend.response = sendRequest(backend, request);
+        return backend;
+      } catch (IOException ioe) {
+        if (null != backend) {
+          backend.close();
+        }
+        if (!reused) {
+          LOG.error("Error while following redirect to " + server.hostPort + ": " +
+                    ioe.getMessage());
+          server.incrementFailedConn();
+          return null;
+        }
+      }
+    }
+  }
+
+  static void countResponse(Server server, HttpMessage response, long startTime) {
+    server.httpLatencyCnt.incrementBy(System.currentTimeMillis() - startTime);
+    server.httpResponseCnt.increment();
+    server.httpStatusCnt[Math.min(5, response.getStatusCode() / 100)].increment();
+  }
+
+  public void start() {
+    Thread thread = new Thread(this, "HttpTunnel " + clientSocket.getRemoteSocketAddress());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void run() {
+    try {
+      clientSocket.setTcpNoDelay(true);
+      InputStream input = clientSocket.getInputStream();
+      OutputStream output = clientSocket.getOutputStream();
+      if (null != connectionTable) {
+        client = connectionTable.addClient(clientSocket, true);
+        input = new ClientCountingInputStream(input, client);
+        output = new ClientCountingOutputStream(output, client);
+      }
+      clientInput = new BufferedInputStream(input, BUFFER_BYTES);
+      clientOutput = new BufferedOutputStream(output, BUFFER_BYTES);
+      while (true) {
+        HttpMessage request = null;
+        try {
+          request = HttpMessage.readRequest(clientInput);
+        } catch (ProtocolException pe) {
+          LOG.debug("Bad request from client: " + pe.getMessage());
+          sendError(400, "Bad Request");
+          break;
+        }
+        if (null == request || !serveRequest(request)) {
+          break;
+        }
+      }
+    } catch (IOException ioe) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("IO exception on client connection: " + ioe.getMessage());
+      }
+    } finally {
+      if (null != client) {
+        connectionTable.removeClient(client);
+      }
+      if (null != readAhead) {
+        readAhead.close();
+      }
+      if (ownsBackendPool) {
+        backendPool.close();
+      }
+      if (!handedOff) {
+        try {
+          clientSocket.close();
+        } catch (IOException ioe) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("IO exception while closing client socket: " + ioe.getMessage());
+          }
+        }
+      }
+    }
+  }
+
+  /*
+   *  Sends request to a server and its response back to client.
+   *
+   *  @return  True if client connection can carry another request.
+   */
+  private boolean serveRequest(HttpMessage request) throws IOException {
+    requestTime = System.currentTimeMillis();
+    boolean clientKeepAlive = request.isKeepAlive();
+    // Connection headers are hop-by-hop, we decide about server connections ourselves.
+    request.removeHeader("Connection");
+    request.removeHeader("Keep-Alive");
+    request.setHeader("Connection", "keep-alive");
+
+    String cacheKey = null;
+    long cacheGeneration = 0;
+    if (null != metadataCache) {
+      cacheKey = MetadataCache.getKey(request);
+      if (null != cacheKey) {
+        MetadataCache.Entry entry = metadataCache.get(cacheKey);
+        if (null != entry) {
+          sendCached(entry, clientKeepAlive);
+          return clientKeepAlive;
+        }
+        cacheGeneration = metadataCache.getGeneration();
+      } else if (MetadataCache.isMutating(request)) {
+        metadataCache.invalidate(request);
+      }
+    }
+
+    if (null != uploadStriper && isUploadRequest(request)) {
+      handOffUpload(request);
+      return false;
+    }
+
+    if (null != readAhead && RangedOpen.isOpenRequest(request) &&
+        readAhead.serve(request, clientOutput, clientKeepAlive)) {
+      return clientKeepAlive;
+    }
+
+    if (null != blockCache && RangedOpen.isOpenRequest(request)) {
+      CachedOpen open = new CachedOpen(this, request, blockCache, config);
+      if (open.serve(clientOutput, clientKeepAlive)) {
+        return clientKeepAlive;
+      }
+    } else if (config.rangedOpenMinBytes > 0 && RangedOpen.isOpenRequest(request)) {
+      RangedOpen open = new RangedOpen(this, request, config);
+      if (open.serve(clientOutput, clientKeepAlive)) {
+        return clientKeepAlive;
+      }
+    }
+
+    for (int i = 0; i < RETRY_MAX; i++) {
+      Server server = loadBalancer.getServer();
+      BackendConnection backend = takeBackend(server);
+      boolean reused = null != backend;
+      Exchange exchange = new Exchange(request, cacheKey, cacheGeneration);
+      try {
+        if (null == backend) {
+          backend = connect(server);
+        }
+        server.requestCnt.increment();
+        backend.requestCnt++;
+        server.incrementActiveHttp();
+        boolean keepAlive = false;
+        try {
+          keepAlive = exchange.run(backend, clientKeepAlive);
+        } finally {
+          server.decrementActiveHttp();
+        }
+        // Server connection outlives the client connection, other clients can use it.
+        if (exchange.backendReusable) {
+          keepBackend(backend);
+        } else {
+          backend.close();
+        }
+        return keepAlive;
+      } catch (IOException ioe) {
+        if (null != backend) {
+          backend.close();
+        }
+        if (exchange.clientStarted) {
+          // Client already got part of the response or sent part of the body, so we can't
+          // retry. Closing the connection tells the client the request failed.
+          throw ioe;
+        }
+        if (exchange.requestStarted && !isRetriable(request)) {
+          // Server may have run the request already, for example a RENAME or DELETE, and
+          // running it twice on the NameNode may not do the same.
+          throw ioe;
+        }
+        if (!reused) {
+          // Server connection that was open before may have just timed out, that is not a
+          // server failure.
+          LOG.error("Error while sending request to server " + server.hostPort + ": " +
+                    ioe.getMessage());
+          server.incrementFailedConn();
+        }
+      }
+    }
+    sendError(502, "Bad Gateway");
+    return false;
+  }
+
+  /*
+   *  @return  True if we may send request to another server after we sent it to one that
+   *           failed, since running it twice gives the same result.
+   */
+  static boolean isRetriable(HttpMessage request) {
+    return "GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod());
+  }
+
+  private void sendCached(MetadataCache.Entry entry, boolean keepAlive) throws IOException {
+    HttpMessage response = entry.response.copy();
+    response.setHeader("Connection", keepAlive ? "keep-alive" : "close");
+    response.writeHead(clientOutput);
+    clientOutput.write(entry.body);
+    clientOutput.flush();
+  }
+
+  /*
+   *  Hands client connection with upload request and everything we read after it to
+   *  uploadStriper. Far side closes the connection after the response, so the session
+   *  carries only this request.
+   */
+  private void handOffUpload(HttpMessage request) throws IOException {
+    request.setHeader("Connection", "close");
+    ByteArrayOutputStream initialData = new ByteArrayOutputStream();
+    request.writeHead(initialData);
+    int buffered = clientInput.available();
+    if (buffered > 0) {
+      byte[] data = new byte[buffered];
+      int cnt = clientInput.read(data, 0, buffered);
+      initialData.write(data, 0, cnt);
+    }
+    clientOutput.flush();
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Striping upload " + request.getPath());
+    }
+    handedOff = true;
+    final HttpMessage upload = request;
+    uploadStriper.stripe(clientSocket, initialData.toByteArray(), new Runnable() {
+      public void run() {
+        // Metadata of the path someone asked for while we uploaded is stale now.
+        if (null != metadataCache) {
+          metadataCache.invalidate(upload);
+        }
+      }
+    });
+  }
+
+  /*
+   *  One request and its response on a server connection.
+   */
+  private class Exchange {
+    HttpMessage request;
+    // Key and generation to cache the response with, or null key.
+    String cacheKey;
+    long cacheGeneration;
+    // True once we read any of request body from client or sent any response to client.
+    boolean clientStarted;
+    // True once we started sending request to server.
+    boolean requestStarted;
+    boolean backendReusable;
+
+    Exchange(HttpMessage request, String cacheKey, long cacheGeneration) {
+      this.request = request;
+      this.cacheKey = cacheKey;
+      this.cacheGeneration = cacheGeneration;
+    }
+
+    /*
+     *  @return  True if client connection can carry another request.
+     */
+    boolean run(BackendConnection backend, boolean clientKeepAlive) throws IOException {
+      Server server = backend.server;
+      String method = request.getMethod();
+      OutputStream toServer = new CountingOutputStream(backend.output, server);
+      OutputStream toClient = new CountingOutputStream(clientOutput, server);
+
+      requestStarted = true;
+      request.writeHead(toServer);
+      boolean bodySent = request.hasNoBody(null);
+      boolean waitForContinue = !bodySent && request.expectsContinue();
+      if (!bodySent && !waitForContinue) {
+        clientStarted = true;
+        request.copyBody(clientInput, toServer, null);
+        bodySent = true;
+      }
+      backend.output.flush();
+      long startTime = System.currentTimeMillis();
+
+      HttpMessage response = HttpMessage.readResponse(backend.input);
+      while (response.getStatusCode() / 100 == 1) {
+        clientStarted = true;
+        response.writeHead(toClient);
+        clientOutput.flush();
+        if (response.getStatusCode() == 100 && waitForContinue) {
+          request.copyBody(clientInput, toServer, null);
+          backend.output.flush();
+          bodySent = true;
+          waitForContinue = false;
+        }
+        response = HttpMessage.readResponse(backend.input);
+      }
+      countResponse(server, response, startTime);
+      openResponseStarted(server);
+      if (null != metadataCache && MetadataCache.isMutating(request)) {
+        metadataCache.invalidate(request);
+      }
+
+      boolean delimited = response.isDelimited(method);
+      backendReusable = bodySent && delimited && response.isKeepAlive();
+      BackendConnection source = backend;
+      if (delimited && isFollowedRedirect(request, response)) {
+        response.copyBody(backend.input, new ByteArrayOutputStream(), method);
+        BackendConnection target = followRedirect(request, response);
+        if (null != target) {
+          server.httpRedirectCnt.increment();
+          source = target;
+          response = target.response;
+          delimited = response.isDelimited(method);
+          toClient = new CountingOutputStream(clientOutput, target.server);
+        } else {
+          // Client follows the redirect itself. We already read its body.
+          response.removeHeader("Transfer-Encoding");
+          response.setHeader("Content-Length", "0");
+        }
+      }
+
+      server.firstByteMillis.record(System.currentTimeMillis() - requestTime);
+
+      // Without the request body, client connection is at an unknown position.
+      boolean keepAlive = clientKeepAlive && bodySent && delimited;
+      response.removeHeader("Connection");
+      response.removeHeader("Keep-Alive");
+      response.setHeader("Connection", keepAlive ? "keep-alive" : "close");
+      boolean relayed = false;
+      // False if we had to resume the response elsewhere because source failed.
+      boolean sourceIntact = true;
+      try {
+        long contentLength = response.getContentLength();
+        if (null != cacheKey && response.getStatusCode() == 200 && contentLength >= 0 &&
+            metadataCache.accepts(contentLength)) {
+          ByteArrayOutputStream body = new ByteArrayOutputStream((int) contentLength);
+          response.copyBody(source.input, body, method);
+          metadataCache.put(request, cacheKey, cacheGeneration, response, body.toByteArray());
+          clientStarted = true;
+          response.writeHead(toClient);
+          body.writeTo(toClient);
+        } else if (isResumable(request, response)) {
+          clientStarted = true;
+          response.writeHead(toClient);
+          sourceIntact = relayResumable(request, source, contentLength);
+        } else {
+          clientStarted = true;
+          response.writeHead(toClient);
+          response.copyBody(source.input, toClient, method);
+        }
+        clientOutput.flush();
+        relayed = true;
+      } finally {
+        if (!sourceIntact && source == backend) {
+          backendReusable = false;
+        }
+        if (source != backend) {
+          if (relayed && sourceIntact && delimited && response.isKeepAlive()) {
+            keepBackend(source);
+          } else {
+            source.close();
+          }
+        }
+      }
+      return keepAlive;
+    }
+  }
+
+  /*
+   *  @return  True if we can resume response to request from another server if its server
+   *           fails while we relay the body.
+   */
+  private boolean isResumable(HttpMessage request, HttpMessage response) throws IOException {
+    return config.downloadResumeMax > 0 && RangedOpen.isOpenRequest(request) &&
+           response.getStatusCode() == 200 && !response.isChunked() &&
+           response.getContentLength() > 0;
+  }
+
+  /*
+   *  Relays contentLength bytes of WebHDFS OPEN response body from source to client. If
+   *  source fails before the end, we ask another server for the rest of the range and relay
+   *  that instead, up to downloadResumeMax times, so client gets the whole body on the same
+   *  response. We resume only if file has the modification time it had when we started.
+   *
+   *  @return  True if source delivered the whole body, false if we resumed elsewhere.
+   */
+  private boolean relayResumable(HttpMessage request, BackendConnection source,
+                                 long contentLength) throws IOException {
+    byte[] buffer = new byte[BUFFER_BYTES];
+    BackendConnection current = source;
+    Server failed = null;
+    long delivered = 0;
+    int resumeCnt = 0;
+    boolean done = false;
+    // File as it was when we started, null if we can't tell whether it changes. Cached status
+    // is older, so it can only make us refuse to resume a file that didn't change.
+    FileStatus started = null;
+    try {
+      started = getFileStatus(request);
+    } catch (IOException ioe) {
+      LOG.debug("Can't get status of " + request.getPath() + ": " + ioe.getMessage());
+    }
+    if (null != started && started.modificationTime < 0) {
+      started = null;
+    }
+    try {
+      while (delivered < contentLength) {
+        int cnt = 0;
+        try {
+          cnt = current.input.read(buffer, 0, (int) Math.min(buffer.length,
+                                                             contentLength - delivered));
+          if (cnt < 0) {
+            throw new EOFException("Server closed connection in the middle of response.");
+          }
+        } catch (IOException ioe) {
+          if (resumeCnt == config.downloadResumeMax) {
+            throw ioe;
+          }
+          resumeCnt++;
+          failed = current.server;
+          failed.incrementFailedConn();
+          if (current != source) {
+            current.close();
+          }
+          LOG.warn("Server " + failed.hostPort + " failed after " + delivered + " of " +
+                   contentLength + " bytes of " + request.getPath() + ", resuming: " +
+                   ioe.getMessage());
+          current = null == started ? null
+                                    : resume(request, failed, delivered, contentLength, started);
+          if (null == current) {
+            throw ioe;
+          }
+          current.server.httpResumedCnt.increment();
+          continue;
+        }
+        // Client failing isn't something another server can help with, so it stays out of
+        // the try above.
+        clientOutput.write(buffer, 0, cnt);
+        current.server.incrementByteRateBy(cnt);
+        delivered += cnt;
+      }
+      done = true;
+    } finally {
+      if (current != source) {
+        if (done && current.response.isKeepAlive()) {
+          keepBackend(current);
+        } else {
+          current.close();
+        }
+      }
+    }
+    return null == failed;
+  }
+
+  /*
+   *  Asks a healthy server other than failed for what is left of the response to request,
+   *  once we delivered that many of its contentLength bytes.
+   *
+   *  @param started  File status from when we started relaying the response.
+   *  @return  Connection with the rest of the body to read, or null if no server could give
+   *           us exactly that or the file changed.
+   */
+  private BackendConnection resume(HttpMessage request, Server failed, long delivered,
+                                   long contentLength, FileStatus started) {
+    HttpMessage rest = request.copy();
+    try {
+      long offset = RangedOpen.parseLong(request.getQueryParameter("offset"), 0);
+      rest.setQueryParameter("offset", Long.toString(offset + delivered));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (null != request.getQueryParameter("length")) {
+      rest.setQueryParameter("length", Long.toString(contentLength - delivered));
+    }
+    for (int i = 0; i < RETRY_MAX; i++) {
+      Server server = loadBalancer.getServer();
+      if ((server == failed || !server.isHealthy()) && i < RETRY_MAX - 1) {
+        continue;
+      }
+      server.incrementActiveHttp();
+      BackendConnection backend = null;
+      try {
+        backend = open(server, rest);
+      } finally {
+        server.decrementActiveHttp();
+      }
+      if (null == backend) {
+        continue;
+      }
+      HttpMessage response = backend.response;
+      try {
+        // A different length means file changed, its rest doesn't continue what we sent.
+        if (response.getStatusCode() == 200 && !response.isChunked() &&
+            response.getContentLength() == contentLength - delivered) {
+          // Same length doesn't mean same file, so check it wasn't rewritten meanwhile.
+          FileStatus status = getFileStatus(request, false);
+          if (null != status && status.modificationTime == started.modificationTime) {
+            return backend;
+          }
+          LOG.warn("Can't resume " + request.getPath() + ", file changed since we started.");
+          backend.close();
+          return null;
+        }
+      } catch (ProtocolException pe) {
+        LOG.debug("Bad response to resumed " + request.getPath() + ": " + pe.getMessage());
+      } catch (IOException ioe) {
+        LOG.debug("Can't check whether " + request.getPath() + " changed: " + ioe.getMessage());
+        backend.close();
+        return null;
+      }
+      LOG.warn("Can't resume " + request.getPath() + ", server " + server.hostPort +
+               " answered " + response.getStatusCode());
+      backend.close();
+      return null;
+    }
+    return null;
+  }
+
+  private void sendError(int statusCode, String reason) {
+    HttpMessage response = HttpMessage.newResponse(statusCode, reason);
+    response.setHeader("Content-Length", "0");
+    response.setHeader("Connection", "close");
+    try {
+      response.writeHead(clientOutput);
+      clientOutput.flush();
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while sending error to client: " + ioe.getMessage());
+    }
+  }
+}
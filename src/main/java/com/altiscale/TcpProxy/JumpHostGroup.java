@@ -0,0 +1,96 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.util.ArrayList;
+
+import com.altiscale.Util.JumpHost;
+
+/**
+ *  JumpHostGroup holds all servers whose ssh tunnels go through the same jumphost. We use it
+ *  to aggregate health and byte rates per jumphost, and to balance load across jumphosts
+ *  before balancing it across tunnels.
+ **/
+public class JumpHostGroup {
+  JumpHost jumphost;
+
+  // Servers (ssh tunnels) established via this jumphost.
+  ArrayList<Server> servers;
+
+  public JumpHostGroup(JumpHost jumphost) {
+    this.jumphost = jumphost;
+    this.servers = new ArrayList<Server>();
+  }
+
+  public void addServer(Server server) {
+    servers.add(server);
+  }
+
+  public ArrayList<Server> getServers() {
+    return servers;
+  }
+
+  public String getName() {
+    return jumphost.sshd.toString();
+  }
+
+  public long getLastSecondByteRate() {
+    long byteRate = 0;
+    for (Server server : servers) {
+      byteRate += server.byteRateCnt.getLastSecondCnt();
+    }
+    return byteRate;
+  }
+
+  public long getLastMinuteByteRate() {
+    long byteRate = 0;
+    for (Server server : servers) {
+      byteRate += server.byteRateCnt.getLastMinuteCnt();
+    }
+    return byteRate;
+  }
+
+  public long getLastHourByteRate() {
+    long byteRate = 0;
+    for (Server server : servers) {
+      byteRate += server.byteRateCnt.getLastHourCnt();
+    }
+    return byteRate;
+  }
+
+  public long getLastSecondFailedCnt() {
+    long failed = 0;
+    for (Server server : servers) {
+      failed += server.failedCnt.getLastSecondCnt();
+    }
+    return failed;
+  }
+
+  public int getHealthyServerCnt() {
+    int healthyCnt = 0;
+    for (Server server : servers) {
+      if (server.isHealthy()) {
+        healthyCnt++;
+      }
+    }
+    return healthyCnt;
+  }
+
+  public boolean isHealthy() {
+    return 0 != getHealthyServerCnt();
+  }
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.altiscale.Util.HttpMessage;
+import com.altiscale.Util.SecondMinuteHourCounter;
+
+/**
+ * MetadataCache keeps responses to WebHDFS metadata requests (GETFILESTATUS, LISTSTATUS and
+ * GETCONTENTSUMMARY) for a while, so repeated requests for the same path don't cross the
+ * tunnels. Responses are keyed by path, op, user and the rest of the query.
+ *
+ * Entries expire after their TTL, and least recently used entries are evicted to stay within
+ * the memory bound. Any other WebHDFS request may change the namespace, so it removes entries
+ * of its path, of paths under it and of paths above it (their listings and summaries). Rename
+ * does the same for its destination. A response we fetched while such a request was going
+ * through is not cached, as it may already be stale.
+ */
+public class MetadataCache {
+  private static final String PREFIX = "/webhdfs/v1";
+
+  // Rough size of an entry besides its key and body.
+  private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+  /*
+   *  Cached response.
+   */
+  static class Entry {
+    String path;
+    HttpMessage response;
+    byte[] body;
+    long expireTime;
+    long bytes;
+  }
+
+  private long ttlMillis;
+  private long maxBytes;
+  private long maxEntryBytes;
+
+  // Entries from least to most recently used.
+  private LinkedHashMap<String, Entry> entries;
+  private long bytes;
+
+  // Incremented by every invalidation.
+  private long generation;
+
+  SecondMinuteHourCounter hitCnt;
+  SecondMinuteHourCounter missCnt;
+  SecondMinuteHourCounter evictionCnt;
+  SecondMinuteHourCounter invalidationCnt;
+
+  /*
+   *  @param ttlMillis  How long we serve a response from cache.
+   *  @param maxBytes   Memory bound for cached responses. One response may take at most a
+   *                    sixteenth of it.
+   */
+  public MetadataCache(long ttlMillis, long maxBytes) {
+    this.ttlMillis = ttlMillis;
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxBytes / 16;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    this.bytes = 0;
+    this.generation = 0;
+    hitCnt = new SecondMinuteHourCounter("metadataCacheHitCnt");
+    missCnt = new SecondMinuteHourCounter("metadataCacheMissCnt");
+    evictionCnt = new SecondMinuteHourCounter("metadataCacheEvictionCnt");
+    invalidationCnt = new SecondMinuteHourCounter("metadataCacheInvalidationCnt");
+  }
+
+  /*
+   *  @return  Path of WebHDFS request without prefix, duplicate and trailing slashes, or null
+   *           if it isn't a WebHDFS request.
+   */
+  static String getNormalizedPath(String uriPath) {
+    if (!uriPath.startsWith(PREFIX + "/")) {
+      return null;
+    }
+    String path = uriPath.substring(PREFIX.length()).replaceAll("/{2,}", "/");
+    if (path.length() > 1 && path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    return path;
+  }
+
+  private static boolean isMetadataOp(String op) {
+    return "GETFILESTATUS".equals(op) || "LISTSTATUS".equals(op) ||
+           "GETCONTENTSUMMARY".equals(op);
+  }
+
+  /*
+   *  @return  Cache key for request, or null if we don't cache its response.
+   */
+  static String getKey(HttpMessage request) {
+    String path = getNormalizedPath(request.getPath());
+    String op = request.getQueryParameter("op");
+    if (null == path || null == op || !"GET".equals(request.getMethod()) ||
+        !isMetadataOp(op.toUpperCase())) {
+      return null;
+    }
+    try {
+      if (!request.hasNoBody(null)) {
+        return null;
+      }
+    } catch (ProtocolException e) {
+      return null;
+    }
+    // Users may see different answers for the same path, so user and any credentials are
+    // part of the key, together with the other query parameters.
+    ArrayList<String> parameters = new ArrayList<String>();
+    String uri = request.getUri();
+    int queryStart = uri.indexOf('?');
+    if (queryStart >= 0) {
+      for (String parameter : uri.substring(queryStart + 1).split("&")) {
+        if (!parameter.isEmpty() && !parameter.toLowerCase().startsWith("op=")) {
+          parameters.add(parameter);
+        }
+      }
+    }
+    Collections.sort(parameters);
+    StringBuilder key = new StringBuilder();
+    key.append(op.toUpperCase()).append(' ').append(path);
+    for (String parameter : parameters) {
+      key.append('&').append(parameter);
+    }
+    String authorization = request.getHeader("Authorization");
+    String cookie = request.getHeader("Cookie");
+    key.append('\n').append(null == authorization ? "" : authorization);
+    key.append('\n').append(null == cookie ? "" : cookie);
+    return key.toString();
+  }
+
+  /*
+   *  @return  True if request may change the namespace.
+   */
+  static boolean isMutating(HttpMessage request) {
+    return null != getNormalizedPath(request.getPath()) &&
+           !"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod());
+  }
+
+  /*
+   *  @return  Cached response with the key, or null.
+   */
+  public synchronized Entry get(String key) {
+    Entry entry = entries.get(key);
+    if (null != entry && entry.expireTime <= System.currentTimeMillis()) {
+      remove(key);
+      entry = null;
+    }
+    if (null == entry) {
+      missCnt.increment();
+    } else {
+      hitCnt.increment();
+    }
+    return entry;
+  }
+
+  /*
+   *  @return  Generation to pass to put for a response we are about to fetch.
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /*
+   *  @return  True if we would cache a response with bodyBytes.
+   */
+  public boolean accepts(long bodyBytes) {
+    return bodyBytes <= maxEntryBytes;
+  }
+
+  /*
+   *  Caches successful response, unless something was invalidated since generation.
+   */
+  public synchronized void put(HttpMessage request, String key, long generation,
+                               HttpMessage response, byte[] body) {
+    if (generation != this.generation || response.getStatusCode() != 200 ||
+        !accepts(body.length)) {
+      return;
+    }
+    Entry entry = new Entry();
+    entry.path = getNormalizedPath(request.getPath());
+    entry.response = response.copy();
+    entry.response.removeHeader("Connection");
+    entry.response.removeHeader("Keep-Alive");
+    entry.body = body;
+    entry.expireTime = System.currentTimeMillis() + ttlMillis;
+    entry.bytes = ENTRY_OVERHEAD_BYTES + 2 * key.length() + entry.response.getHeadLength() +
+                  body.length;
+    remove(key);
+    entries.put(key, entry);
+    bytes += entry.bytes;
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      bytes -= it.next().getValue().bytes;
+      it.remove();
+      evictionCnt.increment();
+    }
+  }
+
+  /*
+   *  Removes entries request may make stale.
+   */
+  public synchronized void invalidate(HttpMessage request) {
+    generation++;
+    invalidatePath(getNormalizedPath(request.getPath()));
+    String destination = request.getQueryParameter("destination");
+    if (null != destination && destination.startsWith("/")) {
+      invalidatePath(destination.replaceAll("/{2,}", "/"));
+    }
+  }
+
+  private void invalidatePath(String path) {
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (isWithin(entry.path, path) || isWithin(path, entry.path)) {
+        bytes -= entry.bytes;
+        it.remove();
+        invalidationCnt.increment();
+      }
+    }
+  }
+
+  /*
+   *  @return  True if path is ancestor or the same as other.
+   */
+  private static boolean isWithin(String path, String other) {
+    return other.equals(path) || "/".equals(path) ||
+           (other.startsWith(path) && other.charAt(path.length()) == '/');
+  }
+
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (null != entry) {
+      bytes -= entry.bytes;
+    }
+  }
+
+  public synchronized int getEntryCnt() {
+    return entries.size();
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+}
@@ -0,0 +1,711 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import com.altiscale.TcpProxy.PeerProtocol.Frame;
+import com.altiscale.Util.ContentChunker;
+
+/**
+ * MuxLink is one long-lived peer link carrying many logical streams, each of them a client
+ * connection on the near side and a connection to one of our servers on the far side. Near
+ * side opens streams, far side connects to its servers when they are opened, so a new client
+ * connection costs one OPEN frame instead of a new connection through the ssh tunnel.
+ *
+ * One link writer thread writes all outgoing frames from a priority queue and one link reader
+ * thread dispatches incoming frames to streams. Each stream has its own reader thread (local
+ * socket to link) and writer thread (link to local socket).
+ *
+ * Flow control is per stream: sender may have at most window bytes the receiver hasn't
+ * written to its local socket yet, and receiver returns credit with WINDOW frames as it
+ * writes data. The link reader therefore never blocks on a slow stream, and one slow client
+ * can't stall other streams on the same link.
+ *
+ * Prioritization: first priority bytes of each stream are sent before data of streams which
+ * already sent more, so small requests don't wait behind bulk transfers. Priority of a stream
+ * only drops over time, so frames of one stream never overtake each other.
+ *
+ * With a FrameCompressor, stream readers pass frames through a CompressionPipeline, and
+ * stream writers decompress frames. Flow control windows count bytes before compression.
+ *
+ * With dedup, each side keeps a ChunkStore of chunks the peer sent it and tells the peer its
+ * size with a DEDUP_SLOTS frame. Once we know the peer's store, stream readers split data into
+ * chunks and the link writer replaces chunks the peer already has with references.
+ */
+public class MuxLink {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // Frame priorities, lower goes first.
+  private static final int CONTROL_PRIORITY = -1;
+  private static final int INTERACTIVE_PRIORITY = 0;
+  private static final int BULK_PRIORITY = 1;
+
+  // With dedup, how long a stream reader waits for the rest of an unfinished chunk before it
+  // sends what it has, so interactive clients don't wait for bytes that aren't coming.
+  static final int DEDUP_FLUSH_MILLIS = 20;
+
+  // Frame waiting in the outgoing queue.
+  private static class QueuedFrame implements Comparable<QueuedFrame> {
+    Frame frame;
+    int priority;
+    long order;
+    // Chunks of a data frame we encode with DedupCodec, null if we send the frame as it is.
+    ArrayList<DedupCodec.Chunk> chunks;
+
+    QueuedFrame(Frame frame, int priority, long order, ArrayList<DedupCodec.Chunk> chunks) {
+      this.frame = frame;
+      this.priority = priority;
+      this.order = order;
+      this.chunks = chunks;
+    }
+
+    public int compareTo(QueuedFrame other) {
+      if (priority != other.priority) {
+        return priority < other.priority ? -1 : 1;
+      }
+      return order < other.order ? -1 : (order == other.order ? 0 : 1);
+    }
+  }
+
+  // Stops link writer thread when we close the link.
+  private static final QueuedFrame STOP =
+      new QueuedFrame(null, Integer.MIN_VALUE, Long.MIN_VALUE, null);
+
+  // Wakes up stream writer thread after the stream is reset.
+  private static final Frame RESET_MARKER = new Frame(PeerProtocol.FRAME_RESET, -1, null, 0);
+
+  /*
+   *  One logical stream carried over this link.
+   */
+  class MuxStream {
+    long id;
+
+    // Client socket on near side, server socket on far side. Null on far side until we
+    // connect to a server.
+    Socket localSocket;
+
+    // Server used for stats of this stream. Null on far side until we connect.
+    Server server;
+
+    // Bytes we can still send before peer returns credit.
+    private long sendCredit;
+
+    // Bytes we sent so far, used for prioritization.
+    private long sentBytes;
+
+    // Bytes we received, but didn't write to local socket yet.
+    private long unconsumedBytes;
+
+    private LinkedBlockingQueue<Frame> received;
+
+    private int runningThreads;
+
+    private boolean closed;
+
+    // Client connection of this stream in connectionTable, null if we don't count it.
+    private ConnectionTable.ClientConnection client;
+
+    MuxStream(long id, Socket localSocket, Server server) {
+      this.id = id;
+      this.localSocket = localSocket;
+      this.server = server;
+      this.sendCredit = config.muxWindowBytes;
+      this.sentBytes = 0;
+      this.unconsumedBytes = 0;
+      this.received = new LinkedBlockingQueue<Frame>();
+      this.runningThreads = 2;
+      this.closed = false;
+    }
+
+    void start() {
+      if (null != connectionTable) {
+        // Far side counts near-side peer as the client.
+        client = connectionTable.addClient(null != localSocket ? localSocket : socket, true);
+      }
+      new Thread(new StreamReader(this), "muxStreamReader" + id).start();
+      new Thread(new StreamWriter(this), "muxStreamWriter" + id).start();
+    }
+
+    /*
+     *  @return  False if stream was reset in the meantime, caller then closes the socket.
+     */
+    synchronized boolean setLocalSocket(Socket socket, Server server) {
+      if (closed) return false;
+      this.localSocket = socket;
+      this.server = server;
+      notifyAll();
+      return true;
+    }
+
+    synchronized Socket waitForLocalSocket() throws IOException, InterruptedException {
+      while (null == localSocket && !closed) {
+        wait();
+      }
+      if (closed) {
+        throw new IOException("Stream " + id + " closed.");
+      }
+      return localSocket;
+    }
+
+    /*
+     *  Reserves up to max bytes of send credit, blocking until we have some.
+     */
+    synchronized int takeCredit(int max) throws IOException, InterruptedException {
+      while (sendCredit <= 0 && !closed) {
+        wait();
+      }
+      if (closed) {
+        throw new IOException("Stream " + id + " closed.");
+      }
+      int credit = (int) Math.min(max, sendCredit);
+      sendCredit -= credit;
+      return credit;
+    }
+
+    synchronized boolean hasCredit() {
+      return sendCredit > 0;
+    }
+
+    synchronized void addCredit(long credit) {
+      sendCredit += credit;
+      notifyAll();
+    }
+
+    synchronized int nextPriority(int length) {
+      int priority = sentBytes < config.muxPriorityBytes ? INTERACTIVE_PRIORITY : BULK_PRIORITY;
+      sentBytes += length;
+      return priority;
+    }
+
+    synchronized int currentPriority() {
+      return sentBytes < config.muxPriorityBytes ? INTERACTIVE_PRIORITY : BULK_PRIORITY;
+    }
+
+    /*
+     *  Queues data received from peer. Peer violating our window resets the stream.
+     */
+    void receive(Frame frame) throws IOException {
+      boolean overflow = false;
+      int length = FrameCompressor.getLogicalLength(frame);
+      synchronized (this) {
+        if (frame.type != PeerProtocol.FRAME_FIN) {
+          unconsumedBytes += length;
+          overflow = unconsumedBytes > config.muxWindowBytes;
+        }
+      }
+      if (overflow) {
+        LOG.error("Peer exceeded flow control window of stream " + id);
+        reset(true);
+        return;
+      }
+      received.add(frame);
+    }
+
+    synchronized void consumed(int length) {
+      unconsumedBytes -= length;
+    }
+
+    /*
+     *  Closes the stream after an error.
+     *
+     *  @param notifyPeer  If true, we send RESET so peer closes its side too.
+     */
+    void reset(boolean notifyPeer) {
+      synchronized (this) {
+        if (closed) return;
+        closed = true;
+        notifyAll();
+      }
+      if (notifyPeer) {
+        enqueue(new Frame(PeerProtocol.FRAME_RESET, id, null, 0), CONTROL_PRIORITY);
+      }
+      if (null != server) {
+        server.incrementFailedConn();
+      }
+      received.add(RESET_MARKER);
+      close();
+    }
+
+    void threadFinished() {
+      synchronized (this) {
+        runningThreads--;
+        if (runningThreads > 0) return;
+        closed = true;
+      }
+      close();
+    }
+
+    private synchronized void close() {
+      if (null == streams.remove(id)) return;
+      if (null != client) {
+        connectionTable.removeClient(client);
+      }
+      if (null != localSocket) {
+        try {
+          localSocket.close();
+        } catch (IOException ioe) {
+          LOG.debug("IO exception while closing stream " + id + ": " + ioe.getMessage());
+        }
+        if (null != server) {
+          server.incrementClosedConn();
+        }
+      }
+    }
+  }
+
+  // Reads local socket of a stream and sends its data to peer.
+  private class StreamReader implements Runnable {
+    private MuxStream stream;
+
+    StreamReader(MuxStream stream) {
+      this.stream = stream;
+    }
+
+    public void run() {
+      CompressionPipeline pipeline = new CompressionPipeline(compressor,
+          new CompressionPipeline.Sink() {
+            public void put(Frame frame, int logicalBytes) {
+              enqueue(frame, frame.type == PeerProtocol.FRAME_FIN ?
+                             stream.currentPriority() : stream.nextPriority(logicalBytes));
+            }
+          }, 2);
+      try {
+        if (null == stream.localSocket) {
+          // Far side: stream was opened by the peer, so connect to one of our servers.
+          PeerServer.ServerConnection connection = peerServer.connectToServer();
+          connection.server.incrementOpenedConn();
+          if (!stream.setLocalSocket(connection.socket, connection.server)) {
+            connection.socket.close();
+            connection.server.incrementClosedConn();
+            throw new IOException("Stream " + stream.id + " reset while connecting.");
+          }
+        }
+        Socket localSocket = stream.localSocket;
+        InputStream input = localSocket.getInputStream();
+        byte[] buffer = new byte[config.peerFrameBytes];
+        // Cuts data into chunks once we dedup, null before.
+        DedupCodec.StreamSplitter splitter = null;
+        while (true) {
+          if (null != splitter && splitter.hasPending() && !stream.hasCredit()) {
+            // Peer returns credit only for data we sent, so send the unfinished chunk.
+            enqueueChunks(splitter.flush());
+          }
+          int credit = stream.takeCredit(buffer.length);
+          int cnt = 0;
+          try {
+            cnt = input.read(buffer, 0, credit);
+          } catch (SocketTimeoutException ste) {
+            // Client paused in the middle of a chunk, send what we have of it.
+            stream.addCredit(credit);
+            localSocket.setSoTimeout(0);
+            enqueueChunks(splitter.flush());
+            continue;
+          }
+          stream.addCredit(credit - Math.max(0, cnt));
+          if (cnt < 0) {
+            if (null != splitter) {
+              enqueueChunks(splitter.flush());
+            }
+            pipeline.add(new Frame(PeerProtocol.FRAME_FIN, stream.id, null, 0));
+            pipeline.flush();
+            break;
+          }
+          if (cnt == 0) continue;
+          if (null != dedupIndex) {
+            if (null == splitter) {
+              // Chunks replace compression of whole frames, so send what's in the pipeline
+              // first.
+              pipeline.flush();
+              splitter = dedupCodec.newStreamSplitter();
+            }
+            enqueueChunks(splitter.add(buffer, cnt));
+            // Wait for the rest of an unfinished chunk only while client keeps sending.
+            int timeout = splitter.hasPending() ? DEDUP_FLUSH_MILLIS : 0;
+            if (localSocket.getSoTimeout() != timeout) {
+              localSocket.setSoTimeout(timeout);
+            }
+          } else {
+            byte[] data = new byte[cnt];
+            System.arraycopy(buffer, 0, data, 0, cnt);
+            pipeline.add(new Frame(PeerProtocol.FRAME_DATA, stream.id, data, cnt));
+          }
+          stream.server.incrementByteRateBy(cnt);
+          if (null != stream.client) {
+            stream.client.addBytes(cnt);
+          }
+          if (input.available() == 0) {
+            pipeline.flush();
+          }
+        }
+      } catch (IOException ioe) {
+        LOG.debug("Resetting stream " + stream.id + " after IO exception: " + ioe.getMessage());
+        stream.reset(true);
+      } catch (InterruptedException ie) {
+        stream.reset(true);
+      }
+      stream.threadFinished();
+    }
+
+    private void enqueueChunks(DedupCodec.Split split) {
+      if (null != split) {
+        enqueue(new Frame(PeerProtocol.FRAME_DATA, stream.id, split.data, split.data.length),
+                stream.nextPriority(split.data.length), split.chunks);
+      }
+    }
+  }
+
+  // Writes data received from peer to local socket of a stream.
+  private class StreamWriter implements Runnable {
+    private MuxStream stream;
+
+    StreamWriter(MuxStream stream) {
+      this.stream = stream;
+    }
+
+    public void run() {
+      try {
+        Socket socket = stream.waitForLocalSocket();
+        OutputStream output = socket.getOutputStream();
+        while (true) {
+          Frame frame = stream.received.take();
+          if (frame == RESET_MARKER) {
+            break;
+          }
+          if (frame.type == PeerProtocol.FRAME_FIN) {
+            socket.shutdownOutput();
+            break;
+          }
+          frame = FrameCompressor.decompress(frame);
+          output.write(frame.data, 0, frame.length);
+          stream.consumed(frame.length);
+          byte[] credit = ByteBuffer.allocate(4).putInt(frame.length).array();
+          enqueue(new Frame(PeerProtocol.FRAME_WINDOW, stream.id, credit, credit.length),
+                  CONTROL_PRIORITY);
+          stream.server.incrementByteRateBy(frame.length);
+          if (null != stream.client) {
+            stream.client.addBytes(frame.length);
+          }
+        }
+      } catch (IOException ioe) {
+        LOG.debug("Resetting stream " + stream.id + " after IO exception: " + ioe.getMessage());
+        stream.reset(true);
+      } catch (InterruptedException ie) {
+        stream.reset(true);
+      }
+      stream.threadFinished();
+    }
+  }
+
+  // Writes queued frames to the link.
+  private class LinkWriter implements Runnable {
+    public void run() {
+      try {
+        DataOutputStream output = new DataOutputStream(
+            new BufferedOutputStream(socket.getOutputStream(), config.peerFrameBytes + 64));
+        while (true) {
+          QueuedFrame queued = outgoing.take();
+          if (queued == STOP) {
+            break;
+          }
+          Frame frame = queued.frame;
+          if (null != queued.chunks) {
+            frame = DedupCodec.encode(frame, queued.chunks, dedupIndex, server);
+          }
+          PeerProtocol.writeFrame(output, frame);
+          if (outgoing.isEmpty()) {
+            output.flush();
+          }
+          if (null != server) {
+            server.incrementWireByteRateBy(PeerProtocol.FRAME_HEADER_BYTES + frame.length);
+          }
+        }
+      } catch (IOException ioe) {
+        LOG.error("IO exception while writing peer link " + linkId + ": " + ioe.getMessage());
+      } catch (InterruptedException ie) {
+        LOG.error("Interrupted peer link writer " + linkId);
+      }
+      close();
+    }
+  }
+
+  // Reads frames from the link and hands them to streams.
+  private class LinkReader implements Runnable {
+    public void run() {
+      try {
+        DataInputStream input = new DataInputStream(
+            new BufferedInputStream(socket.getInputStream(), config.peerFrameBytes + 64));
+        Frame frame = null;
+        while (null != (frame = PeerProtocol.readFrame(input))) {
+          if (null != server) {
+            server.incrementWireByteRateBy(PeerProtocol.FRAME_HEADER_BYTES + frame.length);
+          }
+          if (frame.type == PeerProtocol.FRAME_OPEN) {
+            openRemoteStream(frame.seq);
+            continue;
+          }
+          if (frame.type == PeerProtocol.FRAME_DEDUP_SLOTS) {
+            startDedup(ByteBuffer.wrap(frame.data, 0, frame.length));
+            continue;
+          }
+          if (frame.type == PeerProtocol.FRAME_DEDUP) {
+            // Decode even if the stream is gone, so our store stays the same as peer's index.
+            if (null == chunkStore) {
+              throw new IOException("Peer sent dedup frame, but we have no chunk store.");
+            }
+            frame = DedupCodec.decode(frame, chunkStore, server);
+          }
+          MuxStream stream = streams.get(frame.seq);
+          if (null == stream) {
+            // Frame of a stream we already closed.
+            continue;
+          }
+          if (frame.type == PeerProtocol.FRAME_DATA || frame.type == PeerProtocol.FRAME_FIN ||
+              frame.type == PeerProtocol.FRAME_COMPRESSED) {
+            stream.receive(frame);
+          } else if (frame.type == PeerProtocol.FRAME_WINDOW) {
+            stream.addCredit(ByteBuffer.wrap(frame.data).getInt());
+          } else if (frame.type == PeerProtocol.FRAME_RESET) {
+            stream.reset(false);
+          } else {
+            throw new IOException("Unexpected frame type " + frame.type + ".");
+          }
+        }
+        LOG.info("Peer closed link " + linkId);
+      } catch (IOException ioe) {
+        if (!isClosed()) {
+          LOG.error("IO exception while reading peer link " + linkId + ": " + ioe.getMessage());
+        }
+      }
+      close();
+    }
+  }
+
+  private long linkId;
+
+  private Socket socket;
+
+  // Server (ssh tunnel) this link goes through. Null on far side.
+  private Server server;
+
+  // Opens connections to our servers for streams opened by peer. Null on near side.
+  private PeerServer peerServer;
+
+  private ProxyConfiguration config;
+
+  // Compresses data we send, null if we don't compress.
+  private FrameCompressor compressor;
+
+  // Splits data into chunks for dedup, null if we don't dedup.
+  private DedupCodec dedupCodec;
+
+  // Live connections and top clients, or null if we don't count streams in them.
+  private ConnectionTable connectionTable;
+
+  // What peer's chunk store has. Set by link reader once peer tells us about its store, then
+  // used only by link writer.
+  private volatile DedupIndex dedupIndex;
+
+  // Chunks peer sent us, null if we don't dedup.
+  private ChunkStore chunkStore;
+
+  private ConcurrentHashMap<Long, MuxStream> streams;
+
+  private PriorityBlockingQueue<QueuedFrame> outgoing;
+
+  // Keeps frames with the same priority in FIFO order.
+  private long nextFrameOrder;
+
+  private long nextStreamId;
+
+  private boolean closed;
+
+  /*
+   *  @param linkId      Id of the link, shared with peer through link header.
+   *  @param socket      Peer link with already exchanged link header.
+   *  @param server      Near side: server this link goes through. Null on far side.
+   *  @param peerServer  Far side: connects streams to our servers. Null on near side.
+   *  @param config      Frame size and flow control settings.
+   *  @param compressor  Compresses data we send, null if we don't compress.
+   */
+  public MuxLink(long linkId, Socket socket, Server server, PeerServer peerServer,
+                 ProxyConfiguration config, FrameCompressor compressor) {
+    this.linkId = linkId;
+    this.socket = socket;
+    this.server = server;
+    this.peerServer = peerServer;
+    this.config = config;
+    this.compressor = compressor;
+    this.streams = new ConcurrentHashMap<Long, MuxStream>();
+    this.outgoing = new PriorityBlockingQueue<QueuedFrame>();
+    this.nextFrameOrder = 0;
+    this.nextStreamId = 1;
+    this.closed = false;
+    if (config.peerDedup) {
+      int avgChunkBytes = config.dedupAvgChunkBytes;
+      this.dedupCodec = new DedupCodec(
+          new ContentChunker(avgChunkBytes / 4, avgChunkBytes, 4 * avgChunkBytes), compressor);
+    }
+  }
+
+  /*
+   *  Counts client connection and bytes of each stream in connection table. Call before
+   *  start().
+   */
+  public void setConnectionTable(ConnectionTable connectionTable) {
+    this.connectionTable = connectionTable;
+  }
+
+  public void start() {
+    if (null != dedupCodec) {
+      try {
+        File diskFile = null;
+        if (null != config.dedupDirectory) {
+          diskFile = File.createTempFile("chunks-" + linkId + "-", ".dat",
+                                         new File(config.dedupDirectory));
+        }
+        chunkStore = new ChunkStore(config.dedupMemoryBytes, dedupCodec.getMaxChunkBytes(),
+                                    diskFile, config.dedupDiskBytes);
+        byte[] slots = ByteBuffer.allocate(8).putInt(chunkStore.getSlotCount())
+                                             .putInt(dedupCodec.getMaxChunkBytes()).array();
+        enqueue(new Frame(PeerProtocol.FRAME_DEDUP_SLOTS, 0, slots, slots.length),
+                CONTROL_PRIORITY);
+      } catch (IOException ioe) {
+        LOG.error("Could not create chunk store for peer link " + linkId + ": " +
+                  ioe.getMessage());
+      }
+    }
+    new Thread(new LinkReader(), "muxLinkReader" + linkId).start();
+    new Thread(new LinkWriter(), "muxLinkWriter" + linkId).start();
+  }
+
+  private void enqueue(Frame frame, int priority) {
+    enqueue(frame, priority, null);
+  }
+
+  private void enqueue(Frame frame, int priority, ArrayList<DedupCodec.Chunk> chunks) {
+    long order = 0;
+    synchronized (outgoing) {
+      order = nextFrameOrder++;
+    }
+    outgoing.add(new QueuedFrame(frame, priority, order, chunks));
+  }
+
+  /*
+   *  Peer told us about its chunk store, so we can start sending DEDUP frames if we dedup too
+   *  and our chunks fit in its slots.
+   */
+  private void startDedup(ByteBuffer slots) throws IOException {
+    if (slots.remaining() < 8) {
+      throw new IOException("Bad dedup slots frame.");
+    }
+    int slotCount = slots.getInt();
+    int maxChunkBytes = slots.getInt();
+    if (null == dedupCodec || null != dedupIndex) return;
+    if (maxChunkBytes < dedupCodec.getMaxChunkBytes() || slotCount < 1) {
+      LOG.error("Peer chunk store of link " + linkId + " doesn't fit our chunks, not " +
+                "deduplicating data we send.");
+      return;
+    }
+    LOG.info("Deduplicating data on peer link " + linkId + " with " + slotCount + " slots");
+    dedupIndex = new DedupIndex(slotCount);
+  }
+
+  /*
+   *  @return  True once peer told us about its chunk store and we send DEDUP frames.
+   */
+  boolean isDeduplicating() {
+    return null != dedupIndex;
+  }
+
+  /*
+   *  Near side: carries client connection as a new stream over this link.
+   */
+  public synchronized void openStream(Socket clientSocket) throws IOException {
+    if (closed) {
+      throw new IOException("Peer link " + linkId + " closed.");
+    }
+    long id = nextStreamId++;
+    MuxStream stream = new MuxStream(id, clientSocket, server);
+    streams.put(id, stream);
+    server.incrementOpenedConn();
+    enqueue(new Frame(PeerProtocol.FRAME_OPEN, id, null, 0), CONTROL_PRIORITY);
+    stream.start();
+  }
+
+  /*
+   *  Far side: peer opened a new stream. We connect it to a server in stream reader thread,
+   *  so the link reader doesn't wait for the connection.
+   */
+  private synchronized void openRemoteStream(long id) throws IOException {
+    if (null == peerServer) {
+      throw new IOException("Near side can't accept streams.");
+    }
+    if (closed) return;
+    if (streams.containsKey(id)) {
+      throw new IOException("Stream " + id + " already open.");
+    }
+    MuxStream stream = new MuxStream(id, null, null);
+    streams.put(id, stream);
+    stream.start();
+  }
+
+  /*
+   *  Closes the link and resets all its streams.
+   */
+  public synchronized void close() {
+    if (closed) return;
+    closed = true;
+    try {
+      socket.close();
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while closing peer link " + linkId + ": " + ioe.getMessage());
+    }
+    outgoing.add(STOP);
+    if (null != chunkStore) {
+      chunkStore.close();
+    }
+    for (MuxStream stream : new ArrayList<MuxStream>(streams.values())) {
+      stream.reset(false);
+    }
+  }
+
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  public int getStreamCnt() {
+    return streams.size();
+  }
+}
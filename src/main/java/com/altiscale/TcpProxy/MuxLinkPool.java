@@ -0,0 +1,181 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * MuxLinkPool keeps a few persistent multiplexed peer links open through each of our servers
+ * (ssh tunnels to a far-side TransferAccelerator). Links are opened before clients need them
+ * and a keeper thread reopens links that die, so client connections only open a stream on an
+ * already warm link.
+ */
+public class MuxLinkPool implements Runnable {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // How often keeper thread reopens dead links.
+  private static final int KEEPER_INTERVAL_MILLISECONDS = 1000;
+
+  private ArrayList<Server> servers;
+
+  // links[i] are links through servers.get(i). Null or closed elements need reconnecting.
+  private MuxLink[][] links;
+
+  private ProxyConfiguration config;
+
+  // Compresses data we send, null if we don't compress.
+  private FrameCompressor compressor;
+
+  private Random linkIdGenerator;
+
+  // Live connections and top clients, or null if we don't count streams in them.
+  private ConnectionTable connectionTable;
+
+  /*
+   *  @param servers     Ssh tunnels to far-side peer.
+   *  @param config      Number of links per server and flow control settings.
+   *  @param compressor  Compresses data we send, null if we don't compress.
+   */
+  public MuxLinkPool(ArrayList<Server> servers, ProxyConfiguration config,
+                     FrameCompressor compressor) {
+    this.servers = servers;
+    this.config = config;
+    this.compressor = compressor;
+    this.links = new MuxLink[servers.size()][config.muxLinksPerServer];
+    this.linkIdGenerator = new Random();
+  }
+
+  /*
+   *  Counts streams of links we open in connection table. Call before start().
+   */
+  public void setConnectionTable(ConnectionTable connectionTable) {
+    this.connectionTable = connectionTable;
+  }
+
+  /*
+   *  Opens links we can open now and starts keeper thread for the rest.
+   */
+  public Thread start() {
+    connectMissingLinks();
+    Thread thread = new Thread(this, "muxLinkKeeper");
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        Thread.sleep(KEEPER_INTERVAL_MILLISECONDS);
+      } catch (InterruptedException ie) {
+        LOG.info("Mux link keeper interrupted.");
+        return;
+      }
+      connectMissingLinks();
+    }
+  }
+
+  void connectMissingLinks() {
+    for (int i = 0; i < servers.size(); i++) {
+      Server server = servers.get(i);
+      if (!server.isHealthy()) continue;
+      for (int j = 0; j < config.muxLinksPerServer; j++) {
+        synchronized (this) {
+          if (null != links[i][j] && !links[i][j].isClosed()) continue;
+        }
+        // Connect without holding the lock, so clients can use other links meanwhile.
+        MuxLink link = connectLink(server);
+        if (null == link) {
+          // Server is probably still starting, try again next time.
+          break;
+        }
+        synchronized (this) {
+          links[i][j] = link;
+        }
+      }
+    }
+  }
+
+  private MuxLink connectLink(Server server) {
+    long linkId = linkIdGenerator.nextLong();
+    Socket socket = null;
+    try {
+      server.requestCnt.increment();
+      socket = server.connect();
+      PeerProtocol.writeLinkHeader(new DataOutputStream(socket.getOutputStream()),
+                                   new PeerProtocol.LinkHeader(PeerProtocol.LINK_MUX,
+                                                               linkId, 0, 1));
+    } catch (IOException ioe) {
+      LOG.debug("Could not open peer link through server " + server.hostPort + ": " +
+                ioe.getMessage());
+      server.incrementFailedConn();
+      if (null != socket) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          LOG.debug("IO exception while closing peer link: " + e.getMessage());
+        }
+      }
+      return null;
+    }
+    LOG.info("Opened multiplexed peer link " + linkId + " through server " + server.hostPort);
+    MuxLink link = new MuxLink(linkId, socket, server, null, config, compressor);
+    link.setConnectionTable(connectionTable);
+    link.start();
+    return link;
+  }
+
+  /*
+   *  Returns open link through server with the fewest streams, or null if there is none.
+   */
+  public synchronized MuxLink getLink(Server server) {
+    int index = servers.indexOf(server);
+    if (index < 0) return null;
+    MuxLink best = null;
+    for (MuxLink link : links[index]) {
+      if (null == link || link.isClosed()) continue;
+      if (null == best || link.getStreamCnt() < best.getStreamCnt()) {
+        best = link;
+      }
+    }
+    return best;
+  }
+
+  public synchronized int getAliveLinkCnt() {
+    int cnt = 0;
+    for (MuxLink[] serverLinks : links) {
+      for (MuxLink link : serverLinks) {
+        if (null != link && !link.isClosed()) {
+          cnt++;
+        }
+      }
+    }
+    return cnt;
+  }
+
+  public int getLinkCnt() {
+    return servers.size() * config.muxLinksPerServer;
+  }
+}
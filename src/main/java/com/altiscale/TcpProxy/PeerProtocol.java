@@ -0,0 +1,174 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * PeerProtocol describes how near-side and far-side TransferAccelerator peers talk to each
+ * other over ssh tunnels.
+ *
+ * Every peer link (TCP connection from near side to far side) starts with a link header:
+ *
+ *   magic (int) | version (byte) | link type (byte) | session id (long) |
+ *   subflow index (int) | subflow count (int)
+ *
+ * For striped links, a session is one client connection striped across subflow count
+ * links. For multiplexed links, session id is only used in log messages, subflow index is 0
+ * and subflow count is 1. Plain links carry one client connection as it is, without frames,
+ * with the same session id, subflow index and subflow count as multiplexed links. After the
+ * header of striped and multiplexed links both sides exchange frames:
+ *
+ *   type (byte) | sequence number or stream id (long) | payload length (int) | payload
+ *
+ * On striped links sequence numbers are per session and direction, so the receiving side can
+ * put frames from all subflows back in order. On multiplexed links the same field carries id
+ * of the logical stream the frame belongs to.
+ */
+public class PeerProtocol {
+  static final int MAGIC = 0x54414343;  // "TACC"
+  static final byte VERSION = 1;
+
+  // Link types.
+  static final byte LINK_STRIPE = 1;
+  static final byte LINK_MUX = 2;
+  static final byte LINK_PLAIN = 3;
+
+  // Frame types.
+  static final byte FRAME_DATA = 1;
+  // Sender finished this direction of the session. Receiver half-closes its local socket.
+  static final byte FRAME_FIN = 2;
+  // Multiplexed links only: near side opens a new stream.
+  static final byte FRAME_OPEN = 3;
+  // Multiplexed links only: receiver consumed payload (int) more bytes of the stream, so
+  // sender can send that many more.
+  static final byte FRAME_WINDOW = 4;
+  // Multiplexed links only: stream failed on one side, other side closes it too.
+  static final byte FRAME_RESET = 5;
+  // Data frame with compressed payload: codec (byte) | original length (int) | compressed
+  // data. Receiver treats it as DATA frame once decompressed, see FrameCompressor.
+  static final byte FRAME_COMPRESSED = 6;
+  // Multiplexed links only: data frame with chunks encoded by DedupCodec.
+  static final byte FRAME_DEDUP = 7;
+  // Multiplexed links only: sender keeps a ChunkStore with slot count (int) slots for chunks
+  // up to max chunk length (int) bytes, so the other side may send DEDUP frames.
+  static final byte FRAME_DEDUP_SLOTS = 8;
+
+  // Bytes of frame header in front of the payload.
+  static final int FRAME_HEADER_BYTES = 13;
+
+  // We never accept frames bigger than this, so a broken peer can't make us allocate
+  // arbitrary amounts of memory.
+  static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+  /*
+   *  Header that starts every peer link.
+   */
+  public static class LinkHeader {
+    byte linkType;
+    long sessionId;
+    int subflowIndex;
+    int subflowCount;
+
+    public LinkHeader(byte linkType, long sessionId, int subflowIndex, int subflowCount) {
+      this.linkType = linkType;
+      this.sessionId = sessionId;
+      this.subflowIndex = subflowIndex;
+      this.subflowCount = subflowCount;
+    }
+  }
+
+  /*
+   *  One frame of a peer session.
+   */
+  public static class Frame {
+    byte type;
+    long seq;
+    byte[] data;
+    int length;
+
+    public Frame(byte type, long seq, byte[] data, int length) {
+      this.type = type;
+      this.seq = seq;
+      this.data = data;
+      this.length = length;
+    }
+  }
+
+  public static void writeLinkHeader(DataOutputStream output, LinkHeader header)
+      throws IOException {
+    output.writeInt(MAGIC);
+    output.writeByte(VERSION);
+    output.writeByte(header.linkType);
+    output.writeLong(header.sessionId);
+    output.writeInt(header.subflowIndex);
+    output.writeInt(header.subflowCount);
+    output.flush();
+  }
+
+  public static LinkHeader readLinkHeader(DataInputStream input) throws IOException {
+    if (input.readInt() != MAGIC) {
+      throw new IOException("Peer link does not start with TransferAccelerator magic.");
+    }
+    byte version = input.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported peer protocol version " + version + ".");
+    }
+    byte linkType = input.readByte();
+    long sessionId = input.readLong();
+    int subflowIndex = input.readInt();
+    int subflowCount = input.readInt();
+    if (subflowCount < 1 || subflowIndex < 0 || subflowIndex >= subflowCount) {
+      throw new IOException("Bad subflow " + subflowIndex + " out of " + subflowCount + ".");
+    }
+    return new LinkHeader(linkType, sessionId, subflowIndex, subflowCount);
+  }
+
+  /*
+   *  Writes frame to output. Callers flush output when they have no more frames to write.
+   */
+  public static void writeFrame(DataOutputStream output, Frame frame) throws IOException {
+    output.writeByte(frame.type);
+    output.writeLong(frame.seq);
+    output.writeInt(frame.length);
+    if (frame.length > 0) {
+      output.write(frame.data, 0, frame.length);
+    }
+  }
+
+  /*
+   *  Reads next frame.
+   *
+   *  @return  Frame or null if peer closed the link at frame boundary.
+   */
+  public static Frame readFrame(DataInputStream input) throws IOException {
+    int type = input.read();
+    if (type < 0) {
+      return null;
+    }
+    long seq = input.readLong();
+    int length = input.readInt();
+    if (length < 0 || length > MAX_FRAME_BYTES) {
+      throw new IOException("Bad peer frame length " + length + ".");
+    }
+    byte[] data = new byte[length];
+    input.readFully(data);
+    return new Frame((byte) type, seq, data, length);
+  }
+}
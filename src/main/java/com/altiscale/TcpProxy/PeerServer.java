@@ -0,0 +1,257 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.altiscale.TcpProxy.PeerProtocol.LinkHeader;
+
+/**
+ * PeerServer runs on the far-side TransferAccelerator. It accepts peer links coming through
+ * ssh tunnels from the near side, groups subflows of striped sessions by session id, and once
+ * all subflows of a session arrive, connects to one of our servers and starts a
+ * StripedSession between them. Multiplexed links are handed to MuxLink, which connects to
+ * our servers for each stream opened over the link. Plain links are tunneled to one of our
+ * servers as they are.
+ */
+public class PeerServer {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // How long we wait for link header and for all subflows of a session.
+  private static final int HANDSHAKE_TIMEOUT_MILLISECONDS = 30000;
+
+  // Subflows of a session we are still assembling.
+  private class PendingSession {
+    long sessionId;
+    Socket[] subflows;
+    int received;
+    boolean started;
+    boolean expired;
+
+    PendingSession(long sessionId, int subflowCount) {
+      this.sessionId = sessionId;
+      this.subflows = new Socket[subflowCount];
+      this.received = 0;
+      this.started = false;
+      this.expired = false;
+    }
+  }
+
+  // Socket connected to one of our servers.
+  static class ServerConnection {
+    Server server;
+    Socket socket;
+
+    ServerConnection(Server server, Socket socket) {
+      this.server = server;
+      this.socket = socket;
+    }
+  }
+
+  private TcpProxyServer.LoadBalancer loadBalancer;
+
+  private ProxyConfiguration config;
+
+  // Compresses data we send to near side, null if we don't compress.
+  private FrameCompressor compressor;
+
+  private HashMap<Long, PendingSession> pendingSessions;
+
+  // Idle server connections of http requests on plain links, null if we don't parse them.
+  private BackendPool backendPool;
+
+  // Live connections and top clients, or null if we don't count peer sessions in them.
+  private ConnectionTable connectionTable;
+
+  /*
+   *  @param loadBalancer  Picks server for each session or stream.
+   *  @param config        Peer frame, reorder buffer and flow control settings.
+   *  @param compressor    Compresses data we send to near side, null if we don't compress.
+   */
+  public PeerServer(TcpProxyServer.LoadBalancer loadBalancer, ProxyConfiguration config,
+                    FrameCompressor compressor) {
+    this.loadBalancer = loadBalancer;
+    this.config = config;
+    this.compressor = compressor;
+    this.pendingSessions = new HashMap<Long, PendingSession>();
+    if (config.followRedirects) {
+      this.backendPool = new BackendPool(config);
+      this.backendPool.start();
+    }
+  }
+
+  /*
+   *  Counts sessions, streams and http connections from near-side peer in connection table.
+   */
+  public void setConnectionTable(ConnectionTable connectionTable) {
+    this.connectionTable = connectionTable;
+  }
+
+  /*
+   *  Handles newly accepted peer link. Reading the link header blocks, so we do it in its
+   *  own thread to keep accepting other links.
+   */
+  public void acceptLink(final Socket link) {
+    new Thread(new Runnable() {
+      public void run() {
+        try {
+          link.setSoTimeout(HANDSHAKE_TIMEOUT_MILLISECONDS);
+          LinkHeader header = PeerProtocol.readLinkHeader(
+              new DataInputStream(link.getInputStream()));
+          link.setSoTimeout(0);
+          if (header.linkType == PeerProtocol.LINK_MUX) {
+            LOG.info("Accepted multiplexed peer link " + header.sessionId);
+            MuxLink muxLink = new MuxLink(header.sessionId, link, null, PeerServer.this,
+                                          config, compressor);
+            muxLink.setConnectionTable(connectionTable);
+            muxLink.start();
+          } else if (header.linkType == PeerProtocol.LINK_STRIPE) {
+            addSubflow(header, link);
+          } else if (header.linkType == PeerProtocol.LINK_PLAIN && config.followRedirects) {
+            // Near side sends only http requests on plain links in http mode.
+            HttpTunnel tunnel = new HttpTunnel(link, loadBalancer, config);
+            tunnel.setBackendPool(backendPool);
+            tunnel.setConnectionTable(connectionTable);
+            tunnel.start();
+          } else if (header.linkType == PeerProtocol.LINK_PLAIN) {
+            ServerConnection connection = connectToServer();
+            new TcpTunnel(link, connection.socket, connection.server).spawnTunnelThreads();
+          } else {
+            throw new IOException("Unsupported link type " + header.linkType + ".");
+          }
+        } catch (IOException ioe) {
+          LOG.error("Closing peer link after IO exception: " + ioe.getMessage());
+          closeSocket(link);
+        } catch (InterruptedException ie) {
+          LOG.error("Interrupted while waiting for peer subflows: " + ie.getMessage());
+          closeSocket(link);
+        }
+      }
+    }, "peerHandshake").start();
+  }
+
+  private void addSubflow(LinkHeader header, Socket link)
+      throws IOException, InterruptedException {
+    PendingSession session = null;
+    synchronized (pendingSessions) {
+      session = pendingSessions.get(header.sessionId);
+      if (null == session) {
+        session = new PendingSession(header.sessionId, header.subflowCount);
+        pendingSessions.put(header.sessionId, session);
+      }
+    }
+
+    synchronized (session) {
+      if (session.expired || session.subflows.length != header.subflowCount ||
+          null != session.subflows[header.subflowIndex]) {
+        throw new IOException("Unexpected subflow " + header.subflowIndex + " for session " +
+                              header.sessionId + ".");
+      }
+      session.subflows[header.subflowIndex] = link;
+      session.received++;
+      if (session.received < session.subflows.length) {
+        // Wait for the last subflow to start the session, or give up on the whole session.
+        long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MILLISECONDS;
+        while (!session.started && System.currentTimeMillis() < deadline) {
+          session.wait(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        if (!session.started && !session.expired) {
+          session.expired = true;
+          removeSession(session);
+          LOG.error("Timed out waiting for subflows of session " + session.sessionId);
+          for (Socket subflow : session.subflows) {
+            closeSocket(subflow);
+          }
+        }
+        return;
+      }
+      session.started = true;
+      session.notifyAll();
+    }
+    removeSession(session);
+    startSession(session);
+  }
+
+  private void removeSession(PendingSession session) {
+    synchronized (pendingSessions) {
+      pendingSessions.remove(session.sessionId);
+    }
+  }
+
+  private void startSession(PendingSession session) {
+    ArrayList<Socket> subflows = new ArrayList<Socket>();
+    ArrayList<Server> subflowServers = new ArrayList<Server>();
+    for (Socket subflow : session.subflows) {
+      subflows.add(subflow);
+      subflowServers.add(null);
+    }
+
+    try {
+      ServerConnection connection = connectToServer();
+      LOG.debug("Starting striped session " + session.sessionId + " with " +
+                subflows.size() + " subflows to server [" + connection.server.hostPort + "]");
+      StripedSession stripedSession =
+          new StripedSession(session.sessionId, connection.socket, connection.server, subflows,
+                             subflowServers, config.peerFrameBytes, config.peerReorderBytes,
+                             compressor);
+      if (null != connectionTable) {
+        stripedSession.setConnectionTable(connectionTable, subflows.get(0), true);
+      }
+      stripedSession.start();
+    } catch (IOException ioe) {
+      LOG.error("Could not connect striped session " + session.sessionId + " to any server.");
+      for (Socket subflow : subflows) {
+        closeSocket(subflow);
+      }
+    }
+  }
+
+  /*
+   *  Connects to one of our servers picked by load balancer, retrying with another server
+   *  if we can't connect.
+   */
+  ServerConnection connectToServer() throws IOException {
+    final int RETRY_MAX = 3;
+    for (int i = 0; i < RETRY_MAX; i++) {
+      Server server = loadBalancer.getServer();
+      try {
+        server.requestCnt.increment();
+        return new ServerConnection(server, server.connect());
+      } catch (IOException ioe) {
+        LOG.error("Error while connecting to server " + server.hostPort);
+        server.incrementFailedConn();
+      }
+    }
+    throw new IOException("Could not connect to any server.");
+  }
+
+  private static void closeSocket(Socket socket) {
+    if (null == socket) return;
+    try {
+      socket.close();
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while closing peer link: " + ioe.getMessage());
+    }
+  }
+}
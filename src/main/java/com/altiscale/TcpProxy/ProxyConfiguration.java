@@ -21,6 +21,7 @@ import java.util.ArrayList;
 
 import com.altiscale.Util.HostPort;
 import com.altiscale.Util.JumpHost;
+import com.altiscale.Util.SocketProfile;
 
 /**
  *  Utility class which is dealing with the configuration parameters
@@ -36,20 +37,184 @@ public class ProxyConfiguration {
   static final int defaultStatusPort = 48138;
   int statusPort;
 
+  // Seconds of per-second history the status page keeps. Zero disables it.
+  static final int defaultHistorySeconds = 3600;
+  int historySeconds;
+
+  // Memory-mapped file where we publish server counters for monitoring agents. Null if none.
+  String statsFile;
+
+  // File where we log opened and closed connections as JSON lines, or null. We rotate it once
+  // it has eventLogMaxBytes.
+  static final long defaultEventLogMaxBytes = 64L * 1024 * 1024;
+  String eventLog;
+  long eventLogMaxBytes;
+
   String loadBalancerString;
 
   // List of all our servers.
   ArrayList<HostPort> serverHostPortList;
 
-  // JumpHost to use for establishing ssh tunnels to the server. Null if we don't want it.
-  public JumpHost jumphost;
+  // JumpHosts to use for establishing ssh tunnels to the server. Empty if we don't want them.
+  // Servers are assigned to jumphosts in round-robin order.
+  public ArrayList<JumpHost> jumphostList;
+
+  // If true, load balancer first picks a jumphost and then a server behind it.
+  boolean balanceJumphosts;
+
+  // If positive, load balancers avoid servers whose tunnels were blocked writing for at least
+  // this share of time over the last minute.
+  double avoidWriteStallRatio;
+
+  // Socket options of client connections we accept, and of connections we open to servers:
+  // one profile for all servers or one per server. Empty means OS defaults.
+  SocketProfile listenerSocketProfile;
+  ArrayList<SocketProfile> serverSocketProfiles;
+
+  // Ssh cipher/compression calibration. If calibrate is true, we measure throughput of
+  // each candidate cipher with and without compression and use the fastest one.
+  static final String[] defaultCalibrationCiphers = {"aes128-gcm@openssh.com",
+                                                     "chacha20-poly1305@openssh.com",
+                                                     "aes128-ctr"};
+  static final int defaultCalibrationPort = 48161;
+  boolean calibrate;
+  String[] calibrationCiphers;
+  // File with sample payload, for example a raw http request for a file.
+  String calibrationPayloadFile;
+  int calibrationPort;
+  // If positive, we re-run calibration with this period.
+  long calibrationIntervalSeconds;
+
+  // If true, we parse HTTP/1.x requests on client connections and load balance each request
+  // separately, reusing server connections between requests.
+  boolean httpMode;
+  // In HTTP mode, WebHDFS OPEN requests for at least rangedOpenMinBytes are fetched as
+  // ranges of rangedOpenChunkBytes in parallel, with at most rangedOpenReorderBytes of
+  // ranges fetched ahead of what we sent to client. Zero rangedOpenMinBytes disables it.
+  static final int defaultRangedOpenChunkBytes = 8 * 1024 * 1024;
+  static final long defaultRangedOpenReorderBytes = 64 * 1024 * 1024;
+  long rangedOpenMinBytes;
+  int rangedOpenChunkBytes;
+  long rangedOpenReorderBytes;
+  // In HTTP mode, responses to WebHDFS metadata requests are cached for
+  // metadataCacheTtlSeconds, in at most metadataCacheBytes. Zero TTL disables the cache.
+  static final long defaultMetadataCacheBytes = 64 * 1024 * 1024;
+  long metadataCacheTtlSeconds;
+  long metadataCacheBytes;
+  // In HTTP mode, blocks of blockCacheBlockBytes of files read with WebHDFS OPEN are cached
+  // in blockCacheDirectory, using at most blockCacheBytes of disk. Null directory disables it.
+  static final long defaultBlockCacheBytes = 1024L * 1024 * 1024;
+  static final int defaultBlockCacheBlockBytes = 4 * 1024 * 1024;
+  String blockCacheDirectory;
+  long blockCacheBytes;
+  int blockCacheBlockBytes;
+  // In HTTP mode, when a client reads consecutive ranges of a file with WebHDFS OPEN, we read
+  // ahead the next range if it is at most prefetchMaxBytes long. Zero disables it. Ranges of
+  // all client connections together take at most prefetchBudgetBytes of memory.
+  static final long defaultPrefetchBudgetBytes = 256L * 1024 * 1024;
+  long prefetchMaxBytes;
+  long prefetchBudgetBytes;
+  // In HTTP mode, idle server connections are kept for backendIdleTimeoutSeconds, at most
+  // backendMaxIdlePerServer per server, and closed after backendMaxRequests requests.
+  static final long defaultBackendIdleTimeoutSeconds = 30;
+  static final int defaultBackendMaxIdlePerServer = 16;
+  static final long defaultBackendMaxRequests = 1000;
+  long backendIdleTimeoutSeconds;
+  int backendMaxIdlePerServer;
+  long backendMaxRequests;
+  // In HTTP mode, a WebHDFS OPEN response whose server fails in the middle of the body is
+  // resumed from another server, at most downloadResumeMax times. Zero disables it.
+  static final int defaultDownloadResumeMax = 3;
+  int downloadResumeMax;
+  // Follow WebHDFS redirects to datanodes ourselves instead of sending them to client. Used in
+  // HTTP mode without peers, or on the far side of stripe peer mode.
+  boolean followRedirects;
+
+  // Peer mode. "stripe" on near side stripes each client connection across all healthy
+  // servers to a far-side peer running with "far", and "mux" carries client connections as
+  // logical streams over persistent peer links. Null if we are a plain proxy.
+  String peerMode;
+  static final int defaultPeerFrameBytes = 64 * 1024;
+  static final long defaultPeerReorderBytes = 16 * 1024 * 1024;
+  int peerFrameBytes;
+  // Memory cap for out-of-order frames per session and direction.
+  long peerReorderBytes;
+  // Multiplexing: persistent peer links per server, per-stream flow control window and
+  // number of bytes each stream sends with high priority before it is treated as bulk.
+  static final int defaultMuxLinksPerServer = 2;
+  static final long defaultMuxWindowBytes = 256 * 1024;
+  static final long defaultMuxPriorityBytes = 64 * 1024;
+  int muxLinksPerServer;
+  long muxWindowBytes;
+  long muxPriorityBytes;
+  // Codec for data we send to the other peer ("lz4" or "deflate"), null if we don't
+  // compress. Frames are sent compressed only if they get at least
+  // peerCompressionMinSavings smaller.
+  String peerCompression;
+  static final double defaultPeerCompressionMinSavings = 0.1;
+  double peerCompressionMinSavings;
+  int peerCompressionThreads;
+  // Deduplication on multiplexed peer links. Each link keeps a chunk store of what the peer
+  // sent us, in memory or in a memory-mapped file in dedupDirectory with dedupMemoryBytes of
+  // recently used chunks cached in memory.
+  boolean peerDedup;
+  static final int defaultDedupAvgChunkBytes = 8 * 1024;
+  static final long defaultDedupMemoryBytes = 64 * 1024 * 1024;
+  static final long defaultDedupDiskBytes = 1024L * 1024 * 1024;
+  int dedupAvgChunkBytes;
+  long dedupMemoryBytes;
+  String dedupDirectory;
+  long dedupDiskBytes;
 
   public ProxyConfiguration() {
     listeningPort = defaultListeningPort;
     statusPort = defaultStatusPort;
+    historySeconds = defaultHistorySeconds;
+    statsFile = null;
+    eventLog = null;
+    eventLogMaxBytes = defaultEventLogMaxBytes;
     loadBalancerString = "RoundRobin";  // default value
     serverHostPortList = new ArrayList<HostPort>();
-    jumphost = null;
+    jumphostList = new ArrayList<JumpHost>();
+    balanceJumphosts = false;
+    avoidWriteStallRatio = 0;
+    listenerSocketProfile = SocketProfile.DEFAULT;
+    serverSocketProfiles = new ArrayList<SocketProfile>();
+    calibrate = false;
+    calibrationCiphers = defaultCalibrationCiphers;
+    calibrationPayloadFile = null;
+    calibrationPort = defaultCalibrationPort;
+    calibrationIntervalSeconds = 0;
+    httpMode = false;
+    rangedOpenMinBytes = 0;
+    rangedOpenChunkBytes = defaultRangedOpenChunkBytes;
+    rangedOpenReorderBytes = defaultRangedOpenReorderBytes;
+    metadataCacheTtlSeconds = 0;
+    metadataCacheBytes = defaultMetadataCacheBytes;
+    blockCacheDirectory = null;
+    blockCacheBytes = defaultBlockCacheBytes;
+    blockCacheBlockBytes = defaultBlockCacheBlockBytes;
+    prefetchMaxBytes = 0;
+    prefetchBudgetBytes = defaultPrefetchBudgetBytes;
+    backendIdleTimeoutSeconds = defaultBackendIdleTimeoutSeconds;
+    backendMaxIdlePerServer = defaultBackendMaxIdlePerServer;
+    backendMaxRequests = defaultBackendMaxRequests;
+    downloadResumeMax = defaultDownloadResumeMax;
+    followRedirects = false;
+    peerMode = null;
+    peerFrameBytes = defaultPeerFrameBytes;
+    peerReorderBytes = defaultPeerReorderBytes;
+    muxLinksPerServer = defaultMuxLinksPerServer;
+    muxWindowBytes = defaultMuxWindowBytes;
+    muxPriorityBytes = defaultMuxPriorityBytes;
+    peerCompression = null;
+    peerCompressionMinSavings = defaultPeerCompressionMinSavings;
+    peerCompressionThreads = Runtime.getRuntime().availableProcessors();
+    peerDedup = false;
+    dedupAvgChunkBytes = defaultDedupAvgChunkBytes;
+    dedupMemoryBytes = defaultDedupMemoryBytes;
+    dedupDirectory = null;
+    dedupDiskBytes = defaultDedupDiskBytes;
   }
 
   public HostPort parseServerString(String server) throws URISyntaxException {
@@ -70,4 +235,25 @@ public class ProxyConfiguration {
     }
     serverHostPortList.add(hostPort);
   }
+
+  /*
+   *  Returns jumphost we use for ssh tunnel of the server at index serverIndex in
+   *  serverHostPortList, or null if we don't use jumphosts.
+   */
+  public JumpHost getJumphostForServer(int serverIndex) {
+    if (jumphostList.isEmpty()) {
+      return null;
+    }
+    return jumphostList.get(serverIndex % jumphostList.size());
+  }
+
+  /*
+   *  Returns socket profile of the server at index serverIndex in serverHostPortList.
+   */
+  public SocketProfile getSocketProfileForServer(int serverIndex) {
+    if (serverSocketProfiles.isEmpty()) {
+      return SocketProfile.DEFAULT;
+    }
+    return serverSocketProfiles.get(serverIndex % serverSocketProfiles.size());
+  }
 }
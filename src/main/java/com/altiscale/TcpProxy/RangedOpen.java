@@ -0,0 +1,240 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+import com.altiscale.Util.HttpMessage;
+
+/**
+ * RangedOpen serves a large WebHDFS OPEN request as several OPEN requests for consecutive
+ * ranges of the file, sent in parallel to servers picked by the load balancer, so a single
+ * download isn't limited to the speed of one tunnel.
+ *
+ * We first ask for the file length with GETFILESTATUS. Ranges are fetched by worker threads
+ * and written to the client in order as one response. Workers don't fetch ranges more than
+ * rangedOpenReorderBytes ahead of the range we are writing, which bounds memory we need for
+ * ranges that arrive out of order.
+ */
+public class RangedOpen {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  private HttpTunnel tunnel;
+
+  private HttpMessage request;
+
+  private ProxyConfiguration config;
+
+  // Range of the file we serve and number of ranges we fetch it in.
+  private long offset;
+  private long length;
+  private int rangeCnt;
+
+  // Fetched ranges we didn't write to client yet, by range index.
+  private HashMap<Integer, byte[]> fetched;
+
+  // Index of next range a worker will fetch, and of next range we write to client.
+  private int nextFetchIndex;
+  private int nextWriteIndex;
+
+  // Max number of ranges we fetch ahead of nextWriteIndex.
+  private int window;
+
+  // First error of any worker, or null.
+  private IOException failure;
+
+  private boolean aborted;
+
+  /*
+   *  @return  True if request is a WebHDFS OPEN we may split into ranges.
+   */
+  public static boolean isOpenRequest(HttpMessage request) {
+    try {
+      return "GET".equals(request.getMethod()) &&
+             request.getPath().startsWith("/webhdfs/v1/") &&
+             "OPEN".equalsIgnoreCase(request.getQueryParameter("op")) &&
+             request.hasNoBody(null);
+    } catch (IOException ioe) {
+      return false;
+    }
+  }
+
+  public RangedOpen(HttpTunnel tunnel, HttpMessage request, ProxyConfiguration config) {
+    this.tunnel = tunnel;
+    this.request = request;
+    this.config = config;
+    this.fetched = new HashMap<Integer, byte[]>();
+  }
+
+  /*
+   *  Sends response to client if the file is big enough to split.
+   *
+   *  @return  True if we served the request, false if caller should send it as it is. Throws
+   *           if we failed after we started the response.
+   */
+  public boolean serve(OutputStream client, boolean clientKeepAlive) throws IOException {
+    try {
+      offset = parseLong(request.getQueryParameter("offset"), 0);
+      long requested = parseLong(request.getQueryParameter("length"), -1);
+      HttpTunnel.FileStatus status = tunnel.getFileStatus(request);
+      if (null == status || offset >= status.length) {
+        return false;
+      }
+      length = status.length - offset;
+      if (requested >= 0) {
+        length = Math.min(length, requested);
+      }
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    if (length < config.rangedOpenMinBytes) {
+      return false;
+    }
+    long chunkBytes = config.rangedOpenChunkBytes;
+    rangeCnt = (int) ((length + chunkBytes - 1) / chunkBytes);
+    window = (int) Math.max(1, Math.min(rangeCnt, config.rangedOpenReorderBytes / chunkBytes));
+    LOG.debug("Fetching " + length + " bytes of " + request.getPath() + " in " + rangeCnt +
+              " ranges, " + window + " at a time");
+
+    for (int i = 0; i < window; i++) {
+      Thread worker = new Thread(new Runnable() {
+        public void run() {
+          fetchRanges();
+        }
+      }, "RangedOpen " + request.getPath());
+      worker.setDaemon(true);
+      worker.start();
+    }
+
+    try {
+      for (int i = 0; i < rangeCnt; i++) {
+        byte[] data = waitForRange(i);
+        if (null == data) {
+          if (i == 0) {
+            // Nothing sent to client yet, so the request can still go through as it is and
+            // client gets whatever error server has for it.
+            LOG.debug("First range of " + request.getPath() + " failed: " + failure.getMessage());
+            return false;
+          }
+          throw failure;
+        }
+        if (i == 0) {
+          HttpMessage response = HttpMessage.newResponse(200, "OK");
+          response.setHeader("Content-Type", "application/octet-stream");
+          response.setHeader("Content-Length", Long.toString(length));
+          response.setHeader("Connection", clientKeepAlive ? "keep-alive" : "close");
+          response.writeHead(client);
+          tunnel.openResponseStarted(null);
+        }
+        client.write(data);
+      }
+      client.flush();
+      return true;
+    } finally {
+      abort();
+    }
+  }
+
+  static long parseLong(String value, long defaultValue) {
+    return null == value || value.isEmpty() ? defaultValue : Long.parseLong(value);
+  }
+
+  private byte[] fetchRange(int index) throws IOException {
+    long rangeOffset = offset + (long) index * config.rangedOpenChunkBytes;
+    long rangeLength = Math.min(config.rangedOpenChunkBytes, offset + length - rangeOffset);
+    HttpMessage range = request.copy();
+    range.setQueryParameter("offset", Long.toString(rangeOffset));
+    range.setQueryParameter("length", Long.toString(rangeLength));
+    ByteArrayOutputStream body = new ByteArrayOutputStream((int) rangeLength);
+    HttpMessage response = tunnel.fetch(range, body, rangeLength);
+    if (null == response) {
+      throw new IOException("No server could serve range at " + rangeOffset + ".");
+    }
+    if (response.getStatusCode() != 200 || body.size() != rangeLength) {
+      throw new IOException("Server answered " + response.getStatusCode() + " with " +
+                            body.size() + " bytes for range of " + rangeLength + " bytes at " +
+                            rangeOffset + ".");
+    }
+    return body.toByteArray();
+  }
+
+  private void fetchRanges() {
+    while (true) {
+      int index = 0;
+      synchronized (this) {
+        while (!aborted && nextFetchIndex < rangeCnt && nextFetchIndex >= nextWriteIndex + window) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (aborted || nextFetchIndex >= rangeCnt) {
+          return;
+        }
+        index = nextFetchIndex++;
+      }
+      try {
+        byte[] data = fetchRange(index);
+        synchronized (this) {
+          fetched.put(index, data);
+          notifyAll();
+        }
+      } catch (IOException ioe) {
+        synchronized (this) {
+          if (null == failure) {
+            failure = ioe;
+          }
+          aborted = true;
+          notifyAll();
+        }
+        return;
+      }
+    }
+  }
+
+  /*
+   *  @return  Data of range or null if fetching failed.
+   */
+  private synchronized byte[] waitForRange(int index) throws IOException {
+    while (!fetched.containsKey(index) && null == failure) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while waiting for range.");
+      }
+    }
+    byte[] data = fetched.remove(index);
+    if (null != data) {
+      nextWriteIndex = index + 1;
+      notifyAll();
+    }
+    return data;
+  }
+
+  private synchronized void abort() {
+    aborted = true;
+    fetched.clear();
+    notifyAll();
+  }
+}
@@ -0,0 +1,373 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.altiscale.Util.HttpMessage;
+
+/**
+ * ReadAhead notices when a client reads a file with WebHDFS OPEN requests for consecutive
+ * ranges, and fetches the range it will most likely ask for next while it is still reading
+ * the current one, so the next request doesn't wait for a round trip through the tunnels.
+ *
+ * One ReadAhead serves one client connection. It follows each of the last MAX_FILES files the
+ * client read on its own, so a client that reads several files in turn still reads each of
+ * them sequentially, and keeps at most one range of at most prefetchMaxBytes per file. We
+ * start reading ahead only once a server started answering the current range, so the next
+ * range never goes out before the one client waits for. We read ahead only through a server
+ * that has no other requests in progress, so reading ahead doesn't slow down requests clients
+ * are waiting for. Ranges no client asked for are counted as wasted on the server we fetched
+ * them through.
+ *
+ * Ranges we fetch or keep count against prefetchBudgetBytes shared by all client connections,
+ * and we don't read ahead while it's used up, so many connections don't run out of memory.
+ */
+public class ReadAhead {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // Number of files we follow per client connection.
+  static final int MAX_FILES = 8;
+
+  // Bytes of ranges all client connections fetch or keep.
+  private static AtomicLong budgetUsedBytes = new AtomicLong(0);
+
+  /*
+   *  Range we fetch or fetched ahead.
+   */
+  private static class Prefetch {
+    long offset;
+    long length;
+    Server server;
+    // Set once fetch is done. Null response if it failed.
+    boolean done;
+    HttpMessage response;
+    byte[] body;
+    // Set once nobody will use the range.
+    boolean discarded;
+    // Set once we returned length to the budget.
+    boolean released;
+  }
+
+  /*
+   *  How client reads one file.
+   */
+  private static class FileReads {
+    // Where the last range client read ended.
+    long lastEnd;
+    // Number of reads in a row that started where the previous one ended.
+    int sequentialCnt;
+    Prefetch prefetch;
+  }
+
+  /*
+   *  Range to read ahead once server starts answering current request.
+   */
+  private static class PendingPrefetch {
+    HttpMessage request;
+    String key;
+    long offset;
+    long length;
+  }
+
+  private HttpTunnel tunnel;
+
+  private ProxyConfiguration config;
+
+  // Files client read, least recently read first, by request without offset and length.
+  private LinkedHashMap<String, FileReads> files;
+
+  // Set by serve when current request goes to a server, started by responseStarted.
+  private PendingPrefetch pending;
+
+  private boolean closed;
+
+  public ReadAhead(HttpTunnel tunnel, ProxyConfiguration config) {
+    this.tunnel = tunnel;
+    this.config = config;
+    this.files = new LinkedHashMap<String, FileReads>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, FileReads> eldest) {
+        if (size() <= MAX_FILES) {
+          return false;
+        }
+        if (null != eldest.getValue().prefetch) {
+          discard(eldest.getValue().prefetch);
+        }
+        return true;
+      }
+    };
+  }
+
+  /*
+   *  @return  Bytes of ranges all client connections fetch or keep.
+   */
+  static long getBudgetUsedBytes() {
+    return budgetUsedBytes.get();
+  }
+
+  /*
+   *  Takes length bytes from the budget shared by all client connections.
+   *
+   *  @return  False if that would use more than budgetBytes.
+   */
+  private static boolean reserve(long length, long budgetBytes) {
+    while (true) {
+      long used = budgetUsedBytes.get();
+      if (used + length > budgetBytes) {
+        return false;
+      }
+      if (budgetUsedBytes.compareAndSet(used, used + length)) {
+        return true;
+      }
+    }
+  }
+
+  /*
+   *  Returns bytes of a range to the budget, once it's served or nobody will use it.
+   */
+  private synchronized void release(Prefetch prefetch) {
+    if (!prefetch.released) {
+      prefetch.released = true;
+      budgetUsedBytes.addAndGet(-prefetch.length);
+    }
+  }
+
+  /*
+   *  @return  Request without offset and length, with its credentials.
+   */
+  private static String getKey(HttpMessage request) {
+    HttpMessage rest = request.copy();
+    rest.removeQueryParameter("offset");
+    rest.removeQueryParameter("length");
+    return rest.getUri() + "\n" + request.getHeader("Authorization") + "\n" +
+           request.getHeader("Cookie");
+  }
+
+  /*
+   *  Answers OPEN request with a range we read ahead if we have it. If client reads
+   *  sequentially, reads ahead the next range right away when we answer, or once a server
+   *  starts answering otherwise, see responseStarted.
+   *
+   *  @return  True if we served the request, false if caller should send it as it is.
+   */
+  public boolean serve(HttpMessage request, OutputStream client, boolean clientKeepAlive)
+      throws IOException {
+    pending = null;
+    long offset = 0;
+    long length = 0;
+    try {
+      offset = RangedOpen.parseLong(request.getQueryParameter("offset"), 0);
+      length = RangedOpen.parseLong(request.getQueryParameter("length"), -1);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    if (length <= 0) {
+      // Client reads the rest of the file, there is nothing to read ahead.
+      return false;
+    }
+    String key = getKey(request);
+    FileReads reads;
+    synchronized (this) {
+      reads = files.get(key);
+      if (null == reads) {
+        reads = new FileReads();
+        reads.lastEnd = -1;
+        files.put(key, reads);
+      }
+    }
+    Prefetch hit = takePrefetch(reads, offset, length);
+
+    if (offset == reads.lastEnd) {
+      reads.sequentialCnt++;
+    } else {
+      reads.sequentialCnt = 0;
+    }
+    reads.lastEnd = offset + length;
+    PendingPrefetch next = null;
+    if (reads.sequentialCnt > 0 && length <= config.prefetchMaxBytes) {
+      next = new PendingPrefetch();
+      next.request = request;
+      next.key = key;
+      next.offset = reads.lastEnd;
+      next.length = length;
+    }
+
+    if (null == hit) {
+      pending = next;
+      return false;
+    }
+    try {
+      HttpMessage response = hit.response.copy();
+      response.removeHeader("Keep-Alive");
+      response.setHeader("Connection", clientKeepAlive ? "keep-alive" : "close");
+      response.writeHead(client);
+      if (null != next) {
+        startPrefetch(next, null);
+      }
+      client.write(hit.body);
+      client.flush();
+    } finally {
+      release(hit);
+    }
+    return true;
+  }
+
+  /*
+   *  Reads ahead the range after the one serve let through, now that server started
+   *  answering it.
+   *
+   *  @param server  Server answering, or null if it isn't a single server.
+   */
+  public void responseStarted(Server server) {
+    PendingPrefetch next = pending;
+    pending = null;
+    if (null != next) {
+      startPrefetch(next, server);
+    }
+  }
+
+  /*
+   *  Waits for range we read ahead if it is the one client asks for, and discards it
+   *  otherwise.
+   *
+   *  @return  Successful response for the range, or null.
+   */
+  private synchronized Prefetch takePrefetch(FileReads reads, long offset, long length)
+      throws IOException {
+    Prefetch taken = reads.prefetch;
+    if (null == taken) {
+      return null;
+    }
+    reads.prefetch = null;
+    if (taken.offset != offset || taken.length != length) {
+      discard(taken);
+      return null;
+    }
+    while (!taken.done) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        discard(taken);
+        throw new IOException("Interrupted while waiting for read ahead.");
+      }
+    }
+    if (null == taken.response || taken.response.getStatusCode() != 200 ||
+        taken.body.length != length) {
+      discard(taken);
+      return null;
+    }
+    return taken;
+  }
+
+  /*
+   *  @param answering  Server answering the current range, which may read ahead while it
+   *                    sends that range, or null.
+   */
+  private void startPrefetch(PendingPrefetch pendingPrefetch, Server answering) {
+    HttpMessage request = pendingPrefetch.request;
+    Server server = null;
+    for (int i = 0; i < HttpTunnel.RETRY_MAX && null == server; i++) {
+      Server candidate = tunnel.loadBalancer.getServer();
+      int activeCnt = candidate.getActiveHttpCnt() - (candidate == answering ? 1 : 0);
+      if (activeCnt <= 0) {
+        server = candidate;
+      }
+    }
+    if (null == server) {
+      LOG.debug("All servers busy, not reading ahead " + request.getPath());
+      return;
+    }
+    if (!reserve(pendingPrefetch.length, config.prefetchBudgetBytes)) {
+      LOG.debug("Read-ahead budget used up, not reading ahead " + request.getPath());
+      return;
+    }
+    final Prefetch next = new Prefetch();
+    next.offset = pendingPrefetch.offset;
+    next.length = pendingPrefetch.length;
+    next.server = server;
+    final HttpMessage range = request.copy();
+    range.setQueryParameter("offset", Long.toString(next.offset));
+    range.setQueryParameter("length", Long.toString(next.length));
+    synchronized (this) {
+      FileReads reads = files.get(pendingPrefetch.key);
+      if (closed || null == reads) {
+        release(next);
+        return;
+      }
+      if (null != reads.prefetch) {
+        discard(reads.prefetch);
+      }
+      reads.prefetch = next;
+    }
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream((int) next.length);
+        HttpMessage response = tunnel.fetchFrom(next.server, range, body, next.length);
+        synchronized (ReadAhead.this) {
+          next.response = response;
+          next.body = body.toByteArray();
+          next.done = true;
+          next.server.prefetchByteCnt.incrementBy(next.body.length);
+          if (next.discarded) {
+            // Client moved on or went away while we were fetching.
+            next.server.prefetchWastedByteCnt.incrementBy(next.body.length);
+            release(next);
+          }
+          ReadAhead.this.notifyAll();
+        }
+      }
+    }, "ReadAhead " + request.getPath());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /*
+   *  Counts bytes of a range nobody will use and returns them to the budget. Bytes of a range
+   *  still being fetched are counted and returned when it is done.
+   */
+  private synchronized void discard(Prefetch discarded) {
+    discarded.discarded = true;
+    if (discarded.done) {
+      discarded.server.prefetchWastedByteCnt.incrementBy(discarded.body.length);
+      release(discarded);
+    }
+  }
+
+  /*
+   *  Discards ranges we read ahead, client connection is done.
+   */
+  public synchronized void close() {
+    closed = true;
+    pending = null;
+    for (FileReads reads : files.values()) {
+      if (null != reads.prefetch) {
+        discard(reads.prefetch);
+        reads.prefetch = null;
+      }
+    }
+    files.clear();
+  }
+}
@@ -18,12 +18,16 @@ package com.altiscale.TcpProxy;
 
 import org.apache.log4j.Logger;
 
+import java.net.InetSocketAddress;
 import java.net.Socket;
 
 import com.altiscale.Util.ExecLoop;
+import com.altiscale.Util.FlightEvents;
 import com.altiscale.Util.HostPort;
 import com.altiscale.Util.JumpHost;
+import com.altiscale.Util.LogHistogram;
 import com.altiscale.Util.SecondMinuteHourCounter;
+import com.altiscale.Util.SocketProfile;
 
 /**
  *  Server class holds host:port of where we expect TcpTunnel's servers to run and
@@ -48,6 +52,56 @@ public class Server {
   SecondMinuteHourCounter openedCnt;
   SecondMinuteHourCounter closedCnt;
   SecondMinuteHourCounter byteRateCnt;
+  // Bytes we sent and received on peer links through this server, including frame headers.
+  // byteRateCnt counts the same traffic before compression.
+  SecondMinuteHourCounter wireByteRateCnt;
+  // Deduplicated chunks sent and received on peer links through this server, chunks the
+  // receiving side already had, and bytes of those chunks.
+  SecondMinuteHourCounter dedupChunkCnt;
+  SecondMinuteHourCounter dedupHitCnt;
+  SecondMinuteHourCounter dedupSavedByteCnt;
+  // HTTP mode: sum of milliseconds from sending a request until its response head arrived,
+  // number of responses, and responses by status class (index 1 for 1xx up to 5 for 5xx).
+  SecondMinuteHourCounter httpLatencyCnt;
+  SecondMinuteHourCounter httpResponseCnt;
+  SecondMinuteHourCounter[] httpStatusCnt;
+  // HTTP mode: redirects from this server we followed instead of sending them to client.
+  SecondMinuteHourCounter httpRedirectCnt;
+  // HTTP mode: bytes of ranges we read ahead through this server, and bytes of those no
+  // client asked for.
+  SecondMinuteHourCounter prefetchByteCnt;
+  SecondMinuteHourCounter prefetchWastedByteCnt;
+  // HTTP mode: requests we sent on a pooled connection instead of opening a new one.
+  SecondMinuteHourCounter httpReusedCnt;
+  // HTTP mode: downloads this server took over after another server failed in the middle.
+  SecondMinuteHourCounter httpResumedCnt;
+  // HTTP mode: requests in progress on this server.
+  private int activeHttpCnt;
+  // Milliseconds to connect to server, from connecting until client got the first byte of
+  // response, how long connections lived, and bytes each tunneled connection carried.
+  LogHistogram connectMillis;
+  LogHistogram firstByteMillis;
+  LogHistogram lifetimeMillis;
+  LogHistogram connectionBytes;
+  // Where tunnels to this server list themselves while they are live, or null.
+  private ConnectionTable connectionTable;
+  // Microseconds tunnels to this server spent blocked, indexed by where they were blocked:
+  // reading from client, writing into tunnel to server, reading from server and writing to
+  // client.
+  static final int CLIENT_READ = 0;
+  static final int TUNNEL_WRITE = 1;
+  static final int SERVER_READ = 2;
+  static final int CLIENT_WRITE = 3;
+  static final String[] BLOCKED_NAMES = {"client_read", "tunnel_write", "server_read",
+                                         "client_write"};
+  SecondMinuteHourCounter[] blockedMicrosCnt;
+  // Server is write-stalled only if writes into its tunnel were blocked at least this long
+  // over the last minute, so a few slow writes don't count.
+  static final long MIN_STALL_MICROS = 1000 * 1000;
+  // Socket options of connections we open to server, and buffer size auto tuning picked for
+  // them, 0 until it has measured enough.
+  private SocketProfile socketProfile;
+  private volatile int autoBufferBytes;
 
   /*
    *  @param hostPort        host:port of the server-side for our tcp tunnels.
@@ -79,6 +133,34 @@ public class Server {
     openedCnt = new SecondMinuteHourCounter("openedCnt " + hostPort.toString());
     closedCnt = new SecondMinuteHourCounter("closedCnt " + hostPort.toString());
     byteRateCnt = new SecondMinuteHourCounter("byteRateCnt " + hostPort.toString());
+    wireByteRateCnt = new SecondMinuteHourCounter("wireByteRateCnt " + hostPort.toString());
+    dedupChunkCnt = new SecondMinuteHourCounter("dedupChunkCnt " + hostPort.toString());
+    dedupHitCnt = new SecondMinuteHourCounter("dedupHitCnt " + hostPort.toString());
+    dedupSavedByteCnt = new SecondMinuteHourCounter("dedupSavedByteCnt " + hostPort.toString());
+    httpLatencyCnt = new SecondMinuteHourCounter("httpLatencyCnt " + hostPort.toString());
+    httpResponseCnt = new SecondMinuteHourCounter("httpResponseCnt " + hostPort.toString());
+    httpStatusCnt = new SecondMinuteHourCounter[6];
+    for (int i = 0; i < httpStatusCnt.length; i++) {
+      httpStatusCnt[i] = new SecondMinuteHourCounter("http" + i + "xxCnt " + hostPort.toString());
+    }
+    httpRedirectCnt = new SecondMinuteHourCounter("httpRedirectCnt " + hostPort.toString());
+    prefetchByteCnt = new SecondMinuteHourCounter("prefetchByteCnt " + hostPort.toString());
+    prefetchWastedByteCnt =
+        new SecondMinuteHourCounter("prefetchWastedByteCnt " + hostPort.toString());
+    httpReusedCnt = new SecondMinuteHourCounter("httpReusedCnt " + hostPort.toString());
+    httpResumedCnt = new SecondMinuteHourCounter("httpResumedCnt " + hostPort.toString());
+    activeHttpCnt = 0;
+    connectMillis = new LogHistogram("connectMillis " + hostPort.toString());
+    firstByteMillis = new LogHistogram("firstByteMillis " + hostPort.toString());
+    lifetimeMillis = new LogHistogram("lifetimeMillis " + hostPort.toString());
+    connectionBytes = new LogHistogram("connectionBytes " + hostPort.toString());
+    socketProfile = SocketProfile.DEFAULT;
+    autoBufferBytes = 0;
+    blockedMicrosCnt = new SecondMinuteHourCounter[BLOCKED_NAMES.length];
+    for (int i = 0; i < BLOCKED_NAMES.length; i++) {
+      blockedMicrosCnt[i] = new SecondMinuteHourCounter(BLOCKED_NAMES[i] + " " +
+                                                        hostPort.toString());
+    }
   }
 
   public String sshJumphostCommand() {
@@ -94,11 +176,13 @@ public class Server {
     if (null != jumphost.credentials) {
       sshTunnelCmd += " -i " + jumphost.credentials;
     }
-    if (jumphost.compression) {
-      sshTunnelCmd += " -C";
-    }
-    if (null != jumphost.ciphers) {
-      sshTunnelCmd += " -c " + jumphost.ciphers;
+    synchronized (jumphost) {
+      if (jumphost.compression) {
+        sshTunnelCmd += " -C";
+      }
+      if (null != jumphost.ciphers) {
+        sshTunnelCmd += " -c " + jumphost.ciphers;
+      }
     }
 
     // Accept key automatically
@@ -131,6 +215,22 @@ public class Server {
     sshProcess.start();
   }
 
+  /*
+   *  Restarts ssh tunnel with new command if jumphost settings changed since we started it,
+   *  for example after calibration picked different ciphers.
+   *
+   *  @return  True if we restarted it.
+   */
+  public boolean restartJumphostThreadIfChanged() {
+    if (null == sshProcess) return false;
+    String command = sshJumphostCommand();
+    if (command.equals(sshProcess.getCommand())) return false;
+    LOG.info("Restarting ssh tunnel for " + hostPort + " with new command [" + command + "]");
+    sshProcess.setCommand(command);
+    sshProcess.stop();
+    return true;
+  }
+
   public void incrementFailedConn() {
     failedCnt.increment();
   }
@@ -147,19 +247,155 @@ public class Server {
     byteRateCnt.incrementBy(amount);
   }
 
+  public void incrementWireByteRateBy(long amount) {
+    wireByteRateCnt.incrementBy(amount);
+  }
+
+  /*
+   *  @param micros  Microseconds blocked, indexed by CLIENT_READ ... CLIENT_WRITE.
+   */
+  void addBlockedMicros(long[] micros) {
+    for (int i = 0; i < micros.length; i++) {
+      if (micros[i] > 0) {
+        blockedMicrosCnt[i].incrementBy(micros[i]);
+      }
+    }
+  }
+
+  /*
+   *  @return  Share of the last minute uploads through us spent blocked writing into tunnel,
+   *           of time they spent blocked either reading from client or writing into tunnel.
+   */
+  public double getTunnelWriteStallRatio() {
+    return getStallRatio(blockedMicrosCnt[TUNNEL_WRITE].getLastMinuteCnt(),
+                         blockedMicrosCnt[CLIENT_READ].getLastMinuteCnt());
+  }
+
+  /*
+   *  @return  Same as getTunnelWriteStallRatio, for downloads writing to client.
+   */
+  public double getClientWriteStallRatio() {
+    return getStallRatio(blockedMicrosCnt[CLIENT_WRITE].getLastMinuteCnt(),
+                         blockedMicrosCnt[SERVER_READ].getLastMinuteCnt());
+  }
+
+  static double getStallRatio(long writeMicros, long readMicros) {
+    return 0 == writeMicros + readMicros ? 0 : (double) writeMicros / (writeMicros + readMicros);
+  }
+
+  /*
+   *  @return  True if writes into our tunnel were blocked for at least ratio of the last minute
+   *           and for at least MIN_STALL_MICROS.
+   */
+  public boolean isWriteStalled(double ratio) {
+    return blockedMicrosCnt[TUNNEL_WRITE].getLastMinuteCnt() >= MIN_STALL_MICROS &&
+           getTunnelWriteStallRatio() >= ratio;
+  }
+
+  public void setConnectionTable(ConnectionTable connectionTable) {
+    this.connectionTable = connectionTable;
+  }
+
+  public ConnectionTable getConnectionTable() {
+    return connectionTable;
+  }
+
+  public synchronized void incrementActiveHttp() {
+    activeHttpCnt++;
+  }
+
+  public synchronized void decrementActiveHttp() {
+    activeHttpCnt--;
+  }
+
+  public synchronized int getActiveHttpCnt() {
+    return activeHttpCnt;
+  }
+
+  public void setSocketProfile(SocketProfile socketProfile) {
+    this.socketProfile = socketProfile;
+  }
+
+  public SocketProfile getSocketProfile() {
+    return socketProfile;
+  }
+
+  public int getAutoBufferBytes() {
+    return autoBufferBytes;
+  }
+
+  /*
+   *  Sizes buffers of connections we open from now on, if our profile is auto, to twice the
+   *  bandwidth-delay product of one connection, with last minute's throughput split over open
+   *  connections as throughput of one.
+   *
+   *  Connect time alone says nothing about round trip time when we connect to a local end of
+   *  an ssh tunnel, so we also look at time until the first response byte, which did cross
+   *  the tunnel. Its fastest responses, minus time to connect, are about one round trip plus
+   *  little server time. We take the bigger of that and median connect time.
+   *
+   *  @return  Buffer size we picked, or 0 if profile isn't auto or we have nothing to go on.
+   */
+  public int tuneBuffers() {
+    if (!socketProfile.isAuto()) {
+      return 0;
+    }
+    long openCnt = Math.max(1, openedCnt.getTotalCnt() - closedCnt.getTotalCnt());
+    long bytesPerSecond = byteRateCnt.getLastMinuteCnt() / 60 / openCnt;
+    LogHistogram.Snapshot firstByte = firstByteMillis.getSnapshot();
+    if (0 == bytesPerSecond || 0 == firstByte.getCount()) {
+      return autoBufferBytes;
+    }
+    long connectRttMillis = connectMillis.getSnapshot().getPercentile(0.5);
+    long responseRttMillis = firstByte.getPercentile(0.1) - connectRttMillis;
+    long rttMillis = Math.max(1, Math.max(connectRttMillis, responseRttMillis));
+    autoBufferBytes = SocketProfile.getBdpBufferBytes(bytesPerSecond, rttMillis);
+    return autoBufferBytes;
+  }
+
   public boolean isHealthy() {
     if (null == sshProcess) return true;
     return sshProcess.isRunning();
   }
 
+  /*
+   *  Opens a connection to us, recording how long it took in connectMillis and as a flight
+   *  recorder event.
+   */
+  public Socket connect() throws java.io.IOException {
+    FlightEvents.Connect event = new FlightEvents.Connect();
+    event.begin();
+    long startTime = System.currentTimeMillis();
+    try {
+      Socket socket = new Socket();
+      // Before connecting, so window scaling is negotiated for the receive buffer.
+      socketProfile.apply(socket, autoBufferBytes);
+      socket.connect(new InetSocketAddress(hostPort.host, hostPort.port));
+      connectMillis.record(System.currentTimeMillis() - startTime);
+      event.succeeded = true;
+      return socket;
+    } catch (java.io.IOException ioe) {
+      event.error = ioe.getMessage();
+      throw ioe;
+    } finally {
+      if (event.shouldCommit()) {
+        event.server = hostPort.toString();
+        event.commit();
+      }
+    }
+  }
+
   public void establishTunnel(Socket clientSocket) throws java.io.IOException {
     requestCnt.increment();
-    Socket serverSocket = new Socket(hostPort.host, hostPort.port);
-    LOG.debug("Setting tunnel between [" +
-        clientSocket.getInetAddress().getHostAddress() + ":" +
-        clientSocket.getPort() + "] and server [" +
-        hostPort + "]");
-    TcpTunnel tunnel = new TcpTunnel(clientSocket, serverSocket, this);
+    long startTime = System.currentTimeMillis();
+    Socket serverSocket = connect();
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Setting tunnel between [" +
+          clientSocket.getInetAddress().getHostAddress() + ":" +
+          clientSocket.getPort() + "] and server [" +
+          hostPort + "]");
+    }
+    TcpTunnel tunnel = new TcpTunnel(clientSocket, serverSocket, this, startTime);
 
     // Create threads that will handle this tunnel.
     tunnel.spawnTunnelThreads();
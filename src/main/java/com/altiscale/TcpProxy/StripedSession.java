@@ -0,0 +1,477 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import com.altiscale.TcpProxy.PeerProtocol.Frame;
+
+/**
+ * StripedSession carries one TCP stream over several peer links (subflows), each of them
+ * usually going through its own ssh tunnel. Both near-side and far-side peers run the same
+ * session: near side has the client socket as its local socket, far side has the socket to
+ * the real server.
+ *
+ * Local to remote direction: splitter thread reads the local socket and cuts the stream into
+ * sequenced frames, and one sender thread per subflow takes frames from a shared bounded queue
+ * and writes them to its subflow. Faster subflows simply take more frames.
+ *
+ * Remote to local direction: one receiver thread per subflow reads frames into a
+ * FrameReorderBuffer, and a writer thread writes them to the local socket in order.
+ *
+ * With a FrameCompressor, splitter passes frames through a CompressionPipeline before they
+ * reach the outgoing queue, and receivers decompress frames before reordering them.
+ *
+ * Each direction ends with a FIN frame, after which the receiving side half-closes its local
+ * socket, so half-closed connections work as they would without us. Any IO error aborts the
+ * whole session, and so do subflows that all end before they delivered FIN, for example when
+ * the far side couldn't connect to a server and closed them.
+ */
+public class StripedSession {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // Marks end of outgoing queue for one sender thread. Never sent to the peer.
+  private static final Frame STOP = new Frame((byte) 0, -1, null, 0);
+
+  private long sessionId;
+
+  private Socket localSocket;
+
+  // Server used for stats of local socket traffic. Null if we don't count it.
+  private Server localServer;
+
+  private ArrayList<Socket> subflows;
+
+  // Servers used for stats of subflow traffic, one per subflow. Elements may be null.
+  private ArrayList<Server> subflowServers;
+
+  private int frameBytes;
+
+  // Compresses outgoing frames, null if we don't compress.
+  private FrameCompressor compressor;
+
+  private ArrayBlockingQueue<Frame> outgoing;
+
+  private FrameReorderBuffer incoming;
+
+  private ArrayList<Thread> threads;
+
+  // Number of threads that still need to finish before we close the session.
+  private int runningThreads;
+
+  // Number of receivers still reading their subflow.
+  private int runningReceivers;
+
+  private boolean aborted;
+
+  // Data splitter sends before it reads the local socket, or null.
+  private byte[] initialData;
+
+  // Runs once we closed the session, or null.
+  private Runnable closeHandler;
+
+  // Live connections and top clients, or null if we don't count them.
+  private ConnectionTable connectionTable;
+  // Socket whose peer we count as our client.
+  private Socket clientSocket;
+  // False if another tunnel already counted the client connection.
+  private boolean newConnection;
+  // Our client connection in connectionTable, null if we don't count it.
+  private ConnectionTable.ClientConnection client;
+
+  /*
+   *  @param sessionId       Id shared with the peer, used in log messages.
+   *  @param localSocket     Socket to our client (near side) or server (far side).
+   *  @param localServer     Server for stats of local traffic or null.
+   *  @param subflows        Peer links with already exchanged link headers.
+   *  @param subflowServers  Servers for stats of subflow traffic, elements may be null.
+   *  @param frameBytes      Max payload size of frames we send.
+   *  @param reorderBytes    Max payload bytes we keep in reorder buffer.
+   *  @param compressor      Compresses frames we send, null if we don't compress.
+   */
+  public StripedSession(long sessionId, Socket localSocket, Server localServer,
+                        ArrayList<Socket> subflows, ArrayList<Server> subflowServers,
+                        int frameBytes, long reorderBytes, FrameCompressor compressor) {
+    assert subflows.size() == subflowServers.size();
+    this.sessionId = sessionId;
+    this.localSocket = localSocket;
+    this.localServer = localServer;
+    this.subflows = subflows;
+    this.subflowServers = subflowServers;
+    this.frameBytes = frameBytes;
+    this.compressor = compressor;
+    this.outgoing = new ArrayBlockingQueue<Frame>(2 * subflows.size() + 1);
+    this.incoming = new FrameReorderBuffer(reorderBytes);
+    this.threads = new ArrayList<Thread>();
+    this.runningThreads = 0;
+    this.aborted = false;
+  }
+
+  /*
+   *  Connects one subflow to each healthy server and sends link headers.
+   *
+   *  @param servers  Servers that are tunnels to a far-side peer.
+   *  @return  Session ready to start.
+   */
+  public static StripedSession connect(long sessionId, Socket localSocket,
+                                       ArrayList<Server> servers, ProxyConfiguration config,
+                                       FrameCompressor compressor) throws IOException {
+    ArrayList<Socket> subflows = new ArrayList<Socket>();
+    ArrayList<Server> subflowServers = new ArrayList<Server>();
+    for (Server server : servers) {
+      if (!server.isHealthy()) continue;
+      try {
+        server.requestCnt.increment();
+        subflows.add(server.connect());
+        subflowServers.add(server);
+      } catch (IOException ioe) {
+        LOG.error("Error while connecting to server " + server.hostPort);
+        server.incrementFailedConn();
+      }
+    }
+
+    try {
+      if (subflows.isEmpty()) {
+        throw new IOException("no server available");
+      }
+      for (int i = 0; i < subflows.size(); i++) {
+        PeerProtocol.writeLinkHeader(
+            new DataOutputStream(subflows.get(i).getOutputStream()),
+            new PeerProtocol.LinkHeader(PeerProtocol.LINK_STRIPE, sessionId, i,
+                                        subflows.size()));
+      }
+    } catch (IOException ioe) {
+      for (Socket subflow : subflows) {
+        try {
+          subflow.close();
+        } catch (IOException e) {
+          LOG.debug("IO exception while closing subflow: " + e.getMessage());
+        }
+      }
+      throw ioe;
+    }
+    return new StripedSession(sessionId, localSocket, null, subflows, subflowServers,
+                              config.peerFrameBytes, config.peerReorderBytes, compressor);
+  }
+
+  /*
+   *  Sets data we send before data we read from local socket, for example what we already
+   *  read from it ourselves. Call before start().
+   */
+  public void setInitialData(byte[] initialData) {
+    this.initialData = initialData;
+  }
+
+  /*
+   *  Sets what runs once the session is closed, after it finished or failed. Call before
+   *  start().
+   */
+  public void setCloseHandler(Runnable closeHandler) {
+    this.closeHandler = closeHandler;
+  }
+
+  /*
+   *  Counts session's client connection and local bytes in connection table. Call before
+   *  start().
+   *
+   *  @param clientSocket   Socket to our client, or subflow from near-side peer on far side.
+   *  @param newConnection  False if another tunnel already counted the client connection.
+   */
+  public void setConnectionTable(ConnectionTable connectionTable, Socket clientSocket,
+                                 boolean newConnection) {
+    this.connectionTable = connectionTable;
+    this.clientSocket = clientSocket;
+    this.newConnection = newConnection;
+  }
+
+  /*
+   *  Starts all session threads.
+   */
+  public synchronized void start() {
+    if (null != connectionTable) {
+      client = connectionTable.addClient(clientSocket, newConnection);
+    }
+    if (null != localServer) {
+      localServer.incrementOpenedConn();
+    }
+    for (Server server : subflowServers) {
+      if (null != server) {
+        server.incrementOpenedConn();
+      }
+    }
+    startThread(new Splitter(), "stripeSplitter");
+    startThread(new Writer(), "stripeWriter");
+    runningReceivers = subflows.size();
+    for (int i = 0; i < subflows.size(); i++) {
+      startThread(new Sender(i), "stripeSender" + i);
+      startThread(new Receiver(i), "stripeReceiver" + i);
+    }
+  }
+
+  private void startThread(Runnable runnable, String name) {
+    Thread thread = new Thread(runnable, name);
+    threads.add(thread);
+    runningThreads++;
+    thread.start();
+  }
+
+  private synchronized void threadFinished() {
+    runningThreads--;
+    if (0 == runningThreads && !aborted) {
+      LOG.debug("Striped session " + sessionId + " finished, max reorder buffer " +
+                incoming.getMaxBufferedBytes() + " B");
+      closeAll();
+    }
+  }
+
+  /*
+   *  Closes reorder buffer once no subflow can deliver more frames. Writer still gets frames
+   *  already in it, including FIN.
+   */
+  private synchronized void receiverFinished() {
+    runningReceivers--;
+    if (0 == runningReceivers) {
+      incoming.close();
+    }
+  }
+
+  /*
+   *  Closes all sockets and stops all threads after an error.
+   */
+  private synchronized void abort(String reason) {
+    if (aborted) return;
+    aborted = true;
+    LOG.info("Aborting striped session " + sessionId + ": " + reason);
+    for (Server server : subflowServers) {
+      if (null != server) {
+        server.incrementFailedConn();
+      }
+    }
+    incoming.close();
+    for (Thread thread : threads) {
+      if (thread != Thread.currentThread()) {
+        thread.interrupt();
+      }
+    }
+    closeAll();
+  }
+
+  private void closeAll() {
+    if (null != client) {
+      connectionTable.removeClient(client);
+    }
+    try {
+      localSocket.close();
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while closing local socket: " + ioe.getMessage());
+    }
+    if (null != localServer) {
+      localServer.incrementClosedConn();
+    }
+    for (int i = 0; i < subflows.size(); i++) {
+      try {
+        subflows.get(i).close();
+      } catch (IOException ioe) {
+        LOG.debug("IO exception while closing subflow: " + ioe.getMessage());
+      }
+      if (null != subflowServers.get(i)) {
+        subflowServers.get(i).incrementClosedConn();
+      }
+    }
+    if (null != closeHandler) {
+      closeHandler.run();
+    }
+  }
+
+  // Reads local socket and cuts the stream into frames.
+  private class Splitter implements Runnable {
+    public void run() {
+      CompressionPipeline pipeline = new CompressionPipeline(compressor,
+          new CompressionPipeline.Sink() {
+            public void put(Frame frame, int logicalBytes) throws InterruptedException {
+              outgoing.put(frame);
+            }
+          }, subflows.size() + 1);
+      try {
+        InputStream input = localSocket.getInputStream();
+        long seq = 0;
+        int cnt = 0;
+        byte[] buffer = new byte[frameBytes];
+        if (null != initialData) {
+          for (int offset = 0; offset < initialData.length; offset += frameBytes) {
+            int length = Math.min(frameBytes, initialData.length - offset);
+            byte[] data = new byte[length];
+            System.arraycopy(initialData, offset, data, 0, length);
+            pipeline.add(new Frame(PeerProtocol.FRAME_DATA, seq++, data, length));
+            if (null != localServer) {
+              localServer.incrementByteRateBy(length);
+            }
+          }
+          pipeline.flush();
+        }
+        while ((cnt = input.read(buffer)) >= 0) {
+          if (cnt == 0) continue;
+          byte[] data = new byte[cnt];
+          System.arraycopy(buffer, 0, data, 0, cnt);
+          pipeline.add(new Frame(PeerProtocol.FRAME_DATA, seq++, data, cnt));
+          if (null != localServer) {
+            localServer.incrementByteRateBy(cnt);
+          }
+          if (null != client) {
+            client.addBytes(cnt);
+          }
+          if (input.available() == 0) {
+            pipeline.flush();
+          }
+        }
+        pipeline.add(new Frame(PeerProtocol.FRAME_FIN, seq, null, 0));
+        pipeline.flush();
+        for (int i = 0; i < subflows.size(); i++) {
+          outgoing.put(STOP);
+        }
+      } catch (IOException ioe) {
+        abort("IO exception while reading local socket: " + ioe.getMessage());
+      } catch (InterruptedException ie) {
+        abort("interrupted splitter");
+      }
+      threadFinished();
+    }
+  }
+
+  // Takes frames from the outgoing queue and writes them to one subflow.
+  private class Sender implements Runnable {
+    private int index;
+
+    public Sender(int index) {
+      this.index = index;
+    }
+
+    public void run() {
+      Socket subflow = subflows.get(index);
+      Server server = subflowServers.get(index);
+      try {
+        DataOutputStream output = new DataOutputStream(
+            new BufferedOutputStream(subflow.getOutputStream(), frameBytes + 64));
+        while (true) {
+          Frame frame = outgoing.poll();
+          if (null == frame) {
+            // Flush before we wait, other senders may take the frames that come next.
+            output.flush();
+            frame = outgoing.take();
+          }
+          if (frame == STOP) {
+            break;
+          }
+          PeerProtocol.writeFrame(output, frame);
+          if (null != server) {
+            server.incrementByteRateBy(FrameCompressor.getLogicalLength(frame));
+            server.incrementWireByteRateBy(PeerProtocol.FRAME_HEADER_BYTES + frame.length);
+          }
+        }
+        output.flush();
+        subflow.shutdownOutput();
+      } catch (IOException ioe) {
+        abort("IO exception while writing subflow " + index + ": " + ioe.getMessage());
+      } catch (InterruptedException ie) {
+        abort("interrupted sender");
+      }
+      threadFinished();
+    }
+  }
+
+  // Reads frames from one subflow into the reorder buffer.
+  private class Receiver implements Runnable {
+    private int index;
+
+    public Receiver(int index) {
+      this.index = index;
+    }
+
+    public void run() {
+      Server server = subflowServers.get(index);
+      try {
+        DataInputStream input = new DataInputStream(
+            new BufferedInputStream(subflows.get(index).getInputStream(), frameBytes + 64));
+        Frame frame = null;
+        while (null != (frame = PeerProtocol.readFrame(input))) {
+          if (null != server) {
+            server.incrementWireByteRateBy(PeerProtocol.FRAME_HEADER_BYTES + frame.length);
+          }
+          frame = FrameCompressor.decompress(frame);
+          if (null != server) {
+            server.incrementByteRateBy(frame.length);
+          }
+          incoming.put(frame);
+        }
+      } catch (IOException ioe) {
+        abort("IO exception while reading subflow " + index + ": " + ioe.getMessage());
+      } catch (InterruptedException ie) {
+        abort("interrupted receiver");
+      }
+      receiverFinished();
+      threadFinished();
+    }
+  }
+
+  // Writes frames from the reorder buffer to the local socket.
+  private class Writer implements Runnable {
+    public void run() {
+      try {
+        OutputStream output = localSocket.getOutputStream();
+        while (true) {
+          Frame frame = null;
+          try {
+            frame = incoming.take();
+          } catch (IOException ioe) {
+            abort("subflows ended before FIN");
+            threadFinished();
+            return;
+          }
+          if (frame.type == PeerProtocol.FRAME_FIN) {
+            break;
+          }
+          output.write(frame.data, 0, frame.length);
+          if (null != localServer) {
+            localServer.incrementByteRateBy(frame.length);
+          }
+          if (null != client) {
+            client.addBytes(frame.length);
+          }
+        }
+        output.flush();
+        localSocket.shutdownOutput();
+      } catch (IOException ioe) {
+        abort("IO exception while writing local socket: " + ioe.getMessage());
+      } catch (InterruptedException ie) {
+        abort("interrupted writer");
+      }
+      threadFinished();
+    }
+  }
+}
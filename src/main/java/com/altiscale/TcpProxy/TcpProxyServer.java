@@ -21,20 +21,34 @@ import org.apache.log4j.LogManager;
 import org.apache.log4j.Level;
 
 import java.io.InputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Properties;
 import java.util.Random;
 
+import jdk.jfr.FlightRecorder;
+
+import com.altiscale.Util.EventLog;
+import com.altiscale.Util.FlightEvents;
+import com.altiscale.Util.HeavyHitters;
+import com.altiscale.Util.History;
 import com.altiscale.Util.HostPort;
 import com.altiscale.Util.JumpHost;
+import com.altiscale.Util.LogHistogram;
+import com.altiscale.Util.SecondMinuteHourCounter;
 import com.altiscale.Util.ServerStatus;
 import com.altiscale.Util.ServerWithStats;
+import com.altiscale.Util.SocketProfile;
+import com.altiscale.Util.StatsFile;
+import com.altiscale.Util.StatsSnapshot;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
@@ -81,9 +95,17 @@ public class TcpProxyServer implements ServerWithStats {
       this.servers = servers;
     }
 
+    // Synchronized, since http tunnels, ranged opens and read-ahead pick servers from
+    // several threads.
     @Override
-    public Server getServer() {
-      nextServerId = (nextServerId + 1) % servers.size();
+    public synchronized Server getServer() {
+      // Skip write-stalled servers, unless all of them are.
+      for (int i = 0; i < servers.size(); i++) {
+        nextServerId = (nextServerId + 1) % servers.size();
+        if (!isWriteStalled(servers.get(nextServerId))) {
+          break;
+        }
+      }
       return servers.get(nextServerId);
     }
   }
@@ -97,8 +119,13 @@ public class TcpProxyServer implements ServerWithStats {
 
      @Override
      public Server getServer() {
-       return servers.get(
-           new Random(System.currentTimeMillis()).nextInt(servers.size()));
+       Random random = new Random(System.currentTimeMillis());
+       Server server = servers.get(random.nextInt(servers.size()));
+       // Try once more if we picked a write-stalled server.
+       if (isWriteStalled(server)) {
+         server = servers.get(random.nextInt(servers.size()));
+       }
+       return server;
      }
   }
 
@@ -114,14 +141,15 @@ public class TcpProxyServer implements ServerWithStats {
       Server leastUsedServer = null;
       long leastUsedByteRate = Long.MAX_VALUE;
       for (Server server : servers) {
-        if (server.failedCnt.getLastSecondCnt() == 0 &&
+        if (server.failedCnt.getLastSecondCnt() == 0 && !isWriteStalled(server) &&
             server.byteRateCnt.getLastMinuteCnt() < leastUsedByteRate) {
           leastUsedByteRate = server.byteRateCnt.getLastMinuteCnt();
           leastUsedServer = server;
         }
       }
 
-      // All servers have failures in the last second so we return one at random.
+      // All servers have failures in the last second or are write-stalled so we return one
+      // at random.
       if (leastUsedServer == null) {
          leastUsedServer = new UniformRandom(servers).getServer();
       }
@@ -130,6 +158,102 @@ public class TcpProxyServer implements ServerWithStats {
     }
   }
 
+  /*
+   *  @return  True if load balancers should avoid server because writes into its tunnel are
+   *           blocked too much.
+   */
+  private boolean isWriteStalled(Server server) {
+    return null != config && config.avoidWriteStallRatio > 0 &&
+           server.isWriteStalled(config.avoidWriteStallRatio);
+  }
+
+  // Records every pick of balancer as a flight recorder event.
+  protected static class RecordedBalancer implements LoadBalancer {
+    private LoadBalancer balancer;
+
+    public RecordedBalancer(LoadBalancer balancer) {
+      this.balancer = balancer;
+    }
+
+    @Override
+    public Server getServer() {
+      FlightEvents.Balance event = new FlightEvents.Balance();
+      event.begin();
+      Server server = balancer.getServer();
+      if (event.shouldCommit()) {
+        event.balancer = balancer.getClass().getSimpleName();
+        event.server = server.hostPort.toString();
+        event.commit();
+      }
+      return server;
+    }
+  }
+
+  // Two-level load balancer: first picks a jumphost using the same algorithm on aggregated
+  // jumphost stats, then a server behind that jumphost using per-jumphost load balancer.
+  protected class JumphostFirst implements LoadBalancer {
+    private ArrayList<JumpHostGroup> groups;
+    private ArrayList<LoadBalancer> groupBalancers;
+    private String algorithm;
+
+    private int nextGroupId = 0;
+
+    public JumphostFirst(ArrayList<JumpHostGroup> groups, String algorithm) {
+      this.groups = groups;
+      this.algorithm = algorithm;
+      groupBalancers = new ArrayList<LoadBalancer>();
+      for (JumpHostGroup group : groups) {
+        groupBalancers.add(createLoadBalancer(algorithm, group.getServers()));
+      }
+    }
+
+    private int getGroupId() {
+      if (algorithm.equals("LeastUsed")) {
+        int leastUsedGroupId = -1;
+        long leastUsedByteRate = Long.MAX_VALUE;
+        for (int i = 0; i < groups.size(); i++) {
+          JumpHostGroup group = groups.get(i);
+          if (group.isHealthy() && group.getLastSecondFailedCnt() == 0 &&
+              group.getLastMinuteByteRate() < leastUsedByteRate) {
+            leastUsedByteRate = group.getLastMinuteByteRate();
+            leastUsedGroupId = i;
+          }
+        }
+        if (leastUsedGroupId != -1) {
+          return leastUsedGroupId;
+        }
+        // All jumphosts have failures in the last second so we return one at random.
+        return new Random(System.currentTimeMillis()).nextInt(groups.size());
+      } else if (algorithm.equals("UniformRandom")) {
+        ArrayList<Integer> healthyGroupIds = new ArrayList<Integer>();
+        for (int i = 0; i < groups.size(); i++) {
+          if (groups.get(i).isHealthy()) {
+            healthyGroupIds.add(i);
+          }
+        }
+        Random random = new Random(System.currentTimeMillis());
+        if (healthyGroupIds.isEmpty()) {
+          return random.nextInt(groups.size());
+        }
+        return healthyGroupIds.get(random.nextInt(healthyGroupIds.size()));
+      }
+
+      // RoundRobin, skipping jumphosts without any healthy tunnel.
+      for (int i = 0; i < groups.size(); i++) {
+        nextGroupId = (nextGroupId + 1) % groups.size();
+        if (groups.get(nextGroupId).isHealthy()) {
+          break;
+        }
+      }
+      return nextGroupId;
+    }
+
+    @Override
+    public synchronized Server getServer() {
+      return groupBalancers.get(getGroupId()).getServer();
+    }
+  }
+
   // log4j logger.
   private static Logger LOG = Logger.getLogger("TransferAccelerator");
   // Config for this proxy.
@@ -141,6 +265,10 @@ public class TcpProxyServer implements ServerWithStats {
   // This is our ServerSocket running on tcpProxyPort.
   private ServerSocket tcpProxyService;
 
+  // Buffer size auto tuning picked for client connections we accept, 0 until it has
+  // measured enough.
+  private volatile int listenerAutoBufferBytes;
+
   // List of all servers we can use to tunnel our client trafic. We choose from this list
   // based on our load-balancing algorithm, and if we cannot connect we retry using next
   // server until we establish the tunnel.
@@ -148,6 +276,40 @@ public class TcpProxyServer implements ServerWithStats {
 
   private LoadBalancer loadBalancer;
 
+  // Servers grouped by jumphost they use for their ssh tunnels. Empty if we don't use
+  // jumphosts.
+  private ArrayList<JumpHostGroup> jumphostGroups;
+
+  // Picks ssh ciphers and compression for jumphosts. Null if we don't calibrate.
+  private CipherCalibrator calibrator;
+
+  // Accepts peer links from near-side peers if we run as far-side peer, null otherwise.
+  private PeerServer peerServer;
+
+  // Generates ids for striped sessions if we run as near-side peer.
+  private Random sessionIdGenerator;
+
+  // Persistent multiplexed peer links if we run as near-side mux peer, null otherwise.
+  private MuxLinkPool muxLinkPool;
+
+  // Compresses data we send to the other peer, null if we don't compress.
+  private FrameCompressor compressor;
+
+  // Cache of WebHDFS metadata responses in http mode, null if we don't cache.
+  private MetadataCache metadataCache;
+
+  // Cache of blocks of files read with WebHDFS OPEN in http mode, null if we don't cache.
+  private BlockCache blockCache;
+
+  // Idle server connections shared by all client connections in http mode, null otherwise.
+  private BackendPool backendPool;
+
+  // Live tunneled connections to all servers.
+  private ConnectionTable connectionTable;
+
+  // Per-second byte rates, open and failed connections. Null if we don't keep history.
+  private History history;
+
   private String name;
 
   private String version;
@@ -156,6 +318,15 @@ public class TcpProxyServer implements ServerWithStats {
   private static final int START_PORT_RANGE = 48139;
   private static final int MAX_NUM_SERVERS = 22;
 
+  // Connection events that fit in event log's ring while its writer catches up.
+  private static final int EVENT_LOG_EVENTS = 64 * 1024;
+
+  // Clients with most bytes we list on status page.
+  private static final int TOP_CLIENTS_SHOWN = 5;
+
+  // How often we resize buffers of auto socket profiles.
+  private static final long BUFFER_TUNING_INTERVAL_MILLIS = 10 * 1000;
+
   @Override
   public void setVersion(String version) {
     this.version = version;
@@ -173,68 +344,546 @@ public class TcpProxyServer implements ServerWithStats {
     long lastHourByteRate = 0;
     long openedConnections = 0;
     long closedConnections = 0;
-    for (Server server : serverList) {
+    // Each byte rate counter is read once, tunnel threads update them all the time.
+    SecondMinuteHourCounter.Counts[] byteRates =
+        new SecondMinuteHourCounter.Counts[serverList.size()];
+    for (int i = 0; i < serverList.size(); i++) {
+      Server server = serverList.get(i);
       openedConnections += server.openedCnt.getTotalCnt();
       closedConnections += server.closedCnt.getTotalCnt();
-      lastSecondByteRate += server.byteRateCnt.getLastSecondCnt();
-      lastMinuteByteRate += server.byteRateCnt.getLastMinuteCnt();
-      lastHourByteRate += server.byteRateCnt.getLastHourCnt();
+      byteRates[i] = server.byteRateCnt.getCounts();
+      lastSecondByteRate += byteRates[i].lastSecond;
+      lastMinuteByteRate += byteRates[i].lastMinute;
+      lastHourByteRate += byteRates[i].lastHour;
+    }
+
+    StringBuilder html = new StringBuilder();
+    html.append("<head><meta http-equiv=\"refresh\" content=\"5\" /></head>\r\n");
+    html.append("<style> table, th, td { padding: 3px; border: 1px solid black;" +
+                " border-collapse: collapse; text-align: right;} </style>\r\n");
+    html.append("<TITLE>" + getServerName() + " Status</TITLE>\r\n");
+
+    html.append("<b>" + getServerName() + "</b> - " + tcpProxyPort + "<br/><br/><br/>\r\n");
+
+    if (null != history) {
+      html.append(history.getSvg(0, 720, 120) +
+                  " <a href=\"/history?format=csv\">history</a><br/><br/>\r\n");
+    }
+
+    html.append("<table>\r\n");
+    html.append("<tr><td><b>counters</b></td><td><b>values</b></td></tr>\r\n");
+
+    html.append("<tr><td>Open connections</td><td>" +
+                (openedConnections - closedConnections) +
+                "</td></tr>\r\n");
+    html.append("<tr><td>Tunneled client connections</td><td>" + connectionTable.size() +
+                " (<a href=\"/connections\">top by rate</a>)</td></tr>\r\n");
+    html.append("<tr><td>Top clients last minute</td><td>");
+    for (HeavyHitters.Entry client : connectionTable.getTopClientsByBytes(TOP_CLIENTS_SHOWN)) {
+      html.append(client.key + " " + client.count + " B<br/>");
+    }
+    html.append("(<a href=\"/clients\">by bytes and connections</a>)</td></tr>\r\n");
+
+    html.append("<tr><td><b>server</b> byte rate</td><td>" +
+                "<table><tr>" +
+                "<td>" + lastSecondByteRate + " B/s</td>" +
+                "<td>" + lastMinuteByteRate + " B/min</td>" +
+                "<td>" + lastHourByteRate + " B/h</td>" +
+                "</tr></table>");
+
+    for (int i = 0; i < serverList.size(); i++) {
+      html.append("<tr><td><b>" + serverList.get(i).hostPort.toString() + "</b> byte rate " +
+                  "</td><td>" +
+                  "<table><tr>" +
+                  "<td>" + byteRates[i].lastSecond + " B/s</td>" +
+                  "<td>" + byteRates[i].lastMinute + " B/min</td>" +
+                  "<td>" + byteRates[i].lastHour + " B/h</td>" +
+                  "</tr></table>" +
+                  "</td></tr>\r\n");
+    }
+
+    if (null != blockCache) {
+      html.append("<tr><td><b>block cache</b> byte rate saved </td><td>" +
+                  "<table><tr>" +
+                  "<td>" + blockCache.hitByteCnt.getLastSecondCnt() + " B/s</td>" +
+                  "<td>" + blockCache.hitByteCnt.getLastMinuteCnt() + " B/min</td>" +
+                  "<td>" + blockCache.hitByteCnt.getLastHourCnt() + " B/h</td>" +
+                  "<td>fetched " + blockCache.missByteCnt.getLastMinuteCnt() +
+                  " B/min</td>" +
+                  "<td>evictions " + blockCache.evictionCnt.getLastMinuteCnt() +
+                  " /min</td>" +
+                  "<td>" + blockCache.getBlockCnt() + " blocks</td>" +
+                  "<td>" + blockCache.getBytes() + " B</td>" +
+                  "</tr></table>" +
+                  "</td></tr>\r\n");
     }
 
-    String htmlServerStats = "";
-    htmlServerStats += "HTTP/1.0 200 OK\r\n";
-    htmlServerStats += "\r\n";
-    htmlServerStats += "<head><meta http-equiv=\"refresh\" content=\"5\" /></head>\r\n";
-    htmlServerStats += "<style> table, th, td { padding: 3px; border: 1px solid black;" +
-                       " border-collapse: collapse; text-align: right;} </style>\r\n";
-    htmlServerStats += "<TITLE>" + getServerName() + " Status</TITLE>\r\n";
+    if (null != config.peerMode) {
+      for (Server server : serverList) {
+        html.append("<tr><td><b>" + server.hostPort.toString() + "</b> wire byte rate " +
+                    "</td><td>" +
+                    "<table><tr>" +
+                    "<td>" + server.wireByteRateCnt.getLastSecondCnt() + " B/s</td>" +
+                    "<td>" + server.wireByteRateCnt.getLastMinuteCnt() + " B/min</td>" +
+                    "<td>" + server.wireByteRateCnt.getLastHourCnt() + " B/h</td>" +
+                    "</tr></table>" +
+                    "</td></tr>\r\n");
+      }
+    }
 
-    htmlServerStats += "<b>" + getServerName() + "</b> - " + tcpProxyPort + "<br/><br/><br/>\r\n";
+    if (config.peerDedup) {
+      for (Server server : serverList) {
+        long chunks = server.dedupChunkCnt.getLastMinuteCnt();
+        long hitPercent = chunks == 0 ? 0 : 100 * server.dedupHitCnt.getLastMinuteCnt() / chunks;
+        html.append("<tr><td><b>" + server.hostPort.toString() + "</b> dedup saved " +
+                    "</td><td>" +
+                    "<table><tr>" +
+                    "<td>" + server.dedupSavedByteCnt.getLastSecondCnt() + " B/s</td>" +
+                    "<td>" + server.dedupSavedByteCnt.getLastMinuteCnt() + " B/min</td>" +
+                    "<td>" + server.dedupSavedByteCnt.getLastHourCnt() + " B/h</td>" +
+                    "<td>hit ratio " + hitPercent + "% /min</td>" +
+                    "</tr></table>" +
+                    "</td></tr>\r\n");
+      }
+    }
 
-    htmlServerStats += "<table>\r\n";
-    htmlServerStats += "<tr><td><b>counters</b></td><td><b>values</b></td></tr>\r\n";
+    if (config.httpMode || config.followRedirects) {
+      for (Server server : serverList) {
+        long responses = server.httpResponseCnt.getLastMinuteCnt();
+        long latency = responses == 0 ? 0 : server.httpLatencyCnt.getLastMinuteCnt() / responses;
+        // Share of connections we needed that came from the pool instead of being opened.
+        long reused = server.httpReusedCnt.getLastMinuteCnt();
+        long uses = reused + server.openedCnt.getLastMinuteCnt();
+        long reusePercent = uses == 0 ? 0 : 100 * reused / uses;
+        html.append("<tr><td><b>" + server.hostPort.toString() + "</b> http requests " +
+                    "</td><td>" +
+                    "<table><tr>" +
+                    "<td>" + responses + " /min</td>" +
+                    "<td>avg latency " + latency + " ms</td>" +
+                    "<td>connection reuse " + reusePercent + "% /min</td>");
+        for (int i = 2; i <= 5; i++) {
+          html.append("<td>" + i + "xx " + server.httpStatusCnt[i].getLastMinuteCnt() +
+                      " /min</td>");
+        }
+        if (config.followRedirects) {
+          html.append("<td>redirects followed " +
+                      server.httpRedirectCnt.getLastMinuteCnt() + " /min</td>");
+        }
+        if (config.downloadResumeMax > 0) {
+          html.append("<td>downloads resumed " +
+                      server.httpResumedCnt.getLastMinuteCnt() + " /min</td>");
+        }
+        if (config.prefetchMaxBytes > 0) {
+          html.append("<td>read ahead " + server.prefetchByteCnt.getLastMinuteCnt() +
+                      " B/min</td>" +
+                      "<td>wasted " + server.prefetchWastedByteCnt.getLastMinuteCnt() +
+                      " B/min</td>");
+        }
+        html.append("</tr></table>" +
+                    "</td></tr>\r\n");
+      }
+    }
 
-    htmlServerStats += "<tr><td>Open connections</td><td>" +
-                       (openedConnections - closedConnections) +
-                       "</td></tr>\r\n";
+    if (null != metadataCache) {
+      html.append("<tr><td>metadata cache </td><td>" +
+                  "<table><tr>" +
+                  "<td>hits " + metadataCache.hitCnt.getLastMinuteCnt() + " /min</td>" +
+                  "<td>misses " + metadataCache.missCnt.getLastMinuteCnt() + " /min</td>" +
+                  "<td>evictions " + metadataCache.evictionCnt.getLastMinuteCnt() +
+                  " /min</td>" +
+                  "<td>invalidations " +
+                  metadataCache.invalidationCnt.getLastMinuteCnt() + " /min</td>" +
+                  "<td>" + metadataCache.getEntryCnt() + " entries</td>" +
+                  "<td>" + metadataCache.getBytes() + " B</td>" +
+                  "</tr></table>" +
+                  "</td></tr>\r\n");
+    }
 
-    htmlServerStats += "<tr><td><b>server</b> byte rate</td><td>" +
-                       "<table><tr>" +
-                       "<td>" + lastSecondByteRate + " B/s</td>" +
-                       "<td>" + lastMinuteByteRate + " B/min</td>" +
-                       "<td>" + lastHourByteRate + " B/h</td>" +
-                       "</tr></table>";
+    for (JumpHostGroup group : jumphostGroups) {
+      html.append("<tr><td>jumphost <b>" + group.getName() + "</b> byte rate </td><td>" +
+                  "<table><tr>" +
+                  "<td>" + group.getLastSecondByteRate() + " B/s</td>" +
+                  "<td>" + group.getLastMinuteByteRate() + " B/min</td>" +
+                  "<td>" + group.getLastHourByteRate() + " B/h</td>" +
+                  "<td>healthy " + group.getHealthyServerCnt() + " out of " +
+                  group.getServers().size() + "</td>" +
+                  "</tr></table>" +
+                  "</td></tr>\r\n");
+    }
 
+    LogHistogram.Snapshot[] allLatencies = new LogHistogram.Snapshot[4];
+    Arrays.fill(allLatencies, LogHistogram.EMPTY);
     for (Server server : serverList) {
-      htmlServerStats += "<tr><td><b>" + server.hostPort.toString() + "</b> byte rate </td><td>" +
-                         "<table><tr>" +
-                         "<td>" + server.byteRateCnt.getLastSecondCnt() + " B/s</td>" +
-                         "<td>" + server.byteRateCnt.getLastMinuteCnt() + " B/min</td>" +
-                         "<td>" + server.byteRateCnt.getLastHourCnt() + " B/h</td>" +
-                         "</tr></table>" +
-                         "</td></tr>\r\n";
+      LogHistogram.Snapshot[] latencies = getLatencySnapshots(server);
+      for (int i = 0; i < latencies.length; i++) {
+        allLatencies[i] = allLatencies[i].merge(latencies[i]);
+      }
+      html.append("<tr><td><b>" + server.hostPort.toString() + "</b> latency </td><td>" +
+                  getLatencyHtml(latencies) + "</td></tr>\r\n");
+    }
+    html.append("<tr><td><b>server</b> latency </td><td>" + getLatencyHtml(allLatencies) +
+                "</td></tr>\r\n");
+
+    for (Server server : serverList) {
+      SecondMinuteHourCounter.Counts failed = server.failedCnt.getCounts();
+      html.append("<tr><td><b>" + server.hostPort.toString() + "</b>" +
+                  " failed connections </td>" +
+                  "<td><table><tr>" +
+                  "<td>" + failed.lastSecond + " /s</td>" +
+                  "<td>" + failed.lastMinute + " /min</td>" +
+                  "<td>" + failed.lastHour + " /h</td>" +
+                  "</tr></table>" +
+                  "</td></tr>\r\n");
+    }
+    for (Server server : serverList) {
+      html.append("<tr><td><b>" + server.hostPort.toString() + "</b>" +
+                  " blocked last minute </td><td><table><tr>");
+      for (int i = 0; i < Server.BLOCKED_NAMES.length; i++) {
+        html.append("<td>" + Server.BLOCKED_NAMES[i] + " " +
+                    server.blockedMicrosCnt[i].getLastMinuteCnt() / 1000 + " ms</td>");
+      }
+      html.append("<td>upload stall " +
+                  Math.round(100 * server.getTunnelWriteStallRatio()) + "%</td>" +
+                  "<td>download stall " +
+                  Math.round(100 * server.getClientWriteStallRatio()) + "%</td>" +
+                  "</tr></table></td></tr>\r\n");
+    }
+
+    if (null != config) {
+      html.append("<tr><td><b>listener</b> socket options </td><td>" +
+                  getSocketProfileHtml(config.listenerSocketProfile, listenerAutoBufferBytes) +
+                  "</td></tr>\r\n");
+    }
+    for (Server server : serverList) {
+      html.append("<tr><td><b>" + server.hostPort.toString() + "</b> socket options </td><td>" +
+                  getSocketProfileHtml(server.getSocketProfile(), server.getAutoBufferBytes()) +
+                  "</td></tr>\r\n");
+    }
+
+    if (null != calibrator) {
+      html.append(calibrator.getResultsHtml());
+    }
+
+    if (null != muxLinkPool) {
+      html.append("<tr><td>multiplexed peer links</td><td>alive " +
+                  muxLinkPool.getAliveLinkCnt() + " out of " +
+                  muxLinkPool.getLinkCnt() + "</td></tr>\r\n");
+    }
+
+    html.append("<tr><td>opened connections</td><td>" + openedConnections +
+                "</td></tr>\r\n");
+    html.append("<tr><td>closed connections</td><td>" + closedConnections +
+                "</td></tr>\r\n");
+    html.append("</table>\r\n");
+
+    html.append("Healthy servers " + getHealthyServerCnt() + " out of " + serverList.size());
+
+    return html.toString();
+  }
+
+  /*
+   *  @return  Last minute of connect, first byte, lifetime and bytes per connection
+   *           histograms of server.
+   */
+  private static LogHistogram.Snapshot[] getLatencySnapshots(Server server) {
+    return new LogHistogram.Snapshot[] {server.connectMillis.getSnapshot(),
+                                        server.firstByteMillis.getSnapshot(),
+                                        server.lifetimeMillis.getSnapshot(),
+                                        server.connectionBytes.getSnapshot()};
+  }
+
+  private static String getLatencyHtml(LogHistogram.Snapshot[] latencies) {
+    String[] names = {"connect", "first byte", "lifetime", "bytes per connection"};
+    String[] units = {"ms", "ms", "ms", "B"};
+    StringBuilder html = new StringBuilder("<table><tr>");
+    for (int i = 0; i < latencies.length; i++) {
+      html.append("<td>" + names[i] + " p50/p90/p99/max " +
+                  latencies[i].getPercentile(0.5) + "/" + latencies[i].getPercentile(0.9) +
+                  "/" + latencies[i].getPercentile(0.99) + "/" + latencies[i].getMax() + " " +
+                  units[i] + "</td>");
+    }
+    return html.append("</tr></table>").toString();
+  }
+
+  @Override
+  public StatsSnapshot getStatsSnapshot() {
+    StatsSnapshot.Builder builder = new StatsSnapshot.Builder("transfer_accelerator_");
+    long openedConnections = 0;
+    long closedConnections = 0;
+    String[] latencyNames = {"connect_milliseconds", "first_byte_milliseconds",
+                             "connection_lifetime_milliseconds", "connection_bytes"};
+    String[] latencyHelps = {"Milliseconds to connect to server.",
+                             "Milliseconds until client got first byte of response.",
+                             "Milliseconds connections to server lived.",
+                             "Bytes each tunneled connection carried."};
+    LogHistogram.Snapshot[] allLatencies = new LogHistogram.Snapshot[latencyNames.length];
+    Arrays.fill(allLatencies, LogHistogram.EMPTY);
+    for (Server server : serverList) {
+      String[] labels = StatsSnapshot.labels("server", server.hostPort.toString());
+      LogHistogram.Snapshot[] latencies = getLatencySnapshots(server);
+      for (int i = 0; i < latencies.length; i++) {
+        builder.addHistogram(latencyNames[i], latencyHelps[i], labels, latencies[i]);
+        allLatencies[i] = allLatencies[i].merge(latencies[i]);
+      }
+      openedConnections += server.openedCnt.getTotalCnt();
+      closedConnections += server.closedCnt.getTotalCnt();
+      builder.addCounter("bytes", "Bytes sent and received through server.", labels,
+                         server.byteRateCnt);
+      builder.addCounter("connections_opened", "Connections opened to server.", labels,
+                         server.openedCnt);
+      builder.addCounter("connections_closed", "Connections to server closed.", labels,
+                         server.closedCnt);
+      builder.addCounter("connections_failed", "Failed connections to server.", labels,
+                         server.failedCnt);
+      builder.addGauge("server_healthy", "1 if server's ssh tunnel is running.", labels,
+                       server.isHealthy() ? 1 : 0);
+      for (int i = 0; i < Server.BLOCKED_NAMES.length; i++) {
+        builder.addCounter("blocked_microseconds", "Microseconds tunnels were blocked.",
+                           StatsSnapshot.labels("server", server.hostPort.toString(),
+                                                "on", Server.BLOCKED_NAMES[i]),
+                           server.blockedMicrosCnt[i]);
+      }
+      builder.addGauge("upload_stall_percent",
+                       "Share of last minute uploads were blocked writing into tunnel.", labels,
+                       Math.round(100 * server.getTunnelWriteStallRatio()));
+      builder.addGauge("download_stall_percent",
+                       "Share of last minute downloads were blocked writing to client.", labels,
+                       Math.round(100 * server.getClientWriteStallRatio()));
+      if (null != config.peerMode) {
+        builder.addCounter("wire_bytes", "Bytes on peer links through server, on the wire.",
+                           labels, server.wireByteRateCnt);
+      }
+      if (config.peerDedup) {
+        builder.addCounter("dedup_chunks", "Deduplicated chunks through server.", labels,
+                           server.dedupChunkCnt);
+        builder.addCounter("dedup_hits", "Chunks the receiving side already had.", labels,
+                           server.dedupHitCnt);
+        builder.addCounter("dedup_saved_bytes", "Bytes deduplication didn't send.", labels,
+                           server.dedupSavedByteCnt);
+      }
+      if (config.httpMode || config.followRedirects) {
+        builder.addCounter("http_responses", "HTTP responses from server.", labels,
+                           server.httpResponseCnt);
+        builder.addCounter("http_latency_milliseconds",
+                           "Sum of milliseconds until HTTP response heads arrived.", labels,
+                           server.httpLatencyCnt);
+        for (int i = 1; i < server.httpStatusCnt.length; i++) {
+          builder.addCounter("http_responses_by_class", "HTTP responses by status class.",
+                             StatsSnapshot.labels("server", server.hostPort.toString(),
+                                                  "class", i + "xx"),
+                             server.httpStatusCnt[i]);
+        }
+        builder.addCounter("http_connections_reused", "Requests sent on pooled connections.",
+                           labels, server.httpReusedCnt);
+        builder.addCounter("http_redirects_followed", "Redirects we followed ourselves.",
+                           labels, server.httpRedirectCnt);
+        builder.addCounter("http_downloads_resumed",
+                           "Downloads server took over after another server failed.", labels,
+                           server.httpResumedCnt);
+        builder.addCounter("prefetch_bytes", "Bytes read ahead through server.", labels,
+                           server.prefetchByteCnt);
+        builder.addCounter("prefetch_wasted_bytes", "Bytes read ahead no client asked for.",
+                           labels, server.prefetchWastedByteCnt);
+      }
+    }
+    for (int i = 0; i < latencyNames.length; i++) {
+      builder.addHistogram("all_" + latencyNames[i], latencyHelps[i] + " All servers.", null,
+                           allLatencies[i]);
+    }
+    builder.addGauge("open_connections", "Open connections to servers.", null,
+                     openedConnections - closedConnections);
+    builder.addGauge("client_connections", "Live tunneled client connections.", null,
+                     connectionTable.size());
+    builder.addGauge("healthy_servers", "Servers with a running ssh tunnel.", null,
+                     getHealthyServerCnt());
+    for (JumpHostGroup group : jumphostGroups) {
+      builder.addGauge("jumphost_healthy_servers", "Healthy servers behind jumphost.",
+                       StatsSnapshot.labels("jumphost", group.getName()),
+                       group.getHealthyServerCnt());
+    }
+    if (null != blockCache) {
+      builder.addCounter("block_cache_hit_bytes", "Bytes sent to clients from block cache.",
+                         null, blockCache.hitByteCnt);
+      builder.addCounter("block_cache_miss_bytes", "Bytes of blocks fetched through tunnels.",
+                         null, blockCache.missByteCnt);
+      builder.addCounter("block_cache_evictions", "Blocks evicted from block cache.", null,
+                         blockCache.evictionCnt);
+      builder.addGauge("block_cache_blocks", "Blocks in block cache.", null,
+                       blockCache.getBlockCnt());
+      builder.addGauge("block_cache_bytes", "Bytes in block cache.", null,
+                       blockCache.getBytes());
+    }
+    if (null != metadataCache) {
+      builder.addCounter("metadata_cache_hits", "Metadata requests answered from cache.", null,
+                         metadataCache.hitCnt);
+      builder.addCounter("metadata_cache_misses", "Cacheable metadata requests not in cache.",
+                         null, metadataCache.missCnt);
+      builder.addCounter("metadata_cache_evictions", "Metadata cache entries evicted.", null,
+                         metadataCache.evictionCnt);
+      builder.addCounter("metadata_cache_invalidations", "Metadata cache entries invalidated.",
+                         null, metadataCache.invalidationCnt);
+      builder.addGauge("metadata_cache_entries", "Entries in metadata cache.", null,
+                       metadataCache.getEntryCnt());
+      builder.addGauge("metadata_cache_bytes", "Bytes in metadata cache.", null,
+                       metadataCache.getBytes());
+    }
+    if (null != muxLinkPool) {
+      builder.addGauge("mux_links", "Multiplexed peer links.", null, muxLinkPool.getLinkCnt());
+      builder.addGauge("mux_links_alive", "Multiplexed peer links that are up.", null,
+                       muxLinkPool.getAliveLinkCnt());
+    }
+    return builder.build();
+  }
+
+  @Override
+  public String getConnectionsJson(String sortBy, int limit) {
+    return connectionTable.getJson(sortBy, limit);
+  }
+
+  @Override
+  public String getHistory(String format, int seconds) {
+    if (null == history) {
+      return null;
     }
+    return "csv".equals(format) ? history.getCsv(seconds) : history.getJson(seconds);
+  }
 
+  /*
+   *  Starts recording history of all servers together and of each server: bytes tunneled,
+   *  open connections and failed connections each second.
+   */
+  private void startHistory(int seconds) {
+    final int serverCnt = serverList.size();
+    String[] names = new String[3 * (serverCnt + 1)];
+    names[0] = "bytes";
+    names[1] = "open_connections";
+    names[2] = "failed_connections";
+    for (int i = 0; i < serverCnt; i++) {
+      String hostPort = serverList.get(i).hostPort.toString();
+      names[3 * (i + 1)] = "bytes_" + hostPort;
+      names[3 * (i + 1) + 1] = "open_connections_" + hostPort;
+      names[3 * (i + 1) + 2] = "failed_connections_" + hostPort;
+    }
+    history = new History(names, seconds);
+    history.start(new History.Sampler() {
+      // Totals of the previous second, so we record what happened during this one.
+      long[] lastBytes = new long[serverCnt];
+      long[] lastFailed = new long[serverCnt];
+      boolean first = true;
+
+      public void sample(long[] row) {
+        row[0] = 0;
+        row[1] = 0;
+        row[2] = 0;
+        for (int i = 0; i < serverCnt; i++) {
+          Server server = serverList.get(i);
+          long bytes = server.byteRateCnt.getTotalCnt();
+          long failed = server.failedCnt.getTotalCnt();
+          int column = 3 * (i + 1);
+          row[column] = first ? 0 : bytes - lastBytes[i];
+          row[column + 1] = server.openedCnt.getTotalCnt() - server.closedCnt.getTotalCnt();
+          row[column + 2] = first ? 0 : failed - lastFailed[i];
+          lastBytes[i] = bytes;
+          lastFailed[i] = failed;
+          for (int j = 0; j < 3; j++) {
+            row[j] += row[column + j];
+          }
+        }
+        first = false;
+      }
+    });
+  }
+
+  /*
+   *  Emits a flight recorder event with rates of each server, when recording asks for them.
+   */
+  private void recordServerRates() {
     for (Server server : serverList) {
-      htmlServerStats += "<tr><td><b>" + server.hostPort.toString() + "</b>" +
-                         " failed connections </td>" +
-                         "<td><table><tr>" +
-                         "<td>" + server.failedCnt.getLastSecondCnt() + " /s</td>" +
-                         "<td>" + server.failedCnt.getLastMinuteCnt() + " /min</td>" +
-                         "<td>" + server.failedCnt.getLastHourCnt() + " /h</td>" +
-                         "</tr></table>" +
-                         "</td></tr>\r\n";
+      FlightEvents.ServerRate event = new FlightEvents.ServerRate();
+      event.server = server.hostPort.toString();
+      event.bytesPerSecond = server.byteRateCnt.getLastSecondCnt();
+      event.openConnections = server.openedCnt.getTotalCnt() - server.closedCnt.getTotalCnt();
+      event.failedPerSecond = server.failedCnt.getLastSecondCnt();
+      event.healthy = server.isHealthy();
+      event.commit();
     }
+  }
 
-    htmlServerStats += "<tr><td>opened connections</td><td>" + openedConnections +
-                       "</td></tr>\r\n";
-    htmlServerStats += "<tr><td>closed connections</td><td>" + closedConnections +
-                       "</td></tr>\r\n";
-    htmlServerStats += "</table>\r\n";
+  private static String getSocketProfileHtml(SocketProfile profile, int autoBytes) {
+    StringBuilder html = new StringBuilder("<table><tr><td>" + profile + "</td>");
+    int receive = profile.getReceiveBufferBytes(autoBytes);
+    int send = profile.getSendBufferBytes(autoBytes);
+    html.append("<td>rcvbuf " + (0 == receive ? "default" : receive / 1024 + " KB") + "</td>");
+    html.append("<td>sndbuf " + (0 == send ? "default" : send / 1024 + " KB") + "</td>");
+    return html.append("</tr></table>").toString();
+  }
 
-    htmlServerStats += "Healthy servers " + getHealthyServerCnt() + " out of " + serverList.size();
+  /*
+   *  Starts thread that resizes buffers of auto socket profiles from what servers measured.
+   *  Listener gets the biggest size any server picked, as client connections carry the
+   *  same bytes as server connections.
+   */
+  private void startBufferTuning() {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          try {
+            Thread.sleep(BUFFER_TUNING_INTERVAL_MILLIS);
+          } catch (InterruptedException e) {
+            return;
+          }
+          int maxBytes = 0;
+          for (Server server : serverList) {
+            maxBytes = Math.max(maxBytes, server.tuneBuffers());
+          }
+          if (config.listenerSocketProfile.isAuto() && maxBytes > 0 &&
+              maxBytes != listenerAutoBufferBytes) {
+            listenerAutoBufferBytes = maxBytes;
+            try {
+              // Sockets we accept from now on inherit it.
+              config.listenerSocketProfile.apply(tcpProxyService, maxBytes);
+            } catch (SocketException se) {
+              LOG.error("Could not resize listener receive buffer: " + se.getMessage());
+            }
+          }
+        }
+      }
+    }, "Socket buffer tuning");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /*
+   *  Starts publishing counters of each server in a memory-mapped stats file.
+   */
+  private void startStatsFile(File file) {
+    String[] names = new String[serverList.size()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = serverList.get(i).hostPort.toString();
+    }
+    StatsFile statsFile = null;
+    try {
+      statsFile = new StatsFile(file, names);
+    } catch (IOException ioe) {
+      LOG.error("IO exception while creating stats file " + file + ": " + ioe.getMessage());
+      System.exit(1);
+    }
+    statsFile.start(new StatsFile.Source() {
+      public void update(StatsFile file) {
+        file.setClientConnections(connectionTable.size());
+        for (int i = 0; i < serverList.size(); i++) {
+          Server server = serverList.get(i);
+          file.setServer(i, server.byteRateCnt.getTotalCnt(), server.openedCnt.getTotalCnt(),
+                         server.closedCnt.getTotalCnt(), server.failedCnt.getTotalCnt(),
+                         server.isHealthy());
+        }
+      }
+    });
+  }
 
-    return htmlServerStats;
+  @Override
+  public String getTopClientsJson(int limit) {
+    return connectionTable.getTopClientsJson(limit);
   }
 
   @Override
@@ -255,6 +904,9 @@ public class TcpProxyServer implements ServerWithStats {
   public TcpProxyServer(String name) {
     this.name = name;
     serverList = new ArrayList<Server>();
+    jumphostGroups = new ArrayList<JumpHostGroup>();
+    sessionIdGenerator = new Random();
+    connectionTable = new ConnectionTable();
   }
 
   public void init(ProxyConfiguration conf) {
@@ -262,39 +914,144 @@ public class TcpProxyServer implements ServerWithStats {
 
     // Launch ServerStats thread.
     new Thread(new ServerStatus(this, config.statusPort)).start();
+    connectionTable.start();
 
-    // Initialize servers and optional ssh tunnels via jumphost.
-    for (HostPort serverHostPort : config.serverHostPortList) {
+    // Group servers by jumphosts.
+    for (JumpHost jumphost : config.jumphostList) {
+      jumphostGroups.add(new JumpHostGroup(jumphost));
+    }
+
+    // Initialize servers and optional ssh tunnels via jumphosts.
+    for (int i = 0; i < config.serverHostPortList.size(); i++) {
+      HostPort serverHostPort = config.serverHostPortList.get(i);
+      JumpHost jumphost = config.getJumphostForServer(i);
       Server server = null;
-      if (null == config.jumphost) {
+      if (null == jumphost) {
         server = new Server(serverHostPort);
       } else {
-        server = new Server(serverHostPort, config.jumphost);
-        server.startJumphostThread();
+        server = new Server(serverHostPort, jumphost);
+        jumphostGroups.get(i % jumphostGroups.size()).addServer(server);
       }
       assert null != server;
+      server.setConnectionTable(connectionTable);
+      server.setSocketProfile(config.getSocketProfileForServer(i));
       serverList.add(server);
     }
+    if (config.historySeconds > 0) {
+      startHistory(config.historySeconds);
+    }
+    if (null != config.statsFile) {
+      startStatsFile(new File(config.statsFile));
+    }
+    if (null != config.eventLog) {
+      EventLog eventLog = new EventLog(new File(config.eventLog), config.eventLogMaxBytes,
+                                       EVENT_LOG_EVENTS);
+      try {
+        eventLog.start();
+      } catch (IOException ioe) {
+        LOG.error("IO exception while opening event log " + config.eventLog + ": " +
+                  ioe.getMessage());
+        System.exit(1);
+      }
+      connectionTable.setEventLog(eventLog);
+    }
+    FlightRecorder.addPeriodicEvent(FlightEvents.ServerRate.class, new Runnable() {
+      public void run() {
+        recordServerRates();
+      }
+    });
+
+    // Maybe calibrate ssh ciphers and compression before we start ssh tunnels.
+    if (config.calibrate && !jumphostGroups.isEmpty()) {
+      byte[] payload = null;
+      try {
+        payload = CipherCalibrator.readPayload(config.calibrationPayloadFile);
+      } catch (IOException ioe) {
+        LOG.error("IO exception while reading calibration payload " +
+                  config.calibrationPayloadFile + ": " + ioe.getMessage());
+        System.exit(1);
+      }
+      calibrator = new CipherCalibrator(jumphostGroups, config.calibrationCiphers, payload,
+                                        config.calibrationPort,
+                                        config.calibrationIntervalSeconds);
+      calibrator.calibrate();
+    }
+
+    for (Server server : serverList) {
+      if (null != server.jumphost) {
+        server.startJumphostThread();
+      }
+    }
+
+    if (null != calibrator && config.calibrationIntervalSeconds > 0) {
+      calibrator.start();
+    }
 
     // Open our listening port.
     tcpProxyPort = config.listeningPort;
     try {
-      tcpProxyService = new ServerSocket(tcpProxyPort);
+      tcpProxyService = new ServerSocket();
+      // Before binding, so window scaling is negotiated for sockets we accept.
+      config.listenerSocketProfile.apply(tcpProxyService, listenerAutoBufferBytes);
+      tcpProxyService.bind(new InetSocketAddress(tcpProxyPort));
       LOG.info("Listening for incoming clients on port " + tcpProxyPort);
     } catch (IOException ioe) {
       LOG.error("IO exception while establishing proxy service on port " + tcpProxyPort);
       System.exit(1);
     }
+    boolean autoTuning = config.listenerSocketProfile.isAuto();
+    for (Server server : serverList) {
+      autoTuning |= server.getSocketProfile().isAuto();
+    }
+    if (autoTuning) {
+      startBufferTuning();
+    }
 
     // Set load balancer.
-    if (config.loadBalancerString.equals("LeastUsed")) {
-      loadBalancer = new LeastUsed(getServerList());
-    } else if (config.loadBalancerString.equals("UniformRandom")) {
-      loadBalancer = new UniformRandom(getServerList());
+    if (config.balanceJumphosts && jumphostGroups.size() > 1) {
+      loadBalancer = new JumphostFirst(jumphostGroups, config.loadBalancerString);
     } else {
-      loadBalancer = new RoundRobin(getServerList());
+      loadBalancer = createLoadBalancer(config.loadBalancerString, getServerList());
     }
     setLoadBalancer(loadBalancer);
+
+    if (null != config.peerMode && null != config.peerCompression) {
+      compressor = new FrameCompressor(config.peerCompression, config.peerCompressionMinSavings,
+                                       config.peerCompressionThreads);
+    }
+    if (config.httpMode) {
+      backendPool = new BackendPool(config);
+      backendPool.start();
+    }
+    if (config.httpMode && config.metadataCacheTtlSeconds > 0) {
+      metadataCache = new MetadataCache(config.metadataCacheTtlSeconds * 1000,
+                                        config.metadataCacheBytes);
+    }
+    if (config.httpMode && null != config.blockCacheDirectory) {
+      blockCache = new BlockCache(new File(config.blockCacheDirectory), config.blockCacheBytes,
+                                  config.blockCacheBlockBytes);
+    }
+    if ("far".equals(config.peerMode)) {
+      peerServer = new PeerServer(loadBalancer, config, compressor);
+      peerServer.setConnectionTable(connectionTable);
+    } else if ("mux".equals(config.peerMode)) {
+      muxLinkPool = new MuxLinkPool(serverList, config, compressor);
+      muxLinkPool.setConnectionTable(connectionTable);
+      muxLinkPool.start();
+    }
+  }
+
+  protected LoadBalancer createLoadBalancer(String algorithm, ArrayList<Server> servers) {
+    if (algorithm.equals("LeastUsed")) {
+      return new LeastUsed(servers);
+    } else if (algorithm.equals("UniformRandom")) {
+      return new UniformRandom(servers);
+    }
+    return new RoundRobin(servers);
+  }
+
+  public ArrayList<JumpHostGroup> getJumphostGroups() {
+    return jumphostGroups;
   }
 
   public ArrayList<Server> getServerList() {
@@ -302,6 +1059,34 @@ public class TcpProxyServer implements ServerWithStats {
   }
 
   public void setupTunnel(Socket clientSocket) {
+    if (null != peerServer) {
+      peerServer.acceptLink(clientSocket);
+      return;
+    }
+    if (config.httpMode) {
+      HttpTunnel tunnel = new HttpTunnel(clientSocket, loadBalancer, config);
+      tunnel.setBackendPool(backendPool);
+      tunnel.setMetadataCache(metadataCache);
+      tunnel.setBlockCache(blockCache);
+      tunnel.setConnectionTable(connectionTable);
+      if ("stripe".equals(config.peerMode)) {
+        tunnel.setUploadStriper(new HttpTunnel.UploadStriper() {
+          public void stripe(Socket clientSocket, byte[] initialData, Runnable finished) {
+            setupStripedTunnel(clientSocket, initialData, finished);
+          }
+        });
+      }
+      tunnel.start();
+      return;
+    }
+    if ("stripe".equals(config.peerMode)) {
+      setupStripedTunnel(clientSocket);
+      return;
+    }
+    if (null != muxLinkPool) {
+      setupMuxTunnel(clientSocket);
+      return;
+    }
     final int RETRY_MAX = 3;
     for (int i = 0; i < RETRY_MAX; i++) {
       Server server = loadBalancer.getServer();
@@ -316,12 +1101,82 @@ public class TcpProxyServer implements ServerWithStats {
     }
   }
 
+  /*
+   *  Stripes client connection across all healthy servers. Servers must be ssh tunnels to
+   *  a far-side TransferAccelerator running in far peer mode.
+   */
+  public void setupStripedTunnel(Socket clientSocket) {
+    setupStripedTunnel(clientSocket, null, null);
+  }
+
+  /*
+   *  @param initialData  Data we already read from client socket, or null.
+   *  @param finished     Runs once the session is closed, or null.
+   */
+  public void setupStripedTunnel(Socket clientSocket, byte[] initialData, Runnable finished) {
+    long sessionId = sessionIdGenerator.nextLong();
+    StripedSession session = null;
+    try {
+      session = StripedSession.connect(sessionId, clientSocket, serverList, config, compressor);
+    } catch (IOException ioe) {
+      LOG.error("Error while setting up striped session " + sessionId + ": " +
+                ioe.getMessage());
+      try {
+        clientSocket.close();
+      } catch (IOException e) {
+        LOG.debug("IO exception while closing striped session: " + e.getMessage());
+      }
+      if (null != finished) {
+        finished.run();
+      }
+      return;
+    }
+
+    LOG.debug("Striping client [" + clientSocket.getInetAddress().getHostAddress() + ":" +
+              clientSocket.getPort() + "] across all servers");
+    session.setInitialData(initialData);
+    session.setCloseHandler(finished);
+    // Http tunnel already counted connection of an upload it handed off to us.
+    session.setConnectionTable(connectionTable, clientSocket, null == initialData);
+    session.start();
+  }
+
+  /*
+   *  Carries client connection as a stream over one of persistent multiplexed peer links.
+   *  Servers must be ssh tunnels to a far-side TransferAccelerator running in far peer mode.
+   */
+  public void setupMuxTunnel(Socket clientSocket) {
+    final int RETRY_MAX = 3;
+    for (int i = 0; i < RETRY_MAX; i++) {
+      Server server = loadBalancer.getServer();
+      MuxLink link = muxLinkPool.getLink(server);
+      if (null == link) {
+        LOG.error("No open peer link through server " + server.hostPort);
+        continue;
+      }
+      try {
+        link.openStream(clientSocket);
+        return;
+      } catch (IOException ioe) {
+        LOG.error("Error while opening stream through server " + server.hostPort + ": " +
+                  ioe.getMessage());
+        server.incrementFailedConn();
+      }
+    }
+    try {
+      clientSocket.close();
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while closing client socket: " + ioe.getMessage());
+    }
+  }
+
   public void runListeningLoop() {
     while (!tcpProxyService.isClosed()) {
       try {
         Socket clientSocket = null;
         clientSocket = tcpProxyService.accept();
         if (null != clientSocket) {
+          config.listenerSocketProfile.apply(clientSocket, listenerAutoBufferBytes);
           setupTunnel(clientSocket);
         }
       } catch (IOException ioe) {
@@ -366,6 +1221,36 @@ public class TcpProxyServer implements ServerWithStats {
                                    .hasArg()
                                    .create('w'));
 
+    options.addOption(OptionBuilder.withLongOpt("stats_file")
+        .withArgName("PATH")
+        .withDescription("Publish bytes, connections and health of each server in this " +
+            "memory-mapped file ten times a second. Read it with " +
+            "com.altiscale.Util.StatsFileReader.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("event_log")
+        .withArgName("PATH")
+        .withDescription("Log each opened and closed tunneled connection as a JSON line in " +
+            "this file, written by its own thread.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("event_log_max_bytes")
+        .withArgName("BYTES")
+        .withDescription("Rotate event log once it has this many bytes, keeping 5 old ones. " +
+            "Default is " + ProxyConfiguration.defaultEventLogMaxBytes + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("history_seconds")
+        .withArgName("SECONDS")
+        .withDescription("Seconds of per-second byte rates and connections kept for " +
+            "/history and the status page chart. Zero disables it. Default is " +
+            ProxyConfiguration.defaultHistorySeconds + ".")
+        .hasArg()
+        .create());
+
     options.addOption(OptionBuilder.withLongOpt("servers")
                                    .withArgName("HOST1:PORT1> <HOST2:PORT2")
                                    .withDescription("Server/servers for the proxy to connect to" +
@@ -387,6 +1272,31 @@ public class TcpProxyServer implements ServerWithStats {
                                    .hasArg()
                                    .create('b'));
 
+    options.addOption(OptionBuilder.withLongOpt("avoid_write_stall_ratio")
+        .withArgName("RATIO")
+        .withDescription("Load balancers avoid servers where uploads spent at least this " +
+            "share (0 to 1) of their blocked time over the last minute writing into the " +
+            "tunnel rather than reading from clients. Zero, the default, disables it.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("listener_socket_options")
+        .withArgName("OPTIONS")
+        .withDescription("Socket options of client connections we accept, comma-separated " +
+            "rcvbuf=SIZE, sndbuf=SIZE, nodelay, keepalive and auto, e.g. rcvbuf=4m,nodelay. " +
+            "With auto we size buffers we don't set from measured throughput times round " +
+            "trip time. Default keeps OS defaults.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("server_socket_options")
+        .withArgName("OPTIONS1> <OPTIONS2")
+        .withDescription("Socket options of connections we open to servers, like " +
+            "listener_socket_options. Specify one for all servers or one per server.")
+        .hasArgs()
+        .withValueSeparator(' ')
+        .create());
+
     options.addOption(OptionBuilder.withLongOpt("ssh_binary")
         .withArgName("SSH_BINARY")
         .withDescription("Optional path to use as ssh command. Default is ssh.")
@@ -394,32 +1304,45 @@ public class TcpProxyServer implements ServerWithStats {
         .create());
 
     options.addOption(OptionBuilder.withLongOpt("jumphost_user")
-        .withArgName("USER")
-        .withDescription("Username for ssh to jumphost.")
-        .hasArg()
+        .withArgName("USER1> <USER2")
+        .withDescription("Username for ssh to jumphost. Specify one username for all " +
+            "jumphosts or one username per jumphost.")
+        .hasArgs()
+        .withValueSeparator(' ')
         .create('u'));
 
     options.addOption(OptionBuilder.withLongOpt("jumphost_credentials")
-        .withArgName("FILENAME")
-        .withDescription("Filename for optional ssh credentials (ssh -i option).")
-        .hasArg()
+        .withArgName("FILENAME1> <FILENAME2")
+        .withDescription("Filename for optional ssh credentials (ssh -i option). Specify one " +
+            "filename for all jumphosts or one filename per jumphost.")
+        .hasArgs()
+        .withValueSeparator(' ')
         .create('i'));
 
     options.addOption("C", "jumphost_compression", false, "Enable compression in ssh tunnels.");
 
     options.addOption(OptionBuilder.withLongOpt("jumphost_ciphers")
-        .withArgName("CIPHER_SPEC")
-        .withDescription("Select ciphers for ssh tunnel encryption (ssh -c option).")
-        .hasArg()
+        .withArgName("CIPHER_SPEC1> <CIPHER_SPEC2")
+        .withDescription("Select ciphers for ssh tunnel encryption (ssh -c option). Specify " +
+            "one cipher spec for all jumphosts or one cipher spec per jumphost.")
+        .hasArgs()
+        .withValueSeparator(' ')
         .create('c'));
 
     options.addOption(OptionBuilder.withLongOpt("jumphost")
-        .withArgName("JUMPHOST:JH_PORT")
-        .withDescription("Connect to servers via ssh tunnel to jumphost in jumphost:port format. " +
+        .withArgName("JUMPHOST1:JH_PORT1> <JUMPHOST2:JH_PORT2")
+        .withDescription("Connect to servers via ssh tunnels to jumphost/jumphosts in " +
+            "jumphost:port format. Servers are assigned to jumphosts in round-robin order. " +
             "You still need to specify servers and their ports using --servers.")
-        .hasArg()
+        .hasArgs()
+        .withValueSeparator(' ')
         .create('j'));
 
+    options.addOption(OptionBuilder.withLongOpt("balance_jumphosts")
+        .withDescription("Load balancer first picks a jumphost and then a server behind it, " +
+            "so load is spread across jumphosts before it is spread across tunnels.")
+        .create());
+
     options.addOption(OptionBuilder.withLongOpt("jumphost_server")
         .withArgName("JHSERVER:JHS_PORT")
         .withDescription("Jumphost server behind the firewall to connect all servers using: " +
@@ -432,13 +1355,252 @@ public class TcpProxyServer implements ServerWithStats {
         "Open all interfaces for ssh tunnel using \\* as bind_address: " +
         "SSH_BINARY \\*:PORT:JHSERVER:JHS_PORT");
 
+    options.addOption(OptionBuilder.withLongOpt("calibrate")
+        .withDescription("Before starting ssh tunnels, measure throughput of a short-lived " +
+            "ssh tunnel for each candidate cipher with and without compression, and use " +
+            "the fastest combination for each jumphost.")
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("calibration_ciphers")
+        .withArgName("CIPHER_SPEC1> <CIPHER_SPEC2")
+        .withDescription("Candidate cipher specs for calibration. Default is " +
+            Arrays.toString(ProxyConfiguration.defaultCalibrationCiphers) + ".")
+        .hasArgs()
+        .withValueSeparator(' ')
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("calibration_payload")
+        .withArgName("FILENAME")
+        .withDescription("File with sample payload we send through calibration tunnels, " +
+            "a raw http request the server answers with a sample file, for example a " +
+            "WebHDFS OPEN of a file of a few MB. Required with calibrate.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("calibration_port")
+        .withArgName("PORT")
+        .withDescription("Local port for calibration ssh tunnels. Default is " +
+            ProxyConfiguration.defaultCalibrationPort + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("calibration_interval")
+        .withArgName("SECONDS")
+        .withDescription("Re-run calibration with this period and restart ssh tunnels if " +
+            "it picks different settings. Default is 0, calibrate only at startup.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("http_mode")
+        .withDescription("Parse HTTP/1.x requests from clients and load balance each request " +
+            "separately, keeping server connections open between requests.")
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("ranged_open_min_bytes")
+        .withArgName("BYTES")
+        .withDescription("In http mode, fetch WebHDFS OPEN requests for at least this many " +
+            "bytes as ranges in parallel through all servers. Default is 0, disabled.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("ranged_open_chunk_bytes")
+        .withArgName("BYTES")
+        .withDescription("Size of ranges of parallel OPEN requests. Default is " +
+            ProxyConfiguration.defaultRangedOpenChunkBytes + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("ranged_open_reorder_bytes")
+        .withArgName("BYTES")
+        .withDescription("Max bytes of ranges fetched ahead of what we sent to client, per " +
+            "parallel OPEN request. Default is " +
+            ProxyConfiguration.defaultRangedOpenReorderBytes + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("metadata_cache_ttl")
+        .withArgName("SECONDS")
+        .withDescription("In http mode, answer WebHDFS GETFILESTATUS, LISTSTATUS and " +
+            "GETCONTENTSUMMARY requests from a cache of responses up to this old. Other " +
+            "WebHDFS requests invalidate cached responses for their paths. Default is 0, " +
+            "disabled.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("metadata_cache_bytes")
+        .withArgName("BYTES")
+        .withDescription("Memory for cached metadata responses, least recently used are " +
+            "evicted first. Default is " + ProxyConfiguration.defaultMetadataCacheBytes + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("block_cache_dir")
+        .withArgName("DIR")
+        .withDescription("In http mode, cache blocks of files read with WebHDFS OPEN in this " +
+            "directory and serve repeated reads from it. Blocks are checked against file " +
+            "modification time and length from GETFILESTATUS. Missing blocks of reads of at " +
+            "least ranged_open_min_bytes are fetched in parallel. Default is no cache.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("block_cache_bytes")
+        .withArgName("BYTES")
+        .withDescription("Disk space for cached blocks, least recently used are evicted " +
+            "first. Default is " + ProxyConfiguration.defaultBlockCacheBytes + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("block_cache_block_bytes")
+        .withArgName("BYTES")
+        .withDescription("Size of cached blocks. Default is " +
+            ProxyConfiguration.defaultBlockCacheBlockBytes + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("prefetch_max_bytes")
+        .withArgName("BYTES")
+        .withDescription("In http mode, when a client reads consecutive ranges of a file with " +
+            "WebHDFS OPEN, fetch the next range of up to this many bytes through an idle " +
+            "server before the client asks for it. Default is 0, disabled.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("prefetch_budget_bytes")
+        .withArgName("BYTES")
+        .withDescription("In http mode, ranges read ahead for all clients together take at " +
+            "most this many bytes of memory. Default is " +
+            ProxyConfiguration.defaultPrefetchBudgetBytes + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("backend_idle_timeout")
+        .withArgName("SECONDS")
+        .withDescription("In http mode, close server connections idle for this long. Default " +
+            "is " + ProxyConfiguration.defaultBackendIdleTimeoutSeconds + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("backend_max_idle")
+        .withArgName("NUM")
+        .withDescription("In http mode, keep at most this many idle connections per server. " +
+            "Default is " + ProxyConfiguration.defaultBackendMaxIdlePerServer + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("backend_max_requests")
+        .withArgName("NUM")
+        .withDescription("In http mode, close server connections after this many requests. " +
+            "Default is " + ProxyConfiguration.defaultBackendMaxRequests + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("download_resume_max")
+        .withArgName("NUM")
+        .withDescription("In http mode, when a server fails in the middle of a WebHDFS OPEN " +
+            "response, get the rest from another server, at most this many times per " +
+            "response. Zero disables it. Default is " +
+            ProxyConfiguration.defaultDownloadResumeMax + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("follow_redirects")
+        .withDescription("Follow WebHDFS redirects to datanodes ourselves and send client the " +
+            "final response, saving client a round trip. Use with http_mode, or on the far " +
+            "side of stripe peer mode, where it serves http requests on plain peer links.")
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("peer_mode")
+        .withArgName("PEER_MODE")
+        .withDescription("Run as one of a near/far pair of TransferAccelerator peers. " +
+            "Options: stripe (near side, stripe each client connection across all healthy " +
+            "servers, which must be tunnels to the far side), mux (near side, carry client " +
+            "connections as streams over persistent peer links through servers, which must be " +
+            "tunnels to the far side), far (far side, accept peer links and forward their " +
+            "streams to servers).")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("peer_frame_bytes")
+        .withArgName("BYTES")
+        .withDescription("Max payload size of frames sent to peer. Default is " +
+            ProxyConfiguration.defaultPeerFrameBytes + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("peer_reorder_bytes")
+        .withArgName("BYTES")
+        .withDescription("Memory cap for out-of-order frames per session and direction. " +
+            "Default is " + ProxyConfiguration.defaultPeerReorderBytes + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("peer_compression")
+        .withArgName("CODEC")
+        .withDescription("Compress data sent to the other peer. Options: lz4, deflate. " +
+            "Frames which don't compress are sent as they are.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("peer_compression_threads")
+        .withArgName("NUM")
+        .withDescription("Number of compression worker threads. Default is number of CPUs.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("peer_dedup")
+        .withDescription("Replace chunks the other peer already has with references on " +
+            "multiplexed peer links. Both peers need this flag.")
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("dedup_memory_bytes")
+        .withArgName("BYTES")
+        .withDescription("Memory for chunks received over each peer link. Default is " +
+            ProxyConfiguration.defaultDedupMemoryBytes + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("dedup_dir")
+        .withArgName("DIR")
+        .withDescription("Keep chunks received over each peer link in a memory-mapped file " +
+            "in this directory, with only recently used chunks in memory.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("dedup_disk_bytes")
+        .withArgName("BYTES")
+        .withDescription("Size of chunk file of each peer link. Default is " +
+            ProxyConfiguration.defaultDedupDiskBytes + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("mux_links_per_server")
+        .withArgName("NUM")
+        .withDescription("Number of persistent peer links per server in mux peer mode. " +
+            "Default is " + ProxyConfiguration.defaultMuxLinksPerServer + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("mux_window_bytes")
+        .withArgName("BYTES")
+        .withDescription("Max unacknowledged bytes per multiplexed stream and direction. " +
+            "Default is " + ProxyConfiguration.defaultMuxWindowBytes + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("mux_priority_bytes")
+        .withArgName("BYTES")
+        .withDescription("First bytes of each multiplexed stream are sent ahead of bulk " +
+            "transfers. Default is " + ProxyConfiguration.defaultMuxPriorityBytes + ".")
+        .hasArg()
+        .create());
+
     options.addOption(OptionBuilder.withLongOpt("help").create('h'));
 
     return options;
   }
 
   public void setLoadBalancer(LoadBalancer loadBalancer) {
-    this.loadBalancer = loadBalancer;
+    this.loadBalancer = new RecordedBalancer(loadBalancer);
   }
 
   public static void printHelp(Options options) {
@@ -486,16 +1648,33 @@ public class TcpProxyServer implements ServerWithStats {
       conf.statusPort =  Integer.parseInt(commandLine.getOptionValue("webstatus_port"));
     }
 
-    // Maybe add jumphost.
-    HostPort jumphostSshd = null;
+    if (commandLine.hasOption("history_seconds")) {
+      conf.historySeconds = Integer.parseInt(commandLine.getOptionValue("history_seconds"));
+    }
+
+    if (commandLine.hasOption("stats_file")) {
+      conf.statsFile = commandLine.getOptionValue("stats_file");
+    }
+
+    if (commandLine.hasOption("event_log")) {
+      conf.eventLog = commandLine.getOptionValue("event_log");
+    }
+
+    if (commandLine.hasOption("event_log_max_bytes")) {
+      conf.eventLogMaxBytes = Long.parseLong(commandLine.getOptionValue("event_log_max_bytes"));
+    }
+
+    // Maybe add jumphosts.
+    ArrayList<HostPort> jumphostSshdList = new ArrayList<HostPort>();
     if (commandLine.hasOption("jumphost")) {
-      String jumphostString = commandLine.getOptionValue("jumphost");
-      try {
-        jumphostSshd = conf.parseServerString(jumphostString);
-      } catch (URISyntaxException e) {
-        LOG.error("Server path parsing exception for jumphost: " + e.getMessage());
-        printHelp(options);
-        System.exit(1);
+      for (String jumphostString : commandLine.getOptionValues("jumphost")) {
+        try {
+          jumphostSshdList.add(conf.parseServerString(jumphostString));
+        } catch (URISyntaxException e) {
+          LOG.error("Server path parsing exception for jumphost: " + e.getMessage());
+          printHelp(options);
+          System.exit(1);
+        }
       }
     }
 
@@ -521,27 +1700,14 @@ public class TcpProxyServer implements ServerWithStats {
       }
     }
 
-    // Maybe add jumphostUser if we have a jumphost.
-    String jumphostUser = null;
-    if (commandLine.hasOption("jumphost_user")) {
-      if (!commandLine.hasOption("jumphost")) {
-        LOG.error("You need to specify jumphost if you specify jumphost_user.");
-        printHelp(options);
-        System.exit(1);
-      }
-      jumphostUser = commandLine.getOptionValue("jumphost_user");
-    }
+    // Maybe add jumphostUsers if we have a jumphost.
+    String[] jumphostUsers = getPerJumphostValues(commandLine, options, "jumphost_user",
+                                                  jumphostSshdList.size());
 
     // Maybe add jumphostCredentials if we have a jumphost.
-    String jumphostCredentials = null;
-    if (commandLine.hasOption("jumphost_credentials")) {
-      if (!commandLine.hasOption("jumphost")) {
-        LOG.error("You need to specify jumphost if you specify jumphost_credentials.");
-        printHelp(options);
-        System.exit(1);
-      }
-      jumphostCredentials = commandLine.getOptionValue("jumphost_credentials");
-    }
+    String[] jumphostCredentials = getPerJumphostValues(commandLine, options,
+                                                        "jumphost_credentials",
+                                                        jumphostSshdList.size());
 
     // Maybe set jumphostCompression if we have a jumphost.
     boolean jumphostCompression = false;
@@ -555,15 +1721,8 @@ public class TcpProxyServer implements ServerWithStats {
     }
 
     // Maybe add jumphostCiphers if we have a jumphost.
-    String jumphostCiphers = null;
-    if (commandLine.hasOption("jumphost_ciphers")) {
-      if (!commandLine.hasOption("jumphost")) {
-        LOG.error("You need to specify jumphost if you specify jumphost_ciphers.");
-        printHelp(options);
-        System.exit(1);
-      }
-      jumphostCiphers = commandLine.getOptionValue("jumphost_ciphers");
-    }
+    String[] jumphostCiphers = getPerJumphostValues(commandLine, options, "jumphost_ciphers",
+                                                    jumphostSshdList.size());
 
     // Maybe add sshBinary if we have a jumphost.
     String sshBinary = null;
@@ -580,13 +1739,56 @@ public class TcpProxyServer implements ServerWithStats {
       openInterfaces = true;
     }
 
-    // Add jumphost to the config.
-    if (null != jumphostSshd && null != jumphostServer) {
-      conf.jumphost = new JumpHost(jumphostSshd, jumphostServer,
-                                   jumphostUser, jumphostCredentials,
-                                   jumphostCompression, jumphostCiphers,
-                                   sshBinary,
-                                   openInterfaces);
+    // Add jumphosts to the config.
+    if (null != jumphostServer) {
+      for (int i = 0; i < jumphostSshdList.size(); i++) {
+        conf.jumphostList.add(new JumpHost(jumphostSshdList.get(i), jumphostServer,
+                                           jumphostUsers[i], jumphostCredentials[i],
+                                           jumphostCompression, jumphostCiphers[i],
+                                           sshBinary,
+                                           openInterfaces));
+      }
+    }
+
+    if (commandLine.hasOption("balance_jumphosts")) {
+      if (!commandLine.hasOption("jumphost")) {
+        LOG.error("You need to specify jumphost if you specify balance_jumphosts.");
+        printHelp(options);
+        System.exit(1);
+      }
+      conf.balanceJumphosts = true;
+    }
+
+    if (commandLine.hasOption("calibrate")) {
+      if (conf.jumphostList.isEmpty()) {
+        LOG.error("You need to specify jumphost and jumphost_server if you specify calibrate.");
+        printHelp(options);
+        System.exit(1);
+      }
+      if (!commandLine.hasOption("calibration_payload")) {
+        LOG.error("You need to specify calibration_payload if you specify calibrate, so we " +
+                  "measure requests the server really answers.");
+        printHelp(options);
+        System.exit(1);
+      }
+      conf.calibrate = true;
+      try {
+        if (commandLine.hasOption("calibration_ciphers")) {
+          conf.calibrationCiphers = commandLine.getOptionValues("calibration_ciphers");
+        }
+        conf.calibrationPayloadFile = commandLine.getOptionValue("calibration_payload");
+        if (commandLine.hasOption("calibration_port")) {
+          conf.calibrationPort = Integer.parseInt(commandLine.getOptionValue("calibration_port"));
+        }
+        if (commandLine.hasOption("calibration_interval")) {
+          conf.calibrationIntervalSeconds =
+              Long.parseLong(commandLine.getOptionValue("calibration_interval"));
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("Calibration option parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
     }
 
     if (!commandLine.hasOption("num_servers") && !commandLine.hasOption("servers")) {
@@ -631,6 +1833,210 @@ public class TcpProxyServer implements ServerWithStats {
       }
     }
 
+    if (commandLine.hasOption("http_mode")) {
+      if (commandLine.hasOption("peer_mode") &&
+          !"stripe".equals(commandLine.getOptionValue("peer_mode"))) {
+        LOG.error("You can specify http_mode only with stripe peer_mode.");
+        printHelp(options);
+        System.exit(1);
+      }
+      conf.httpMode = true;
+      try {
+        if (commandLine.hasOption("ranged_open_min_bytes")) {
+          conf.rangedOpenMinBytes =
+              Long.parseLong(commandLine.getOptionValue("ranged_open_min_bytes"));
+          if (conf.rangedOpenMinBytes < 0) {
+            throw new NumberFormatException("ranged_open_min_bytes out of range");
+          }
+        }
+        if (commandLine.hasOption("ranged_open_chunk_bytes")) {
+          conf.rangedOpenChunkBytes =
+              Integer.parseInt(commandLine.getOptionValue("ranged_open_chunk_bytes"));
+          if (conf.rangedOpenChunkBytes < 1) {
+            throw new NumberFormatException("ranged_open_chunk_bytes out of range");
+          }
+        }
+        if (commandLine.hasOption("ranged_open_reorder_bytes")) {
+          conf.rangedOpenReorderBytes =
+              Long.parseLong(commandLine.getOptionValue("ranged_open_reorder_bytes"));
+          if (conf.rangedOpenReorderBytes < 1) {
+            throw new NumberFormatException("ranged_open_reorder_bytes out of range");
+          }
+        }
+        if (commandLine.hasOption("metadata_cache_ttl")) {
+          conf.metadataCacheTtlSeconds =
+              Long.parseLong(commandLine.getOptionValue("metadata_cache_ttl"));
+          if (conf.metadataCacheTtlSeconds < 0) {
+            throw new NumberFormatException("metadata_cache_ttl out of range");
+          }
+        }
+        if (commandLine.hasOption("metadata_cache_bytes")) {
+          conf.metadataCacheBytes =
+              Long.parseLong(commandLine.getOptionValue("metadata_cache_bytes"));
+          if (conf.metadataCacheBytes < 1) {
+            throw new NumberFormatException("metadata_cache_bytes out of range");
+          }
+        }
+        if (commandLine.hasOption("block_cache_bytes")) {
+          conf.blockCacheBytes = Long.parseLong(commandLine.getOptionValue("block_cache_bytes"));
+          if (conf.blockCacheBytes < 1) {
+            throw new NumberFormatException("block_cache_bytes out of range");
+          }
+        }
+        if (commandLine.hasOption("block_cache_block_bytes")) {
+          conf.blockCacheBlockBytes =
+              Integer.parseInt(commandLine.getOptionValue("block_cache_block_bytes"));
+          if (conf.blockCacheBlockBytes < 1) {
+            throw new NumberFormatException("block_cache_block_bytes out of range");
+          }
+        }
+        if (commandLine.hasOption("backend_idle_timeout")) {
+          conf.backendIdleTimeoutSeconds =
+              Long.parseLong(commandLine.getOptionValue("backend_idle_timeout"));
+          if (conf.backendIdleTimeoutSeconds < 0) {
+            throw new NumberFormatException("backend_idle_timeout out of range");
+          }
+        }
+        if (commandLine.hasOption("backend_max_idle")) {
+          conf.backendMaxIdlePerServer =
+              Integer.parseInt(commandLine.getOptionValue("backend_max_idle"));
+          if (conf.backendMaxIdlePerServer < 0) {
+            throw new NumberFormatException("backend_max_idle out of range");
+          }
+        }
+        if (commandLine.hasOption("backend_max_requests")) {
+          conf.backendMaxRequests =
+              Long.parseLong(commandLine.getOptionValue("backend_max_requests"));
+          if (conf.backendMaxRequests < 1) {
+            throw new NumberFormatException("backend_max_requests out of range");
+          }
+        }
+        if (commandLine.hasOption("download_resume_max")) {
+          conf.downloadResumeMax =
+              Integer.parseInt(commandLine.getOptionValue("download_resume_max"));
+          if (conf.downloadResumeMax < 0) {
+            throw new NumberFormatException("download_resume_max out of range");
+          }
+        }
+        if (commandLine.hasOption("prefetch_max_bytes")) {
+          conf.prefetchMaxBytes = Long.parseLong(commandLine.getOptionValue("prefetch_max_bytes"));
+          if (conf.prefetchMaxBytes < 0 || conf.prefetchMaxBytes > Integer.MAX_VALUE) {
+            throw new NumberFormatException("prefetch_max_bytes out of range");
+          }
+        }
+        if (commandLine.hasOption("prefetch_budget_bytes")) {
+          conf.prefetchBudgetBytes =
+              Long.parseLong(commandLine.getOptionValue("prefetch_budget_bytes"));
+          if (conf.prefetchBudgetBytes < 0) {
+            throw new NumberFormatException("prefetch_budget_bytes out of range");
+          }
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("Http option parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+      if (commandLine.hasOption("block_cache_dir")) {
+        conf.blockCacheDirectory = commandLine.getOptionValue("block_cache_dir");
+        if (!new File(conf.blockCacheDirectory).isDirectory()) {
+          LOG.error("Bad block_cache_dir value, not a directory.");
+          printHelp(options);
+          System.exit(1);
+        }
+      }
+    }
+
+    // Maybe set peer mode.
+    if (commandLine.hasOption("peer_mode")) {
+      HashSet<String> peerModes = new HashSet<String>(Arrays.asList("stripe", "mux", "far"));
+      conf.peerMode = commandLine.getOptionValue("peer_mode");
+      if (!peerModes.contains(conf.peerMode)) {
+        LOG.error("Bad peer_mode value.");
+        printHelp(options);
+        System.exit(1);
+      }
+      try {
+        if (commandLine.hasOption("peer_frame_bytes")) {
+          conf.peerFrameBytes = Integer.parseInt(commandLine.getOptionValue("peer_frame_bytes"));
+          if (conf.peerFrameBytes < 1 || conf.peerFrameBytes > PeerProtocol.MAX_FRAME_BYTES) {
+            throw new NumberFormatException("peer_frame_bytes out of range");
+          }
+        }
+        if (commandLine.hasOption("peer_reorder_bytes")) {
+          conf.peerReorderBytes = Long.parseLong(commandLine.getOptionValue("peer_reorder_bytes"));
+        }
+        if (commandLine.hasOption("peer_compression_threads")) {
+          conf.peerCompressionThreads =
+              Integer.parseInt(commandLine.getOptionValue("peer_compression_threads"));
+          if (conf.peerCompressionThreads < 1) {
+            throw new NumberFormatException("peer_compression_threads out of range");
+          }
+        }
+        if (commandLine.hasOption("dedup_memory_bytes")) {
+          conf.dedupMemoryBytes = Long.parseLong(commandLine.getOptionValue("dedup_memory_bytes"));
+          if (conf.dedupMemoryBytes < 1) {
+            throw new NumberFormatException("dedup_memory_bytes out of range");
+          }
+        }
+        if (commandLine.hasOption("dedup_disk_bytes")) {
+          conf.dedupDiskBytes = Long.parseLong(commandLine.getOptionValue("dedup_disk_bytes"));
+          if (conf.dedupDiskBytes < 1) {
+            throw new NumberFormatException("dedup_disk_bytes out of range");
+          }
+        }
+        if (commandLine.hasOption("mux_links_per_server")) {
+          conf.muxLinksPerServer =
+              Integer.parseInt(commandLine.getOptionValue("mux_links_per_server"));
+          if (conf.muxLinksPerServer < 1) {
+            throw new NumberFormatException("mux_links_per_server out of range");
+          }
+        }
+        if (commandLine.hasOption("mux_window_bytes")) {
+          conf.muxWindowBytes = Long.parseLong(commandLine.getOptionValue("mux_window_bytes"));
+          if (conf.muxWindowBytes < 1) {
+            throw new NumberFormatException("mux_window_bytes out of range");
+          }
+        }
+        if (commandLine.hasOption("mux_priority_bytes")) {
+          conf.muxPriorityBytes = Long.parseLong(commandLine.getOptionValue("mux_priority_bytes"));
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("Peer option parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+      if (commandLine.hasOption("peer_dedup")) {
+        conf.peerDedup = true;
+        if (commandLine.hasOption("dedup_dir")) {
+          conf.dedupDirectory = commandLine.getOptionValue("dedup_dir");
+          if (!new File(conf.dedupDirectory).isDirectory()) {
+            LOG.error("Bad dedup_dir value, not a directory.");
+            printHelp(options);
+            System.exit(1);
+          }
+        }
+      }
+      if (commandLine.hasOption("peer_compression")) {
+        conf.peerCompression = commandLine.getOptionValue("peer_compression");
+        if (null == FrameCompressor.getCodec(conf.peerCompression)) {
+          LOG.error("Bad peer_compression value.");
+          printHelp(options);
+          System.exit(1);
+        }
+      }
+    }
+
+    if (commandLine.hasOption("follow_redirects")) {
+      // Near side of a peer pair usually can't reach datanodes, far side follows redirects.
+      if (commandLine.hasOption("peer_mode") ? !"far".equals(conf.peerMode) : !conf.httpMode) {
+        LOG.error("You can specify follow_redirects only with http_mode without peer_mode, " +
+                  "or with far peer_mode.");
+        printHelp(options);
+        System.exit(1);
+      }
+      conf.followRedirects = true;
+    }
+
     // Maybe set load balancer.
     if (commandLine.hasOption("load_balancer")) {
       HashSet<String> loadBalancers = new HashSet<String>(
@@ -642,9 +2048,73 @@ public class TcpProxyServer implements ServerWithStats {
         System.exit(1);
       }
     }
+
+    if (commandLine.hasOption("avoid_write_stall_ratio")) {
+      try {
+        conf.avoidWriteStallRatio =
+            Double.parseDouble(commandLine.getOptionValue("avoid_write_stall_ratio"));
+        if (conf.avoidWriteStallRatio < 0 || conf.avoidWriteStallRatio > 1) {
+          throw new NumberFormatException("avoid_write_stall_ratio out of range");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("Load balancer option parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    try {
+      if (commandLine.hasOption("listener_socket_options")) {
+        conf.listenerSocketProfile =
+            SocketProfile.parse(commandLine.getOptionValue("listener_socket_options"));
+      }
+      if (commandLine.hasOption("server_socket_options")) {
+        String[] values = commandLine.getOptionValues("server_socket_options");
+        if (values.length != 1 && values.length != conf.serverHostPortList.size()) {
+          throw new IllegalArgumentException("specify one server_socket_options for all " +
+                                             "servers or one per server");
+        }
+        for (String value : values) {
+          conf.serverSocketProfiles.add(SocketProfile.parse(value));
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      LOG.error("Socket options parsing exception " + e.getMessage());
+      printHelp(options);
+      System.exit(1);
+    }
     return conf;
   }
 
+  /*
+   *  Returns values of a per-jumphost option. Option can have either one value which we use
+   *  for all jumphosts or exactly one value per jumphost. Array elements are null if option
+   *  is missing.
+   */
+  private static String[] getPerJumphostValues(CommandLine commandLine, Options options,
+                                               String option, int numJumphosts) {
+    String[] values = new String[numJumphosts];
+    if (!commandLine.hasOption(option)) {
+      return values;
+    }
+    if (!commandLine.hasOption("jumphost")) {
+      LOG.error("You need to specify jumphost if you specify " + option + ".");
+      printHelp(options);
+      System.exit(1);
+    }
+    String[] optionValues = commandLine.getOptionValues(option);
+    if (optionValues.length != 1 && optionValues.length != numJumphosts) {
+      LOG.error("You need to specify one " + option + " for all jumphosts or one per " +
+                "jumphost.");
+      printHelp(options);
+      System.exit(1);
+    }
+    for (int i = 0; i < numJumphosts; i++) {
+      values[i] = optionValues.length == 1 ? optionValues[0] : optionValues[i];
+    }
+    return values;
+  }
+
   public static String getProxyVersion() {
     String mvnPropsPath = "/META-INF/maven/com.altiscale/TransferAccelerator/pom.properties";
     Properties props = new Properties();
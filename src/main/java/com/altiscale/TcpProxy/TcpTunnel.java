@@ -22,11 +22,12 @@ import java.io.IOException;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.lang.Thread;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.util.ArrayList;
 
-import com.altiscale.Util.SecondMinuteHourCounter;
 import com.altiscale.TcpProxy.Server;
+import com.altiscale.Util.FlightEvents;
 
 /**
  * TcpTunnel is a class to handle data transfer between incomming-outgoing socket pairs (tunnels)
@@ -57,6 +58,34 @@ public class TcpTunnel {
 
   private Server server;
 
+  // When we started connecting to server, for latency and lifetime histograms.
+  private long startTime;
+
+  // Directions that are done. Once both are, connection lifetime and bytes are recorded.
+  private int finishedCnt;
+
+  // Live connections we are listed in, and our id there. Null if we aren't listed.
+  private ConnectionTable connectionTable;
+  private long id;
+
+  // Bytes per second in each direction, updated by connectionTable's sampler. Only the
+  // sampler writes these and the last byte counts it saw.
+  private volatile long clientRate;
+  private volatile long serverRate;
+  private long lastClientBytes;
+  private long lastServerBytes;
+  private long lastSampleTime;
+
+  // Bytes both ways we already counted for our client in connectionTable's top clients.
+  private long reportedBytes;
+
+  // Microseconds we were blocked, indexed like Server.blockedMicrosCnt, that we already
+  // added to server's counters.
+  private long[] reportedBlockedMicros = new long[Server.BLOCKED_NAMES.length];
+
+  // Flight recorder event that lasts as long as we do.
+  private FlightEvents.Tunnel event;
+
   // We are just a proxy. We create two pipes, proxy all data and whoever closes the
   // connection first our job is to simply close the other end as well.
   protected class OneDirectionTunnel implements Runnable {
@@ -66,7 +95,12 @@ public class TcpTunnel {
     private Socket sourceSocket;
     private Socket destinationSocket;
 
-    private SecondMinuteHourCounter byteRateCnt;
+    // Bytes we tunneled. Only our thread writes it, so counting takes no lock.
+    private volatile long byteCnt;
+
+    // Nanoseconds we were blocked reading from source and writing to destination.
+    private volatile long readNanos;
+    private volatile long writeNanos;
 
     private Server proxyServer;
 
@@ -86,7 +120,7 @@ public class TcpTunnel {
       thread = null;
       sourceSocket = source;
       destinationSocket = destination;
-      byteRateCnt = new SecondMinuteHourCounter(name + " byteRateCnt");
+      byteCnt = 0;
       this.proxyServer = proxyServer;
     }
 
@@ -97,7 +131,9 @@ public class TcpTunnel {
      */
     public Thread start() {
       assert null == thread;  // we should never call this method twice.
-      LOG.debug("Starting thread [" + threadName + "]");
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Starting thread [" + threadName + "]");
+      }
       thread = new Thread(this, threadName);
       thread.start();
       return thread;
@@ -115,28 +151,40 @@ public class TcpTunnel {
         output = new DataOutputStream(destinationSocket.getOutputStream());
       } catch (IOException ioe) {
         LOG.error("Could not open input or output stream.");
+        finished(proxyServer);
         return;
       }
       proxyServer.incrementOpenedConn();
       int cnt = 0;
       byte[] buffer = new byte[1024 * 8];  // 8KB buffer.
+      boolean firstByteSent = false;
       try {
         do {
 
           // Read some data.
+          long readStart = System.nanoTime();
           cnt = input.read(buffer);
+          long writeStart = System.nanoTime();
+          readNanos += writeStart - readStart;
 
           if (cnt > 0) {
             output.write(buffer, 0, cnt);
+            if (!firstByteSent && destinationSocket == clientSocket) {
+              proxyServer.firstByteMillis.record(System.currentTimeMillis() - startTime);
+              firstByteSent = true;
+            }
 
             // NOTE: if this becomes expensive, we can increment counter and flush less often.
-            byteRateCnt.incrementBy(cnt);
+            byteCnt += cnt;
             proxyServer.incrementByteRateBy(cnt);
             output.flush();
+            writeNanos += System.nanoTime() - writeStart;
           }
         } while (cnt >= 0);
       } catch (IOException ioe) {
-        LOG.debug("Closing socket after IO exception while reading: " + ioe.getMessage());
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Closing socket after IO exception while reading: " + ioe.getMessage());
+        }
       }
       // Either the input stream is closed or we got an exception. Either way, close the
       // sockets since we're done with this tunnel.
@@ -148,9 +196,14 @@ public class TcpTunnel {
             "]: " + ioe.getMessage());
       }
 
-      LOG.debug(byteRateCnt.toString());
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(threadName + " bytes: " + byteCnt);
+      }
+      finished(proxyServer);
 
-      LOG.debug("Exiting thread [" + threadName + "]");
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Exiting thread [" + threadName + "]");
+      }
     }
 
     public void closeConnection() throws IOException {
@@ -171,18 +224,166 @@ public class TcpTunnel {
    */
   public TcpTunnel(Socket client, Socket server,
                    Server proxyServer) {
+    this(client, server, proxyServer, System.currentTimeMillis());
+  }
+
+  /*
+   *  @param  startTime  When we started connecting to server.
+   */
+  public TcpTunnel(Socket client, Socket server, Server proxyServer, long startTime) {
     clientSocket = client;
     serverSocket = server;
+    this.server = proxyServer;
+    this.startTime = startTime;
+    finishedCnt = 0;
+    connectionTable = proxyServer.getConnectionTable();
+    lastSampleTime = startTime;
+    event = new FlightEvents.Tunnel();
+    event.begin();
 
     // Create two one-directional tunnels to connect both pipes.
     clientServer = new OneDirectionTunnel(clientSocket, serverSocket, "clientServer", proxyServer);
     serverClient = new OneDirectionTunnel(serverSocket, clientSocket, "serverClient", proxyServer);
   }
 
+  /*
+   *  Records lifetime and bytes of connection once both directions are done.
+   */
+  private synchronized void finished(Server proxyServer) {
+    finishedCnt++;
+    if (finishedCnt == 2) {
+      reportBlocked();
+      proxyServer.lifetimeMillis.record(System.currentTimeMillis() - startTime);
+      proxyServer.connectionBytes.record(getClientBytes() + getServerBytes());
+      if (event.shouldCommit()) {
+        event.client = getClientAddress();
+        event.server = server.hostPort.toString();
+        event.bytesFromClient = getClientBytes();
+        event.bytesToClient = getServerBytes();
+        event.commit();
+      }
+      if (null != connectionTable) {
+        connectionTable.remove(this);
+      }
+    }
+  }
+
+  long getId() {
+    return id;
+  }
+
+  Server getServer() {
+    return server;
+  }
+
+  String getClientAddress() {
+    return clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
+  }
+
+  InetAddress getClientInetAddress() {
+    return clientSocket.getInetAddress();
+  }
+
+  int getClientPort() {
+    return clientSocket.getPort();
+  }
+
+  String getClientHost() {
+    return clientSocket.getInetAddress().getHostAddress();
+  }
+
+  long getStartTime() {
+    return startTime;
+  }
+
+  long getClientBytes() {
+    return clientServer.byteCnt;
+  }
+
+  long getServerBytes() {
+    return serverClient.byteCnt;
+  }
+
+  long getClientRate() {
+    return clientRate;
+  }
+
+  long getServerRate() {
+    return serverRate;
+  }
+
+  /*
+   *  Updates rates with bytes tunneled since the last time we were called.
+   */
+  void sampleRates(long now) {
+    long elapsed = now - lastSampleTime;
+    if (elapsed <= 0) {
+      return;
+    }
+    long clientBytes = getClientBytes();
+    long serverBytes = getServerBytes();
+    clientRate = (clientBytes - lastClientBytes) * 1000 / elapsed;
+    serverRate = (serverBytes - lastServerBytes) * 1000 / elapsed;
+    lastClientBytes = clientBytes;
+    lastServerBytes = serverBytes;
+    lastSampleTime = now;
+  }
+
+  /*
+   *  @return  Bytes both ways tunneled since the last time we were called. Called by sampler
+   *           and once we are finished, so it's synchronized.
+   */
+  synchronized long takeUnreportedBytes() {
+    long bytes = getClientBytes() + getServerBytes();
+    long unreported = bytes - reportedBytes;
+    reportedBytes = bytes;
+    return unreported;
+  }
+
+  /*
+   *  @return  Microseconds we were blocked so far, indexed like Server.blockedMicrosCnt.
+   */
+  long[] getBlockedMicros() {
+    return new long[] {clientServer.readNanos / 1000, clientServer.writeNanos / 1000,
+                       serverClient.readNanos / 1000, serverClient.writeNanos / 1000};
+  }
+
+  /*
+   *  Adds time we were blocked since the last time we were called to server's counters.
+   *  Called by sampler and once we are finished, so it's synchronized.
+   */
+  synchronized void reportBlocked() {
+    long[] blocked = getBlockedMicros();
+    long[] delta = new long[blocked.length];
+    for (int i = 0; i < blocked.length; i++) {
+      delta[i] = blocked[i] - reportedBlockedMicros[i];
+      reportedBlockedMicros[i] = blocked[i];
+    }
+    server.addBlockedMicros(delta);
+  }
+
+  /*
+   *  @return  What limits our transfer: "client", "tunnel" or "server". Direction that
+   *           carried more bytes decides. Uploads are limited by client if we waited more to
+   *           read from it than to write into tunnel, and by tunnel otherwise. Downloads are
+   *           limited by client if we waited more to write to it, and by server otherwise; a
+   *           slow tunnel back from server looks like a slow server.
+   */
+  String getLimitedBy() {
+    long[] blocked = getBlockedMicros();
+    if (getClientBytes() > getServerBytes()) {
+      return blocked[Server.TUNNEL_WRITE] > blocked[Server.CLIENT_READ] ? "tunnel" : "client";
+    }
+    return blocked[Server.CLIENT_WRITE] > blocked[Server.SERVER_READ] ? "client" : "server";
+  }
+
   /*
    *  Starts data tunneling in two OneDirectionTunnel threads.
    */
   public void spawnTunnelThreads() {
+    if (null != connectionTable) {
+      id = connectionTable.add(this);
+    }
     // Start both of them in their own threads.
     clientServer.start();
     serverClient.start();
@@ -0,0 +1,24 @@
+/**
+ * Copyright 2014 Altiscale <cosmin@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+class AltiTimer {
+  /** This class wraps System.currentTimeMillis. It's useful for testing. */
+  public long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.util.Random;
+
+/**
+ * ContentChunker cuts data into content-defined chunks using a gear rolling hash: a chunk ends
+ * where the hash of the last few dozen bytes matches a bit mask. Boundaries depend only on
+ * nearby content, so inserting or removing bytes in a file only changes the chunks around the
+ * edit, and the rest of the file produces the same chunks as before.
+ */
+public class ContentChunker {
+  // Random values for each byte value. Fixed seed, so chunk boundaries are the same in every
+  // run of TransferAccelerator.
+  private static final long[] GEAR = new long[256];
+  static {
+    Random random = new Random(0x54414343L);
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextLong();
+    }
+  }
+
+  private int minChunkBytes;
+  private int maxChunkBytes;
+
+  // Chunk ends where hash & mask is zero. Mask has log2(average chunk size) top bits set,
+  // since top bits of gear hash depend on the most bytes.
+  private long mask;
+
+  /*
+   *  @param minChunkBytes  Chunks are at least this long, except the last one.
+   *  @param avgChunkBytes  Expected chunk size, rounded down to a power of two.
+   *  @param maxChunkBytes  Chunks are cut at this length if we don't find a boundary sooner.
+   */
+  public ContentChunker(int minChunkBytes, int avgChunkBytes, int maxChunkBytes) {
+    if (minChunkBytes < 1 || avgChunkBytes < minChunkBytes || maxChunkBytes < avgChunkBytes) {
+      throw new IllegalArgumentException("Bad chunk sizes " + minChunkBytes + " " +
+                                         avgChunkBytes + " " + maxChunkBytes);
+    }
+    this.minChunkBytes = minChunkBytes;
+    this.maxChunkBytes = maxChunkBytes;
+    int bits = 31 - Integer.numberOfLeadingZeros(avgChunkBytes - minChunkBytes + 1);
+    this.mask = bits == 0 ? 0 : -1L << (64 - bits);
+  }
+
+  public int getMaxChunkBytes() {
+    return maxChunkBytes;
+  }
+
+  /*
+   *  Where we are in a chunk that goes on past data we have seen so far, so chunks of a stream
+   *  we get in pieces end at the same places as if we had it all at once.
+   */
+  public static class State {
+    // Bytes of current chunk so far, and gear hash of them.
+    int chunkBytes;
+    long hash;
+  }
+
+  /*
+   *  @return  Length of the first chunk of data[offset, offset + length).
+   */
+  public int nextChunkLength(byte[] data, int offset, int length) {
+    int end = findChunkEnd(new State(), data, offset, length);
+    return end < 0 ? length : end;
+  }
+
+  /*
+   *  Continues chunk of state with data[offset, offset + length).
+   *
+   *  @return  Bytes of data up to the end of the chunk, after which state starts a new one, or
+   *           -1 if the chunk goes on past data.
+   */
+  public int findChunkEnd(State state, byte[] data, int offset, int length) {
+    for (int i = 0; i < length; i++) {
+      state.chunkBytes++;
+      boolean boundary = false;
+      if (state.chunkBytes > minChunkBytes) {
+        state.hash = (state.hash << 1) + GEAR[data[offset + i] & 0xff];
+        boundary = (state.hash & mask) == 0;
+      }
+      if (boundary || state.chunkBytes >= maxChunkBytes) {
+        state.chunkBytes = 0;
+        state.hash = 0;
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+}
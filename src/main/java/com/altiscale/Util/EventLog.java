@@ -0,0 +1,233 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * EventLog writes one JSON line per connection event (open and close, with client, server,
+ * bytes and duration) to a file, without making connection threads wait for the disk.
+ *
+ * Threads that log only claim a slot in a ring we allocate up front and copy numbers and
+ * references they already have into it, so logging allocates nothing and takes no lock. A
+ * writer thread formats slots and writes them out, and rotates the file once it reaches
+ * maxBytes, keeping FILES old ones as file.1 (newest) up to file.FILES. When the writer falls
+ * behind by a whole ring, we drop events and count them instead of waiting.
+ */
+public class EventLog {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  public static final int OPEN = 0;
+  public static final int CLOSE = 1;
+  private static final String[] EVENT_NAMES = {"open", "close"};
+
+  static final int FILES = 5;
+  static final long WRITE_INTERVAL_MILLIS = 100;
+
+  // Slot i holds event with sequence number published[i] once it's complete.
+  private final int capacity;
+  private final AtomicLongArray published;
+  private final int[] types;
+  private final long[] times;
+  private final long[] ids;
+  private final InetAddress[] clientAddresses;
+  private final int[] clientPorts;
+  private final Object[] servers;
+  private final long[] bytesFromClient;
+  private final long[] bytesToClient;
+  private final long[] durations;
+
+  // Sequence number of next event we log and of next event writer writes.
+  private final AtomicLong next;
+  private final AtomicLong written;
+  private final AtomicLong droppedCnt;
+  // Dropped events we already wrote a line about.
+  private long reportedDroppedCnt;
+
+  private File file;
+  private long maxBytes;
+  private Writer writer;
+  private long fileBytes;
+
+  /*
+   *  @param file      File we write to.
+   *  @param maxBytes  Size after which we rotate file.
+   *  @param capacity  Events that fit in the ring.
+   */
+  public EventLog(File file, long maxBytes, int capacity) {
+    this.file = file;
+    this.maxBytes = maxBytes;
+    this.capacity = capacity;
+    published = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      published.set(i, -1);
+    }
+    types = new int[capacity];
+    times = new long[capacity];
+    ids = new long[capacity];
+    clientAddresses = new InetAddress[capacity];
+    clientPorts = new int[capacity];
+    servers = new Object[capacity];
+    bytesFromClient = new long[capacity];
+    bytesToClient = new long[capacity];
+    durations = new long[capacity];
+    next = new AtomicLong(0);
+    written = new AtomicLong(0);
+    droppedCnt = new AtomicLong(0);
+  }
+
+  /*
+   *  Logs an event. Server is formatted with toString() by writer thread, so it must not
+   *  change. Never blocks.
+   *
+   *  @return  False if ring was full and we dropped event.
+   */
+  public boolean log(int type, long id, InetAddress clientAddress, int clientPort,
+                     Object server, long fromClient, long toClient, long durationMillis) {
+    long sequence;
+    do {
+      sequence = next.get();
+      if (sequence - written.get() >= capacity) {
+        droppedCnt.incrementAndGet();
+        return false;
+      }
+    } while (!next.compareAndSet(sequence, sequence + 1));
+    int slot = (int) (sequence % capacity);
+    types[slot] = type;
+    times[slot] = System.currentTimeMillis();
+    ids[slot] = id;
+    clientAddresses[slot] = clientAddress;
+    clientPorts[slot] = clientPort;
+    servers[slot] = server;
+    bytesFromClient[slot] = fromClient;
+    bytesToClient[slot] = toClient;
+    durations[slot] = durationMillis;
+    // Volatile write, so writer sees all of the above once it sees this.
+    published.set(slot, sequence);
+    return true;
+  }
+
+  public long getDroppedCnt() {
+    return droppedCnt.get();
+  }
+
+  /*
+   *  Opens file and starts writer thread.
+   */
+  public void start() throws IOException {
+    openFile();
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          try {
+            Thread.sleep(WRITE_INTERVAL_MILLIS);
+          } catch (InterruptedException e) {
+            return;
+          }
+          try {
+            writeEvents();
+          } catch (IOException ioe) {
+            LOG.error("IO exception while writing event log " + file + ": " + ioe.getMessage());
+          }
+        }
+      }
+    }, "EventLog writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void openFile() throws IOException {
+    writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                                                       "UTF-8"));
+    fileBytes = file.length();
+  }
+
+  /*
+   *  Moves file to file.1, file.1 to file.2 and so on, dropping the oldest.
+   */
+  private void rotate() throws IOException {
+    writer.close();
+    new File(file.getPath() + "." + FILES).delete();
+    for (int i = FILES - 1; i >= 1; i--) {
+      new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+    }
+    file.renameTo(new File(file.getPath() + ".1"));
+    openFile();
+  }
+
+  /*
+   *  Writes all events logged so far. Only writer thread calls it, and tests.
+   */
+  synchronized void writeEvents() throws IOException {
+    StringBuilder line = new StringBuilder();
+    long sequence = written.get();
+    while (true) {
+      int slot = (int) (sequence % capacity);
+      if (published.get(slot) != sequence) {
+        // Not logged yet, or still being copied in.
+        break;
+      }
+      line.setLength(0);
+      line.append("{\"time\":").append(times[slot])
+          .append(",\"event\":\"").append(EVENT_NAMES[types[slot]])
+          .append("\",\"id\":").append(ids[slot])
+          .append(",\"client\":");
+      String client = null == clientAddresses[slot] ? "" :
+          clientAddresses[slot].getHostAddress() + ":" + clientPorts[slot];
+      StatsSnapshot.appendJsonString(line, client);
+      line.append(",\"server\":");
+      StatsSnapshot.appendJsonString(line, String.valueOf(servers[slot]));
+      if (CLOSE == types[slot]) {
+        line.append(",\"bytesFromClient\":").append(bytesFromClient[slot])
+            .append(",\"bytesToClient\":").append(bytesToClient[slot])
+            .append(",\"durationMillis\":").append(durations[slot]);
+      }
+      line.append("}\n");
+      // Let go of references, so the ring doesn't keep them alive.
+      clientAddresses[slot] = null;
+      servers[slot] = null;
+      sequence++;
+      written.set(sequence);
+
+      if (fileBytes > 0 && fileBytes + line.length() > maxBytes) {
+        rotate();
+      }
+      writer.write(line.toString());
+      fileBytes += line.length();
+    }
+    long dropped = droppedCnt.get() - reportedDroppedCnt;
+    if (dropped > 0) {
+      reportedDroppedCnt += dropped;
+      String droppedLine = "{\"time\":" + System.currentTimeMillis() +
+                           ",\"event\":\"dropped\",\"count\":" + dropped + "}\n";
+      writer.write(droppedLine);
+      fileBytes += droppedLine.length();
+    }
+    writer.flush();
+  }
+}
@@ -81,6 +81,17 @@ public class ExecLoop implements Runnable {
     return shouldRestart;
   }
 
+  /*
+   *  Sets command we run on next (re)start. Call stop() to restart current process with it.
+   */
+  public synchronized void setCommand(String command) {
+    this.command = command;
+  }
+
+  public synchronized String getCommand() {
+    return command;
+  }
+
   /*
   *  Method to create new thread which will exec(command).
   *
@@ -99,12 +110,18 @@ public class ExecLoop implements Runnable {
     assert null == execProcess;
 
     while (shouldRestart()) {
+      String command = getCommand();
+      FlightEvents.CommandRun event = new FlightEvents.CommandRun();
+      event.begin();
       try {
         execProcess = Runtime.getRuntime().exec(command);
         setIsRunning(true);
         LOG.info("Executed command: [" + command + "]");
-        execProcess.waitFor();
+        event.exitValue = execProcess.waitFor();
         setIsRunning(false);
+        event.command = command;
+        event.willRestart = shouldRestart();
+        event.commit();
         TimeUnit.MILLISECONDS.sleep(waitMilliseconds);
       } catch (IOException ioe) {
         LOG.error("Failed to execute command [" + command + "]: " + ioe.getMessage());
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * FlightEvents are Java Flight Recorder events of TransferAccelerator, so a recording shows
+ * tunnels, server connects, load balancer picks and ssh restarts next to GC and CPU.
+ *
+ * When a recording doesn't enable an event, begin() and commit() return right away and an
+ * event costs just a small object. We fill in fields only once shouldCommit() says the event
+ * will be recorded, so disabled events build no strings. None of them take stack traces, that
+ * would cost more than the events themselves.
+ */
+public class FlightEvents {
+  @Name("com.altiscale.Tunnel")
+  @Label("Tunnel")
+  @Category("TransferAccelerator")
+  @Description("Tunneled client connection, from connecting to server until both sides close.")
+  @StackTrace(false)
+  public static class Tunnel extends Event {
+    @Label("Client")
+    public String client;
+
+    @Label("Server")
+    public String server;
+
+    @Label("Bytes From Client")
+    @DataAmount
+    public long bytesFromClient;
+
+    @Label("Bytes To Client")
+    @DataAmount
+    public long bytesToClient;
+  }
+
+  @Name("com.altiscale.Connect")
+  @Label("Server Connect")
+  @Category("TransferAccelerator")
+  @Description("Attempt to open a connection to a server.")
+  @StackTrace(false)
+  public static class Connect extends Event {
+    @Label("Server")
+    public String server;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+
+    @Label("Error")
+    public String error;
+  }
+
+  @Name("com.altiscale.Balance")
+  @Label("Load Balancer Pick")
+  @Category("TransferAccelerator")
+  @Description("Server the load balancer picked.")
+  @StackTrace(false)
+  public static class Balance extends Event {
+    @Label("Load Balancer")
+    public String balancer;
+
+    @Label("Server")
+    public String server;
+  }
+
+  @Name("com.altiscale.CommandRun")
+  @Label("Command Run")
+  @Category("TransferAccelerator")
+  @Description("Run of a command ExecLoop keeps restarting, such as an ssh tunnel.")
+  @StackTrace(false)
+  public static class CommandRun extends Event {
+    @Label("Command")
+    public String command;
+
+    @Label("Exit Value")
+    public int exitValue;
+
+    @Label("Will Restart")
+    public boolean willRestart;
+  }
+
+  @Name("com.altiscale.ServerRate")
+  @Label("Server Rate")
+  @Category("TransferAccelerator")
+  @Description("Bytes per second and open connections of a server.")
+  @StackTrace(false)
+  @Period("1 s")
+  public static class ServerRate extends Event {
+    @Label("Server")
+    public String server;
+
+    @Label("Bytes Per Second")
+    @DataAmount
+    public long bytesPerSecond;
+
+    @Label("Open Connections")
+    public long openConnections;
+
+    @Label("Failed Connections Per Second")
+    public long failedPerSecond;
+
+    @Label("Healthy")
+    public boolean healthy;
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HeavyHitters finds keys (client addresses for example) with the highest counts over a
+ * sliding window, in fixed memory however many distinct keys there are.
+ *
+ * Each of SLOTS slots of the window is a Space-Saving sketch of capacity counters. A key we
+ * don't have a counter for takes over the counter with the smallest count and starts from that
+ * count, remembering it as its error. Any key with more than 1/capacity of the slot's total is
+ * guaranteed to have a counter, and counts are never more than error too high. The top of the
+ * window adds up slots; a key missing from a full slot may have had up to that slot's smallest
+ * count there, which we add to its error.
+ */
+public class HeavyHitters {
+  static final int SLOTS = 6;
+
+  /*
+   *  Estimated count of a key. Real count is between count - error and count.
+   */
+  public static class Entry {
+    public final String key;
+    public final long count;
+    public final long error;
+
+    Entry(String key, long count, long error) {
+      this.key = key;
+      this.count = count;
+      this.error = error;
+    }
+  }
+
+  /*
+   *  Space-Saving sketch of one slot.
+   */
+  private static class Sketch {
+    HashMap<String, long[]> counters = new HashMap<String, long[]>();
+    long interval = -1;
+
+    void add(String key, long amount, int capacity) {
+      long[] counter = counters.get(key);
+      if (null == counter) {
+        if (counters.size() < capacity) {
+          counter = new long[] {0, 0};
+        } else {
+          String minKey = getMinKey();
+          counter = counters.remove(minKey);
+          // Count of key we replace is the most new key could have had.
+          counter[1] = counter[0];
+        }
+        counters.put(key, counter);
+      }
+      counter[0] += amount;
+    }
+
+    String getMinKey() {
+      String minKey = null;
+      long min = Long.MAX_VALUE;
+      for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+        if (entry.getValue()[0] < min) {
+          min = entry.getValue()[0];
+          minKey = entry.getKey();
+        }
+      }
+      return minKey;
+    }
+  }
+
+  private String name;
+  private AltiTimer timer;
+  private int capacity;
+  private long slotMillis;
+  private Sketch[] slots;
+
+  /*
+   *  @param name          Human-readable name.
+   *  @param capacity      Counters per slot, keys we can tell apart.
+   *  @param windowMillis  Length of the window, a multiple of SLOTS.
+   */
+  public HeavyHitters(String name, int capacity, long windowMillis) {
+    this(new AltiTimer(), name, capacity, windowMillis);
+  }
+
+  /*
+   *  Handy constructor to use in tests when we want to use custom timer.
+   */
+  HeavyHitters(AltiTimer timer, String name, int capacity, long windowMillis) {
+    this.name = name;
+    this.timer = timer;
+    this.capacity = capacity;
+    this.slotMillis = windowMillis / SLOTS;
+    this.slots = new Sketch[SLOTS];
+    for (int i = 0; i < SLOTS; i++) {
+      slots[i] = new Sketch();
+    }
+  }
+
+  public synchronized void add(String key, long amount) {
+    long interval = timer.currentTimeMillis() / slotMillis;
+    Sketch slot = slots[(int) (interval % SLOTS)];
+    if (slot.interval != interval) {
+      slot.counters.clear();
+      slot.interval = interval;
+    }
+    slot.add(key, amount, capacity);
+  }
+
+  /*
+   *  @return  At most n keys with highest counts in the window, highest first.
+   */
+  public synchronized ArrayList<Entry> getTop(int n) {
+    long interval = timer.currentTimeMillis() / slotMillis;
+    HashMap<String, long[]> merged = new HashMap<String, long[]>();
+    ArrayList<Sketch> current = new ArrayList<Sketch>();
+    for (Sketch slot : slots) {
+      if (slot.interval > interval - SLOTS) {
+        current.add(slot);
+      }
+    }
+    for (Sketch slot : current) {
+      for (Map.Entry<String, long[]> entry : slot.counters.entrySet()) {
+        long[] total = merged.get(entry.getKey());
+        if (null == total) {
+          total = new long[] {0, 0};
+          merged.put(entry.getKey(), total);
+        }
+        total[0] += entry.getValue()[0];
+        total[1] += entry.getValue()[1];
+      }
+    }
+    for (Sketch slot : current) {
+      if (slot.counters.size() < capacity) {
+        // Slot counted every key it saw exactly.
+        continue;
+      }
+      long min = slot.counters.get(slot.getMinKey())[0];
+      for (Map.Entry<String, long[]> entry : merged.entrySet()) {
+        if (!slot.counters.containsKey(entry.getKey())) {
+          entry.getValue()[0] += min;
+          entry.getValue()[1] += min;
+        }
+      }
+    }
+    ArrayList<Entry> top = new ArrayList<Entry>();
+    for (Map.Entry<String, long[]> entry : merged.entrySet()) {
+      top.add(new Entry(entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+    }
+    Collections.sort(top, new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+        return a.count > b.count ? -1 : (a.count == b.count ? a.key.compareTo(b.key) : 1);
+      }
+    });
+    return new ArrayList<Entry>(top.subList(0, Math.min(n, top.size())));
+  }
+
+  public String getName() {
+    return name;
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import org.apache.log4j.Logger;
+
+/**
+ * History keeps one value per second of a fixed set of series (byte rates, open connections,
+ * ...) for the last seconds, so we can tell what happened twenty minutes ago and not only
+ * how much happened in the last hour.
+ *
+ * Rows live in one array we allocate up front and overwrite in a ring. A thread asks Sampler
+ * for a row once a second and copies it in, so recording allocates nothing and doesn't depend
+ * on how often anybody reads history. Readers copy what they need under the same lock.
+ */
+public class History {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  static final long INTERVAL_MILLIS = 1000;
+
+  /*
+   *  Fills in values of all series for the second that just ended.
+   */
+  public interface Sampler {
+    public void sample(long[] row);
+  }
+
+  private String[] names;
+  private int seconds;
+  // Row i is values[i * names.length ...], and times[i] is its second since the epoch.
+  private long[] values;
+  private long[] times;
+  // Row we write next, and number of rows we have.
+  private int next;
+  private int size;
+
+  /*
+   *  @param names    Names of series, in order Sampler fills them in.
+   *  @param seconds  Seconds of history we keep.
+   */
+  public History(String[] names, int seconds) {
+    this.names = names;
+    this.seconds = seconds;
+    values = new long[seconds * names.length];
+    times = new long[seconds];
+    next = 0;
+    size = 0;
+  }
+
+  public String[] getNames() {
+    return names;
+  }
+
+  /*
+   *  Starts thread that records a row from sampler every second.
+   */
+  public void start(final Sampler sampler) {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        long[] row = new long[names.length];
+        long second = System.currentTimeMillis() / INTERVAL_MILLIS;
+        while (true) {
+          second++;
+          long sleep = second * INTERVAL_MILLIS - System.currentTimeMillis();
+          if (sleep > 0) {
+            try {
+              Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          try {
+            sampler.sample(row);
+            record(second, row);
+          } catch (RuntimeException e) {
+            LOG.error("Could not sample history. " + e.getMessage());
+          }
+        }
+      }
+    }, "History sampler");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public synchronized void record(long second, long[] row) {
+    System.arraycopy(row, 0, values, next * names.length, names.length);
+    times[next] = second;
+    next = (next + 1) % seconds;
+    size = Math.min(size + 1, seconds);
+  }
+
+  /*
+   *  @return  Index in values and times of i-th of the last n rows, oldest first.
+   */
+  private int getRow(int n, int i) {
+    return (next - n + i + seconds) % seconds;
+  }
+
+  /*
+   *  @return  At most last seconds rows as JSON, oldest first: second since the epoch of each
+   *           row in "times" and each series as an array in "series".
+   */
+  public synchronized String getJson(int last) {
+    int n = Math.min(Math.max(0, last), size);
+    StringBuilder json = new StringBuilder();
+    json.append("{\"intervalMillis\":").append(INTERVAL_MILLIS).append(",\"times\":[");
+    for (int i = 0; i < n; i++) {
+      json.append(i > 0 ? "," : "").append(times[getRow(n, i)]);
+    }
+    json.append("],\"series\":{");
+    for (int j = 0; j < names.length; j++) {
+      json.append(j > 0 ? "," : "");
+      StatsSnapshot.appendJsonString(json, names[j]);
+      json.append(":[");
+      for (int i = 0; i < n; i++) {
+        json.append(i > 0 ? "," : "").append(values[getRow(n, i) * names.length + j]);
+      }
+      json.append(']');
+    }
+    return json.append("}}").toString();
+  }
+
+  /*
+   *  @return  At most last seconds rows as CSV with a header line, oldest first.
+   */
+  public synchronized String getCsv(int last) {
+    int n = Math.min(Math.max(0, last), size);
+    StringBuilder csv = new StringBuilder("time");
+    for (String name : names) {
+      csv.append(',').append(name);
+    }
+    csv.append('\n');
+    for (int i = 0; i < n; i++) {
+      int row = getRow(n, i);
+      csv.append(times[row]);
+      for (int j = 0; j < names.length; j++) {
+        csv.append(',').append(values[row * names.length + j]);
+      }
+      csv.append('\n');
+    }
+    return csv.toString();
+  }
+
+  /*
+   *  @return  Inline SVG line chart of series over all of history. Each point is the max of
+   *           its share of seconds, so short peaks don't disappear.
+   */
+  public synchronized String getSvg(int series, int width, int height) {
+    int points = Math.min(size, width);
+    long[] maxes = new long[points];
+    long top = 1;
+    for (int i = 0; i < size; i++) {
+      int point = (int) ((long) i * points / size);
+      maxes[point] = Math.max(maxes[point],
+                              values[getRow(size, i) * names.length + series]);
+      top = Math.max(top, maxes[point]);
+    }
+    StringBuilder svg = new StringBuilder();
+    svg.append("<svg width=\"").append(width).append("\" height=\"").append(height)
+       .append("\" style=\"border: 1px solid black\"><polyline fill=\"none\" stroke=\"blue\"")
+       .append(" points=\"");
+    for (int i = 0; i < points; i++) {
+      svg.append(i > 0 ? " " : "")
+         .append(points > 1 ? (long) i * (width - 1) / (points - 1) : 0).append(',')
+         .append(height - 1 - maxes[i] * (height - 1) / top);
+    }
+    svg.append("\"/><text x=\"2\" y=\"12\" font-size=\"10\">").append(names[series])
+       .append(" max ").append(top).append(", last ").append(size).append(" s</text></svg>");
+    return svg.toString();
+  }
+}
@@ -0,0 +1,455 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+
+/**
+ * HttpMessage is the head (start line and headers) of an HTTP/1.x request or response, with
+ * helpers to find where its body ends, so we can tell request boundaries on keep-alive
+ * connections without understanding anything else about the requests.
+ *
+ * Bodies are never buffered: copyBody() streams them from one connection to another, keeping
+ * chunked encoding as it is.
+ */
+public class HttpMessage {
+  // Longest start or header line we accept.
+  private static final int MAX_LINE_BYTES = 64 * 1024;
+
+  private static final int MAX_HEADERS = 256;
+
+  private static final byte[] CRLF = {'\r', '\n'};
+
+  // Method, URI and version of a request, or version, status code and reason of a response.
+  private String[] startLine;
+
+  // Name and value of each header, in original order.
+  private ArrayList<String[]> headers;
+
+  private boolean request;
+
+  private HttpMessage(String[] startLine, boolean request) {
+    this.startLine = startLine;
+    this.headers = new ArrayList<String[]>();
+    this.request = request;
+  }
+
+  /*
+   *  @return  Request or null if connection closed before the request started.
+   */
+  public static HttpMessage readRequest(InputStream input) throws IOException {
+    String line = readLine(input);
+    // Some clients send empty lines between requests.
+    while (null != line && line.isEmpty()) {
+      line = readLine(input);
+    }
+    if (null == line) {
+      return null;
+    }
+    String[] parts = line.split(" ", 3);
+    if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+      throw new ProtocolException("Bad request line [" + line + "]");
+    }
+    HttpMessage message = new HttpMessage(parts, true);
+    message.readHeaders(input);
+    return message;
+  }
+
+  public static HttpMessage readResponse(InputStream input) throws IOException {
+    String line = readLine(input);
+    if (null == line) {
+      throw new EOFException("Connection closed before response.");
+    }
+    String[] parts = line.split(" ", 3);
+    if (parts.length < 2 || !parts[0].startsWith("HTTP/1.") || !parts[1].matches("\\d{3}")) {
+      throw new ProtocolException("Bad status line [" + line + "]");
+    }
+    if (parts.length == 2) {
+      parts = new String[] {parts[0], parts[1], ""};
+    }
+    HttpMessage message = new HttpMessage(parts, false);
+    message.readHeaders(input);
+    return message;
+  }
+
+  public static HttpMessage newRequest(String method, String uri) {
+    return new HttpMessage(new String[] {method, uri, "HTTP/1.1"}, true);
+  }
+
+  public static HttpMessage newResponse(int statusCode, String reason) {
+    return new HttpMessage(new String[] {"HTTP/1.1", Integer.toString(statusCode), reason},
+                           false);
+  }
+
+  private void readHeaders(InputStream input) throws IOException {
+    while (true) {
+      String line = readLine(input);
+      if (null == line) {
+        throw new EOFException("Connection closed in message head.");
+      }
+      if (line.isEmpty()) {
+        return;
+      }
+      if ((line.startsWith(" ") || line.startsWith("\t")) && !headers.isEmpty()) {
+        // Obsolete line folding continues the previous header.
+        String[] last = headers.get(headers.size() - 1);
+        last[1] = last[1] + " " + line.trim();
+        continue;
+      }
+      int colon = line.indexOf(':');
+      if (colon <= 0 || headers.size() >= MAX_HEADERS) {
+        throw new ProtocolException("Bad header line [" + line + "]");
+      }
+      headers.add(new String[] {line.substring(0, colon).trim(),
+                                line.substring(colon + 1).trim()});
+    }
+  }
+
+  /*
+   *  Reads a line ending with LF, without the line end.
+   *
+   *  @return  Line or null if input ends before the first byte of the line.
+   */
+  static String readLine(InputStream input) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+    int b = 0;
+    while ((b = input.read()) >= 0) {
+      if (b == '\n') {
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+          length--;
+        }
+        return new String(bytes, 0, length, "ISO-8859-1");
+      }
+      if (line.size() >= MAX_LINE_BYTES) {
+        throw new ProtocolException("HTTP line too long.");
+      }
+      line.write(b);
+    }
+    if (line.size() > 0) {
+      throw new EOFException("Connection closed in the middle of a line.");
+    }
+    return null;
+  }
+
+  public boolean isRequest() {
+    return request;
+  }
+
+  public String getMethod() {
+    return startLine[0];
+  }
+
+  public String getUri() {
+    return startLine[1];
+  }
+
+  public void setUri(String uri) {
+    startLine[1] = uri;
+  }
+
+  /*
+   *  @return  Raw value of the first query parameter with this name, ignoring case, "" if it
+   *           has no value, or null if there is none.
+   */
+  public String getQueryParameter(String name) {
+    int query = startLine[1].indexOf('?');
+    if (query < 0) {
+      return null;
+    }
+    for (String parameter : startLine[1].substring(query + 1).split("&")) {
+      int equals = parameter.indexOf('=');
+      String key = equals < 0 ? parameter : parameter.substring(0, equals);
+      if (key.equalsIgnoreCase(name)) {
+        return equals < 0 ? "" : parameter.substring(equals + 1);
+      }
+    }
+    return null;
+  }
+
+  /*
+   *  Replaces all query parameters with this name with one parameter at the end of the uri.
+   */
+  public void setQueryParameter(String name, String value) {
+    removeQueryParameter(name);
+    startLine[1] += (startLine[1].indexOf('?') < 0 ? "?" : "&") + name + "=" + value;
+  }
+
+  public void removeQueryParameter(String name) {
+    int query = startLine[1].indexOf('?');
+    if (query < 0) {
+      return;
+    }
+    StringBuilder uri = new StringBuilder(startLine[1].substring(0, query));
+    char separator = '?';
+    for (String parameter : startLine[1].substring(query + 1).split("&")) {
+      int equals = parameter.indexOf('=');
+      String key = equals < 0 ? parameter : parameter.substring(0, equals);
+      if (!key.equalsIgnoreCase(name) && !parameter.isEmpty()) {
+        uri.append(separator).append(parameter);
+        separator = '&';
+      }
+    }
+    startLine[1] = uri.toString();
+  }
+
+  /*
+   *  @return  Uri without the query.
+   */
+  public String getPath() {
+    int query = startLine[1].indexOf('?');
+    return query < 0 ? startLine[1] : startLine[1].substring(0, query);
+  }
+
+  /*
+   *  @return  Copy of this message head we can change without changing this one.
+   */
+  public HttpMessage copy() {
+    HttpMessage message = new HttpMessage(startLine.clone(), request);
+    for (String[] header : headers) {
+      message.headers.add(header.clone());
+    }
+    return message;
+  }
+
+  public String getVersion() {
+    return request ? startLine[2] : startLine[0];
+  }
+
+  public int getStatusCode() {
+    return Integer.parseInt(startLine[1]);
+  }
+
+  /*
+   *  @return  Value of the first header with this name, ignoring case, or null.
+   */
+  public String getHeader(String name) {
+    for (String[] header : headers) {
+      if (header[0].equalsIgnoreCase(name)) {
+        return header[1];
+      }
+    }
+    return null;
+  }
+
+  /*
+   *  Replaces all headers with this name with one header.
+   */
+  public void setHeader(String name, String value) {
+    removeHeader(name);
+    headers.add(new String[] {name, value});
+  }
+
+  public void removeHeader(String name) {
+    for (int i = headers.size() - 1; i >= 0; i--) {
+      if (headers.get(i)[0].equalsIgnoreCase(name)) {
+        headers.remove(i);
+      }
+    }
+  }
+
+  private boolean hasToken(String name, String token) {
+    for (String[] header : headers) {
+      if (header[0].equalsIgnoreCase(name)) {
+        for (String value : header[1].split(",")) {
+          if (value.trim().equalsIgnoreCase(token)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /*
+   *  @return  True if sender wants to keep the connection open after this message.
+   */
+  public boolean isKeepAlive() {
+    if (hasToken("Connection", "close")) {
+      return false;
+    }
+    return getVersion().equals("HTTP/1.1") || hasToken("Connection", "keep-alive");
+  }
+
+  public boolean isChunked() {
+    return hasToken("Transfer-Encoding", "chunked");
+  }
+
+  public boolean expectsContinue() {
+    return request && hasToken("Expect", "100-continue");
+  }
+
+  /*
+   *  @return  Content-Length or -1 if there is none.
+   */
+  public long getContentLength() throws ProtocolException {
+    String value = getHeader("Content-Length");
+    if (null == value) {
+      return -1;
+    }
+    try {
+      long length = Long.parseLong(value.trim());
+      if (length < 0) {
+        throw new NumberFormatException();
+      }
+      return length;
+    } catch (NumberFormatException e) {
+      throw new ProtocolException("Bad Content-Length [" + value + "]");
+    }
+  }
+
+  /*
+   *  @param requestMethod  Method of the request this response answers, ignored for requests.
+   *  @return  True if the message has no body at all.
+   */
+  public boolean hasNoBody(String requestMethod) throws ProtocolException {
+    if (request) {
+      return !isChunked() && getContentLength() <= 0;
+    }
+    int status = getStatusCode();
+    return "HEAD".equals(requestMethod) || status / 100 == 1 || status == 204 ||
+           status == 304 || (!isChunked() && getContentLength() == 0);
+  }
+
+  /*
+   *  @return  True if we know where the body ends without waiting for the connection to
+   *           close, so the connection can carry another message after this one.
+   */
+  public boolean isDelimited(String requestMethod) throws ProtocolException {
+    return hasNoBody(requestMethod) || isChunked() || getContentLength() >= 0;
+  }
+
+  public void writeHead(OutputStream output) throws IOException {
+    StringBuilder head = new StringBuilder();
+    head.append(startLine[0]).append(' ').append(startLine[1]).append(' ')
+        .append(startLine[2]).append("\r\n");
+    for (String[] header : headers) {
+      head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+    }
+    head.append("\r\n");
+    output.write(head.toString().getBytes("ISO-8859-1"));
+  }
+
+  /*
+   *  @return  Size of the head as written by writeHead.
+   */
+  public int getHeadLength() {
+    int length = startLine[0].length() + startLine[1].length() + startLine[2].length() + 4;
+    for (String[] header : headers) {
+      length += header[0].length() + header[1].length() + 4;
+    }
+    return length + 2;
+  }
+
+  /*
+   *  Copies body of this message from input to output.
+   *
+   *  @param requestMethod  Method of the request this response answers, ignored for requests.
+   *  @return  Number of body bytes we copied, including chunk headers.
+   */
+  public long copyBody(InputStream input, OutputStream output, String requestMethod)
+      throws IOException {
+    if (hasNoBody(requestMethod)) {
+      return 0;
+    }
+    if (isChunked()) {
+      return copyChunked(input, output);
+    }
+    long length = getContentLength();
+    byte[] buffer = new byte[8 * 1024];
+    long copied = 0;
+    while (length < 0 || copied < length) {
+      int max = length < 0 ? buffer.length : (int) Math.min(buffer.length, length - copied);
+      int cnt = input.read(buffer, 0, max);
+      if (cnt < 0) {
+        if (length < 0) {
+          // Body delimited by end of connection.
+          break;
+        }
+        throw new EOFException("Connection closed after " + copied + " of " + length +
+                               " body bytes.");
+      }
+      output.write(buffer, 0, cnt);
+      copied += cnt;
+    }
+    return copied;
+  }
+
+  private static long copyChunked(InputStream input, OutputStream output) throws IOException {
+    long copied = 0;
+    byte[] buffer = new byte[8 * 1024];
+    while (true) {
+      String sizeLine = readLine(input);
+      if (null == sizeLine) {
+        throw new EOFException("Connection closed in chunked body.");
+      }
+      copied += writeLine(output, sizeLine);
+      long size = 0;
+      try {
+        int extension = sizeLine.indexOf(';');
+        size = Long.parseLong((extension < 0 ? sizeLine : sizeLine.substring(0, extension))
+                              .trim(), 16);
+      } catch (NumberFormatException e) {
+        throw new ProtocolException("Bad chunk size [" + sizeLine + "]");
+      }
+      if (size < 0) {
+        throw new ProtocolException("Bad chunk size [" + sizeLine + "]");
+      }
+      if (size == 0) {
+        // Trailer headers end with an empty line.
+        String line = null;
+        do {
+          line = readLine(input);
+          if (null == line) {
+            throw new EOFException("Connection closed in chunked body trailer.");
+          }
+          copied += writeLine(output, line);
+        } while (!line.isEmpty());
+        return copied;
+      }
+      long remaining = size;
+      while (remaining > 0) {
+        int cnt = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (cnt < 0) {
+          throw new EOFException("Connection closed in the middle of a chunk.");
+        }
+        output.write(buffer, 0, cnt);
+        remaining -= cnt;
+      }
+      copied += size;
+      String end = readLine(input);
+      if (null == end || !end.isEmpty()) {
+        throw new ProtocolException("Missing line end after chunk.");
+      }
+      copied += writeLine(output, end);
+    }
+  }
+
+  private static int writeLine(OutputStream output, String line) throws IOException {
+    byte[] bytes = line.getBytes("ISO-8859-1");
+    output.write(bytes);
+    output.write(CRLF);
+    return bytes.length + CRLF.length;
+  }
+}
@@ -23,6 +23,8 @@ public class JumpHost {
   public HostPort server;
   public String user;
   public String credentials;
+  // CipherCalibrator changes these two while tunnels run, so read and write them together
+  // while holding the JumpHost lock.
   public boolean compression;
   public String ciphers;
   public String sshBinary;
@@ -0,0 +1,237 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LogHistogram records non-negative values (latencies, byte counts) over the last minute in
+ * fixed memory, so we can tell percentiles and not only sums like SecondMinuteHourCounter.
+ *
+ * Values go into logarithmic buckets: each power of two is split into SUB_BUCKETS linear
+ * buckets, so a bucket is at most 1/SUB_BUCKETS of its values wide and percentiles are within
+ * that much of the real value. Values below SUB_BUCKETS get a bucket each.
+ *
+ * The minute is kept in SLOTS slots of SLOT_MILLIS. Recording only increments atomic counters
+ * of the current slot and never takes a lock. The first value recorded in a new interval
+ * clears the slot it reuses, so values recorded by other threads at the same moment may be
+ * lost, which is fine for monitoring.
+ *
+ * We also keep count and sum of all values ever recorded, which only grow, for monitoring
+ * systems that compute rates themselves.
+ */
+public class LogHistogram {
+  static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Enough buckets for any positive long.
+  static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  static final int SLOTS = 6;
+  static final long SLOT_MILLIS = 10 * 1000;
+
+  // Per slot: BUCKETS counts, then count, sum and max of values.
+  private static final int SLOT_LENGTH = BUCKETS + 3;
+  private static final int COUNT = BUCKETS;
+  private static final int SUM = BUCKETS + 1;
+  private static final int MAX = BUCKETS + 2;
+
+  /*
+   *  Values of a histogram at one point in time.
+   */
+  public static class Snapshot {
+    private final long[] buckets;
+    private final long count;
+    private final long sum;
+    private final long max;
+    private final long totalCount;
+    private final long totalSum;
+
+    Snapshot(long[] buckets, long count, long sum, long max, long totalCount, long totalSum) {
+      this.buckets = buckets;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+      this.totalCount = totalCount;
+      this.totalSum = totalSum;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getSum() {
+      return sum;
+    }
+
+    public long getMax() {
+      return max;
+    }
+
+    /*
+     *  @return  Number of values recorded since we started, not only in the last minute.
+     */
+    public long getTotalCount() {
+      return totalCount;
+    }
+
+    public long getTotalSum() {
+      return totalSum;
+    }
+
+    /*
+     *  @param fraction  Between 0 and 1, 0.99 for 99th percentile.
+     *  @return          Upper bound of bucket with the percentile, at most max. 0 if empty.
+     */
+    public long getPercentile(double fraction) {
+      long rank = (long) Math.ceil(fraction * count);
+      long seen = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        seen += buckets[i];
+        if (seen >= rank && seen > 0) {
+          return Math.min(getUpperBound(i), max);
+        }
+      }
+      return max;
+    }
+
+    /*
+     *  @return  Snapshot with values of both, for example of all servers.
+     */
+    public Snapshot merge(Snapshot other) {
+      long[] merged = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++) {
+        merged[i] = buckets[i] + other.buckets[i];
+      }
+      return new Snapshot(merged, count + other.count, sum + other.sum,
+                          Math.max(max, other.max), totalCount + other.totalCount,
+                          totalSum + other.totalSum);
+    }
+  }
+
+  public static final Snapshot EMPTY = new Snapshot(new long[BUCKETS], 0, 0, 0, 0, 0);
+
+  private String name;
+  private AltiTimer timer;
+
+  // SLOTS slots of SLOT_LENGTH counters.
+  private AtomicLongArray slots;
+  // Interval (time / SLOT_MILLIS) each slot holds values of.
+  private AtomicLongArray intervals;
+
+  // Count and sum of all values we recorded.
+  private AtomicLong totalCount;
+  private AtomicLong totalSum;
+
+  /*
+   *  @param name  Human-readable name for this histogram.
+   */
+  public LogHistogram(String name) {
+    this(new AltiTimer(), name);
+  }
+
+  /*
+   *  Handy constructor to use in tests when we want to use custom timer.
+   */
+  LogHistogram(AltiTimer timer, String name) {
+    this.name = name;
+    this.timer = timer;
+    this.slots = new AtomicLongArray(SLOTS * SLOT_LENGTH);
+    this.intervals = new AtomicLongArray(SLOTS);
+    this.totalCount = new AtomicLong();
+    this.totalSum = new AtomicLong();
+    for (int i = 0; i < SLOTS; i++) {
+      intervals.set(i, -1);
+    }
+  }
+
+  static int getBucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long getUpperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lower = ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS)) << shift;
+    return lower + (1L << shift) - 1;
+  }
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    long interval = timer.currentTimeMillis() / SLOT_MILLIS;
+    int slot = (int) (interval % SLOTS);
+    long slotInterval = intervals.get(slot);
+    if (slotInterval < interval && intervals.compareAndSet(slot, slotInterval, interval)) {
+      // Slot held values from a minute ago.
+      for (int i = 0; i < SLOT_LENGTH; i++) {
+        slots.set(slot * SLOT_LENGTH + i, 0);
+      }
+    }
+    int base = slot * SLOT_LENGTH;
+    slots.incrementAndGet(base + getBucket(value));
+    slots.incrementAndGet(base + COUNT);
+    slots.addAndGet(base + SUM, value);
+    totalCount.incrementAndGet();
+    totalSum.addAndGet(value);
+    long max = slots.get(base + MAX);
+    while (value > max && !slots.compareAndSet(base + MAX, max, value)) {
+      max = slots.get(base + MAX);
+    }
+  }
+
+  /*
+   *  @return  Values recorded in the last minute, and totals of all values.
+   */
+  public Snapshot getSnapshot() {
+    long interval = timer.currentTimeMillis() / SLOT_MILLIS;
+    long[] buckets = new long[BUCKETS];
+    long count = 0;
+    long sum = 0;
+    long max = 0;
+    for (int slot = 0; slot < SLOTS; slot++) {
+      if (intervals.get(slot) <= interval - SLOTS) {
+        continue;
+      }
+      int base = slot * SLOT_LENGTH;
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets[i] += slots.get(base + i);
+      }
+      count += slots.get(base + COUNT);
+      sum += slots.get(base + SUM);
+      max = Math.max(max, slots.get(base + MAX));
+    }
+    return new Snapshot(buckets, count, sum, max, totalCount.get(), totalSum.get());
+  }
+
+  public String toString() {
+    Snapshot snapshot = getSnapshot();
+    return name +
+           " p50: " + snapshot.getPercentile(0.5) +
+           " p90: " + snapshot.getPercentile(0.9) +
+           " p99: " + snapshot.getPercentile(0.99) +
+           " max: " + snapshot.getMax();
+  }
+}
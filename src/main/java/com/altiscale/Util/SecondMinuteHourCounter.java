@@ -18,13 +18,6 @@ package com.altiscale.Util;
 
 import java.util.ArrayDeque;
 
-class AltiTimer {
-  /** This class wraps System.currentTimeMillis. It's useful for testing. */
-  public long currentTimeMillis() {
-    return System.currentTimeMillis();
-  }
-}
-
 class SlidingWindowCounter {
   /** This class implements a sparse sliding window using a set of buckets kept in a Deque.
    *  @param numBuckets Number of buckets per each interval (more buckets, higher precision)
@@ -117,6 +110,23 @@ class SlidingWindowCounter {
 **/
 public class SecondMinuteHourCounter {
 
+  /*
+   *  Values of all counters at one point in time.
+   */
+  public static class Counts {
+    public final long lastSecond;
+    public final long lastMinute;
+    public final long lastHour;
+    public final long total;
+
+    Counts(long lastSecond, long lastMinute, long lastHour, long total) {
+      this.lastSecond = lastSecond;
+      this.lastMinute = lastMinute;
+      this.lastHour = lastHour;
+      this.total = total;
+    }
+  }
+
   private SlidingWindowCounter secondCounter, minuteCounter, hourCounter;
   private long totalCounter;
   private long numBuckets;
@@ -184,6 +194,14 @@ public class SecondMinuteHourCounter {
     return totalCounter;
   }
 
+  /*
+   *  @return  All counters, taking the lock once instead of once per counter.
+   */
+  public synchronized Counts getCounts() {
+    return new Counts(secondCounter.getCount(), minuteCounter.getCount(),
+                      hourCounter.getCount(), totalCounter);
+  }
+
   public String toString() {
     return name +
            " getLastSecondCnt: " + getLastSecondCnt() +
@@ -32,15 +32,34 @@ import org.apache.log4j.Logger;
 /**
 * ServerStatus is a Runnable that listens on a port and returns a html page with values
 * from getServerStats on "/stats" and its health status on "/admin".
+*
+* It also serves the same statistics in Prometheus text format on "/metrics" and as JSON on
+* "/stats.json". Those are rendered from a snapshot we take every SNAPSHOT_INTERVAL_MILLIS, so
+* frequent scraping only copies bytes and never waits on counters tunnel threads update.
+* Live connections with their rates are listed as JSON on "/connections", and clients with
+* the most bytes and connections over the last minute and hour on "/clients". Per-second
+* history of byte rates and connections is on "/history" as JSON or CSV.
 */
 public class ServerStatus implements Runnable {
 
   // log4j logger.
   private static Logger LOG = Logger.getLogger("TransferAccelerator");
 
+  // How often we take a new snapshot for "/metrics" and "/stats.json".
+  static final long SNAPSHOT_INTERVAL_MILLIS = 5000;
+
+  // Connections "/connections" lists when request doesn't say how many.
+  static final int DEFAULT_CONNECTIONS_LIMIT = 100;
+
+  // Clients "/clients" lists when request doesn't say how many.
+  static final int DEFAULT_CLIENTS_LIMIT = 20;
+
   private ServerWithStats serverWithStats;
   private int port;
 
+  // Latest snapshot, replaced as a whole so handlers never see a partial one.
+  private volatile StatsSnapshot snapshot;
+
   public ServerStatus(ServerWithStats server, int port) {
     this.port = port;
     this.serverWithStats = server;
@@ -53,6 +72,13 @@ public class ServerStatus implements Runnable {
       HttpServer httpServer = HttpServer.create(addr, 0);
       httpServer.createContext("/stats", new StatsHandler(serverWithStats));
       httpServer.createContext("/admin", new HealthHandler(serverWithStats));
+      httpServer.createContext("/metrics",
+                               new SnapshotHandler("text/plain; version=0.0.4", false));
+      httpServer.createContext("/stats.json", new SnapshotHandler("application/json", true));
+      httpServer.createContext("/connections", new ConnectionsHandler());
+      httpServer.createContext("/clients", new ClientsHandler());
+      httpServer.createContext("/history", new HistoryHandler());
+      takeSnapshots();
       httpServer.start();
       LOG.info("Started HttpServer accessible at localhost:" + port + "/stats");
     } catch (IOException e) {
@@ -61,6 +87,160 @@ public class ServerStatus implements Runnable {
     }
   }
 
+  /*
+   *  Takes first snapshot now and starts thread that takes the next ones.
+   */
+  private void takeSnapshots() {
+    snapshot = serverWithStats.getStatsSnapshot();
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          try {
+            Thread.sleep(SNAPSHOT_INTERVAL_MILLIS);
+          } catch (InterruptedException e) {
+            return;
+          }
+          try {
+            snapshot = serverWithStats.getStatsSnapshot();
+          } catch (RuntimeException e) {
+            LOG.error("Could not take stats snapshot. " + e.getMessage());
+          }
+        }
+      }
+    }, "ServerStatus snapshot");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  class SnapshotHandler implements HttpHandler {
+    String contentType;
+    boolean json;
+
+    public SnapshotHandler(String contentType, boolean json) {
+      this.contentType = contentType;
+      this.json = json;
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+      String requestMethod = exchange.getRequestMethod();
+      if (requestMethod.equalsIgnoreCase("GET")) {
+        StatsSnapshot current = snapshot;
+        byte[] response = json ? current.getJson() : current.getPrometheusText();
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, response.length);
+        OutputStream responseBody = exchange.getResponseBody();
+        responseBody.write(response);
+        responseBody.close();
+      }
+    }
+  }
+
+  /*
+   *  @return  Value of parameter name in query of request, or null if it doesn't have one.
+   */
+  private static String getParameter(HttpExchange exchange, String name) {
+    String query = exchange.getRequestURI().getRawQuery();
+    if (null == query) {
+      return null;
+    }
+    for (String parameter : query.split("&")) {
+      String[] nameValue = parameter.split("=", 2);
+      if (nameValue.length == 2 && name.equals(nameValue[0])) {
+        return nameValue[1];
+      }
+    }
+    return null;
+  }
+
+  /*
+   *  @return  Non-negative "limit" parameter of request, or defaultLimit if it has none.
+   */
+  private static int getLimit(HttpExchange exchange, int defaultLimit) {
+    String limit = getParameter(exchange, "limit");
+    if (null != limit) {
+      try {
+        return Math.max(0, Integer.parseInt(limit));
+      } catch (NumberFormatException e) {
+        LOG.debug("Bad limit " + limit);
+      }
+    }
+    return defaultLimit;
+  }
+
+  private static void sendJson(HttpExchange exchange, String json) throws IOException {
+    send(exchange, "application/json", json);
+  }
+
+  private static void send(HttpExchange exchange, String contentType, String text)
+      throws IOException {
+    byte[] response = text.getBytes("UTF-8");
+    Headers responseHeaders = exchange.getResponseHeaders();
+    responseHeaders.set("Content-Type", contentType);
+    exchange.sendResponseHeaders(200, response.length);
+    OutputStream responseBody = exchange.getResponseBody();
+    responseBody.write(response);
+    responseBody.close();
+  }
+
+  /*
+   *  Lists live connections, "/connections?sort=rate&limit=100". Sort is by "rate", "bytes" or
+   *  "age".
+   */
+  class ConnectionsHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      String requestMethod = exchange.getRequestMethod();
+      if (requestMethod.equalsIgnoreCase("GET")) {
+        String sortBy = getParameter(exchange, "sort");
+        int limit = getLimit(exchange, DEFAULT_CONNECTIONS_LIMIT);
+        sendJson(exchange, serverWithStats.getConnectionsJson(null == sortBy ? "rate" : sortBy,
+                                                              limit));
+      }
+    }
+  }
+
+  /*
+   *  Lists top clients by bytes and by connections, "/clients?limit=20".
+   */
+  class ClientsHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      String requestMethod = exchange.getRequestMethod();
+      if (requestMethod.equalsIgnoreCase("GET")) {
+        int limit = getLimit(exchange, DEFAULT_CLIENTS_LIMIT);
+        sendJson(exchange, serverWithStats.getTopClientsJson(limit));
+      }
+    }
+  }
+
+  /*
+   *  Serves per-second history, "/history?format=csv&seconds=600". Format is "json" (default)
+   *  or "csv", and without seconds we serve all we have.
+   */
+  class HistoryHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      String requestMethod = exchange.getRequestMethod();
+      if (requestMethod.equalsIgnoreCase("GET")) {
+        String format = getParameter(exchange, "format");
+        int seconds = Integer.MAX_VALUE;
+        String secondsString = getParameter(exchange, "seconds");
+        if (null != secondsString) {
+          try {
+            seconds = Math.max(0, Integer.parseInt(secondsString));
+          } catch (NumberFormatException e) {
+            LOG.debug("Bad history seconds " + secondsString);
+          }
+        }
+        String history = serverWithStats.getHistory(format, seconds);
+        if (null == history) {
+          exchange.sendResponseHeaders(404, -1);
+          exchange.close();
+          return;
+        }
+        send(exchange, "csv".equals(format) ? "text/csv" : "application/json", history);
+      }
+    }
+  }
+
   class HealthHandler implements HttpHandler {
     ServerWithStats serverWithStats;
 
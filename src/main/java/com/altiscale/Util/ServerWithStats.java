@@ -21,6 +21,14 @@ package com.altiscale.Util;
 */
 public interface ServerWithStats {
   public String getServerStatsHtml();
+  // Takes a new snapshot of statistics for machine-readable endpoints.
+  public StatsSnapshot getStatsSnapshot();
+  // JSON list of at most limit live connections, highest by sortBy first.
+  public String getConnectionsJson(String sortBy, int limit);
+  // JSON lists of at most limit clients with the most bytes and connections.
+  public String getTopClientsJson(int limit);
+  // Last seconds of per-second history as "csv" or JSON, null if we don't keep history.
+  public String getHistory(String format, int seconds);
   public boolean isHealthy();
   public String getServerName();
   public String getVersion();
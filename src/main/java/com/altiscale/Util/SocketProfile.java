@@ -0,0 +1,167 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * SocketProfile is a set of socket options we set on sockets we accept or open, written as
+ * comma-separated "rcvbuf=SIZE", "sndbuf=SIZE", "nodelay", "keepalive" and "auto", for example
+ * "rcvbuf=4m,sndbuf=4m,nodelay". Sizes take k and m suffixes. Options a profile doesn't name
+ * keep OS defaults.
+ *
+ * With "auto", buffers we don't size explicitly are sized from bandwidth-delay product: twice
+ * the throughput of a connection times round trip time, so a connection can fill the link and
+ * buffers can still grow when they are what limits throughput. Receive buffers bigger than 64KB
+ * need TCP window scaling, which is negotiated on connect, so we size them before connecting,
+ * and on the listening socket for sockets we accept.
+ */
+public class SocketProfile {
+  public static final SocketProfile DEFAULT = new SocketProfile();
+
+  // Bounds of buffers auto sizes.
+  public static final int MIN_AUTO_BYTES = 64 * 1024;
+  public static final int MAX_AUTO_BYTES = 16 * 1024 * 1024;
+
+  // Buffer sizes, 0 for OS default.
+  private int receiveBufferBytes;
+  private int sendBufferBytes;
+  private boolean tcpNoDelay;
+  private boolean keepAlive;
+  private boolean auto;
+  private String text;
+
+  private SocketProfile() {
+    text = "default";
+  }
+
+  /*
+   *  @throws IllegalArgumentException  If text isn't a valid profile.
+   */
+  public static SocketProfile parse(String text) {
+    SocketProfile profile = new SocketProfile();
+    profile.text = text;
+    for (String option : text.split(",")) {
+      option = option.trim();
+      if (option.isEmpty() || option.equals("default")) {
+        continue;
+      } else if (option.equals("nodelay")) {
+        profile.tcpNoDelay = true;
+      } else if (option.equals("keepalive")) {
+        profile.keepAlive = true;
+      } else if (option.equals("auto")) {
+        profile.auto = true;
+      } else if (option.startsWith("rcvbuf=")) {
+        profile.receiveBufferBytes = parseBytes(option.substring("rcvbuf=".length()));
+      } else if (option.startsWith("sndbuf=")) {
+        profile.sendBufferBytes = parseBytes(option.substring("sndbuf=".length()));
+      } else {
+        throw new IllegalArgumentException("Unknown socket option " + option);
+      }
+    }
+    return profile;
+  }
+
+  private static int parseBytes(String size) {
+    long multiplier = 1;
+    String lower = size.toLowerCase();
+    if (lower.endsWith("k")) {
+      multiplier = 1024;
+    } else if (lower.endsWith("m")) {
+      multiplier = 1024 * 1024;
+    }
+    if (multiplier > 1) {
+      lower = lower.substring(0, lower.length() - 1);
+    }
+    long bytes;
+    try {
+      bytes = Long.parseLong(lower) * multiplier;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Bad buffer size " + size);
+    }
+    if (bytes <= 0 || bytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Buffer size out of range " + size);
+    }
+    return (int) bytes;
+  }
+
+  /*
+   *  @return  Buffer size for bandwidth-delay product of bytesPerSecond and rttMillis, rounded
+   *           up to a power of two between MIN_AUTO_BYTES and MAX_AUTO_BYTES.
+   */
+  public static int getBdpBufferBytes(long bytesPerSecond, long rttMillis) {
+    long bytes = 2 * bytesPerSecond * rttMillis / 1000;
+    int buffer = MIN_AUTO_BYTES;
+    while (buffer < bytes && buffer < MAX_AUTO_BYTES) {
+      buffer *= 2;
+    }
+    return buffer;
+  }
+
+  public boolean isAuto() {
+    return auto;
+  }
+
+  /*
+   *  @param autoBytes  Buffer size auto tuning picked, or 0 if it hasn't yet.
+   *  @return           Receive buffer size to set, or 0 to keep OS default.
+   */
+  public int getReceiveBufferBytes(int autoBytes) {
+    return 0 == receiveBufferBytes && auto ? autoBytes : receiveBufferBytes;
+  }
+
+  public int getSendBufferBytes(int autoBytes) {
+    return 0 == sendBufferBytes && auto ? autoBytes : sendBufferBytes;
+  }
+
+  /*
+   *  Sets options on socket. Call it before connecting unconnected sockets.
+   */
+  public void apply(Socket socket, int autoBytes) throws SocketException {
+    int receive = getReceiveBufferBytes(autoBytes);
+    if (receive > 0) {
+      socket.setReceiveBufferSize(receive);
+    }
+    int send = getSendBufferBytes(autoBytes);
+    if (send > 0) {
+      socket.setSendBufferSize(send);
+    }
+    if (tcpNoDelay) {
+      socket.setTcpNoDelay(true);
+    }
+    if (keepAlive) {
+      socket.setKeepAlive(true);
+    }
+  }
+
+  /*
+   *  Sets receive buffer sockets we accept inherit. Call it before binding.
+   */
+  public void apply(ServerSocket serverSocket, int autoBytes) throws SocketException {
+    int receive = getReceiveBufferBytes(autoBytes);
+    if (receive > 0) {
+      serverSocket.setReceiveBufferSize(receive);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return text;
+  }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * StatsFile publishes counters of each server in a memory-mapped file with a fixed layout,
+ * so monitoring agents can read them as often as they like without asking us anything.
+ *
+ * All numbers are little-endian. The header is HEADER_BYTES long:
+ *   0  int   MAGIC
+ *   4  int   VERSION
+ *   8  long  sequence, odd while we are updating
+ *  16  long  time of last update, milliseconds since the epoch
+ *  24  int   number of servers
+ *  28  int   SERVER_BYTES
+ *  32  long  live tunneled client connections
+ * Then one SERVER_BYTES record per server:
+ *   0  NAME_BYTES of host:port in ASCII, padded with zeros
+ *  64  long  bytes tunneled
+ *  72  long  connections opened
+ *  80  long  connections closed
+ *  88  long  connections failed
+ *  96  long  1 if server is healthy, 0 if not
+ *
+ * Updates use a seqlock: we make sequence odd, write values in place and make it even again.
+ * A reader copies what it needs between two reads of sequence and retries if they differ or
+ * are odd. Plain buffer stores aren't ordered by anything else, so we fence between the
+ * steps: a store-store fence makes the odd sequence visible before any value, and a release
+ * fence makes every value visible before the even sequence.
+ *
+ * We never truncate a file readers may have mapped, since their reads would then fault. At
+ * start we write a new file next to it and rename it into place, so readers that mapped the
+ * old one keep reading it, values no longer changing, until they reopen the path.
+ */
+public class StatsFile {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  public static final int MAGIC = 0x54415354;  // "TAST"
+  public static final int VERSION = 1;
+  public static final int HEADER_BYTES = 64;
+  public static final int SERVER_BYTES = 128;
+  public static final int NAME_BYTES = 64;
+
+  // Offsets in header.
+  static final int SEQUENCE = 8;
+  static final int UPDATE_MILLIS = 16;
+  static final int SERVER_CNT = 24;
+  static final int SERVER_RECORD_BYTES = 28;
+  static final int CLIENT_CONNECTIONS = 32;
+
+  // Offsets in server record.
+  static final int BYTES = 64;
+  static final int OPENED = 72;
+  static final int CLOSED = 80;
+  static final int FAILED = 88;
+  static final int HEALTHY = 96;
+
+  static final long UPDATE_INTERVAL_MILLIS = 100;
+
+  /*
+   *  Sets current values with setClientConnections and setServer, called while we update.
+   */
+  public interface Source {
+    public void update(StatsFile file);
+  }
+
+  private MappedByteBuffer buffer;
+  private int serverCnt;
+  private long sequence;
+
+  /*
+   *  Writes layout and server names to a new file and renames it to file, replacing what was
+   *  there.
+   */
+  public StatsFile(File file, String[] serverNames) throws IOException {
+    serverCnt = serverNames.length;
+    int size = HEADER_BYTES + serverCnt * SERVER_BYTES;
+    // Same directory, so the rename stays on one file system.
+    File newFile = new File(file.getAbsoluteFile().getParentFile(),
+                            "." + file.getName() + ".new");
+    newFile.delete();
+    RandomAccessFile randomAccessFile = new RandomAccessFile(newFile, "rw");
+    try {
+      try {
+        randomAccessFile.setLength(size);
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } finally {
+        // Mapping stays valid after we close the file.
+        randomAccessFile.close();
+      }
+      writeLayout(serverNames);
+      Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ioe) {
+      newFile.delete();
+      throw ioe;
+    }
+  }
+
+  /*
+   *  Writes header and server names before the file gets its name, so readers never see it
+   *  without them.
+   */
+  private void writeLayout(String[] serverNames) throws IOException {
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    sequence = 0;
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, VERSION);
+    buffer.putLong(SEQUENCE, sequence);
+    buffer.putInt(SERVER_CNT, serverCnt);
+    buffer.putInt(SERVER_RECORD_BYTES, SERVER_BYTES);
+    for (int i = 0; i < serverCnt; i++) {
+      byte[] name = serverNames[i].getBytes("US-ASCII");
+      int offset = HEADER_BYTES + i * SERVER_BYTES;
+      for (int j = 0; j < Math.min(name.length, NAME_BYTES - 1); j++) {
+        buffer.put(offset + j, name[j]);
+      }
+    }
+  }
+
+  /*
+   *  Starts thread that updates file from source every UPDATE_INTERVAL_MILLIS.
+   */
+  public void start(final Source source) {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          try {
+            update(source);
+          } catch (RuntimeException e) {
+            LOG.error("Could not update stats file. " + e.getMessage());
+          }
+          try {
+            Thread.sleep(UPDATE_INTERVAL_MILLIS);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }, "StatsFile updater");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /*
+   *  Writes values from source in place. Only one thread may update.
+   */
+  public void update(Source source) {
+    buffer.putLong(SEQUENCE, ++sequence);
+    VarHandle.storeStoreFence();
+    try {
+      buffer.putLong(UPDATE_MILLIS, System.currentTimeMillis());
+      source.update(this);
+    } finally {
+      VarHandle.releaseFence();
+      buffer.putLong(SEQUENCE, ++sequence);
+    }
+  }
+
+  public void setClientConnections(long clientConnections) {
+    buffer.putLong(CLIENT_CONNECTIONS, clientConnections);
+  }
+
+  public void setServer(int i, long bytes, long opened, long closed, long failed,
+                        boolean healthy) {
+    int offset = HEADER_BYTES + i * SERVER_BYTES;
+    buffer.putLong(offset + BYTES, bytes);
+    buffer.putLong(offset + OPENED, opened);
+    buffer.putLong(offset + CLOSED, closed);
+    buffer.putLong(offset + FAILED, failed);
+    buffer.putLong(offset + HEALTHY, healthy ? 1 : 0);
+  }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * StatsFileReader reads consistent values from a file StatsFile publishes, without talking to
+ * the proxy. Run it with
+ *   java -cp TransferAccelerator.jar com.altiscale.Util.StatsFileReader FILE [INTERVAL_MILLIS]
+ * to print values once, or every INTERVAL_MILLIS.
+ */
+public class StatsFileReader {
+  // Values of one consistent read.
+  public static class Values {
+    public long updateMillis;
+    public long clientConnections;
+    public String[] names;
+    // Per server: bytes, opened, closed, failed, healthy.
+    public long[][] servers;
+  }
+
+  private MappedByteBuffer buffer;
+
+  public StatsFileReader(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                                                 randomAccessFile.length());
+    } finally {
+      randomAccessFile.close();
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.capacity() < StatsFile.HEADER_BYTES || buffer.getInt(0) != StatsFile.MAGIC) {
+      throw new IOException("Not a stats file: " + file);
+    }
+    if (buffer.getInt(4) != StatsFile.VERSION) {
+      throw new IOException("Unknown stats file version " + buffer.getInt(4));
+    }
+  }
+
+  /*
+   *  @return  Values copied while file didn't change under us. Load-load fences keep values
+   *           from being loaded before the first read of sequence or after the second.
+   */
+  public Values read() {
+    while (true) {
+      long before = buffer.getLong(StatsFile.SEQUENCE);
+      VarHandle.loadLoadFence();
+      if ((before & 1) == 0) {
+        Values values = copy();
+        VarHandle.loadLoadFence();
+        if (buffer.getLong(StatsFile.SEQUENCE) == before) {
+          return values;
+        }
+      }
+      Thread.yield();
+    }
+  }
+
+  private Values copy() {
+    Values values = new Values();
+    values.updateMillis = buffer.getLong(StatsFile.UPDATE_MILLIS);
+    values.clientConnections = buffer.getLong(StatsFile.CLIENT_CONNECTIONS);
+    int serverCnt = buffer.getInt(StatsFile.SERVER_CNT);
+    int recordBytes = buffer.getInt(StatsFile.SERVER_RECORD_BYTES);
+    values.names = new String[serverCnt];
+    values.servers = new long[serverCnt][];
+    for (int i = 0; i < serverCnt; i++) {
+      int offset = StatsFile.HEADER_BYTES + i * recordBytes;
+      StringBuilder name = new StringBuilder();
+      for (int j = 0; j < StatsFile.NAME_BYTES && buffer.get(offset + j) != 0; j++) {
+        name.append((char) buffer.get(offset + j));
+      }
+      values.names[i] = name.toString();
+      values.servers[i] = new long[] {buffer.getLong(offset + StatsFile.BYTES),
+                                      buffer.getLong(offset + StatsFile.OPENED),
+                                      buffer.getLong(offset + StatsFile.CLOSED),
+                                      buffer.getLong(offset + StatsFile.FAILED),
+                                      buffer.getLong(offset + StatsFile.HEALTHY)};
+    }
+    return values;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: StatsFileReader FILE [INTERVAL_MILLIS]");
+      System.exit(1);
+    }
+    StatsFileReader reader = new StatsFileReader(new File(args[0]));
+    long interval = args.length > 1 ? Long.parseLong(args[1]) : 0;
+    do {
+      Values values = reader.read();
+      System.out.println("time " + values.updateMillis +
+                         " client_connections " + values.clientConnections);
+      for (int i = 0; i < values.names.length; i++) {
+        long[] server = values.servers[i];
+        System.out.println(values.names[i] + " bytes " + server[0] + " opened " + server[1] +
+                           " closed " + server[2] + " failed " + server[3] +
+                           " healthy " + server[4]);
+      }
+      if (interval > 0) {
+        Thread.sleep(interval);
+      }
+    } while (interval > 0);
+  }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * StatsSnapshot holds values of server statistics taken at one point in time, already
+ * rendered in Prometheus text format and as JSON.
+ *
+ * A snapshot never changes once built, so any number of readers can serve it without locks
+ * and without touching the counters tunnel threads update. Counters are exported with their
+ * total in Prometheus format and with their last second, minute and hour in JSON. Histograms
+ * are exported as summaries with p50, p90, p99 and max (quantile 1) of the last minute, and
+ * with count and sum of all values since we started, which Prometheus requires to only grow.
+ */
+public class StatsSnapshot {
+  // Percentiles we export for histograms, besides max.
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+  private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99"};
+  private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99"};
+
+  /*
+   *  One value of a metric, with its labels as name, value pairs.
+   */
+  private static class Sample {
+    String[] labels;
+    SecondMinuteHourCounter.Counts counts;
+    LogHistogram.Snapshot histogram;
+    long value;
+  }
+
+  /*
+   *  Metric and all its values.
+   */
+  private static class Family {
+    String name;
+    String help;
+    // Prometheus metric type: counter, gauge or summary.
+    String type;
+    ArrayList<Sample> samples = new ArrayList<Sample>();
+  }
+
+  /*
+   *  Collects values for a snapshot.
+   */
+  public static class Builder {
+    private String prefix;
+    private LinkedHashMap<String, Family> families;
+
+    /*
+     *  @param prefix  Prefix of all metric names.
+     */
+    public Builder(String prefix) {
+      this.prefix = prefix;
+      this.families = new LinkedHashMap<String, Family>();
+    }
+
+    private Family getFamily(String name, String help, String type) {
+      Family family = families.get(name);
+      if (null == family) {
+        family = new Family();
+        family.name = prefix + name;
+        family.help = help;
+        family.type = type;
+        families.put(name, family);
+      }
+      return family;
+    }
+
+    /*
+     *  @param labels  Label names and values, alternating. Null if metric has no labels.
+     */
+    public Builder addCounter(String name, String help, String[] labels,
+                              SecondMinuteHourCounter counter) {
+      Sample sample = new Sample();
+      sample.labels = labels;
+      sample.counts = counter.getCounts();
+      sample.value = sample.counts.total;
+      getFamily(name, help, "counter").samples.add(sample);
+      return this;
+    }
+
+    public Builder addGauge(String name, String help, String[] labels, long value) {
+      Sample sample = new Sample();
+      sample.labels = labels;
+      sample.value = value;
+      getFamily(name, help, "gauge").samples.add(sample);
+      return this;
+    }
+
+    public Builder addHistogram(String name, String help, String[] labels,
+                                LogHistogram.Snapshot histogram) {
+      Sample sample = new Sample();
+      sample.labels = labels;
+      sample.histogram = histogram;
+      getFamily(name, help, "summary").samples.add(sample);
+      return this;
+    }
+
+    public StatsSnapshot build() {
+      return new StatsSnapshot(System.currentTimeMillis(), families.values());
+    }
+  }
+
+  private final long takenMillis;
+  private final byte[] prometheusText;
+  private final byte[] json;
+
+  private StatsSnapshot(long takenMillis, Iterable<Family> families) {
+    this.takenMillis = takenMillis;
+    this.prometheusText = toBytes(renderPrometheusText(families));
+    this.json = toBytes(renderJson(takenMillis, families));
+  }
+
+  /*
+   *  @return  Labels as name, value pairs for addCounter, addGauge and addHistogram.
+   */
+  public static String[] labels(String... namesAndValues) {
+    return namesAndValues;
+  }
+
+  public long getTakenMillis() {
+    return takenMillis;
+  }
+
+  /*
+   *  @return  Snapshot in Prometheus text exposition format. Caller must not modify it.
+   */
+  public byte[] getPrometheusText() {
+    return prometheusText;
+  }
+
+  /*
+   *  @return  Snapshot as JSON. Caller must not modify it.
+   */
+  public byte[] getJson() {
+    return json;
+  }
+
+  private static byte[] toBytes(StringBuilder text) {
+    try {
+      return text.toString().getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static StringBuilder renderPrometheusText(Iterable<Family> families) {
+    StringBuilder text = new StringBuilder();
+    for (Family family : families) {
+      String name = "counter".equals(family.type) ? family.name + "_total" : family.name;
+      text.append("# HELP ").append(name).append(' ')
+          .append(family.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+      text.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+      for (Sample sample : family.samples) {
+        if (null == sample.histogram) {
+          appendPrometheusSample(text, name, sample.labels, null, sample.value);
+          continue;
+        }
+        for (int i = 0; i < QUANTILES.length; i++) {
+          appendPrometheusSample(text, name, sample.labels, QUANTILE_LABELS[i],
+                                 sample.histogram.getPercentile(QUANTILES[i]));
+        }
+        appendPrometheusSample(text, name, sample.labels, "1", sample.histogram.getMax());
+        appendPrometheusSample(text, name + "_sum", sample.labels, null,
+                               sample.histogram.getTotalSum());
+        appendPrometheusSample(text, name + "_count", sample.labels, null,
+                               sample.histogram.getTotalCount());
+      }
+    }
+    return text;
+  }
+
+  /*
+   *  @param quantile  Value of quantile label, null if sample doesn't have one.
+   */
+  private static void appendPrometheusSample(StringBuilder text, String name, String[] labels,
+                                             String quantile, long value) {
+    text.append(name);
+    boolean hasLabels = null != labels && labels.length > 0;
+    if (hasLabels || null != quantile) {
+      text.append('{');
+      if (hasLabels) {
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+          if (i > 0) {
+            text.append(',');
+          }
+          appendPrometheusLabel(text, labels[i], labels[i + 1]);
+        }
+      }
+      if (null != quantile) {
+        if (hasLabels) {
+          text.append(',');
+        }
+        appendPrometheusLabel(text, "quantile", quantile);
+      }
+      text.append('}');
+    }
+    text.append(' ').append(value).append('\n');
+  }
+
+  private static void appendPrometheusLabel(StringBuilder text, String name, String value) {
+    text.append(name).append("=\"")
+        .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+        .append('"');
+  }
+
+  private static StringBuilder renderJson(long takenMillis, Iterable<Family> families) {
+    StringBuilder text = new StringBuilder();
+    text.append("{\"takenMillis\":").append(takenMillis).append(",\"metrics\":{");
+    boolean firstFamily = true;
+    for (Family family : families) {
+      if (!firstFamily) {
+        text.append(',');
+      }
+      firstFamily = false;
+      appendJsonString(text, family.name);
+      text.append(":[");
+      boolean firstSample = true;
+      for (Sample sample : family.samples) {
+        if (!firstSample) {
+          text.append(',');
+        }
+        firstSample = false;
+        text.append("{\"labels\":{");
+        if (null != sample.labels) {
+          for (int i = 0; i + 1 < sample.labels.length; i += 2) {
+            if (i > 0) {
+              text.append(',');
+            }
+            appendJsonString(text, sample.labels[i]);
+            text.append(':');
+            appendJsonString(text, sample.labels[i + 1]);
+          }
+        }
+        text.append('}');
+        if (null != sample.histogram) {
+          text.append(",\"count\":").append(sample.histogram.getCount())
+              .append(",\"sum\":").append(sample.histogram.getSum())
+              .append(",\"totalCount\":").append(sample.histogram.getTotalCount())
+              .append(",\"totalSum\":").append(sample.histogram.getTotalSum());
+          for (int i = 0; i < QUANTILES.length; i++) {
+            text.append(",\"").append(QUANTILE_NAMES[i]).append("\":")
+                .append(sample.histogram.getPercentile(QUANTILES[i]));
+          }
+          text.append(",\"max\":").append(sample.histogram.getMax());
+        } else if (null != sample.counts) {
+          text.append(",\"lastSecond\":").append(sample.counts.lastSecond)
+              .append(",\"lastMinute\":").append(sample.counts.lastMinute)
+              .append(",\"lastHour\":").append(sample.counts.lastHour)
+              .append(",\"total\":").append(sample.counts.total);
+        } else {
+          text.append(",\"value\":").append(sample.value);
+        }
+        text.append('}');
+      }
+      text.append(']');
+    }
+    text.append("}}");
+    return text;
+  }
+
+  public static void appendJsonString(StringBuilder text, String value) {
+    text.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        text.append('\\').append(c);
+      } else if (c < 0x20) {
+        text.append(String.format("\\u%04x", (int) c));
+      } else {
+        text.append(c);
+      }
+    }
+    text.append('"');
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* BackendPool unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import com.altiscale.TcpProxy.HttpTunnel.BackendConnection;
+import com.altiscale.TcpProxy.HttpTunnelTest.EchoHttpServer;
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.HttpMessage;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for BackendPool.
+ */
+public class BackendPoolTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public BackendPoolTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(BackendPoolTest.class);
+  }
+
+  public void testLimitsAndValidation() throws Exception {
+    ServerSocket listener = new ServerSocket(0);
+    Server server = new Server(new HostPort("localhost", listener.getLocalPort()));
+    ProxyConfiguration config = new ProxyConfiguration();
+    config.backendMaxIdlePerServer = 2;
+    config.backendMaxRequests = 5;
+    BackendPool pool = new BackendPool(config);
+
+    BackendConnection[] connections = new BackendConnection[3];
+    Socket[] accepted = new Socket[3];
+    for (int i = 0; i < 3; i++) {
+      connections[i] = new BackendConnection(server, false);
+      accepted[i] = listener.accept();
+      pool.put(connections[i]);
+    }
+    // Oldest idle connection was closed, most recently used comes first.
+    assert pool.getIdleCnt(server) == 2;
+    assert connections[0].socket.isClosed();
+    assert pool.take(server) == connections[2];
+
+    // Connection that carried enough requests isn't kept.
+    connections[2].requestCnt = 5;
+    pool.put(connections[2]);
+    assert connections[2].socket.isClosed();
+
+    // Server closed connection while it was idle.
+    accepted[1].close();
+    connections[1].idleSince -= 2000;
+    assert null == pool.take(server);
+    assert connections[1].socket.isClosed();
+    assert server.httpReusedCnt.getTotalCnt() == 1;
+
+    // Idle for too long.
+    BackendConnection stale = new BackendConnection(server, false);
+    listener.accept();
+    pool.put(stale);
+    config.backendIdleTimeoutSeconds = 0;
+    Thread.sleep(10);
+    pool.evictIdle();
+    assert pool.getIdleCnt(server) == 0;
+    assert stale.socket.isClosed();
+    listener.close();
+  }
+
+  public void testRedirectServersBounded() throws Exception {
+    ServerSocket listener = new ServerSocket(0);
+    BackendPool pool = new BackendPool(new ProxyConfiguration());
+    Server first = pool.getRedirectServer("localhost", listener.getLocalPort());
+    assert pool.getRedirectServer("localhost", listener.getLocalPort()) == first;
+    BackendConnection backend = new BackendConnection(first, false);
+    listener.accept();
+    pool.put(backend);
+
+    for (int i = 1; i < BackendPool.MAX_REDIRECT_SERVERS; i++) {
+      pool.getRedirectServer("datanode" + i, 1022);
+    }
+    // Recently used target stays, least recently used one is forgotten with its connections.
+    assert pool.getRedirectServer("localhost", listener.getLocalPort()) == first;
+    Server second = pool.getRedirectServer("datanode1", 1022);
+    pool.getRedirectServer("datanode" + BackendPool.MAX_REDIRECT_SERVERS, 1022);
+    assert pool.getRedirectServerCnt() == BackendPool.MAX_REDIRECT_SERVERS;
+    assert pool.getRedirectServer("localhost", listener.getLocalPort()) == first;
+    assert !backend.socket.isClosed();
+    assert pool.getRedirectServer("datanode1", 1022) == second;
+
+    for (int i = 0; i < BackendPool.MAX_REDIRECT_SERVERS; i++) {
+      pool.getRedirectServer("other" + i, 1022);
+    }
+    assert pool.getRedirectServer("localhost", listener.getLocalPort()) != first;
+    assert pool.getIdleCnt(first) == 0;
+    assert backend.socket.isClosed();
+    pool.close();
+    listener.close();
+  }
+
+  public void testConnectionsSharedBetweenClients() throws Exception {
+    EchoHttpServer echo = new EchoHttpServer("echo");
+    echo.start();
+    ArrayList<Server> servers = new ArrayList<Server>();
+    servers.add(new Server(new HostPort("localhost", echo.getPort())));
+    ProxyConfiguration config = new ProxyConfiguration();
+    BackendPool pool = new BackendPool(config);
+
+    for (int i = 0; i < 3; i++) {
+      Socket[] client = StripedSessionTest.socketPair();
+      HttpTunnel tunnel = new HttpTunnel(client[1], HttpTunnelTest.inOrder(servers), config);
+      tunnel.setBackendPool(pool);
+      tunnel.start();
+      // Short-lived client, like curl.
+      OutputStream output = client[0].getOutputStream();
+      output.write(("GET /file" + i + " HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+      output.flush();
+      InputStream input = new BufferedInputStream(client[0].getInputStream());
+      HttpMessage response = HttpMessage.readResponse(input);
+      assert response.getStatusCode() == 200;
+      assert !response.isKeepAlive();
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      response.copyBody(input, body, "GET");
+      assert body.toString().equals("echo /file" + i + " 0");
+      assert input.read() == -1;
+      client[0].close();
+    }
+    // All clients used the connection the first one opened.
+    assert echo.getAcceptedCnt() == 1;
+    assert servers.get(0).httpReusedCnt.getTotalCnt() == 2;
+    pool.close();
+    echo.serverSocket.close();
+  }
+}
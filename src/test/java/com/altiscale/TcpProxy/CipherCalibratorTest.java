@@ -0,0 +1,164 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* CipherCalibrator unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.JumpHost;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for CipherCalibrator using FakeSsh as local sshd stand-in.
+ */
+public class CipherCalibratorTest extends TestCase {
+  // Http server which reads everything we send and answers with a file of fileBytes, or with
+  // status alone if it isn't 200.
+  class SinkServer implements Runnable {
+    ServerSocket serverSocket;
+    int status;
+    int fileBytes;
+
+    public SinkServer(int status, int fileBytes) throws IOException {
+      serverSocket = new ServerSocket(0);
+      this.status = status;
+      this.fileBytes = fileBytes;
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          Socket socket = serverSocket.accept();
+          InputStream input = socket.getInputStream();
+          byte[] buffer = new byte[1024 * 8];
+          while (input.read(buffer) >= 0) {
+            // Drain.
+          }
+          OutputStream output = socket.getOutputStream();
+          int length = 200 == status ? fileBytes : 0;
+          output.write(("HTTP/1.1 " + status + " Status\r\nContent-Length: " + length +
+                        "\r\nConnection: close\r\n\r\n").getBytes());
+          output.write(new byte[length]);
+          socket.close();
+        }
+      } catch (IOException ioe) {
+        // Server socket closed.
+      }
+    }
+  }
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public CipherCalibratorTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(CipherCalibratorTest.class);
+  }
+
+  public void testCheckReply() {
+    assert null == CipherCalibrator.checkReply("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n");
+    assert null == CipherCalibrator.checkReply("not http");
+    assert CipherCalibrator.checkReply("HTTP/1.1 400 Bad Request\r\n")
+        .equals("server answered HTTP/1.1 400 Bad Request");
+    assert null != CipherCalibrator.checkReply("");
+  }
+
+  public void testSwitchMargin() {
+    CipherCalibrator.CalibrationResult current =
+        new CipherCalibrator.CalibrationResult("jumphost", "a", false);
+    current.bytes = 1000;
+    current.milliseconds = 1000;
+    CipherCalibrator.CalibrationResult faster =
+        new CipherCalibrator.CalibrationResult("jumphost", "b", false);
+    faster.bytes = 1050;
+    faster.milliseconds = 1000;
+    assert !CipherCalibrator.isFasterEnough(faster, current);
+    faster.bytes = 1100;
+    assert CipherCalibrator.isFasterEnough(faster, current);
+  }
+
+  private static byte[] getPayload() {
+    return "GET /webhdfs/v1/sample?op=OPEN HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes();
+  }
+
+  private CipherCalibrator calibrate(SinkServer sink, JumpHost jumphost) throws Exception {
+    Thread sinkThread = new Thread(sink);
+    sinkThread.start();
+    JumpHostGroup group = new JumpHostGroup(jumphost);
+    ArrayList<JumpHostGroup> groups = new ArrayList<JumpHostGroup>();
+    groups.add(group);
+
+    ServerSocket freePort = new ServerSocket(0);
+    int calibrationPort = freePort.getLocalPort();
+    freePort.close();
+
+    CipherCalibrator calibrator = new CipherCalibrator(
+        groups, new String[] {"slow-cipher", "fast-cipher"}, getPayload(), calibrationPort, 0);
+    calibrator.calibrate();
+    sink.serverSocket.close();
+    return calibrator;
+  }
+
+  public void testPicksFastestCipher() throws Exception {
+    SinkServer sink = new SinkServer(200, 1024 * 1024);
+    JumpHost jumphost = new JumpHost(new HostPort("localhost", -1),
+                                     new HostPort("localhost", sink.serverSocket.getLocalPort()),
+                                     null, null, false, "default-cipher",
+                                     FakeSsh.createSshBinary(), false);
+    CipherCalibrator calibrator = calibrate(sink, jumphost);
+
+    ArrayList<CipherCalibrator.CalibrationResult> results = calibrator.getResults();
+    assert results.size() == 4;
+    for (CipherCalibrator.CalibrationResult result : results) {
+      System.out.println(result);
+      assert null == result.error;
+      assert result.bytes > 1024 * 1024 + getPayload().length;
+    }
+    assert jumphost.ciphers.equals("fast-cipher");
+  }
+
+  public void testHttpErrorFailsMeasurement() throws Exception {
+    SinkServer sink = new SinkServer(400, 0);
+    JumpHost jumphost = new JumpHost(new HostPort("localhost", -1),
+                                     new HostPort("localhost", sink.serverSocket.getLocalPort()),
+                                     null, null, false, "default-cipher",
+                                     FakeSsh.createSshBinary(), false);
+    CipherCalibrator calibrator = calibrate(sink, jumphost);
+
+    for (CipherCalibrator.CalibrationResult result : calibrator.getResults()) {
+      assert result.error.startsWith("server answered HTTP/1.1 400");
+    }
+    assert jumphost.ciphers.equals("default-cipher");
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* ConnectionTable unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import com.altiscale.Util.HostPort;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for ConnectionTable.
+ */
+public class ConnectionTableTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public ConnectionTableTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ConnectionTableTest.class);
+  }
+
+  /*
+   *  Sends bytes from client through tunnel and reads them on server side.
+   */
+  private static void send(Socket[] client, Socket[] server, int bytes) throws Exception {
+    client[0].getOutputStream().write(new byte[bytes]);
+    InputStream input = server[1].getInputStream();
+    byte[] buffer = new byte[bytes];
+    int read = 0;
+    while (read < bytes) {
+      int cnt = input.read(buffer, read, bytes - read);
+      assert cnt > 0;
+      read += cnt;
+    }
+  }
+
+  public void testTopConnectionsByRate() throws Exception {
+    ConnectionTable table = new ConnectionTable();
+    Server server = new Server(new HostPort("localhost", 1));
+    server.setConnectionTable(table);
+
+    Socket[][] clients = new Socket[3][];
+    Socket[][] servers = new Socket[3][];
+    for (int i = 0; i < 3; i++) {
+      clients[i] = StripedSessionTest.socketPair();
+      servers[i] = StripedSessionTest.socketPair();
+      new TcpTunnel(clients[i][1], servers[i][0], server).spawnTunnelThreads();
+    }
+    assert table.size() == 3;
+    Thread.sleep(10);
+    send(clients[0], servers[0], 1000);
+    send(clients[2], servers[2], 5000);
+    // Tunnel counts bytes right after it writes them.
+    for (int i = 0; i < 100 && table.getTop("bytes", 3).get(0).clientBytes < 5000; i++) {
+      Thread.sleep(10);
+    }
+    for (int i = 0; i < 100 && table.getTop("bytes", 3).get(1).clientBytes < 1000; i++) {
+      Thread.sleep(10);
+    }
+    table.sampleRates();
+
+    ArrayList<ConnectionTable.Row> top = table.getTop("rate", 2);
+    assert top.size() == 2;
+    assert top.get(0).tunnel.getClientBytes() == 5000;
+    assert top.get(1).tunnel.getClientBytes() == 1000;
+    assert top.get(0).clientRate > top.get(1).clientRate;
+    assert table.getTop("bytes", 0).isEmpty();
+    String json = table.getJson("age", 1);
+    assert json.startsWith("{\"connectionCnt\":3,\"connections\":[{\"id\":1,");
+    assert json.contains("\"server\":\"localhost:1\"");
+    // All three connections come from one client address.
+    json = table.getTopClientsJson(5);
+    String address = clients[0][0].getLocalAddress().getHostAddress();
+    assert json.contains("\"connections\":[{\"client\":\"" + address + "\",\"count\":3,");
+    assert table.getTopClientsByBytes(5).get(0).count == 6000;
+
+    // Closed connections leave the table.
+    for (int i = 0; i < 3; i++) {
+      clients[i][0].close();
+      servers[i][1].close();
+    }
+    for (int i = 0; i < 100 && table.size() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assert table.size() == 0;
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* DedupCodec, DedupIndex and ChunkStore unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.altiscale.TcpProxy.PeerProtocol.Frame;
+import com.altiscale.Util.ContentChunker;
+import com.altiscale.Util.HostPort;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for DedupCodec with DedupIndex on sending side and ChunkStore on receiving side.
+ */
+public class DedupCodecTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public DedupCodecTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(DedupCodecTest.class);
+  }
+
+  private static byte[] random(int length, long seed) {
+    byte[] data = new byte[length];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+
+  private static Frame roundTrip(DedupCodec codec, DedupIndex index, ChunkStore store,
+                                 Server sender, byte[] data) throws Exception {
+    Frame frame = new Frame(PeerProtocol.FRAME_DATA, 3, data, data.length);
+    Frame encoded = DedupCodec.encode(frame, codec.split(data, data.length), index, sender);
+    assert encoded.type == PeerProtocol.FRAME_DEDUP;
+    Frame decoded = DedupCodec.decode(encoded, store, null);
+    assert decoded.type == PeerProtocol.FRAME_DATA;
+    assert decoded.seq == 3;
+    assert Arrays.equals(data, Arrays.copyOf(decoded.data, decoded.length));
+    return encoded;
+  }
+
+  public void testRepeatedDataSentAsReferences() throws Exception {
+    DedupCodec codec = new DedupCodec(new ContentChunker(512, 2048, 8192), null);
+    ChunkStore store = new ChunkStore(1024 * 1024, 8192, null, 0);
+    DedupIndex index = new DedupIndex(store.getSlotCount());
+    Server sender = new Server(new HostPort("localhost", 12345));
+
+    byte[] data = random(64 * 1024, 42);
+    Frame first = roundTrip(codec, index, store, sender, data);
+    assert first.length > data.length;
+    assert sender.dedupHitCnt.getTotalCnt() == 0;
+
+    Frame second = roundTrip(codec, index, store, sender, data);
+    assert second.length < data.length / 50;
+    assert sender.dedupHitCnt.getTotalCnt() == sender.dedupChunkCnt.getTotalCnt() / 2;
+    assert sender.dedupSavedByteCnt.getTotalCnt() == data.length;
+  }
+
+  // Splits data read in pieces of pieceBytes and returns fingerprints of its chunks.
+  private static ArrayList<ByteBuffer> splitInPieces(DedupCodec codec, byte[] data,
+                                                     int pieceBytes) {
+    ArrayList<ByteBuffer> fingerprints = new ArrayList<ByteBuffer>();
+    DedupCodec.StreamSplitter splitter = codec.newStreamSplitter();
+    for (int offset = 0; offset < data.length; offset += pieceBytes) {
+      int length = Math.min(pieceBytes, data.length - offset);
+      DedupCodec.Split split = splitter.add(Arrays.copyOfRange(data, offset, offset + length),
+                                            length);
+      if (null != split) {
+        for (DedupCodec.Chunk chunk : split.chunks) {
+          assert chunk.length <= codec.getMaxChunkBytes();
+          fingerprints.add(chunk.fingerprint);
+        }
+      }
+    }
+    DedupCodec.Split last = splitter.flush();
+    if (null != last) {
+      fingerprints.add(last.chunks.get(0).fingerprint);
+    }
+    return fingerprints;
+  }
+
+  public void testChunksDontDependOnReadSizes() throws Exception {
+    DedupCodec codec = new DedupCodec(new ContentChunker(512, 2048, 8192), null);
+    byte[] data = random(256 * 1024, 11);
+    ArrayList<ByteBuffer> whole = splitInPieces(codec, data, data.length);
+    assert whole.size() > 30;
+    int[] pieceSizes = {1, 100, 1460, 4096, 10000};
+    for (int pieceBytes : pieceSizes) {
+      assert whole.equals(splitInPieces(codec, data, pieceBytes));
+    }
+  }
+
+  public void testEvictionKeepsBothSidesInSync() throws Exception {
+    FrameCompressor compressor = new FrameCompressor("lz4", 0.1, 1);
+    DedupCodec codec = new DedupCodec(new ContentChunker(512, 2048, 8192), compressor);
+    File diskFile = File.createTempFile("chunks-", ".dat");
+    // Store with only a few slots in memory and a few more on disk, so chunks get evicted
+    // and reloaded from disk.
+    ChunkStore store = new ChunkStore(4 * 8192, 8192, diskFile, 40 * (8192 + 4));
+    assert store.getSlotCount() == 40;
+    DedupIndex index = new DedupIndex(store.getSlotCount());
+
+    Random random = new Random(7);
+    byte[][] blocks = new byte[8][];
+    for (int i = 0; i < blocks.length; i++) {
+      blocks[i] = random(16 * 1024, i);
+      // Make every other block compressible.
+      if (i % 2 == 0) {
+        Arrays.fill(blocks[i], 0, 8 * 1024, (byte) 'x');
+      }
+    }
+    for (int i = 0; i < 200; i++) {
+      roundTrip(codec, index, store, null, blocks[random.nextInt(blocks.length)]);
+    }
+    assert index.size() <= 40;
+    store.close();
+    assert !diskFile.exists();
+    compressor.shutdown();
+  }
+
+  public void testIndexEvictsLeastRecentlyUsed() throws Exception {
+    DedupIndex index = new DedupIndex(2);
+    ByteBuffer a = ByteBuffer.wrap(new byte[] {1});
+    ByteBuffer b = ByteBuffer.wrap(new byte[] {2});
+    ByteBuffer c = ByteBuffer.wrap(new byte[] {3});
+    int slotA = index.insert(a);
+    int slotB = index.insert(b);
+    assert slotA != slotB;
+    assert index.lookup(a) == slotA;
+    // b is least recently used now, so c takes its slot.
+    assert index.insert(c) == slotB;
+    assert index.lookup(b) == -1;
+    assert index.lookup(a) == slotA;
+  }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* Local sshd stand-in used in tests via --ssh_binary. */
+package com.altiscale.TcpProxy;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * FakeSsh understands the subset of ssh command line we generate in
+ * Server.sshJumphostCommand() and forwards local port to destination host:port directly,
+ * without a jumphost. Ciphers containing "slow" throttle the transfer so tests can tell
+ * candidate ciphers apart.
+ */
+public class FakeSsh {
+  static class Pipe implements Runnable {
+    Socket source;
+    Socket destination;
+    boolean slow;
+
+    Pipe(Socket source, Socket destination, boolean slow) {
+      this.source = source;
+      this.destination = destination;
+      this.slow = slow;
+    }
+
+    public void run() {
+      try {
+        InputStream input = source.getInputStream();
+        OutputStream output = destination.getOutputStream();
+        byte[] buffer = new byte[1024 * 8];
+        int cnt = 0;
+        while ((cnt = input.read(buffer)) >= 0) {
+          output.write(buffer, 0, cnt);
+          if (slow) {
+            Thread.sleep(2);
+          }
+        }
+        destination.shutdownOutput();
+      } catch (Exception e) {
+        try {
+          source.close();
+          destination.close();
+        } catch (IOException ioe) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  /*
+   *  Writes a shell script which runs FakeSsh with our classpath, to be used as ssh binary.
+   */
+  public static String createSshBinary() throws IOException {
+    File script = File.createTempFile("fake-ssh", ".sh");
+    script.deleteOnExit();
+    FileWriter writer = new FileWriter(script);
+    writer.write("#!/bin/sh\n" +
+                 "exec " + System.getProperty("java.home") + "/bin/java -cp " +
+                 System.getProperty("java.class.path") + " " + FakeSsh.class.getName() +
+                 " \"$@\"\n");
+    writer.close();
+    script.setExecutable(true);
+    return script.getAbsolutePath();
+  }
+
+  public static void main(String[] args) throws Exception {
+    String forward = null;
+    boolean slow = false;
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals("-L")) {
+        forward = args[i + 1];
+      } else if (args[i].equals("-c")) {
+        slow = args[i + 1].contains("slow");
+      }
+    }
+    // Forward spec is [*:]PORT:HOST:HOSTPORT.
+    String[] parts = forward.split(":");
+    int offset = parts.length - 3;
+    int port = Integer.parseInt(parts[offset]);
+    String host = parts[offset + 1];
+    int hostPort = Integer.parseInt(parts[offset + 2]);
+
+    ServerSocket serverSocket = new ServerSocket(port);
+    while (true) {
+      Socket client = serverSocket.accept();
+      Socket server = new Socket(host, hostPort);
+      new Thread(new Pipe(client, server, slow)).start();
+      new Thread(new Pipe(server, client, slow)).start();
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* FrameCompressor and CompressionPipeline unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.altiscale.TcpProxy.PeerProtocol.Frame;
+import com.altiscale.Util.HostPort;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for FrameCompressor and CompressionPipeline.
+ */
+public class FrameCompressorTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public FrameCompressorTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(FrameCompressorTest.class);
+  }
+
+  // Text-like payload which compresses well.
+  private static byte[] compressible(int length) {
+    byte[] data = new byte[length];
+    byte[] line = "GET /webhdfs/v1/user/data/part-00042?op=OPEN HTTP/1.1\r\n".getBytes();
+    for (int i = 0; i < length; i++) {
+      data[i] = line[i % line.length];
+    }
+    return data;
+  }
+
+  private static byte[] random(int length) {
+    byte[] data = new byte[length];
+    new Random(42).nextBytes(data);
+    return data;
+  }
+
+  public void testRoundTrip() throws Exception {
+    for (String codec : new String[] {"lz4", "deflate"}) {
+      FrameCompressor compressor = new FrameCompressor(codec, 0.1, 1);
+      byte[] data = compressible(64 * 1024);
+      Frame frame = new Frame(PeerProtocol.FRAME_DATA, 5, data, data.length);
+      Frame compressed = compressor.compress(frame);
+      assert compressed.type == PeerProtocol.FRAME_COMPRESSED;
+      assert compressed.seq == 5;
+      assert compressed.length < data.length / 4;
+      assert FrameCompressor.getLogicalLength(compressed) == data.length;
+
+      Frame decompressed = FrameCompressor.decompress(compressed);
+      assert decompressed.type == PeerProtocol.FRAME_DATA;
+      assert decompressed.length == data.length;
+      assert Arrays.equals(data, decompressed.data);
+      compressor.shutdown();
+    }
+  }
+
+  public void testIncompressibleAndSmallFramesSentAsTheyAre() throws Exception {
+    FrameCompressor compressor = new FrameCompressor("lz4", 0.1, 1);
+    Frame randomFrame = new Frame(PeerProtocol.FRAME_DATA, 0, random(64 * 1024), 64 * 1024);
+    assert compressor.compress(randomFrame) == randomFrame;
+    Frame smallFrame = new Frame(PeerProtocol.FRAME_DATA, 1, compressible(100), 100);
+    assert compressor.compress(smallFrame) == smallFrame;
+    Frame fin = new Frame(PeerProtocol.FRAME_FIN, 2, null, 0);
+    assert compressor.compress(fin) == fin;
+    assert FrameCompressor.decompress(fin) == fin;
+    compressor.shutdown();
+  }
+
+  public void testPipelineKeepsOrderAndBacksOff() throws Exception {
+    FrameCompressor compressor = new FrameCompressor("lz4", 0.1, 4);
+    final ArrayList<Frame> sent = new ArrayList<Frame>();
+    CompressionPipeline pipeline = new CompressionPipeline(compressor,
+        new CompressionPipeline.Sink() {
+          public void put(Frame frame, int logicalBytes) {
+            sent.add(frame);
+          }
+        }, 4);
+
+    final int NUM_FRAMES = 40;
+    for (int i = 0; i < NUM_FRAMES; i++) {
+      byte[] data = compressible(16 * 1024);
+      pipeline.add(new Frame(PeerProtocol.FRAME_DATA, i, data, data.length));
+    }
+    pipeline.flush();
+    assert sent.size() == NUM_FRAMES;
+    for (int i = 0; i < NUM_FRAMES; i++) {
+      assert sent.get(i).seq == i;
+      assert sent.get(i).type == PeerProtocol.FRAME_COMPRESSED;
+    }
+
+    // Incompressible frames make the pipeline skip more and more frames.
+    sent.clear();
+    for (int i = 0; i < NUM_FRAMES; i++) {
+      byte[] data = random(16 * 1024);
+      pipeline.add(new Frame(PeerProtocol.FRAME_DATA, i, data, data.length));
+      pipeline.flush();
+    }
+    assert sent.size() == NUM_FRAMES;
+    for (Frame frame : sent) {
+      assert frame.type == PeerProtocol.FRAME_DATA;
+    }
+    compressor.shutdown();
+  }
+
+  public void testCompressedStripedSession() throws Exception {
+    FrameCompressor compressor = new FrameCompressor("deflate", 0.1, 2);
+    Socket[] client = StripedSessionTest.socketPair();
+    Socket[] server = StripedSessionTest.socketPair();
+    Socket[] subflow = StripedSessionTest.socketPair();
+    ArrayList<Socket> nearSubflows = new ArrayList<Socket>(Arrays.asList(subflow[0]));
+    ArrayList<Socket> farSubflows = new ArrayList<Socket>(Arrays.asList(subflow[1]));
+    Server tunnel = new Server(new HostPort("localhost", 12345));
+    ArrayList<Server> nearServers = new ArrayList<Server>(Arrays.asList(tunnel));
+    ArrayList<Server> farServers = new ArrayList<Server>();
+    farServers.add(null);
+
+    new StripedSession(1, client[1], null, nearSubflows, nearServers, 32 * 1024, 1024 * 1024,
+                       compressor).start();
+    new StripedSession(1, server[0], null, farSubflows, farServers, 32 * 1024, 1024 * 1024,
+                       null).start();
+
+    byte[] request = compressible(1024 * 1024);
+    OutputStream output = client[0].getOutputStream();
+    output.write(request);
+    client[0].shutdownOutput();
+    byte[] received = StripedSessionTest.readAll(server[1].getInputStream());
+    server[1].close();
+    StripedSessionTest.readAll(client[0].getInputStream());
+    client[0].close();
+
+    assert Arrays.equals(request, received);
+    assert tunnel.byteRateCnt.getTotalCnt() == request.length;
+    assert tunnel.wireByteRateCnt.getTotalCnt() < request.length / 4;
+    compressor.shutdown();
+  }
+}
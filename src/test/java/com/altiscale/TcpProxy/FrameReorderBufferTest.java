@@ -0,0 +1,110 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* FrameReorderBuffer unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+
+import com.altiscale.TcpProxy.PeerProtocol.Frame;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for FrameReorderBuffer.
+ */
+public class FrameReorderBufferTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public FrameReorderBufferTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(FrameReorderBufferTest.class);
+  }
+
+  private Frame newFrame(long seq, int length) {
+    return new Frame(PeerProtocol.FRAME_DATA, seq, new byte[length], length);
+  }
+
+  public void testReorders() throws Exception {
+    FrameReorderBuffer buffer = new FrameReorderBuffer(1000);
+    buffer.put(newFrame(2, 10));
+    buffer.put(newFrame(0, 10));
+    buffer.put(newFrame(1, 10));
+    assert buffer.getBufferedBytes() == 30;
+    assert buffer.take().seq == 0;
+    assert buffer.take().seq == 1;
+    assert buffer.take().seq == 2;
+    assert buffer.getBufferedBytes() == 0;
+    assert buffer.getMaxBufferedBytes() == 30;
+  }
+
+  public void testNextFrameAdmittedWhenFull() throws Exception {
+    FrameReorderBuffer buffer = new FrameReorderBuffer(100);
+    buffer.put(newFrame(1, 100));
+    // Buffer is full, but frame 0 is the one consumer waits for.
+    buffer.put(newFrame(0, 100));
+    assert buffer.take().seq == 0;
+    assert buffer.take().seq == 1;
+  }
+
+  public void testOutOfOrderFrameBlocksWhenFull() throws Exception {
+    final FrameReorderBuffer buffer = new FrameReorderBuffer(100);
+    buffer.put(newFrame(1, 100));
+    Thread producer = new Thread(new Runnable() {
+      public void run() {
+        try {
+          buffer.put(newFrame(2, 100));
+        } catch (Exception e) {
+          // Expected when we close the buffer.
+        }
+      }
+    });
+    producer.start();
+    producer.join(200);
+    assert producer.isAlive();
+    assert buffer.getBufferedBytes() == 100;
+
+    buffer.put(newFrame(0, 10));
+    assert buffer.take().seq == 0;
+    assert buffer.take().seq == 1;
+    producer.join(5000);
+    assert !producer.isAlive();
+    assert buffer.take().seq == 2;
+  }
+
+  public void testDuplicateFrame() throws Exception {
+    FrameReorderBuffer buffer = new FrameReorderBuffer(100);
+    buffer.put(newFrame(0, 10));
+    buffer.take();
+    try {
+      buffer.put(newFrame(0, 10));
+      assert false;
+    } catch (IOException ioe) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,903 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* HttpTunnel unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.HttpMessage;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for HttpTunnel with simple local HTTP servers instead of ssh tunnels.
+ */
+public class HttpTunnelTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public HttpTunnelTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(HttpTunnelTest.class);
+  }
+
+  /*
+   *  HTTP server that answers each request with its name, request uri and number of request
+   *  body bytes it received, and keeps connections open unless client asks otherwise.
+   */
+  static class EchoHttpServer extends Thread {
+    ServerSocket serverSocket;
+    String name;
+    int acceptedCnt;
+
+    EchoHttpServer(String name) throws IOException {
+      this.serverSocket = new ServerSocket(0);
+      this.name = name;
+      setDaemon(true);
+    }
+
+    int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+          synchronized (this) {
+            acceptedCnt++;
+          }
+          Thread handler = new Thread() {
+            public void run() {
+              serve(socket);
+            }
+          };
+          handler.setDaemon(true);
+          handler.start();
+        }
+      } catch (IOException e) {
+        // Server socket closed.
+      }
+    }
+
+    void serve(Socket socket) {
+      try {
+        InputStream input = new BufferedInputStream(socket.getInputStream());
+        OutputStream output = socket.getOutputStream();
+        HttpMessage request = null;
+        while (null != (request = HttpMessage.readRequest(input))) {
+          ByteArrayOutputStream body = new ByteArrayOutputStream();
+          request.copyBody(input, body, null);
+          respond(request, body.toByteArray(), output);
+          output.flush();
+          if (!request.isKeepAlive()) {
+            break;
+          }
+        }
+        socket.close();
+      } catch (IOException e) {
+        // Connection closed.
+      }
+    }
+
+    void respond(HttpMessage request, byte[] body, OutputStream output) throws IOException {
+      byte[] text = (name + " " + request.getUri() + " " + body.length).getBytes();
+      HttpMessage response = HttpMessage.newResponse(200, "OK");
+      response.setHeader("Content-Length", Integer.toString(text.length));
+      response.writeHead(output);
+      output.write(text);
+    }
+
+    synchronized int getAcceptedCnt() {
+      return acceptedCnt;
+    }
+  }
+
+  /*
+   *  Serves one file with WebHDFS GETFILESTATUS and OPEN with offset and length, and counts
+   *  OPEN requests.
+   */
+  static class WebHdfsServer extends EchoHttpServer {
+    byte[] file;
+    int openCnt;
+    volatile long modificationTime = 1;
+
+    WebHdfsServer(byte[] file) throws IOException {
+      super("webhdfs");
+      this.file = file;
+    }
+
+    @Override
+    void respond(HttpMessage request, byte[] body, OutputStream output) throws IOException {
+      String op = request.getQueryParameter("op");
+      byte[] data = null;
+      if ("GETFILESTATUS".equals(op)) {
+        data = ("{\"FileStatus\":{\"length\":" + file.length + ",\"modificationTime\":" +
+                modificationTime + ",\"type\":\"FILE\"}}").getBytes();
+      } else {
+        synchronized (this) {
+          openCnt++;
+        }
+        String offset = request.getQueryParameter("offset");
+        String length = request.getQueryParameter("length");
+        int start = null == offset ? 0 : Integer.parseInt(offset);
+        int end = null == length ? file.length
+                                 : Math.min(file.length, start + Integer.parseInt(length));
+        data = Arrays.copyOfRange(file, start, end);
+      }
+      HttpMessage response = HttpMessage.newResponse(200, "OK");
+      response.setHeader("Content-Length", Integer.toString(data.length));
+      response.writeHead(output);
+      output.write(data);
+    }
+
+    synchronized int getOpenCnt() {
+      return openCnt;
+    }
+  }
+
+  /*
+   *  Stands in for a namenode, redirects every request to the same uri on another port.
+   */
+  static class RedirectingServer extends EchoHttpServer {
+    int targetPort;
+
+    RedirectingServer(int targetPort) throws IOException {
+      super("namenode");
+      this.targetPort = targetPort;
+    }
+
+    @Override
+    void respond(HttpMessage request, byte[] body, OutputStream output) throws IOException {
+      byte[] text = "redirect".getBytes();
+      HttpMessage response = HttpMessage.newResponse(307, "Temporary Redirect");
+      response.setHeader("Location", "http://localhost:" + targetPort + request.getUri());
+      response.setHeader("Content-Length", Integer.toString(text.length));
+      response.writeHead(output);
+      output.write(text);
+    }
+  }
+
+  /*
+   *  WebHdfsServer that fails in the middle of each OPEN response, like a tunnel that died.
+   */
+  static class FailingWebHdfsServer extends WebHdfsServer {
+    int failAfterBytes;
+
+    FailingWebHdfsServer(byte[] file, int failAfterBytes) throws IOException {
+      super(file);
+      this.failAfterBytes = failAfterBytes;
+    }
+
+    @Override
+    void respond(HttpMessage request, byte[] body, OutputStream output) throws IOException {
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      super.respond(request, body, response);
+      output.write(response.toByteArray(), 0, Math.min(failAfterBytes, response.size()));
+      output.close();
+    }
+  }
+
+  // Load balancer that picks servers in order.
+  static TcpProxyServer.LoadBalancer inOrder(final ArrayList<Server> servers) {
+    return new TcpProxyServer.LoadBalancer() {
+      private int next = 0;
+
+      @Override
+      public synchronized Server getServer() {
+        return servers.get(next++ % servers.size());
+      }
+    };
+  }
+
+  private static String readResponseBody(InputStream input) throws IOException {
+    HttpMessage response = HttpMessage.readResponse(input);
+    assert response.getStatusCode() == 200;
+    assert response.isKeepAlive();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    response.copyBody(input, body, "GET");
+    return body.toString();
+  }
+
+  public void testRequestsOnOneConnectionGoToAllServers() throws Exception {
+    EchoHttpServer first = new EchoHttpServer("first");
+    EchoHttpServer second = new EchoHttpServer("second");
+    first.start();
+    second.start();
+    ArrayList<Server> servers = new ArrayList<Server>();
+    servers.add(new Server(new HostPort("localhost", first.getPort())));
+    servers.add(new Server(new HostPort("localhost", second.getPort())));
+    Socket[] client = StripedSessionTest.socketPair();
+    new HttpTunnel(client[1], inOrder(servers), new ProxyConfiguration()).start();
+    OutputStream output = client[0].getOutputStream();
+    InputStream input = new BufferedInputStream(client[0].getInputStream());
+
+    for (int i = 0; i < 6; i++) {
+      if (i % 2 == 0) {
+        output.write(("GET /file" + i + " HTTP/1.1\r\nHost: x\r\n\r\n").getBytes());
+      } else {
+        output.write(("PUT /file" + i + " HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                      "4\r\nabcd\r\n2\r\nef\r\n0\r\n\r\n").getBytes());
+      }
+      output.flush();
+      String body = readResponseBody(input);
+      // Chunked body reaches the server as it is, 21 bytes with chunk headers.
+      String expected = (i % 2 == 0 ? "first" : "second") + " /file" + i + " " +
+                        (i % 2 == 0 ? 0 : 21);
+      assert body.equals(expected) : body;
+    }
+    client[0].close();
+
+    // Each server saw one connection that carried all its requests.
+    assert first.getAcceptedCnt() == 1;
+    assert second.getAcceptedCnt() == 1;
+    for (Server server : servers) {
+      assert server.httpResponseCnt.getTotalCnt() == 3;
+      assert server.httpStatusCnt[2].getTotalCnt() == 3;
+    }
+    first.serverSocket.close();
+    second.serverSocket.close();
+  }
+
+  public void testClientCountedInConnectionTable() throws Exception {
+    EchoHttpServer echo = new EchoHttpServer("echo");
+    echo.start();
+    ArrayList<Server> servers = new ArrayList<Server>();
+    servers.add(new Server(new HostPort("localhost", echo.getPort())));
+    ConnectionTable table = new ConnectionTable();
+    Socket[] client = StripedSessionTest.socketPair();
+    HttpTunnel tunnel = new HttpTunnel(client[1], inOrder(servers), new ProxyConfiguration());
+    tunnel.setConnectionTable(table);
+    tunnel.start();
+    OutputStream output = client[0].getOutputStream();
+    InputStream input = new BufferedInputStream(client[0].getInputStream());
+
+    byte[] request = "GET /file HTTP/1.1\r\nHost: x\r\n\r\n".getBytes();
+    output.write(request);
+    output.flush();
+    assert readResponseBody(input).equals("echo /file 0");
+    assert table.size() == 1;
+    String address = client[0].getLocalAddress().getHostAddress();
+    client[0].close();
+    for (int i = 0; i < 100 && table.size() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assert table.size() == 0;
+
+    // Closed connection counts its request and response for top clients.
+    assert table.getTopClientsByBytes(5).get(0).key.equals(address);
+    assert table.getTopClientsByBytes(5).get(0).count > request.length;
+    assert table.getTopClientsJson(5).contains(
+        "\"connections\":[{\"client\":\"" + address + "\",\"count\":1,");
+    echo.serverSocket.close();
+  }
+
+  public void testRedirectsFollowedOnKeptAliveConnection() throws Exception {
+    byte[] file = "0123456789".getBytes();
+    WebHdfsServer datanode = new WebHdfsServer(file);
+    datanode.start();
+    RedirectingServer namenode = new RedirectingServer(datanode.getPort());
+    namenode.start();
+    ArrayList<Server> servers = new ArrayList<Server>();
+    servers.add(new Server(new HostPort("localhost", namenode.getPort())));
+    ProxyConfiguration config = new ProxyConfiguration();
+    config.followRedirects = true;
+
+    Socket[] client = StripedSessionTest.socketPair();
+    new HttpTunnel(client[1], inOrder(servers), config).start();
+    OutputStream output = client[0].getOutputStream();
+    InputStream input = new BufferedInputStream(client[0].getInputStream());
+    for (int i = 0; i < 3; i++) {
+      output.write(("GET /webhdfs/v1/f?op=OPEN&offset=" + i + " HTTP/1.1\r\n\r\n").getBytes());
+      output.flush();
+      assert readResponseBody(input).equals(new String(file).substring(i));
+    }
+    // Client got data without seeing redirects, and both servers kept their connections: one
+    // for the download and one for file status we check before resuming a download.
+    assert datanode.getOpenCnt() == 3;
+    assert datanode.getAcceptedCnt() == 2;
+    assert namenode.getAcceptedCnt() == 2;
+    // Status requests are redirected too.
+    assert servers.get(0).httpRedirectCnt.getTotalCnt() == 3 + 3;
+
+    // Upload body goes to redirect target, so client gets the redirect.
+    output.write("PUT /webhdfs/v1/f?op=CREATE HTTP/1.1\r\nContent-Length: 0\r\n\r\n"
+                 .getBytes());
+    output.flush();
+    HttpMessage response = HttpMessage.readResponse(input);
+    assert response.getStatusCode() == 307;
+    response.copyBody(input, new ByteArrayOutputStream(), "PUT");
+
+    // Client also gets the redirect when its target is down.
+    datanode.serverSocket.close();
+    ServerSocket unused = new ServerSocket(0);
+    namenode.targetPort = unused.getLocalPort();
+    unused.close();
+    output.write("GET /webhdfs/v1/f?op=OPEN HTTP/1.1\r\n\r\n".getBytes());
+    output.flush();
+    response = HttpMessage.readResponse(input);
+    assert response.getStatusCode() == 307;
+    assert response.getContentLength() == 0;
+    assert response.isKeepAlive();
+    client[0].close();
+    namenode.serverSocket.close();
+  }
+
+  public void testMetadataCachedUntilPathChanges() throws Exception {
+    EchoHttpServer echo = new EchoHttpServer("echo");
+    echo.start();
+    ArrayList<Server> servers = new ArrayList<Server>();
+    servers.add(new Server(new HostPort("localhost", echo.getPort())));
+    Socket[] client = StripedSessionTest.socketPair();
+    HttpTunnel tunnel = new HttpTunnel(client[1], inOrder(servers), new ProxyConfiguration());
+    MetadataCache cache = new MetadataCache(60 * 1000, 1000 * 1000);
+    tunnel.setMetadataCache(cache);
+    tunnel.start();
+    OutputStream output = client[0].getOutputStream();
+    InputStream input = new BufferedInputStream(client[0].getInputStream());
+
+    String[] requests = {"GET /webhdfs/v1/d/f?op=LISTSTATUS",
+                         "GET /webhdfs/v1/d/f?op=LISTSTATUS",
+                         "PUT /webhdfs/v1/d?op=MKDIRS",
+                         "GET /webhdfs/v1/d/f?op=LISTSTATUS",
+                         "GET /webhdfs/v1/d/f?op=LISTSTATUS"};
+    for (String request : requests) {
+      output.write((request + " HTTP/1.1\r\n\r\n").getBytes());
+      output.flush();
+      String uri = request.substring(request.indexOf(' ') + 1);
+      assert readResponseBody(input).equals("echo " + uri + " 0");
+    }
+    // Server saw first listing, MKDIRS and listing after it.
+    assert servers.get(0).httpResponseCnt.getTotalCnt() == 3;
+    assert cache.hitCnt.getTotalCnt() == 2;
+    assert cache.missCnt.getTotalCnt() == 2;
+    client[0].close();
+    echo.serverSocket.close();
+  }
+
+  public void testRepeatedReadsServedFromBlockCache() throws Exception {
+    byte[] file = new byte[100 * 1000];
+    new Random(7).nextBytes(file);
+    WebHdfsServer webHdfs = new WebHdfsServer(file);
+    webHdfs.start();
+    ArrayList<Server> servers = new ArrayList<Server>();
+    servers.add(new Server(new HostPort("localhost", webHdfs.getPort())));
+    File directory = File.createTempFile("blockCache", null);
+    directory.delete();
+    directory.mkdir();
+    // Room for four blocks.
+    BlockCache cache = new BlockCache(directory, 4 * 16 * 1024, 16 * 1024);
+    // Reads are big enough to fetch missing blocks in parallel, four at a time.
+    ProxyConfiguration config = new ProxyConfiguration();
+    config.rangedOpenMinBytes = 1;
+    config.rangedOpenReorderBytes = 4 * 16 * 1024;
+
+    Socket[] client = StripedSessionTest.socketPair();
+    HttpTunnel tunnel = new HttpTunnel(client[1], inOrder(servers), config);
+    tunnel.setBlockCache(cache);
+    tunnel.start();
+    OutputStream output = client[0].getOutputStream();
+    InputStream input = new BufferedInputStream(client[0].getInputStream());
+    for (int i = 0; i < 2; i++) {
+      output.write("GET /webhdfs/v1/f?op=OPEN&offset=1000&length=50000 HTTP/1.1\r\n\r\n"
+                   .getBytes());
+      output.flush();
+      HttpMessage response = HttpMessage.readResponse(input);
+      assert response.getStatusCode() == 200;
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      response.copyBody(input, body, "GET");
+      assert Arrays.equals(body.toByteArray(), Arrays.copyOfRange(file, 1000, 51000));
+      // First read fetched four whole blocks, second one came from disk.
+      assert webHdfs.getOpenCnt() == 4;
+    }
+    assert cache.hitByteCnt.getTotalCnt() == 50000;
+    assert cache.missByteCnt.getTotalCnt() == 4 * 16 * 1024;
+
+    // End of file needs two more blocks, which evict the two least recently used.
+    output.write("GET /webhdfs/v1/f?op=OPEN&offset=90000 HTTP/1.1\r\n\r\n".getBytes());
+    output.flush();
+    HttpMessage response = HttpMessage.readResponse(input);
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    response.copyBody(input, body, "GET");
+    assert Arrays.equals(body.toByteArray(), Arrays.copyOfRange(file, 90000, file.length));
+    assert cache.evictionCnt.getTotalCnt() == 2;
+    assert cache.getBlockCnt() == 4;
+    assert directory.list().length == 4;
+
+    // Empty read at start of a block still gets a response.
+    output.write("GET /webhdfs/v1/f?op=OPEN&offset=16384&length=0 HTTP/1.1\r\n\r\n".getBytes());
+    output.flush();
+    response = HttpMessage.readResponse(input);
+    assert response.getStatusCode() == 200;
+    body = new ByteArrayOutputStream();
+    response.copyBody(input, body, "GET");
+    assert body.size() == 0;
+
+    // Blocks other user's read fetched aren't served to this one.
+    int openCnt = webHdfs.getOpenCnt();
+    long hitBytes = cache.hitByteCnt.getTotalCnt();
+    output.write("GET /webhdfs/v1/f?op=OPEN&offset=90000&user.name=other HTTP/1.1\r\n\r\n"
+                 .getBytes());
+    output.flush();
+    response = HttpMessage.readResponse(input);
+    body = new ByteArrayOutputStream();
+    response.copyBody(input, body, "GET");
+    assert Arrays.equals(body.toByteArray(), Arrays.copyOfRange(file, 90000, file.length));
+    assert webHdfs.getOpenCnt() == openCnt + 2;
+    assert cache.hitByteCnt.getTotalCnt() == hitBytes;
+
+    client[0].close();
+    webHdfs.serverSocket.close();
+    for (File block : directory.listFiles()) {
+      block.delete();
+    }
+    directory.delete();
+  }
+
+  public void testSequentialReadsServedFromReadAhead() throws Exception {
+    byte[] file = new byte[100 * 1000];
+    new Random(11).nextBytes(file);
+    WebHdfsServer webHdfs = new WebHdfsServer(file);
+    webHdfs.start();
+    ArrayList<Server> servers = new ArrayList<Server>();
+    servers.add(new Server(new HostPort("localhost", webHdfs.getPort())));
+    ProxyConfiguration config = new ProxyConfiguration();
+    config.prefetchMaxBytes = 10000;
+
+    Socket[] client = StripedSessionTest.socketPair();
+    new HttpTunnel(client[1], inOrder(servers), config).start();
+    OutputStream output = client[0].getOutputStream();
+    InputStream input = new BufferedInputStream(client[0].getInputStream());
+    // Nine consecutive ranges, then back to the start of the file.
+    int[] offsets = {0, 10000, 20000, 30000, 40000, 50000, 60000, 70000, 80000, 0};
+    for (int offset : offsets) {
+      output.write(("GET /webhdfs/v1/f?op=OPEN&offset=" + offset + "&length=10000 " +
+                    "HTTP/1.1\r\n\r\n").getBytes());
+      output.flush();
+      HttpMessage response = HttpMessage.readResponse(input);
+      assert response.getStatusCode() == 200;
+      assert response.isKeepAlive();
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      response.copyBody(input, body, "GET");
+      assert Arrays.equals(body.toByteArray(), Arrays.copyOfRange(file, offset, offset + 10000));
+    }
+    client[0].close();
+
+    // Second read started reading ahead, so third to ninth came from ranges read ahead. Range
+    // read ahead after the ninth wasn't used.
+    Server server = servers.get(0);
+    for (int i = 0; i < 100 && server.prefetchWastedByteCnt.getTotalCnt() == 0; i++) {
+      Thread.sleep(20);
+    }
+    assert server.prefetchWastedByteCnt.getTotalCnt() == 10000;
+    assert server.prefetchByteCnt.getTotalCnt() == 8 * 10000;
+    assert webHdfs.getOpenCnt() == 3 + 8;
+    // Served and wasted ranges went back to the budget.
+    for (int i = 0; i < 100 && ReadAhead.getBudgetUsedBytes() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assert ReadAhead.getBudgetUsedBytes() == 0;
+    webHdfs.serverSocket.close();
+  }
+
+  public void testNoReadAheadOverBudget() throws Exception {
+    byte[] file = new byte[100 * 1000];
+    new Random(17).nextBytes(file);
+    WebHdfsServer webHdfs = new WebHdfsServer(file);
+    webHdfs.start();
+    ArrayList<Server> servers = new ArrayList<Server>();
+    servers.add(new Server(new HostPort("localhost", webHdfs.getPort())));
+    ProxyConfiguration config = new ProxyConfiguration();
+    config.prefetchMaxBytes = 10000;
+    config.prefetchBudgetBytes = 9999;
+
+    Socket[] client = StripedSessionTest.socketPair();
+    new HttpTunnel(client[1], inOrder(servers), config).start();
+    OutputStream output = client[0].getOutputStream();
+    InputStream input = new BufferedInputStream(client[0].getInputStream());
+    for (int offset = 0; offset < 40000; offset += 10000) {
+      output.write(("GET /webhdfs/v1/f?op=OPEN&offset=" + offset + "&length=10000 " +
+                    "HTTP/1.1\r\n\r\n").getBytes());
+      output.flush();
+      HttpMessage response = HttpMessage.readResponse(input);
+      assert response.getStatusCode() == 200;
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      response.copyBody(input, body, "GET");
+      assert Arrays.equals(body.toByteArray(), Arrays.copyOfRange(file, offset, offset + 10000));
+    }
+    client[0].close();
+
+    // A range doesn't fit the budget, so each read went to the server.
+    assert servers.get(0).prefetchByteCnt.getTotalCnt() == 0;
+    assert webHdfs.getOpenCnt() == 4;
+    assert ReadAhead.getBudgetUsedBytes() == 0;
+    webHdfs.serverSocket.close();
+  }
+
+  public void testInterleavedReadsServedFromReadAhead() throws Exception {
+    byte[] file = new byte[100 * 1000];
+    new Random(13).nextBytes(file);
+    WebHdfsServer webHdfs = new WebHdfsServer(file);
+    webHdfs.start();
+    ArrayList<Server> servers = new ArrayList<Server>();
+    servers.add(new Server(new HostPort("localhost", webHdfs.getPort())));
+    ProxyConfiguration config = new ProxyConfiguration();
+    config.prefetchMaxBytes = 10000;
+
+    Socket[] client = StripedSessionTest.socketPair();
+    new HttpTunnel(client[1], inOrder(servers), config).start();
+    OutputStream output = client[0].getOutputStream();
+    InputStream input = new BufferedInputStream(client[0].getInputStream());
+    // Client reads two files in turn, each of them sequentially. We read ahead only through an
+    // idle server, so wait for the last range read ahead before asking for the next one. Every
+    // read after the first two of a file read ahead.
+    Server server = servers.get(0);
+    String[] paths = {"f", "g"};
+    for (int offset = 0; offset < 40000; offset += 10000) {
+      for (int p = 0; p < paths.length; p++) {
+        String path = paths[p];
+        long readAheadBytes = Math.max(0, 2 * (offset / 10000) + p - 2) * 10000L;
+        for (int i = 0; i < 100 && (server.prefetchByteCnt.getTotalCnt() < readAheadBytes ||
+                                    server.getActiveHttpCnt() > 0); i++) {
+          Thread.sleep(10);
+        }
+        output.write(("GET /webhdfs/v1/" + path + "?op=OPEN&offset=" + offset +
+                      "&length=10000 HTTP/1.1\r\n\r\n").getBytes());
+        output.flush();
+        HttpMessage response = HttpMessage.readResponse(input);
+        assert response.getStatusCode() == 200;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        response.copyBody(input, body, "GET");
+        assert Arrays.equals(body.toByteArray(),
+                             Arrays.copyOfRange(file, offset, offset + 10000));
+      }
+    }
+    client[0].close();
+
+    // Third and fourth range of both files came from ranges read ahead, ranges read ahead after
+    // the fourth weren't used.
+    for (int i = 0; i < 100 && server.prefetchWastedByteCnt.getTotalCnt() < 20000; i++) {
+      Thread.sleep(20);
+    }
+    assert server.prefetchWastedByteCnt.getTotalCnt() == 20000;
+    assert server.prefetchByteCnt.getTotalCnt() == 6 * 10000;
+    assert webHdfs.getOpenCnt() == 4 + 6;
+    webHdfs.serverSocket.close();
+  }
+
+  public void testDownloadResumedWhenServerFails() throws Exception {
+    byte[] file = new byte[300 * 1000];
+    new Random(7).nextBytes(file);
+    WebHdfsServer failing = new FailingWebHdfsServer(file, 100 * 1000);
+    WebHdfsServer webHdfs = new WebHdfsServer(file);
+    failing.start();
+    webHdfs.start();
+    ArrayList<Server> servers = new ArrayList<Server>();
+    servers.add(new Server(new HostPort("localhost", failing.getPort())));
+    servers.add(new Server(new HostPort("localhost", webHdfs.getPort())));
+
+    Socket[] client = StripedSessionTest.socketPair();
+    new HttpTunnel(client[1], inOrder(servers), new ProxyConfiguration()).start();
+    OutputStream output = client[0].getOutputStream();
+    InputStream input = new BufferedInputStream(client[0].getInputStream());
+    output.write("GET /webhdfs/v1/f?op=OPEN&offset=1000 HTTP/1.1\r\n\r\n".getBytes());
+    output.flush();
+    HttpMessage response = HttpMessage.readResponse(input);
+    assert response.getStatusCode() == 200;
+    assert response.isKeepAlive();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    response.copyBody(input, body, "GET");
+    assert Arrays.equals(body.toByteArray(), Arrays.copyOfRange(file, 1000, file.length));
+    assert servers.get(0).failedCnt.getTotalCnt() == 1;
+    assert servers.get(1).httpResumedCnt.getTotalCnt() == 1;
+    assert webHdfs.getOpenCnt() == 1;
+
+    // Client connection is still good for the next request.
+    output.write("GET /webhdfs/v1/f?op=OPEN&offset=10&length=100 HTTP/1.1\r\n\r\n".getBytes());
+    output.flush();
+    response = HttpMessage.readResponse(input);
+    body.reset();
+    response.copyBody(input, body, "GET");
+    assert Arrays.equals(body.toByteArray(), Arrays.copyOfRange(file, 10, 110));
+    client[0].close();
+    failing.serverSocket.close();
+    webHdfs.serverSocket.close();
+  }
+
+  public void testDownloadNotResumedWhenFileChanged() throws Exception {
+    byte[] file = new byte[300 * 1000];
+    new Random(19).nextBytes(file);
+    final WebHdfsServer failing = new FailingWebHdfsServer(file, 100 * 1000);
+    WebHdfsServer webHdfs = new WebHdfsServer(file) {
+      @Override
+      void respond(HttpMessage request, byte[] body, OutputStream output) throws IOException {
+        if ("OPEN".equals(request.getQueryParameter("op"))) {
+          // File is rewritten with the same length while client downloads it.
+          modificationTime = 2;
+          failing.modificationTime = 2;
+        }
+        super.respond(request, body, output);
+      }
+    };
+    failing.start();
+    webHdfs.start();
+    ArrayList<Server> servers = new ArrayList<Server>();
+    servers.add(new Server(new HostPort("localhost", failing.getPort())));
+    servers.add(new Server(new HostPort("localhost", webHdfs.getPort())));
+
+    Socket[] client = StripedSessionTest.socketPair();
+    new HttpTunnel(client[1], inOrder(servers), new ProxyConfiguration()).start();
+    OutputStream output = client[0].getOutputStream();
+    InputStream input = new BufferedInputStream(client[0].getInputStream());
+    output.write("GET /webhdfs/v1/f?op=OPEN&offset=1000 HTTP/1.1\r\n\r\n".getBytes());
+    output.flush();
+    HttpMessage response = HttpMessage.readResponse(input);
+    assert response.getStatusCode() == 200;
+
+    // Client gets what failing server sent, then its connection closes.
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int cnt = 0;
+    try {
+      while ((cnt = input.read(buffer)) >= 0) {
+        body.write(buffer, 0, cnt);
+      }
+    } catch (IOException ioe) {
+      // Connection reset.
+    }
+    assert body.size() < file.length - 1000;
+    byte[] received = body.toByteArray();
+    assert Arrays.equals(received, Arrays.copyOfRange(file, 1000, 1000 + received.length));
+    assert webHdfs.getOpenCnt() == 1;
+    assert servers.get(1).httpResumedCnt.getTotalCnt() == 0;
+    failing.serverSocket.close();
+    webHdfs.serverSocket.close();
+  }
+
+  public void testOnlyReadsRetriedAfterServerGotRequest() throws Exception {
+    // First server closes every connection after reading the request.
+    FailingWebHdfsServer failing = new FailingWebHdfsServer(new byte[0], 0);
+    failing.start();
+    EchoHttpServer echo = new EchoHttpServer("echo");
+    echo.start();
+    ArrayList<Server> servers = new ArrayList<Server>();
+    servers.add(new Server(new HostPort("localhost", failing.getPort())));
+    servers.add(new Server(new HostPort("localhost", echo.getPort())));
+
+    // Read goes to the other server.
+    Socket[] client = StripedSessionTest.socketPair();
+    new HttpTunnel(client[1], inOrder(servers), new ProxyConfiguration()).start();
+    OutputStream output = client[0].getOutputStream();
+    InputStream input = new BufferedInputStream(client[0].getInputStream());
+    output.write("GET /webhdfs/v1/f?op=GETFILESTATUS HTTP/1.1\r\n\r\n".getBytes());
+    output.flush();
+    assert readResponseBody(input).equals("echo /webhdfs/v1/f?op=GETFILESTATUS 0");
+    client[0].close();
+
+    // Rename may have happened, so client sees the connection fail instead.
+    client = StripedSessionTest.socketPair();
+    new HttpTunnel(client[1], inOrder(servers), new ProxyConfiguration()).start();
+    output = client[0].getOutputStream();
+    output.write("PUT /webhdfs/v1/f?op=RENAME&destination=/g HTTP/1.1\r\n\r\n".getBytes());
+    output.flush();
+    assert client[0].getInputStream().read() == -1;
+    assert echo.getAcceptedCnt() == 1;
+    client[0].close();
+    failing.serverSocket.close();
+    echo.serverSocket.close();
+  }
+
+  public void testBadGatewayWhenServersAreDown() throws Exception {
+    ServerSocket unused = new ServerSocket(0);
+    final Server server = new Server(new HostPort("localhost", unused.getLocalPort()));
+    unused.close();
+    TcpProxyServer.LoadBalancer loadBalancer = new TcpProxyServer.LoadBalancer() {
+      @Override
+      public Server getServer() {
+        return server;
+      }
+    };
+
+    Socket[] client = StripedSessionTest.socketPair();
+    new HttpTunnel(client[1], loadBalancer, new ProxyConfiguration()).start();
+    client[0].getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes());
+    InputStream input = new BufferedInputStream(client[0].getInputStream());
+    HttpMessage response = HttpMessage.readResponse(input);
+    assert response.getStatusCode() == 502;
+    assert !response.isKeepAlive();
+    assert input.read() == -1;
+    assert server.failedCnt.getTotalCnt() == 3;
+    client[0].close();
+  }
+
+  public void testLargeOpenFetchedInRanges() throws Exception {
+    byte[] file = new byte[1000 * 1000];
+    new Random(42).nextBytes(file);
+    ArrayList<Server> servers = new ArrayList<Server>();
+    WebHdfsServer[] webHdfsServers = new WebHdfsServer[3];
+    for (int i = 0; i < webHdfsServers.length; i++) {
+      webHdfsServers[i] = new WebHdfsServer(file);
+      webHdfsServers[i].start();
+      servers.add(new Server(new HostPort("localhost", webHdfsServers[i].getPort())));
+    }
+    ProxyConfiguration config = new ProxyConfiguration();
+    config.rangedOpenMinBytes = 100 * 1000;
+    config.rangedOpenChunkBytes = 64 * 1024;
+    config.rangedOpenReorderBytes = 4 * 64 * 1024;
+
+    Socket[] client = StripedSessionTest.socketPair();
+    new HttpTunnel(client[1], inOrder(servers), config).start();
+    OutputStream output = client[0].getOutputStream();
+    InputStream input = new BufferedInputStream(client[0].getInputStream());
+
+    output.write("GET /webhdfs/v1/f?op=OPEN&offset=1000 HTTP/1.1\r\n\r\n".getBytes());
+    output.flush();
+    HttpMessage response = HttpMessage.readResponse(input);
+    assert response.getStatusCode() == 200;
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    response.copyBody(input, body, "GET");
+    assert Arrays.equals(body.toByteArray(), Arrays.copyOfRange(file, 1000, file.length));
+    // 999000 bytes in ranges of 64KB, spread across all servers.
+    int openCnt = 0;
+    for (WebHdfsServer server : webHdfsServers) {
+      assert server.getOpenCnt() > 0;
+      openCnt += server.getOpenCnt();
+    }
+    assert openCnt == 16;
+
+    // Small read on the same connection goes through as it is.
+    output.write("GET /webhdfs/v1/f?op=OPEN&offset=10&length=100 HTTP/1.1\r\n\r\n".getBytes());
+    output.flush();
+    response = HttpMessage.readResponse(input);
+    body.reset();
+    response.copyBody(input, body, "GET");
+    assert Arrays.equals(body.toByteArray(), Arrays.copyOfRange(file, 10, 110));
+    assert webHdfsServers[0].getOpenCnt() + webHdfsServers[1].getOpenCnt() +
+           webHdfsServers[2].getOpenCnt() == 17;
+
+    client[0].close();
+    for (WebHdfsServer server : webHdfsServers) {
+      server.serverSocket.close();
+    }
+  }
+
+  public void testUploadStripedThroughFarPeer() throws Exception {
+    EchoHttpServer httpfs = new EchoHttpServer("httpfs");
+    httpfs.start();
+    final ProxyConfiguration config = new ProxyConfiguration();
+    config.peerMode = "stripe";
+    config.peerFrameBytes = 16 * 1024;
+    ArrayList<Server> farServers = new ArrayList<Server>();
+    farServers.add(new Server(new HostPort("localhost", httpfs.getPort())));
+    final PeerServer peerServer = new PeerServer(inOrder(farServers), config, null);
+
+    // Near side servers stand for two ssh tunnels to the far peer.
+    final ArrayList<Server> nearServers = new ArrayList<Server>();
+    final ArrayList<ServerSocket> tunnels = new ArrayList<ServerSocket>();
+    for (int i = 0; i < 2; i++) {
+      final ServerSocket tunnel = new ServerSocket(0);
+      tunnels.add(tunnel);
+      nearServers.add(new Server(new HostPort("localhost", tunnel.getLocalPort())));
+      Thread acceptor = new Thread() {
+        public void run() {
+          try {
+            while (true) {
+              peerServer.acceptLink(tunnel.accept());
+            }
+          } catch (IOException e) {
+            // Tunnel closed.
+          }
+        }
+      };
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+
+    Socket[] client = StripedSessionTest.socketPair();
+    HttpTunnel httpTunnel = new HttpTunnel(client[1], inOrder(nearServers), config);
+    final MetadataCache metadataCache = new MetadataCache(60 * 1000, 1024 * 1024);
+    httpTunnel.setMetadataCache(metadataCache);
+    final CountDownLatch uploadFinished = new CountDownLatch(1);
+    httpTunnel.setUploadStriper(new HttpTunnel.UploadStriper() {
+      public void stripe(Socket clientSocket, byte[] initialData, final Runnable finished) {
+        try {
+          StripedSession session = StripedSession.connect(1, clientSocket, nearServers, config,
+                                                          null);
+          session.setInitialData(initialData);
+          session.setCloseHandler(new Runnable() {
+            public void run() {
+              // Someone asked for status of the file while we uploaded it.
+              HttpMessage status = HttpMessage.newRequest("GET",
+                  "/webhdfs/v1/f?op=GETFILESTATUS");
+              metadataCache.put(status, MetadataCache.getKey(status),
+                                metadataCache.getGeneration(),
+                                HttpMessage.newResponse(200, "OK"), new byte[10]);
+              assert metadataCache.getEntryCnt() == 1;
+              finished.run();
+              uploadFinished.countDown();
+            }
+          });
+          session.start();
+        } catch (IOException e) {
+          fail("Could not stripe upload: " + e.getMessage());
+        }
+      }
+    });
+    httpTunnel.start();
+    OutputStream output = client[0].getOutputStream();
+    InputStream input = new BufferedInputStream(client[0].getInputStream());
+
+    // Other requests go over plain links.
+    output.write("GET /webhdfs/v1/f?op=GETFILESTATUS HTTP/1.1\r\n\r\n".getBytes());
+    output.flush();
+    assert readResponseBody(input).equals("httpfs /webhdfs/v1/f?op=GETFILESTATUS 0");
+
+    byte[] body = new byte[200 * 1000];
+    new Random(3).nextBytes(body);
+    output.write(("PUT /webhdfs/v1/f?op=CREATE&data=true HTTP/1.1\r\n" +
+                  "Content-Length: " + body.length + "\r\n\r\n").getBytes());
+    output.write(body);
+    output.flush();
+    HttpMessage response = HttpMessage.readResponse(input);
+    ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+    response.copyBody(input, responseBody, "PUT");
+    assert responseBody.toString().equals("httpfs /webhdfs/v1/f?op=CREATE&data=true " +
+                                          body.length);
+    // Far side closes connection after the upload.
+    assert input.read() == -1;
+    client[0].close();
+    // Session tells tunnel it's done, so tunnel forgets metadata cached meanwhile.
+    assert uploadFinished.await(10, TimeUnit.SECONDS);
+    assert metadataCache.getEntryCnt() == 0;
+
+    // Upload was striped across subflows through both tunnels.
+    long stripedBytes = 0;
+    for (Server server : nearServers) {
+      assert server.openedCnt.getTotalCnt() >= 1;
+      stripedBytes += server.byteRateCnt.getTotalCnt();
+    }
+    assert stripedBytes >= body.length;
+    for (ServerSocket tunnel : tunnels) {
+      tunnel.close();
+    }
+    httpfs.serverSocket.close();
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* JumpHostGroup unittests. */
+package com.altiscale.TcpProxy;
+
+import java.util.ArrayList;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.JumpHost;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for JumpHostGroup and jumphost-aware load balancing.
+ */
+public class JumpHostGroupTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public JumpHostGroupTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(JumpHostGroupTest.class);
+  }
+
+  private JumpHost newJumpHost(String host) {
+    return new JumpHost(new HostPort(host, 22),
+                        new HostPort("acme-supersecret-server", 14000),
+                        null, null, false, null, null, false);
+  }
+
+  public void testServersAssignedRoundRobin() {
+    ProxyConfiguration conf = new ProxyConfiguration();
+    JumpHost first = newJumpHost("acme-lab-1");
+    JumpHost second = newJumpHost("acme-lab-2");
+    conf.jumphostList.add(first);
+    conf.jumphostList.add(second);
+    assert conf.getJumphostForServer(0) == first;
+    assert conf.getJumphostForServer(1) == second;
+    assert conf.getJumphostForServer(2) == first;
+
+    assert new ProxyConfiguration().getJumphostForServer(0) == null;
+  }
+
+  public void testAggregatedByteRate() {
+    JumpHostGroup group = new JumpHostGroup(newJumpHost("acme-lab-1"));
+    Server first = new Server(new HostPort("localhost", 12345), group.jumphost);
+    Server second = new Server(new HostPort("localhost", 12346), group.jumphost);
+    group.addServer(first);
+    group.addServer(second);
+
+    first.incrementByteRateBy(100);
+    second.incrementByteRateBy(42);
+    assert group.getLastMinuteByteRate() == 142;
+    assert group.getLastHourByteRate() == 142;
+    assert group.getHealthyServerCnt() == 2;
+    assert group.getName().equals("acme-lab-1:22");
+  }
+
+  public void testJumphostFirstAlternatesJumphosts() {
+    ArrayList<JumpHostGroup> groups = new ArrayList<JumpHostGroup>();
+    for (int i = 0; i < 2; i++) {
+      JumpHostGroup group = new JumpHostGroup(newJumpHost("acme-lab-" + i));
+      for (int j = 0; j < 2; j++) {
+        group.addServer(new Server(new HostPort("localhost", 12345 + 2 * i + j),
+                                   group.jumphost));
+      }
+      groups.add(group);
+    }
+
+    TcpProxyServer proxy = new TcpProxyServer("TransferAccelerator");
+    TcpProxyServer.LoadBalancer balancer = proxy.new JumphostFirst(groups, "RoundRobin");
+    JumpHost previous = null;
+    for (int i = 0; i < 6; i++) {
+      Server server = balancer.getServer();
+      assert server.jumphost != previous;
+      previous = server.jumphost;
+    }
+  }
+
+  public void testJumphostFirstLeastUsed() {
+    ArrayList<JumpHostGroup> groups = new ArrayList<JumpHostGroup>();
+    for (int i = 0; i < 2; i++) {
+      JumpHostGroup group = new JumpHostGroup(newJumpHost("acme-lab-" + i));
+      for (int j = 0; j < 2; j++) {
+        group.addServer(new Server(new HostPort("localhost", 12345 + 2 * i + j),
+                                   group.jumphost));
+      }
+      groups.add(group);
+    }
+    // Least used server overall is behind the busy jumphost, but we still pick the idle
+    // jumphost first.
+    groups.get(0).getServers().get(1).incrementByteRateBy(1500);
+    groups.get(1).getServers().get(0).incrementByteRateBy(700);
+    groups.get(1).getServers().get(1).incrementByteRateBy(600);
+
+    TcpProxyServer proxy = new TcpProxyServer("TransferAccelerator");
+    TcpProxyServer.LoadBalancer balancer = proxy.new JumphostFirst(groups, "LeastUsed");
+    Server server = balancer.getServer();
+    assert server == groups.get(1).getServers().get(1);
+  }
+}
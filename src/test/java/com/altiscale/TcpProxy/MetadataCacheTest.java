@@ -0,0 +1,123 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* MetadataCache unittests. */
+package com.altiscale.TcpProxy;
+
+import com.altiscale.Util.HttpMessage;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for MetadataCache.
+ */
+public class MetadataCacheTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public MetadataCacheTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(MetadataCacheTest.class);
+  }
+
+  private static HttpMessage status(String path) {
+    return HttpMessage.newRequest("GET", "/webhdfs/v1" + path + "?op=GETFILESTATUS&user.name=u");
+  }
+
+  private static void put(MetadataCache cache, HttpMessage request, int bodyBytes) {
+    HttpMessage response = HttpMessage.newResponse(200, "OK");
+    response.setHeader("Content-Length", Integer.toString(bodyBytes));
+    cache.put(request, MetadataCache.getKey(request), cache.getGeneration(), response,
+              new byte[bodyBytes]);
+  }
+
+  public void testKeys() throws Exception {
+    String key = MetadataCache.getKey(
+        HttpMessage.newRequest("GET", "/webhdfs/v1//a/b/?user.name=u&op=getfilestatus"));
+    assert key.equals(MetadataCache.getKey(status("/a/b")));
+    assert !key.equals(MetadataCache.getKey(
+        HttpMessage.newRequest("GET", "/webhdfs/v1/a/b?op=GETFILESTATUS&user.name=v")));
+    assert null == MetadataCache.getKey(
+        HttpMessage.newRequest("GET", "/webhdfs/v1/a/b?op=OPEN"));
+    assert null == MetadataCache.getKey(
+        HttpMessage.newRequest("PUT", "/webhdfs/v1/a/b?op=GETFILESTATUS"));
+    assert MetadataCache.isMutating(
+        HttpMessage.newRequest("PUT", "/webhdfs/v1/a/b?op=MKDIRS"));
+    assert !MetadataCache.isMutating(
+        HttpMessage.newRequest("GET", "/webhdfs/v1/a/b?op=OPEN"));
+  }
+
+  public void testLeastRecentlyUsedEvicted() throws Exception {
+    // Room for a few entries of 1000 bytes with their overhead.
+    MetadataCache cache = new MetadataCache(60 * 1000, 16 * 1000);
+    for (int i = 0; i < 20; i++) {
+      put(cache, status("/f" + i), 1000);
+      // Keep using the first entry.
+      assert null != cache.get(MetadataCache.getKey(status("/f0")));
+    }
+    assert cache.getBytes() <= 16 * 1000;
+    assert cache.evictionCnt.getTotalCnt() > 0;
+    assert null != cache.get(MetadataCache.getKey(status("/f0")));
+    assert null != cache.get(MetadataCache.getKey(status("/f19")));
+    assert null == cache.get(MetadataCache.getKey(status("/f1")));
+    // Response over a sixteenth of memory isn't cached.
+    put(cache, status("/big"), 2000);
+    assert null == cache.get(MetadataCache.getKey(status("/big")));
+
+    MetadataCache expiring = new MetadataCache(0, 16 * 1000);
+    put(expiring, status("/f"), 10);
+    assert null == expiring.get(MetadataCache.getKey(status("/f")));
+  }
+
+  public void testInvalidation() throws Exception {
+    MetadataCache cache = new MetadataCache(60 * 1000, 1000 * 1000);
+    String[] paths = {"/", "/a", "/a/b", "/a/b/c", "/a/bc", "/x", "/y/z"};
+    for (String path : paths) {
+      put(cache, status(path), 10);
+    }
+    cache.invalidate(HttpMessage.newRequest("DELETE", "/webhdfs/v1/a/b?op=DELETE"));
+    // Ancestors and descendants are gone, siblings stay.
+    assert null == cache.get(MetadataCache.getKey(status("/")));
+    assert null == cache.get(MetadataCache.getKey(status("/a")));
+    assert null == cache.get(MetadataCache.getKey(status("/a/b/c")));
+    assert null != cache.get(MetadataCache.getKey(status("/a/bc")));
+    assert null != cache.get(MetadataCache.getKey(status("/x")));
+
+    cache.invalidate(HttpMessage.newRequest(
+        "PUT", "/webhdfs/v1/x?op=RENAME&destination=/y/z"));
+    assert null == cache.get(MetadataCache.getKey(status("/x")));
+    assert null == cache.get(MetadataCache.getKey(status("/y/z")));
+    assert null != cache.get(MetadataCache.getKey(status("/a/bc")));
+
+    // Response fetched before an invalidation isn't cached.
+    HttpMessage request = status("/a/bc/d");
+    long generation = cache.getGeneration();
+    cache.invalidate(HttpMessage.newRequest("PUT", "/webhdfs/v1/q?op=MKDIRS"));
+    cache.put(request, MetadataCache.getKey(request), generation,
+              HttpMessage.newResponse(200, "OK"), new byte[10]);
+    assert null == cache.get(MetadataCache.getKey(request));
+  }
+}
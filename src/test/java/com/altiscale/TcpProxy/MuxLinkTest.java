@@ -0,0 +1,252 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* MuxLink unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.altiscale.Util.HostPort;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for MuxLink. Near-side and far-side links are connected with a plain socket pair
+ * instead of an ssh tunnel, and far side forwards streams to a local echo server.
+ */
+public class MuxLinkTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public MuxLinkTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(MuxLinkTest.class);
+  }
+
+  private ServerSocket echoService;
+  private Server nearServer;
+  private Server farServer;
+  private MuxLink nearLink;
+  private MuxLink farLink;
+
+  // Echo server copies each connection back to itself until the client half-closes it.
+  private void startEchoServer() throws IOException {
+    echoService = new ServerSocket(0);
+    new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          final Socket socket;
+          try {
+            socket = echoService.accept();
+          } catch (IOException ioe) {
+            return;
+          }
+          new Thread(new Runnable() {
+            public void run() {
+              try {
+                InputStream input = socket.getInputStream();
+                OutputStream output = socket.getOutputStream();
+                byte[] buffer = new byte[8 * 1024];
+                int cnt = 0;
+                while ((cnt = input.read(buffer)) >= 0) {
+                  output.write(buffer, 0, cnt);
+                }
+                socket.close();
+              } catch (IOException ioe) {
+                System.out.println("Exception in echo server: " + ioe.getMessage());
+              }
+            }
+          }).start();
+        }
+      }
+    }).start();
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    startEchoServer();
+    ProxyConfiguration config = new ProxyConfiguration();
+    // Small frames and windows so streams need many window updates.
+    config.peerFrameBytes = 4 * 1024;
+    config.muxWindowBytes = 16 * 1024;
+    config.muxPriorityBytes = 8 * 1024;
+    startLinks(config);
+  }
+
+  private void startLinks(ProxyConfiguration config) throws IOException {
+    if (null != nearLink) {
+      nearLink.close();
+      farLink.close();
+    }
+    nearServer = new Server(new HostPort("localhost", 12345));
+    farServer = new Server(new HostPort("localhost", echoService.getLocalPort()));
+    TcpProxyServer.LoadBalancer loadBalancer = new TcpProxyServer.LoadBalancer() {
+      public Server getServer() {
+        return farServer;
+      }
+    };
+
+    Socket[] link = StripedSessionTest.socketPair();
+    nearLink = new MuxLink(7, link[0], nearServer, null, config, null);
+    farLink = new MuxLink(7, link[1], null, new PeerServer(loadBalancer, config, null), config,
+                          null);
+    nearLink.start();
+    farLink.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    nearLink.close();
+    farLink.close();
+    echoService.close();
+  }
+
+  private Socket openStream() throws IOException {
+    Socket[] client = StripedSessionTest.socketPair();
+    nearLink.openStream(client[1]);
+    return client[0];
+  }
+
+  private static byte[] echo(Socket client, byte[] request) throws IOException {
+    OutputStream output = client.getOutputStream();
+    output.write(request);
+    client.shutdownOutput();
+    byte[] response = StripedSessionTest.readAll(client.getInputStream());
+    client.close();
+    return response;
+  }
+
+  public void testConcurrentStreams() throws Exception {
+    final int NUM_STREAMS = 8;
+    final byte[][] responses = new byte[NUM_STREAMS][];
+    final byte[] request = new byte[200 * 1024];
+    new Random(42).nextBytes(request);
+
+    Thread[] clients = new Thread[NUM_STREAMS];
+    for (int i = 0; i < NUM_STREAMS; i++) {
+      final int index = i;
+      final Socket client = openStream();
+      clients[i] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            responses[index] = echo(client, request);
+          } catch (IOException ioe) {
+            System.out.println("Exception in client: " + ioe.getMessage());
+          }
+        }
+      });
+      clients[i].start();
+    }
+    for (Thread client : clients) {
+      client.join();
+    }
+
+    for (byte[] response : responses) {
+      assert Arrays.equals(request, response);
+    }
+    // All streams went over one link and one server connection each.
+    assert nearServer.openedCnt.getTotalCnt() == NUM_STREAMS;
+    assert farServer.openedCnt.getTotalCnt() == NUM_STREAMS;
+    assert nearServer.byteRateCnt.getTotalCnt() == 2L * NUM_STREAMS * request.length;
+  }
+
+  public void testSlowStreamDoesNotBlockLink() throws Exception {
+    // Client of the first stream sends a lot, but doesn't read its echo for a while, so the
+    // stream runs out of window and its data stays buffered on the far side.
+    final Socket slowClient = openStream();
+    final byte[] bulk = new byte[4 * 1024 * 1024];
+    new Random(7).nextBytes(bulk);
+    final byte[][] slowResponse = new byte[1][];
+    Thread slowWriter = new Thread(new Runnable() {
+      public void run() {
+        try {
+          slowClient.getOutputStream().write(bulk);
+          slowClient.shutdownOutput();
+        } catch (IOException ioe) {
+          System.out.println("Exception in slow client: " + ioe.getMessage());
+        }
+      }
+    });
+    slowWriter.start();
+
+    byte[] request = "ping".getBytes();
+    assert Arrays.equals(request, echo(openStream(), request));
+
+    slowResponse[0] = StripedSessionTest.readAll(slowClient.getInputStream());
+    slowWriter.join();
+    slowClient.close();
+    assert Arrays.equals(bulk, slowResponse[0]);
+  }
+
+  public void testDedupRepeatedTransfers() throws Exception {
+    ProxyConfiguration config = new ProxyConfiguration();
+    config.peerDedup = true;
+    config.dedupAvgChunkBytes = 2 * 1024;
+    config.dedupMemoryBytes = 4 * 1024 * 1024;
+    startLinks(config);
+    // Data we send before both sides know about each other's chunk stores isn't indexed.
+    long deadline = System.currentTimeMillis() + 10 * 1000;
+    while (!nearLink.isDeduplicating() || !farLink.isDeduplicating()) {
+      assert System.currentTimeMillis() < deadline;
+      Thread.sleep(10);
+    }
+
+    byte[] request = new byte[512 * 1024];
+    new Random(3).nextBytes(request);
+    assert Arrays.equals(request, echo(openStream(), request));
+    long wireBytes = nearServer.wireByteRateCnt.getTotalCnt();
+    assert nearServer.dedupHitCnt.getTotalCnt() == 0;
+
+    // Same data again, written in small odd pieces so it is read in different pieces than
+    // the first time: request and response still go as chunk references.
+    Socket client = openStream();
+    OutputStream output = client.getOutputStream();
+    for (int offset = 0; offset < request.length; offset += 1111) {
+      output.write(request, offset, Math.min(1111, request.length - offset));
+      output.flush();
+    }
+    client.shutdownOutput();
+    assert Arrays.equals(request, StripedSessionTest.readAll(client.getInputStream()));
+    client.close();
+    assert nearServer.wireByteRateCnt.getTotalCnt() - wireBytes < wireBytes / 10;
+    assert nearServer.dedupSavedByteCnt.getTotalCnt() >= request.length;
+  }
+
+  public void testResetWhenServerUnavailable() throws Exception {
+    echoService.close();
+    Socket client = openStream();
+    // Far side can't connect, so it resets the stream and we see end of stream.
+    assert StripedSessionTest.readAll(client.getInputStream()).length == 0;
+    client.close();
+    assert farServer.failedCnt.getTotalCnt() > 0;
+  }
+}
@@ -18,9 +18,19 @@
 /* TcpProxy Server unittests. */
 package com.altiscale.TcpProxy;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import com.altiscale.TcpProxy.Server;
 import com.altiscale.Util.HostPort;
 import com.altiscale.Util.JumpHost;
+import com.altiscale.Util.SocketProfile;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -136,4 +146,59 @@ public class ServerTest extends TestCase {
     assert sshCommand.equals(
         "ssh -o StrictHostKeyChecking=no -n -N -L 12345:acme-supersecret-server:14000 -l wileEcoyote -p 22 acme-secret-lab");
   }
+
+  public void testConnectRecordsFlightEvents() throws Exception {
+    ServerSocket listening = new ServerSocket(0);
+    Server up = new Server(new HostPort("localhost", listening.getLocalPort()));
+    ServerSocket closed = new ServerSocket(0);
+    Server down = new Server(new HostPort("localhost", closed.getLocalPort()));
+    closed.close();
+
+    Recording recording = new Recording();
+    recording.enable("com.altiscale.Connect");
+    recording.start();
+    up.connect().close();
+    try {
+      down.connect();
+      assert false;
+    } catch (IOException e) {
+      // Expected, nobody listens there.
+    }
+    recording.stop();
+    File file = File.createTempFile("connect", ".jfr");
+    file.deleteOnExit();
+    recording.dump(file.toPath());
+    recording.close();
+    listening.close();
+
+    List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+    assert events.size() == 2;
+    assert events.get(0).getString("server").equals(up.hostPort.toString());
+    assert events.get(0).getBoolean("succeeded");
+    assert events.get(1).getString("server").equals(down.hostPort.toString());
+    assert !events.get(1).getBoolean("succeeded");
+    assert null != events.get(1).getString("error");
+    assert up.connectMillis.getSnapshot().getCount() == 1;
+  }
+
+  public void testTuneBuffersOverTunnel() {
+    Server server = new Server(new HostPort("localhost", 12345));
+    server.setSocketProfile(SocketProfile.parse("nodelay,auto"));
+    server.incrementOpenedConn();
+    // 10 MB/s over the last minute.
+    server.byteRateCnt.incrementBy(60L * 10 * 1000 * 1000);
+    // Connecting to the local end of a tunnel takes no time, so we wait for responses.
+    server.connectMillis.record(0);
+    assert server.tuneBuffers() == 0;
+
+    // Responses take 100 ms, so twice the BDP is 2 MB.
+    for (int i = 0; i < 10; i++) {
+      server.firstByteMillis.record(100);
+    }
+    assert server.tuneBuffers() == 2 * 1024 * 1024;
+    assert server.getAutoBufferBytes() == 2 * 1024 * 1024;
+
+    server.setSocketProfile(SocketProfile.parse("rcvbuf=1m"));
+    assert server.tuneBuffers() == 0;
+  }
 }
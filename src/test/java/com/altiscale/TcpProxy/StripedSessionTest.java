@@ -0,0 +1,169 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* StripedSession unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.altiscale.Util.HostPort;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for StripedSession. Near-side and far-side sessions are connected with plain
+ * socket pairs instead of ssh tunnels.
+ */
+public class StripedSessionTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public StripedSessionTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(StripedSessionTest.class);
+  }
+
+  // Returns two connected sockets.
+  static Socket[] socketPair() throws IOException {
+    ServerSocket serverSocket = new ServerSocket(0);
+    Socket first = new Socket("localhost", serverSocket.getLocalPort());
+    Socket second = serverSocket.accept();
+    serverSocket.close();
+    return new Socket[] {first, second};
+  }
+
+  static byte[] readAll(InputStream input) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024 * 8];
+    int cnt = 0;
+    while ((cnt = input.read(buffer)) >= 0) {
+      output.write(buffer, 0, cnt);
+    }
+    return output.toByteArray();
+  }
+
+  public void testStripesBothDirections() throws Exception {
+    final int NUM_SUBFLOWS = 3;
+    Socket[] client = socketPair();
+    Socket[] server = socketPair();
+    ArrayList<Socket> nearSubflows = new ArrayList<Socket>();
+    ArrayList<Socket> farSubflows = new ArrayList<Socket>();
+    ArrayList<Server> nearServers = new ArrayList<Server>();
+    ArrayList<Server> farServers = new ArrayList<Server>();
+    for (int i = 0; i < NUM_SUBFLOWS; i++) {
+      Socket[] subflow = socketPair();
+      nearSubflows.add(subflow[0]);
+      farSubflows.add(subflow[1]);
+      nearServers.add(new Server(new HostPort("localhost", 12345 + i)));
+      farServers.add(null);
+    }
+    Server target = new Server(new HostPort("localhost", 14000));
+
+    // Small frames and reorder buffer so we get lots of out-of-order frames.
+    new StripedSession(42, client[1], null, nearSubflows, nearServers, 1000, 4000, null).start();
+    new StripedSession(42, server[0], target, farSubflows, farServers, 1000, 4000, null).start();
+
+    final byte[] request = new byte[3 * 1024 * 1024];
+    new Random(42).nextBytes(request);
+
+    // Server reads the whole request and sends it back.
+    final Socket serverSocket = server[1];
+    Thread echo = new Thread(new Runnable() {
+      public void run() {
+        try {
+          byte[] received = readAll(serverSocket.getInputStream());
+          OutputStream output = serverSocket.getOutputStream();
+          output.write(received);
+          serverSocket.close();
+        } catch (IOException ioe) {
+          System.out.println("Exception in echo server: " + ioe.getMessage());
+        }
+      }
+    });
+    echo.start();
+
+    OutputStream output = client[0].getOutputStream();
+    output.write(request);
+    client[0].shutdownOutput();
+    byte[] response = readAll(client[0].getInputStream());
+    client[0].close();
+
+    assert Arrays.equals(request, response);
+    assert target.byteRateCnt.getTotalCnt() == 2L * request.length;
+    long subflowBytes = 0;
+    for (Server server1 : nearServers) {
+      // Every subflow carried part of the stream.
+      assert server1.byteRateCnt.getTotalCnt() > 0;
+      subflowBytes += server1.byteRateCnt.getTotalCnt();
+    }
+    assert subflowBytes == 2L * request.length;
+  }
+
+  public void testResetWhenFarSideClosesSubflows() throws Exception {
+    Socket[] client = socketPair();
+    ArrayList<Socket> nearSubflows = new ArrayList<Socket>();
+    ArrayList<Socket> farSubflows = new ArrayList<Socket>();
+    ArrayList<Server> nearServers = new ArrayList<Server>();
+    for (int i = 0; i < 2; i++) {
+      Socket[] subflow = socketPair();
+      nearSubflows.add(subflow[0]);
+      farSubflows.add(subflow[1]);
+      nearServers.add(new Server(new HostPort("localhost", 12345 + i)));
+    }
+    StripedSession session =
+        new StripedSession(43, client[1], null, nearSubflows, nearServers, 1000, 4000, null);
+    final CountDownLatch closed = new CountDownLatch(1);
+    session.setCloseHandler(new Runnable() {
+      public void run() {
+        closed.countDown();
+      }
+    });
+    session.start();
+
+    // Far side couldn't connect to a server, so it closes subflows without sending FIN.
+    for (Socket subflow : farSubflows) {
+      subflow.close();
+    }
+    assert closed.await(10, TimeUnit.SECONDS);
+    try {
+      assert readAll(client[0].getInputStream()).length == 0;
+    } catch (IOException ioe) {
+      // Connection reset, also fine.
+    }
+    client[0].close();
+    assert nearServers.get(0).failedCnt.getTotalCnt() > 0;
+  }
+}
@@ -25,6 +25,7 @@ import org.apache.log4j.BasicConfigurator;
 import java.io.IOException;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 
@@ -144,4 +145,45 @@ public class TcpTunnelTest extends TestCase {
       assert false;
     }
   }
+
+  public void testSlowServerStallsTunnelWrites() throws Exception {
+    final Socket[] client = StripedSessionTest.socketPair();
+    Socket[] server = StripedSessionTest.socketPair();
+    Server proxyServer = new Server(new HostPort("localhost", 1));
+    TcpTunnel tunnel = new TcpTunnel(client[1], server[0], proxyServer);
+    tunnel.spawnTunnelThreads();
+
+    // Client uploads more than socket buffers hold while server doesn't read for a while.
+    final int bytes = 64 * 1024 * 1024;
+    Thread uploader = new Thread(new Runnable() {
+      public void run() {
+        try {
+          client[0].getOutputStream().write(new byte[bytes]);
+        } catch (IOException ioe) {
+          assert false;
+        }
+      }
+    });
+    uploader.start();
+    Thread.sleep(500);
+    InputStream input = server[1].getInputStream();
+    byte[] buffer = new byte[64 * 1024];
+    long read = 0;
+    while (read < bytes) {
+      int cnt = input.read(buffer);
+      assert cnt > 0;
+      read += cnt;
+    }
+    uploader.join();
+    for (int i = 0; i < 100 && tunnel.getClientBytes() < bytes; i++) {
+      Thread.sleep(10);
+    }
+
+    assert tunnel.getLimitedBy().equals("tunnel");
+    tunnel.reportBlocked();
+    assert proxyServer.blockedMicrosCnt[Server.TUNNEL_WRITE].getTotalCnt() >= 300 * 1000;
+    assert proxyServer.getTunnelWriteStallRatio() > 0.5;
+    client[0].close();
+    server[1].close();
+  }
 }
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* ContentChunker unittests. */
+package com.altiscale.Util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for ContentChunker.
+ */
+public class ContentChunkerTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public ContentChunkerTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ContentChunkerTest.class);
+  }
+
+  // Returns chunk end offsets.
+  private static ArrayList<Integer> boundaries(ContentChunker chunker, byte[] data, int offset) {
+    ArrayList<Integer> ends = new ArrayList<Integer>();
+    while (offset < data.length) {
+      offset += chunker.nextChunkLength(data, offset, data.length - offset);
+      ends.add(offset);
+    }
+    return ends;
+  }
+
+  public void testChunkSizes() throws Exception {
+    ContentChunker chunker = new ContentChunker(1024, 4096, 16384);
+    byte[] data = new byte[1024 * 1024];
+    new Random(42).nextBytes(data);
+    ArrayList<Integer> ends = boundaries(chunker, data, 0);
+    int previous = 0;
+    for (int i = 0; i < ends.size(); i++) {
+      int length = ends.get(i) - previous;
+      assert length <= 16384;
+      assert length >= 1024 || i == ends.size() - 1;
+      previous = ends.get(i);
+    }
+    assert previous == data.length;
+    // Average chunk is min plus about 4K of random data.
+    int average = data.length / ends.size();
+    assert average > 3000 && average < 8000;
+  }
+
+  public void testBoundariesFollowContent() throws Exception {
+    ContentChunker chunker = new ContentChunker(1024, 4096, 16384);
+    byte[] data = new byte[256 * 1024];
+    new Random(7).nextBytes(data);
+    // Same data with 100 bytes inserted at the front.
+    byte[] shifted = new byte[data.length + 100];
+    System.arraycopy(data, 0, shifted, 100, data.length);
+
+    HashSet<Integer> ends = new HashSet<Integer>(boundaries(chunker, data, 0));
+    int common = 0;
+    ArrayList<Integer> shiftedEnds = boundaries(chunker, shifted, 0);
+    for (int end : shiftedEnds) {
+      if (ends.contains(end - 100)) {
+        common++;
+      }
+    }
+    // All but the first couple of chunks are the same.
+    assert common >= shiftedEnds.size() - 3;
+  }
+}
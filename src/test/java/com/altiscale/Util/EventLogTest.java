@@ -0,0 +1,79 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* EventLog unittests. */
+package com.altiscale.Util;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for EventLog.
+ */
+public class EventLogTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public EventLogTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(EventLogTest.class);
+  }
+
+  public void testEventsWrittenDroppedAndRotated() throws Exception {
+    File directory = Files.createTempDirectory("eventlog").toFile();
+    File file = new File(directory, "events.log");
+    EventLog log = new EventLog(file, 300, 2);
+    // We write events ourselves, so the ring doesn't empty behind our back.
+    log.openFile();
+    InetAddress client = InetAddress.getByName("127.0.0.1");
+    HostPort server = new HostPort("localhost", 1);
+    assert log.log(EventLog.OPEN, 1, client, 5000, server, 0, 0, 0);
+    assert log.log(EventLog.CLOSE, 1, client, 5000, server, 10, 20, 30);
+    // Ring holds two events until writer catches up.
+    assert !log.log(EventLog.OPEN, 2, client, 5001, server, 0, 0, 0);
+    assert log.getDroppedCnt() == 1;
+    log.writeEvents();
+
+    List<String> lines = Files.readAllLines(file.toPath());
+    assert lines.size() == 3;
+    assert lines.get(0).matches("\\{\"time\":[0-9]+,\"event\":\"open\",\"id\":1," +
+                                "\"client\":\"127.0.0.1:5000\",\"server\":\"localhost:1\"\\}");
+    assert lines.get(1).endsWith(",\"bytesFromClient\":10,\"bytesToClient\":20," +
+                                 "\"durationMillis\":30}");
+    assert lines.get(2).endsWith(",\"event\":\"dropped\",\"count\":1}");
+
+    // Next event doesn't fit in 300 bytes, so the old file moves aside.
+    assert log.log(EventLog.OPEN, 3, client, 5002, server, 0, 0, 0);
+    log.writeEvents();
+    assert Files.readAllLines(new File(directory, "events.log.1").toPath()).size() == 3;
+    lines = Files.readAllLines(file.toPath());
+    assert lines.size() == 1 && lines.get(0).contains("\"id\":3,");
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* HeavyHitters unittests. */
+package com.altiscale.Util;
+
+import java.util.ArrayList;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for HeavyHitters.
+ */
+public class HeavyHittersTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public HeavyHittersTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(HeavyHittersTest.class);
+  }
+
+  public void testHeavyHittersFoundAmongManyKeys() {
+    TestTimer timer = new TestTimer(1000 * 1000);
+    HeavyHitters clients = new HeavyHitters(timer, "bytes", 10, 60 * 1000);
+    // Two heavy clients among a thousand light ones, more keys than counters.
+    for (int i = 0; i < 1000; i++) {
+      clients.add("light" + i, 1);
+      if (i % 10 == 0) {
+        clients.add("heavy", 10);
+        clients.add("medium", 5);
+      }
+    }
+    ArrayList<HeavyHitters.Entry> top = clients.getTop(2);
+    assert top.size() == 2;
+    assert top.get(0).key.equals("heavy");
+    assert top.get(1).key.equals("medium");
+    // Real counts are 1000 and 500, and counts never underestimate them.
+    assert top.get(0).count >= 1000 && top.get(0).count - top.get(0).error <= 1000;
+    assert top.get(1).count >= 500 && top.get(1).count - top.get(1).error <= 500;
+  }
+
+  public void testWindowSlides() {
+    TestTimer timer = new TestTimer(1000 * 1000);
+    HeavyHitters clients = new HeavyHitters(timer, "connections", 10, 60 * 1000);
+    clients.add("a", 3);
+    timer.setTime(timer.currentTimeMillis() + 30 * 1000);
+    clients.add("b", 2);
+    clients.add("a", 1);
+    ArrayList<HeavyHitters.Entry> top = clients.getTop(10);
+    assert top.size() == 2;
+    assert top.get(0).key.equals("a") && top.get(0).count == 4 && top.get(0).error == 0;
+    assert top.get(1).key.equals("b") && top.get(1).count == 2;
+
+    // A minute after first add only the later ones are left.
+    timer.setTime(timer.currentTimeMillis() + 40 * 1000);
+    top = clients.getTop(10);
+    assert top.get(0).key.equals("b") && top.get(0).count == 2;
+    assert top.get(1).key.equals("a") && top.get(1).count == 1;
+
+    timer.setTime(timer.currentTimeMillis() + 60 * 1000);
+    assert clients.getTop(10).isEmpty();
+  }
+}
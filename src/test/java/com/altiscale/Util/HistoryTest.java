@@ -0,0 +1,65 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* History unittests. */
+package com.altiscale.Util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for History.
+ */
+public class HistoryTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public HistoryTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(HistoryTest.class);
+  }
+
+  public void testRingKeepsLastSeconds() {
+    History history = new History(new String[] {"bytes", "open_connections"}, 3);
+    assert history.getCsv(10).equals("time,bytes,open_connections\n");
+    long[] row = new long[2];
+    for (int second = 100; second < 105; second++) {
+      row[0] = second * 10;
+      row[1] = second % 2;
+      history.record(second, row);
+    }
+    // Only the last three seconds are left, oldest first.
+    assert history.getCsv(10).equals("time,bytes,open_connections\n" +
+                                     "102,1020,0\n103,1030,1\n104,1040,0\n");
+    assert history.getJson(2).equals("{\"intervalMillis\":1000,\"times\":[103,104]," +
+        "\"series\":{\"bytes\":[1030,1040],\"open_connections\":[1,0]}}");
+    assert history.getJson(0).contains("\"times\":[]");
+
+    String svg = history.getSvg(0, 200, 50);
+    assert svg.startsWith("<svg width=\"200\" height=\"50\"");
+    // Highest value is at the top of the chart.
+    assert svg.contains("points=\"0,1 99,1 199,0\"") : svg;
+  }
+}
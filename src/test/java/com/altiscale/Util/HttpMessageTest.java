@@ -0,0 +1,146 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* HttpMessage unittests. */
+package com.altiscale.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for HttpMessage.
+ */
+public class HttpMessageTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public HttpMessageTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(HttpMessageTest.class);
+  }
+
+  private static InputStream input(String text) throws Exception {
+    return new ByteArrayInputStream(text.getBytes("ISO-8859-1"));
+  }
+
+  public void testPipelinedRequests() throws Exception {
+    InputStream input = input(
+        "PUT /a HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n\r\nhello" +
+        "POST /b HTTP/1.1\r\ntransfer-encoding: chunked\r\n\r\n" +
+        "3;ext=1\r\nabc\r\n0\r\nTrailer: t\r\n\r\n" +
+        "GET /c HTTP/1.0\r\nConnection: keep-alive\r\n\r\n");
+
+    HttpMessage first = HttpMessage.readRequest(input);
+    assert first.getMethod().equals("PUT");
+    assert first.getUri().equals("/a");
+    assert first.getHeader("content-length").equals("5");
+    assert first.isKeepAlive();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    assert first.copyBody(input, body, null) == 5;
+    assert body.toString("ISO-8859-1").equals("hello");
+
+    HttpMessage second = HttpMessage.readRequest(input);
+    assert second.isChunked();
+    body.reset();
+    second.copyBody(input, body, null);
+    // Chunked body goes through as it is, with chunk headers and trailer.
+    assert body.toString("ISO-8859-1").equals("3;ext=1\r\nabc\r\n0\r\nTrailer: t\r\n\r\n");
+
+    HttpMessage third = HttpMessage.readRequest(input);
+    assert third.getVersion().equals("HTTP/1.0");
+    assert third.isKeepAlive();
+    assert third.hasNoBody(null);
+
+    assert null == HttpMessage.readRequest(input);
+  }
+
+  public void testResponseBodies() throws Exception {
+    HttpMessage response = HttpMessage.readResponse(input("HTTP/1.1 200 OK\r\n\r\n"));
+    assert response.getStatusCode() == 200;
+    // Without length, body ends when connection closes.
+    assert !response.isDelimited("GET");
+    assert response.isDelimited("HEAD");
+
+    response = HttpMessage.readResponse(input("HTTP/1.1 204 No Content\r\n\r\n"));
+    assert response.hasNoBody("GET");
+
+    response = HttpMessage.readResponse(input("HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n"));
+    assert response.isDelimited("GET");
+    assert !response.isKeepAlive();
+
+    response = HttpMessage.newResponse(502, "Bad Gateway");
+    response.setHeader("Connection", "close");
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    response.writeHead(head);
+    assert head.toString("ISO-8859-1").equals(
+        "HTTP/1.1 502 Bad Gateway\r\nConnection: close\r\n\r\n");
+    assert response.getHeadLength() == head.size();
+  }
+
+  public void testQueryParameters() throws Exception {
+    HttpMessage request = HttpMessage.readRequest(
+        input("GET /webhdfs/v1/f?op=OPEN&Offset=10&noredirect HTTP/1.1\r\n\r\n"));
+    assert request.getPath().equals("/webhdfs/v1/f");
+    assert request.getQueryParameter("op").equals("OPEN");
+    assert request.getQueryParameter("offset").equals("10");
+    assert request.getQueryParameter("noredirect").equals("");
+    assert null == request.getQueryParameter("length");
+
+    HttpMessage range = request.copy();
+    range.setQueryParameter("offset", "20");
+    range.setQueryParameter("length", "5");
+    range.removeQueryParameter("noredirect");
+    assert range.getUri().equals("/webhdfs/v1/f?op=OPEN&offset=20&length=5");
+    // Original is unchanged.
+    assert request.getQueryParameter("offset").equals("10");
+  }
+
+  public void testMalformedMessages() throws Exception {
+    String[] requests = {"GET /\r\n\r\n",
+                         "GET / HTTP/1.1\r\nno colon\r\n\r\n",
+                         "GET / HTTP/1.1\r\nContent-Length: -1\r\n\r\n"};
+    for (String request : requests) {
+      try {
+        HttpMessage.readRequest(input(request)).hasNoBody(null);
+        fail("Accepted malformed request " + request);
+      } catch (ProtocolException e) {
+        // Expected.
+      }
+    }
+    HttpMessage chunked = HttpMessage.readRequest(
+        input("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nxyz\r\n"));
+    try {
+      chunked.copyBody(input("xyz\r\n"), new ByteArrayOutputStream(), null);
+      fail("Accepted bad chunk size.");
+    } catch (ProtocolException e) {
+      // Expected.
+    }
+  }
+}
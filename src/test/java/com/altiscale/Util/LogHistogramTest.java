@@ -0,0 +1,93 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* LogHistogram unittests. */
+package com.altiscale.Util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for LogHistogram.
+ */
+public class LogHistogramTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public LogHistogramTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(LogHistogramTest.class);
+  }
+
+  public void testBuckets() {
+    for (long value = 0; value < 100000; value++) {
+      int bucket = LogHistogram.getBucket(value);
+      assert LogHistogram.getUpperBound(bucket) >= value;
+      assert bucket == 0 || LogHistogram.getUpperBound(bucket - 1) < value;
+      // Buckets are at most an eighth of their values wide.
+      assert LogHistogram.getUpperBound(bucket) - value <= value / LogHistogram.SUB_BUCKETS;
+    }
+    assert LogHistogram.getBucket(Long.MAX_VALUE) == LogHistogram.BUCKETS - 1;
+    assert LogHistogram.getUpperBound(LogHistogram.BUCKETS - 1) == Long.MAX_VALUE;
+  }
+
+  public void testPercentilesOfLastMinute() {
+    TestTimer timer = new TestTimer(1000 * 1000);
+    LogHistogram histogram = new LogHistogram(timer, "test");
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i);
+    }
+    LogHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assert snapshot.getCount() == 100;
+    assert snapshot.getSum() == 5050;
+    assert snapshot.getMax() == 100;
+    assert snapshot.getPercentile(0.5) == 51;
+    assert snapshot.getPercentile(0.9) == 95;
+    assert snapshot.getPercentile(0.99) == 100;
+
+    // Thirty seconds later one slow value arrives.
+    timer.setTime(timer.currentTimeMillis() + 30 * 1000);
+    histogram.record(5000);
+    snapshot = histogram.getSnapshot();
+    assert snapshot.getCount() == 101;
+    assert snapshot.getMax() == 5000;
+    assert snapshot.getPercentile(0.5) == 51;
+
+    // A minute after the first values only the slow one is left.
+    timer.setTime(timer.currentTimeMillis() + 40 * 1000);
+    snapshot = histogram.getSnapshot();
+    assert snapshot.getCount() == 1;
+    assert snapshot.getPercentile(0.5) == 5000;
+    // Totals still have all values.
+    assert snapshot.getTotalCount() == 101;
+    assert snapshot.getTotalSum() == 5050 + 5000;
+
+    LogHistogram.Snapshot merged = snapshot.merge(LogHistogram.EMPTY);
+    assert merged.getCount() == 1;
+    assert merged.getMax() == 5000;
+    assert merged.getTotalCount() == 101;
+    assert LogHistogram.EMPTY.getPercentile(0.99) == 0;
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* SocketProfile unittests. */
+package com.altiscale.Util;
+
+import java.net.Socket;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for SocketProfile.
+ */
+public class SocketProfileTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public SocketProfileTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SocketProfileTest.class);
+  }
+
+  public void testParse() throws Exception {
+    SocketProfile profile = SocketProfile.parse("rcvbuf=4m,sndbuf=256k,nodelay,keepalive");
+    assert !profile.isAuto();
+    assert profile.getReceiveBufferBytes(0) == 4 * 1024 * 1024;
+    assert profile.getSendBufferBytes(1000) == 256 * 1024;
+    assert profile.toString().equals("rcvbuf=4m,sndbuf=256k,nodelay,keepalive");
+
+    Socket socket = new Socket();
+    profile.apply(socket, 0);
+    assert socket.getTcpNoDelay();
+    assert socket.getKeepAlive();
+    socket.close();
+
+    // Auto sizes only buffers we don't set.
+    profile = SocketProfile.parse("sndbuf=1m,auto");
+    assert profile.isAuto();
+    assert profile.getReceiveBufferBytes(0) == 0;
+    assert profile.getReceiveBufferBytes(512 * 1024) == 512 * 1024;
+    assert profile.getSendBufferBytes(512 * 1024) == 1024 * 1024;
+
+    assert SocketProfile.DEFAULT.getReceiveBufferBytes(512 * 1024) == 0;
+
+    String[] bad = {"rcvbuf=", "rcvbuf=-1", "sndbuf=4g", "nagle"};
+    for (String text : bad) {
+      try {
+        SocketProfile.parse(text);
+        assert false : text;
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+  }
+
+  public void testBdpBufferBytes() {
+    // 10 MB/s over 50 ms is 500 KB in flight, twice that rounds up to 1 MB.
+    assert SocketProfile.getBdpBufferBytes(10 * 1000 * 1000, 50) == 1024 * 1024;
+    assert SocketProfile.getBdpBufferBytes(1000, 1) == SocketProfile.MIN_AUTO_BYTES;
+    assert SocketProfile.getBdpBufferBytes(1000L * 1000 * 1000, 1000) ==
+           SocketProfile.MAX_AUTO_BYTES;
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* StatsFile unittests. */
+package com.altiscale.Util;
+
+import java.io.File;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for StatsFile and StatsFileReader.
+ */
+public class StatsFileTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public StatsFileTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(StatsFileTest.class);
+  }
+
+  public void testReaderSeesConsistentValues() throws Exception {
+    File file = File.createTempFile("stats", ".bin");
+    file.deleteOnExit();
+    final StatsFile statsFile = new StatsFile(file, new String[] {"host1:1", "host2:2"});
+    StatsFileReader reader = new StatsFileReader(file);
+    StatsFileReader.Values values = reader.read();
+    assert values.names.length == 2;
+    assert values.names[1].equals("host2:2");
+    assert values.servers[0][0] == 0;
+
+    // Writer sets every value to the same number, so a torn read would show different ones.
+    final int updates = 20000;
+    Thread writer = new Thread(new Runnable() {
+      public void run() {
+        for (int i = 1; i <= updates; i++) {
+          final long n = i;
+          statsFile.update(new StatsFile.Source() {
+            public void update(StatsFile file) {
+              file.setClientConnections(n);
+              file.setServer(0, n, n, n, n, true);
+              file.setServer(1, n, n, n, n, false);
+            }
+          });
+        }
+      }
+    });
+    writer.start();
+    long last = 0;
+    while (last < updates) {
+      values = reader.read();
+      long n = values.clientConnections;
+      assert n >= last;
+      for (int i = 0; i < 2; i++) {
+        for (int j = 0; j < 4; j++) {
+          assert values.servers[i][j] == n;
+        }
+      }
+      last = n;
+    }
+    writer.join();
+    assert values.servers[0][4] == 1 && values.servers[1][4] == 0;
+    assert values.updateMillis > 0;
+  }
+
+  public void testRestartKeepsOldMappingValid() throws Exception {
+    File file = File.createTempFile("stats", ".bin");
+    file.deleteOnExit();
+    StatsFile statsFile = new StatsFile(file, new String[] {"host1:1", "host2:2"});
+    statsFile.update(new StatsFile.Source() {
+      public void update(StatsFile file) {
+        file.setClientConnections(7);
+      }
+    });
+    StatsFileReader oldReader = new StatsFileReader(file);
+
+    // New file with fewer servers replaces the old one, which old reader still has mapped
+    // and can read in full.
+    new StatsFile(file, new String[] {"host3:3"});
+    StatsFileReader.Values values = oldReader.read();
+    assert values.names.length == 2;
+    assert values.names[1].equals("host2:2");
+    assert values.clientConnections == 7;
+    values = new StatsFileReader(file).read();
+    assert values.names.length == 1;
+    assert values.names[0].equals("host3:3");
+    assert values.clientConnections == 0;
+    assert file.length() == StatsFile.HEADER_BYTES + StatsFile.SERVER_BYTES;
+    assert !new File(file.getParentFile(), "." + file.getName() + ".new").exists();
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2015 Altiscale <zoran@altiscale.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* StatsSnapshot unittests. */
+package com.altiscale.Util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for StatsSnapshot.
+ */
+public class StatsSnapshotTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public StatsSnapshotTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(StatsSnapshotTest.class);
+  }
+
+  public void testRenderedFormats() throws Exception {
+    SecondMinuteHourCounter first = new SecondMinuteHourCounter("first");
+    SecondMinuteHourCounter second = new SecondMinuteHourCounter("second");
+    first.incrementBy(10);
+    second.incrementBy(20);
+    StatsSnapshot snapshot = new StatsSnapshot.Builder("ta_")
+        .addCounter("bytes", "Bytes.", StatsSnapshot.labels("server", "a:1"), first)
+        .addGauge("healthy", "Healthy.", null, 1)
+        .addCounter("bytes", "Bytes.", StatsSnapshot.labels("server", "b\"2"), second)
+        .build();
+
+    // Values of one metric are grouped, counters get the _total suffix.
+    String text = new String(snapshot.getPrometheusText(), "UTF-8");
+    assert text.equals("# HELP ta_bytes_total Bytes.\n" +
+                       "# TYPE ta_bytes_total counter\n" +
+                       "ta_bytes_total{server=\"a:1\"} 10\n" +
+                       "ta_bytes_total{server=\"b\\\"2\"} 20\n" +
+                       "# HELP ta_healthy Healthy.\n" +
+                       "# TYPE ta_healthy gauge\n" +
+                       "ta_healthy 1\n");
+
+    String json = new String(snapshot.getJson(), "UTF-8");
+    assert json.equals("{\"takenMillis\":" + snapshot.getTakenMillis() + ",\"metrics\":{" +
+                       "\"ta_bytes\":[" +
+                       "{\"labels\":{\"server\":\"a:1\"},\"lastSecond\":10,\"lastMinute\":10," +
+                       "\"lastHour\":10,\"total\":10}," +
+                       "{\"labels\":{\"server\":\"b\\\"2\"},\"lastSecond\":20," +
+                       "\"lastMinute\":20,\"lastHour\":20,\"total\":20}]," +
+                       "\"ta_healthy\":[{\"labels\":{},\"value\":1}]}}");
+
+    // Snapshot doesn't change with its counters.
+    first.incrementBy(5);
+    assert text.equals(new String(snapshot.getPrometheusText(), "UTF-8"));
+  }
+
+  public void testSummaryTotals() throws Exception {
+    TestTimer timer = new TestTimer(1000 * 1000);
+    LogHistogram histogram = new LogHistogram(timer, "latency");
+    histogram.record(10);
+    histogram.record(30);
+    // A minute later, quantiles cover only new values but count and sum keep growing.
+    timer.setTime(timer.currentTimeMillis() + 70 * 1000);
+    histogram.record(5);
+    StatsSnapshot snapshot = new StatsSnapshot.Builder("ta_")
+        .addHistogram("latency", "Latency.", null, histogram.getSnapshot())
+        .build();
+    String text = new String(snapshot.getPrometheusText(), "UTF-8");
+    assert text.contains("ta_latency{quantile=\"1\"} 5\n");
+    assert text.contains("ta_latency_sum 45\n");
+    assert text.contains("ta_latency_count 3\n");
+    String json = new String(snapshot.getJson(), "UTF-8");
+    assert json.contains("\"count\":1,\"sum\":5,\"totalCount\":3,\"totalSum\":45");
+  }
+}